@@ -1,10 +1,15 @@
 package org.fastpay;
 
 import com.google.inject.Guice;
+import com.google.inject.Injector;
 import lombok.extern.slf4j.Slf4j;
+import org.fastpay.app.Configuration;
 import org.fastpay.app.GuiceModule;
+import org.fastpay.common.IdempotencyCache;
 import org.fastpay.common.LogHelper;
 import org.fastpay.common.RestOperationTemplate;
+import org.fastpay.persistence.TransactionLog;
+import org.fastpay.service.Settlement;
 import org.fastpay.service.TransferService;
 
 import javax.inject.Inject;
@@ -19,25 +24,42 @@ public class Application {
 
     private static final String RESOURCE_URI = "/transfer";
     private static final String RESOURCE_URI_ID = RESOURCE_URI + "/:id";
+    private static final String RESOURCE_URI_STATS = RESOURCE_URI + "/stats";
+    private static final String RESOURCE_URI_BATCH = RESOURCE_URI + "/batch";
+    private static final String RESOURCE_URI_BATCH_EXECUTE = RESOURCE_URI_BATCH + "/execute";
+    private static final String RESOURCE_URI_BATCH_CANCEL = RESOURCE_URI_BATCH + "/cancel";
     private static final String RESOURCE_URI_CLEANUP = "/deleteAllTransfers";
     private static final int DEFAULT_PORT = 4567;
+    private static final int DEFAULT_BATCH_CHUNK_SIZE = 1000;
+    private static final String ASYNC_EXECUTION = "async";
 
     private final TransferService transferService;
     private final RestOperationTemplate restTemplate;
 
     @Inject
-    Application(final TransferService transferService) {
+    Application(final TransferService transferService, final IdempotencyCache idempotencyCache) {
         this.transferService = transferService;
-        this.restTemplate = new RestOperationTemplate(transferService);
+        this.restTemplate = new RestOperationTemplate(transferService, idempotencyCache);
     }
 
     public static void main(final String... args) {
-        Guice.createInjector(new GuiceModule())
-                .getInstance(Application.class)
-                .run(DEFAULT_PORT);
+        Injector injector = Guice.createInjector(new GuiceModule());
+        Application application = injector.getInstance(Application.class);
+
+        // in durable mode, rebuild state from transaction log before accepting requests
+        TransactionLog transactionLog = injector.getInstance(TransactionLog.class);
+        transactionLog.recover();
+        application.transferService.start();
+        injector.getInstance(Settlement.class).resume();
+        Runtime.getRuntime().addShutdownHook(new Thread(transactionLog::close));
+
+        application.run(DEFAULT_PORT);
     }
 
     void run(final int port) {
+        int batchChunkSize = (int) Math.max(1L,
+                Configuration.getLong(Configuration.BATCH_CHUNK_SIZE, DEFAULT_BATCH_CHUNK_SIZE));
+        boolean asyncExecution = ASYNC_EXECUTION.equals(Configuration.getString(Configuration.EXECUTION_MODE, null));
         port(port);
 
         log.info("Server started");
@@ -48,11 +70,33 @@ public class Application {
                     "Transfer successfully created", "Error occured. Transfer not created.")
         );
 
+        // create many transfers from JSON array, return array of results in the same order
+        post(RESOURCE_URI_BATCH, (request, response) ->
+            restTemplate.resourceCreateBatch(request, response, batchChunkSize,
+                    "Transfer successfully created", "Error occured. Batch not processed.")
+        );
+
+        // execute many pending transfers, by ids or filter; return status per id
+        post(RESOURCE_URI_BATCH_EXECUTE, (request, response) ->
+            restTemplate.resourceUpdateBatch(request, response, transferService::executeTransfers)
+        );
+
+        // cancel many pending transfers, by ids or filter; return status per id
+        post(RESOURCE_URI_BATCH_CANCEL, (request, response) ->
+            restTemplate.resourceUpdateBatch(request, response, transferService::cancelTransfers)
+        );
+
         // return list of all transfers
         get(RESOURCE_URI, (request, response) ->
             restTemplate.resourceGetAll(request, response)
         );
 
+        // return counts and amounts per status and currency, optionally for source/destination account
+        // must be registered before RESOURCE_URI_ID, which would match it too
+        get(RESOURCE_URI_STATS, (request, response) ->
+            restTemplate.resourceGetStatistics(request, response)
+        );
+
         // return transfer details
         get(RESOURCE_URI_ID, (request, response) ->
             restTemplate.resourceGet(request, response,
@@ -60,10 +104,16 @@ public class Application {
         );
 
         // execute transfer request; must be in pending state
-        put(RESOURCE_URI_ID, (request, response) ->
-            restTemplate.resourceUpdate(request, response, transferService::executeTransfer,
-                    "Transfer execution not possible", "Transfer executed")
-        );
+        // in async mode, or with header Prefer: respond-async, returns 202 at once and transfer is PROCESSING
+        put(RESOURCE_URI_ID, (request, response) -> {
+            String prefer = request.headers(RestOperationTemplate.PREFER_HEADER);
+            if (asyncExecution || (prefer != null && prefer.contains(RestOperationTemplate.RESPOND_ASYNC))) {
+                return restTemplate.resourceExecuteAsync(request, response,
+                        "Transfer execution not possible", "Transfer execution accepted");
+            }
+            return restTemplate.resourceUpdate(request, response, transferService::executeTransfer,
+                    "Transfer execution not possible", "Transfer executed");
+        });
 
         // cancel request; only pending can be cancelled
         delete(RESOURCE_URI_ID, (request, response) ->
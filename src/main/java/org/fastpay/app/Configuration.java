@@ -0,0 +1,106 @@
+package org.fastpay.app;
+
+// Application settings, read from system properties, ex: java -Dfastpay.wal.dir=/var/lib/fastpay -jar ...
+public class Configuration {
+
+    // directory of write-ahead log; durable mode is enabled only when set
+    public static final String WAL_DIRECTORY = "fastpay.wal.dir";
+    // force log to disk before acknowledging operation
+    public static final String WAL_FSYNC = "fastpay.wal.fsync";
+    // size of log segment file, in bytes
+    public static final String WAL_SEGMENT_SIZE = "fastpay.wal.segmentSize";
+    // period of background snapshots in durable mode, in seconds; 0 disables them
+    public static final String SNAPSHOT_INTERVAL = "fastpay.snapshot.interval";
+
+    // listings with at least this number of candidate records are filtered and sorted in parallel; 0 disables it
+    public static final String PARALLEL_SCAN_THRESHOLD = "fastpay.scan.parallelThreshold";
+    // size of thread pool for parallel listings, default is number of processors
+    public static final String PARALLEL_SCAN_THREADS = "fastpay.scan.threads";
+
+    // ledger implementation: "striped" - request threads under striped locks (default),
+    // "sequenced" - commands applied by single writer thread per partition
+    public static final String LEDGER_MODE = "fastpay.ledger";
+    // number of partitions (writer threads) of sequenced ledger
+    public static final String LEDGER_PARTITIONS = "fastpay.ledger.partitions";
+    // size of command ring buffer of each partition, power of two
+    public static final String LEDGER_RING_SIZE = "fastpay.ledger.ringSize";
+    // number of finalized or cancelled payments kept by ledger (by each partition of sequenced ledger) to answer
+    // repeated finalization or cancellation; oldest are forgotten beyond it
+    public static final String LEDGER_SETTLED_RETENTION = "fastpay.ledger.settledRetention";
+
+    // time in seconds after which authorized, but not executed transfer is cancelled and amount released;
+    // 0 disables expiry
+    public static final String HOLD_TTL = "fastpay.hold.ttl";
+
+    // properties file with exchange rates (currency=price of base currency); without it transfers can't be converted
+    public static final String FX_RATES_FILE = "fastpay.fx.rates";
+    // period of reloading exchange rates, in seconds; 0 - loaded only on startup
+    public static final String FX_REFRESH_INTERVAL = "fastpay.fx.refresh";
+
+    // properties file with commission rules; without it built-in rules apply (same bank 0%, same country 1%,
+    // both in EEA 2.5%, other 4%)
+    public static final String COMMISSION_RULES_FILE = "fastpay.commission.rules";
+    // period of reloading commission rules, in seconds; 0 - loaded only on startup
+    public static final String COMMISSION_REFRESH_INTERVAL = "fastpay.commission.refresh";
+
+    // settlement of executed transfers: "immediate" - each on its own (default),
+    // "netting" - transfers executed within a window are settled together, one balance change per account,
+    // "saga" - deposit and finalization are journaled steps, retried in background and compensated on failure
+    public static final String SETTLEMENT_MODE = "fastpay.settlement";
+    // length of netting window, in milliseconds
+    public static final String SETTLEMENT_WINDOW = "fastpay.settlement.window";
+    // threads retrying failed saga steps, default is number of processors
+    public static final String SAGA_THREADS = "fastpay.saga.threads";
+    // delay of first retry of failed saga step, in milliseconds; doubled with every next attempt
+    public static final String SAGA_RETRY_DELAY = "fastpay.saga.retryDelay";
+    // upper limit of retry delay, in milliseconds
+    public static final String SAGA_MAX_RETRY_DELAY = "fastpay.saga.maxRetryDelay";
+    // attempts of deposit or finalization, after which transfer is compensated and cancelled
+    public static final String SAGA_MAX_ATTEMPTS = "fastpay.saga.maxAttempts";
+
+    // execution of transfer by PUT /transfer/:id: "sync" - request waits for settlement (default),
+    // "async" - request returns 202 at once, transfer is PROCESSING until settled in background
+    public static final String EXECUTION_MODE = "fastpay.execution";
+    // threads settling transfers in background, default is number of processors
+    public static final String EXECUTION_THREADS = "fastpay.execution.threads";
+    // maximal number of executions waiting for a thread; when exceeded, execution is refused with 503
+    public static final String EXECUTION_QUEUE_SIZE = "fastpay.execution.queueSize";
+
+    // precision of executing future-dated transfers, in milliseconds; transfers due within it are executed together
+    public static final String SCHEDULE_RESOLUTION = "fastpay.schedule.resolution";
+    // maximal number of due transfers executed in one batch
+    public static final String SCHEDULE_BATCH_SIZE = "fastpay.schedule.batchSize";
+
+    // how long response of POST /transfer with Idempotency-Key header is kept for retries, in seconds
+    public static final String IDEMPOTENCY_TTL = "fastpay.idempotency.ttl";
+    // maximal number of kept idempotency keys; when exceeded, oldest are dropped before their TTL
+    public static final String IDEMPOTENCY_MAX_KEYS = "fastpay.idempotency.maxKeys";
+
+    // number of transfers of POST /transfer/batch read and created together; results are written after each chunk
+    public static final String BATCH_CHUNK_SIZE = "fastpay.batch.chunkSize";
+
+    // id of this instance, 0..1023, embedded in generated transfer ids
+    public static final String NODE_ID = "fastpay.node.id";
+
+    private Configuration() {}
+
+    public static String getString(String key, String defaultValue) {
+        return System.getProperty(key, defaultValue);
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) return defaultValue;
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid numeric value of setting '" + key + "'", ex);
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = System.getProperty(key);
+        return value != null ? Boolean.parseBoolean(value.trim()) : defaultValue;
+    }
+}
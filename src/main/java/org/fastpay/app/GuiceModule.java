@@ -1,24 +1,79 @@
 package org.fastpay.app;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
 import org.fastpay.Application;
+import org.fastpay.persistence.TransactionLog;
+import org.fastpay.persistence.WriteAheadLog;
 import org.fastpay.repository.TransferRepository;
 import org.fastpay.repository.TransferRepositoryImpl;
 import org.fastpay.service.AccountService;
 import org.fastpay.service.AccountServiceImpl;
+import org.fastpay.service.NettingSettlement;
+import org.fastpay.service.SagaOrchestrator;
+import org.fastpay.service.SequencedAccountService;
+import org.fastpay.service.Settlement;
 import org.fastpay.service.TransferService;
 import org.fastpay.service.TransferServiceImpl;
 
+import javax.inject.Named;
 import javax.inject.Singleton;
+import java.nio.file.Paths;
+
+import static org.fastpay.app.Configuration.*;
 
 public class GuiceModule extends AbstractModule {
 
+    private static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final long DEFAULT_SNAPSHOT_INTERVAL = 300L;
+    private static final String SEQUENCED_LEDGER = "sequenced";
+    private static final String NETTING_SETTLEMENT = "netting";
+    private static final String SAGA_SETTLEMENT = "saga";
+
     @Override
     protected void configure() {
         bind(TransferService.class).to(TransferServiceImpl.class);
         bind(TransferRepository.class).to(TransferRepositoryImpl.class);
-        bind(AccountService.class).to(AccountServiceImpl.class);
         bind(Application.class).in(Singleton.class);
+
+        String settlementMode = getString(SETTLEMENT_MODE, null);
+        if (NETTING_SETTLEMENT.equals(settlementMode)) {
+            bind(Settlement.class).to(NettingSettlement.class);
+        } else if (SAGA_SETTLEMENT.equals(settlementMode)) {
+            bind(Settlement.class).to(SagaOrchestrator.class);
+        }
+
+        // durable mode - otherwise state is kept in memory only
+        String walDirectory = getString(WAL_DIRECTORY, null);
+        if (walDirectory != null) {
+            bind(TransactionLog.class).toInstance(new WriteAheadLog(Paths.get(walDirectory),
+                    getBoolean(WAL_FSYNC, true), getLong(WAL_SEGMENT_SIZE, DEFAULT_SEGMENT_SIZE),
+                    getLong(SNAPSHOT_INTERVAL, DEFAULT_SNAPSHOT_INTERVAL)));
+        }
+    }
+
+    @Provides
+    @Singleton
+    @Named(TransferServiceImpl.SENDER)
+    AccountService senderAccountService(TransactionLog transactionLog) {
+        return accountService(TransferServiceImpl.SENDER, transactionLog);
+    }
+
+    @Provides
+    @Singleton
+    @Named(TransferServiceImpl.RECIPIENT)
+    AccountService recipientAccountService(TransactionLog transactionLog) {
+        return accountService(TransferServiceImpl.RECIPIENT, transactionLog);
+    }
+
+    private static AccountService accountService(String ledgerName, TransactionLog transactionLog) {
+        int settledRetention = (int) getLong(LEDGER_SETTLED_RETENTION, AccountServiceImpl.DEFAULT_SETTLED_RETENTION);
+        if (SEQUENCED_LEDGER.equals(getString(LEDGER_MODE, null))) {
+            return new SequencedAccountService(ledgerName, transactionLog,
+                    (int) getLong(LEDGER_PARTITIONS, Runtime.getRuntime().availableProcessors()),
+                    (int) getLong(LEDGER_RING_SIZE, SequencedAccountService.DEFAULT_RING_SIZE), settledRetention);
+        }
+        return new AccountServiceImpl(ledgerName, transactionLog, settledRetention);
     }
 
-}
\ No newline at end of file
+}
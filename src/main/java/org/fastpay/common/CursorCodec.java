@@ -0,0 +1,70 @@
+package org.fastpay.common;
+
+import com.google.gson.Gson;
+import org.fastpay.entity.Cursor;
+import org.fastpay.entity.Money;
+import org.fastpay.entity.Transfer;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+
+// Encodes position of the last record on the page into opaque url-safe token, and back
+public class CursorCodec {
+
+    public static final String DEFAULT_SORT_PROPERTY = "id";
+
+    private CursorCodec() {}
+
+    public static String encode(Transfer last, String sort, String order) {
+        Object value = TransferProperty.of(sort != null ? sort : DEFAULT_SORT_PROPERTY).get(last);
+        Cursor cursor = new Cursor(sort, order, toKey(value), last.getId());
+        byte[] json = new Gson().toJson(cursor).getBytes(StandardCharsets.UTF_8);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json);
+    }
+
+    public static Cursor decode(String token) {
+        try {
+            String json = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            Cursor cursor = new Gson().fromJson(json, Cursor.class);
+            if (cursor == null || cursor.getId() == null) {
+                throw new IllegalArgumentException("Invalid value in query parameter 'cursor'");
+            }
+            return cursor;
+        } catch (RuntimeException ex) {
+            throw new IllegalArgumentException("Invalid value in query parameter 'cursor'", ex);
+        }
+    }
+
+    // builds Transfer holding only cursor's sort key and id, to seek with the same comparator as listing uses
+    public static Transfer toProbe(Cursor cursor) {
+        TransferProperty property = TransferProperty.of(cursor.getSort() != null ? cursor.getSort() : DEFAULT_SORT_PROPERTY);
+        Transfer probe = new Transfer();
+        probe.setId(cursor.getId());
+        try {
+            property.set(probe, fromKey(cursor.getKey(), property.getType()));
+        } catch (RuntimeException ex) {
+            throw new IllegalArgumentException("Invalid value in query parameter 'cursor'", ex);
+        }
+        return probe;
+    }
+
+    private static String toKey(Object value) {
+        if (value == null) return null;
+        if (value instanceof Date) return Long.toString(((Date) value).getTime());
+        if (value instanceof Enum) return ((Enum<?>) value).name();
+        return value.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object fromKey(String key, Class<?> type) {
+        if (key == null) return null;
+        if (type == Date.class) return new Date(Long.parseLong(key));
+        if (type.isEnum()) return Enum.valueOf((Class<Enum>) type, key);
+        if (type == Money.class) return Money.parse(key);
+        if (type == BigDecimal.class) return new BigDecimal(key);
+        if (type == String.class) return key;
+        throw new IllegalArgumentException("Unsupported type of cursor key " + type.getSimpleName());
+    }
+}
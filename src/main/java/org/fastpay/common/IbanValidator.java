@@ -0,0 +1,69 @@
+package org.fastpay.common;
+
+// Structure and checksum of account numbers in electronic IBAN format (upper case, no spaces)
+// checks country code and length from IBAN registry, alphanumeric BBAN and mod-97 check digits;
+// checksum is computed character by character on the string, without big numbers or substrings
+public class IbanValidator {
+
+    private static final int LETTERS = 26;
+    private static final int MIN_LENGTH = 15;
+    private static final int MAX_LENGTH = 34;
+
+    // country code and IBAN length, by SWIFT IBAN registry
+    private static final String REGISTRY = "AD24 AE23 AL28 AT20 AZ28 BA20 BE16 BG22 BH22 BI27 BR29 BY28 CH21 CR22 "
+            + "CY28 CZ24 DE22 DJ27 DK18 DO28 EE20 EG29 ES24 FI18 FK18 FO18 FR27 GB22 GE22 GI23 GL18 GR27 GT28 HN28 "
+            + "HR21 HU28 IE22 IL23 IQ23 IS26 IT27 JO30 KW30 KZ20 LB28 LC32 LI21 LT20 LU20 LV21 LY25 MC27 MD24 ME22 "
+            + "MK19 MN20 MR27 MT31 MU30 NI28 NL18 NO15 OM23 PK24 PL28 PS29 PT25 QA29 RO24 RS22 RU33 SA24 SC31 SD18 "
+            + "SE24 SI19 SK24 SM27 SO23 ST25 SV28 TL23 TN24 TR26 UA29 VA22 VG24 XK20 YE30";
+
+    private static final byte[] LENGTHS = new byte[LETTERS * LETTERS]; // by country code, 0 - not in registry
+
+    static {
+        for (String entry : REGISTRY.split(" ")) {
+            LENGTHS[(entry.charAt(0) - 'A') * LETTERS + entry.charAt(1) - 'A'] = Byte.parseByte(entry.substring(2));
+        }
+    }
+
+    private IbanValidator() {}
+
+    public static boolean isValid(String iban) {
+        if (iban == null || iban.length() < MIN_LENGTH || iban.length() > MAX_LENGTH) {
+            return false;
+        }
+
+        int first = iban.charAt(0) - 'A';
+        int second = iban.charAt(1) - 'A';
+        if (first < 0 || first >= LETTERS || second < 0 || second >= LETTERS
+                || LENGTHS[first * LETTERS + second] != iban.length()
+                || !isDigit(iban.charAt(2)) || !isDigit(iban.charAt(3))) {
+            return false;
+        }
+
+        // number formed by BBAN, then country code and check digits, letters as 10..35, must give 1 mod 97
+        int length = iban.length();
+        int remainder = 0;
+        for (int i = 0; i < length; i++) {
+            char c = iban.charAt((i + 4) % length);
+            if (isDigit(c)) {
+                remainder = (remainder * 10 + c - '0') % 97;
+            } else if (c >= 'A' && c <= 'Z') {
+                remainder = (remainder * 100 + c - 'A' + 10) % 97;
+            } else {
+                return false;
+            }
+        }
+        return remainder == 1;
+    }
+
+    // account number passed on, if it's valid IBAN
+    public static String requireValid(String iban, String field) {
+        if (!isValid(iban)) {
+            throw new IllegalArgumentException("Invalid IBAN in field '" + field + "'");
+        }
+        return iban;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
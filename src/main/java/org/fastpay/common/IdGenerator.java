@@ -0,0 +1,9 @@
+package org.fastpay.common;
+
+import com.google.inject.ImplementedBy;
+
+// Source of unique transfer ids
+@ImplementedBy(TimeOrderedIdGenerator.class)
+public interface IdGenerator {
+    String nextId();
+}
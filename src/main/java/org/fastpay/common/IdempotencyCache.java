@@ -0,0 +1,174 @@
+package org.fastpay.common;
+
+import lombok.Data;
+import org.fastpay.app.Configuration;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Responses of requests with idempotency key, so retried request gets the first response instead of being
+// processed again. Concurrent requests with the same key wait for the first one.
+// Bounded: every key lives for TTL at most, and oldest keys are evicted first, when there are more than maxKeys;
+// keys are evicted in insertion order, which is also order of expiry, so eviction is O(1) per key.
+// Only answers are kept: key of request, which failed or got server error, is released, so retry is processed
+@Singleton
+public class IdempotencyCache {
+
+    private static final long DEFAULT_TTL_SECONDS = 3600L;
+    private static final long DEFAULT_MAX_KEYS = 200_000L;
+    private static final int SERVER_ERROR = 500;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Queue<Entry> insertionOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final long ttlNanos;
+    private final int maxKeys;
+
+    @Inject
+    public IdempotencyCache() {
+        this(Configuration.getLong(Configuration.IDEMPOTENCY_TTL, DEFAULT_TTL_SECONDS), TimeUnit.SECONDS,
+                (int) Configuration.getLong(Configuration.IDEMPOTENCY_MAX_KEYS, DEFAULT_MAX_KEYS));
+    }
+
+    public IdempotencyCache(long ttl, TimeUnit unit, int maxKeys) {
+        if (ttl <= 0 || maxKeys <= 0) {
+            throw new IllegalArgumentException("Idempotency cache TTL and size must be positive");
+        }
+        this.ttlNanos = unit.toNanos(ttl);
+        this.maxKeys = maxKeys;
+    }
+
+    // SHA-256 of request body, hex encoded - unlike hash code, different bodies don't collide in practice
+    public static String fingerprint(String body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest((body != null ? body : "").getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 not available", ex); // required in every JRE
+        }
+    }
+
+    // response of the first request with this key, request is processed only if there is none;
+    // fingerprint of request tells apart reuse of the key for different request, which fails with
+    // IllegalStateException
+    public Result execute(String key, String fingerprint, Supplier<StoredResponse> request) {
+        evict();
+
+        Entry entry = new Entry(key, fingerprint, System.nanoTime() + ttlNanos);
+        Entry first = entries.putIfAbsent(key, entry);
+        while (first != null && first.isExpired() && first.response.isDone()) {
+            // expired, but not evicted yet
+            entries.remove(key, first);
+            first = entries.putIfAbsent(key, entry);
+        }
+
+        if (first != null) {
+            if (!first.fingerprint.equals(fingerprint)) {
+                throw new IllegalStateException("Idempotency key already used for other request");
+            }
+            try {
+                return new Result(first.response.join(), true);
+            } catch (CompletionException ex) {
+                // first request failed, key was released - process this one
+                return execute(key, fingerprint, request);
+            }
+        }
+
+        size.incrementAndGet();
+        insertionOrder.add(entry);
+        try {
+            StoredResponse response = request.get();
+            if (response.getStatus() >= SERVER_ERROR) {
+                // not an answer to keep - requests waiting for it are processed on their own
+                entries.remove(key, entry);
+                entry.response.completeExceptionally(
+                        new IllegalStateException("Request failed with status " + response.getStatus()));
+            } else {
+                entry.response.complete(response);
+            }
+            return new Result(response, false);
+        } catch (RuntimeException ex) {
+            // nothing to replay, retry may succeed
+            entries.remove(key, entry);
+            entry.response.completeExceptionally(ex);
+            throw ex;
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    private void evict() {
+        Entry oldest;
+        while ((oldest = insertionOrder.peek()) != null && (size.get() > maxKeys || oldest.isExpired())) {
+            if (!oldest.response.isDone()) {
+                // request in flight - retries must still find it; eviction goes on once it's answered
+                return;
+            }
+            // concurrent eviction may take it first, then the next oldest one goes - still in order
+            Entry evicted = insertionOrder.poll();
+            if (evicted != null) {
+                size.decrementAndGet();
+                entries.remove(evicted.key, evicted);
+            }
+        }
+    }
+
+    // response to replay: HTTP status and body
+    @Data
+    public static class StoredResponse {
+        private final int status;
+        private final String body;
+
+        public StoredResponse(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    @Data
+    public static class Result {
+        private final StoredResponse response;
+        private final boolean replayed;
+
+        public Result(StoredResponse response, boolean replayed) {
+            this.response = response;
+            this.replayed = replayed;
+        }
+    }
+
+    private static final class Entry {
+        private final String key;
+        private final String fingerprint;
+        private final long expiresAt;
+        private final CompletableFuture<StoredResponse> response = new CompletableFuture<>();
+
+        private Entry(String key, String fingerprint, long expiresAt) {
+            this.key = key;
+            this.fingerprint = fingerprint;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired() {
+            return System.nanoTime() - expiresAt > 0;
+        }
+    }
+}
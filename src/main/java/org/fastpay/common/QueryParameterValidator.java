@@ -1,14 +1,15 @@
 package org.fastpay.common;
 
 import org.apache.commons.lang3.StringUtils;
+import org.fastpay.entity.Cursor;
+import org.fastpay.entity.Money;
 import org.fastpay.entity.Transfer;
 import org.fastpay.entity.TransferStatus;
 
-import java.lang.reflect.Method;
-import java.math.BigDecimal;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Objects;
 import java.util.Set;
 
 public class QueryParameterValidator {
@@ -73,26 +74,32 @@ public class QueryParameterValidator {
         return currencyUpper;
     }
 
-    public static BigDecimal getMoney(String amount) {
+    public static Money getMoney(String amount) {
         if (amount == null) return null;
 
         try {
-            return new BigDecimal(amount);
+            return Money.parse(amount);
         } catch (NumberFormatException ex) {
             throw new IllegalArgumentException("Invalid value in query parameter 'amount'");
         }
     }
 
-    // comparator provides sorting on property name in Transfer class
+    // comparator provides sorting on property name in Transfer class, precompiled once per property
     public static Comparator<Transfer> getSortComparator(String sortPropertyName) {
         if (sortPropertyName == null) return null;
 
-        try {
-            // translate field name to accessor to property
-            final Method method = Transfer.class.getMethod("get" + StringUtils.capitalize(sortPropertyName));
-            return (x, y) -> MethodGetWrapper.of(method, x).compareTo(MethodGetWrapper.of(method, y));
-        } catch (NoSuchMethodException ex) {
-            throw new IllegalArgumentException("Invalid field name in query parameter 'sort'", ex);
+        return TransferProperty.of(sortPropertyName).getComparator();
+    }
+
+    // cursor is valid only for the same sort property and direction it was issued for
+    public static Cursor getCursor(String token, String sortPropertyName, String sortOrder) {
+        if (token == null) return null;
+
+        Cursor cursor = CursorCodec.decode(token);
+        if (!Objects.equals(cursor.getSort(), sortPropertyName)
+                || !StringUtils.defaultString(cursor.getOrder(), "asc").equals(StringUtils.defaultString(sortOrder, "asc"))) {
+            throw new IllegalArgumentException("Query parameter 'cursor' doesn't match 'sort' and 'order' parameters");
         }
+        return cursor;
     }
 }
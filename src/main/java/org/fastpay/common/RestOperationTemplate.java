@@ -1,13 +1,29 @@
 package org.fastpay.common;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import lombok.extern.slf4j.Slf4j;
 import org.fastpay.entity.*;
 import org.fastpay.service.TransferService;
 import spark.Request;
 import spark.Response;
 
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static javax.servlet.http.HttpServletResponse.*;
 import static org.fastpay.common.QueryParameterValidator.*;
@@ -18,10 +34,19 @@ public class RestOperationTemplate {
 
     public static final String APPLICATION_TYPE_JSON = "application/json";
     public static final long DEFAULT_QUERY_LIMIT = 100L;
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    public static final String IDEMPOTENT_REPLAYED_HEADER = "Idempotent-Replayed";
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
+    public static final String PREFER_HEADER = "Prefer";
+    public static final String RESPOND_ASYNC = "respond-async";
+    private static final int SC_UNPROCESSABLE_ENTITY = 422;
     private final TransferService transferService;
+    private final IdempotencyCache idempotencyCache;
 
-    public RestOperationTemplate(TransferService transferService) {
+    public RestOperationTemplate(TransferService transferService, IdempotencyCache idempotencyCache) {
         this.transferService = transferService;
+        this.idempotencyCache = idempotencyCache;
     }
 
     public String resourceUpdate(Request request, Response response, Function<String, TransferStatus> operation,
@@ -37,6 +62,11 @@ public class RestOperationTemplate {
                 return new Gson().toJson(new ServiceResponse(TransferStatus.ERROR, errorMessage,
                         new Gson().toJsonTree(result)));
             } else {
+                if (status.equals(TransferStatus.PROCESSING)) {
+                    // settlement goes on in background, transfer can be polled
+                    response.status(SC_ACCEPTED);
+                    response.header("Location", request.uri());
+                }
                 return new Gson().toJson(new ServiceResponse(result.getStatus(), successMessage,
                         new Gson().toJsonTree(result)));
             }
@@ -49,8 +79,102 @@ public class RestOperationTemplate {
         }
     }
 
+    // Execution in background: 202 with Location of transfer, which can be polled until it's not PROCESSING;
+    // 409 if transfer isn't pending, 503 if there are too many executions in progress
+    public String resourceExecuteAsync(Request request, Response response, String errorMessage,
+                                       String successMessage) {
+        response.type(APPLICATION_TYPE_JSON);
+
+        Transfer result = transferService.getTransferDetails(request.params(":id"));
+        if (result == null) {
+            response.status(SC_NOT_FOUND);
+            return new Gson().toJson(new ServiceResponse(TransferStatus.ERROR, "No transfer with such id found",
+                    null));
+        }
+
+        TransferStatus status = transferService.submitExecution(result.getId());
+        if (status == TransferStatus.PROCESSING) {
+            response.status(SC_ACCEPTED);
+            response.header("Location", request.uri());
+            return new Gson().toJson(new ServiceResponse(status, successMessage, new Gson().toJsonTree(result)));
+        }
+
+        response.status(status == TransferStatus.PENDING ? SC_SERVICE_UNAVAILABLE : SC_CONFLICT);
+        return new Gson().toJson(new ServiceResponse(TransferStatus.ERROR, errorMessage,
+                new Gson().toJsonTree(result)));
+    }
+
+    // Changes many transfers at once: ones listed in body {"ids": [...]}, or without body, all pending ones matching
+    // query parameters source, destination and currency. Returns object with resulting status per transfer id
+    public String resourceUpdateBatch(Request request, Response response,
+                                      Function<Collection<String>, Map<String, TransferStatus>> operation) {
+        response.type(APPLICATION_TYPE_JSON);
+        response.status(SC_OK);
+        try {
+            Collection<String> ids;
+            if (request.body() != null && !request.body().trim().isEmpty()) {
+                TransferIdsDto idsData = new Gson().fromJson(request.body(), TransferIdsDto.class);
+                if (idsData == null || idsData.getIds() == null) {
+                    throw new IllegalArgumentException("Missing list of transfer ids");
+                }
+                ids = idsData.getIds();
+            } else {
+                // request without ids nor filter would change every pending transfer - surely not meant
+                if (request.queryParams("source") == null && request.queryParams("destination") == null
+                        && request.queryParams("currency") == null) {
+                    throw new IllegalArgumentException(
+                            "Missing list of transfer ids or filter: source, destination or currency");
+                }
+                FilterParametersDto filterParams = new FilterParametersDto();
+                filterParams.setStatus(TransferStatus.PENDING);
+                filterParams.setSource(request.queryParams("source"));
+                filterParams.setDestination(request.queryParams("destination"));
+                filterParams.setCurrency(getCurrency(request.queryParams("currency")));
+                ids = transferService.getTransfers(filterParams).stream()
+                        .map(Transfer::getId)
+                        .collect(Collectors.toList());
+            }
+            return new Gson().toJson(operation.apply(ids));
+        } catch (JsonParseException | IllegalArgumentException ex) {
+            log.error("Invalid batch request. " + ex.getMessage(), ex);
+            response.status(SC_BAD_REQUEST);
+            return new Gson().toJson(new ServiceResponse(TransferStatus.ERROR, ex.getMessage(), null));
+        }
+    }
+
+    // with Idempotency-Key header, retry of the request gets the first response, and no new transfer is created
     public String resourceCreate(Request request, Response response, String successMessage, String failureMessage) {
         response.type(APPLICATION_TYPE_JSON);
+        String idempotencyKey = request.headers(IDEMPOTENCY_KEY_HEADER);
+        if (idempotencyKey == null) {
+            return create(request, response, successMessage, failureMessage);
+        }
+
+        if (idempotencyKey.isEmpty() || idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH) {
+            response.status(SC_BAD_REQUEST);
+            return new Gson().toJson(new ServiceResponse(TransferStatus.ERROR,
+                    "Invalid value of header '" + IDEMPOTENCY_KEY_HEADER + "'", null));
+        }
+
+        IdempotencyCache.Result result;
+        try {
+            result = idempotencyCache.execute(idempotencyKey, IdempotencyCache.fingerprint(request.body()), () -> {
+                String body = create(request, response, successMessage, failureMessage);
+                return new IdempotencyCache.StoredResponse(response.status(), body);
+            });
+        } catch (IllegalStateException ex) {
+            response.status(SC_UNPROCESSABLE_ENTITY);
+            return new Gson().toJson(new ServiceResponse(TransferStatus.ERROR, ex.getMessage(), null));
+        }
+
+        if (result.isReplayed()) {
+            response.status(result.getResponse().getStatus());
+            response.header(IDEMPOTENT_REPLAYED_HEADER, "true");
+        }
+        return result.getResponse().getBody();
+    }
+
+    private String create(Request request, Response response, String successMessage, String failureMessage) {
         try {
             TransferDto transferData = new Gson().fromJson(request.body(), TransferDto.class);
             Transfer newTransfer = transferService.createTransfer(transferData);
@@ -58,6 +182,12 @@ public class RestOperationTemplate {
             return new Gson()
                     .toJson(new ServiceResponse(newTransfer.getStatus(), successMessage,
                             new Gson().toJsonTree(newTransfer)));
+        } catch (IllegalArgumentException ex) {
+            // invalid transfer data: account number, amount, currency
+            log.error("Invalid transfer data. " + ex.getMessage(), ex);
+            response.status(SC_BAD_REQUEST);
+            return new Gson().toJson(new ServiceResponse(TransferStatus.ERROR, failureMessage,
+                    new Gson().toJsonTree(ex.getMessage())));
         } catch (RuntimeException ex) {
             log.error("Exception occurred during resource creation", ex);
             response.status(SC_INTERNAL_SERVER_ERROR);
@@ -67,6 +197,90 @@ public class RestOperationTemplate {
 
     }
 
+    // Body is JSON array of transfers, read item by item and created in chunks; results of every chunk are written
+    // to response as soon as it's done, so memory doesn't depend on size of the batch. Response is JSON array with
+    // result per item, in order of items. Once it started, malformed item ends it with error result for the rest
+    public String resourceCreateBatch(Request request, Response response, int chunkSize, String successMessage,
+                                      String failureMessage) throws IOException {
+        response.type(APPLICATION_TYPE_JSON);
+        Gson gson = new Gson();
+        JsonReader reader = new JsonReader(new InputStreamReader(bodyStream(request), StandardCharsets.UTF_8));
+        if (peek(reader) != JsonToken.BEGIN_ARRAY) {
+            response.status(SC_BAD_REQUEST);
+            return gson.toJson(new ServiceResponse(TransferStatus.ERROR, failureMessage,
+                    gson.toJsonTree("Expected JSON array of transfers")));
+        }
+
+        response.status(SC_OK);
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(response.raw().getOutputStream(),
+                StandardCharsets.UTF_8));
+        writer.beginArray();
+        reader.beginArray();
+        List<TransferDto> chunk = new ArrayList<>(chunkSize);
+        Exception failure = null;
+        boolean more = true;
+        while (more) {
+            try {
+                more = readChunk(gson, reader, chunk, chunkSize);
+            } catch (JsonParseException | IllegalArgumentException | IllegalStateException | IOException ex) {
+                // position in the stream is lost, items after this one can't be read
+                log.error("Malformed transfer in batch. " + ex.getMessage(), ex);
+                failure = ex;
+                more = false;
+            }
+            writeResults(gson, writer, transferService.createTransfers(chunk), successMessage);
+            chunk.clear();
+        }
+        if (failure != null) {
+            gson.toJson(new ServiceResponse(TransferStatus.ERROR, "Malformed transfer, rest of batch not processed",
+                    gson.toJsonTree(failure.getMessage())), ServiceResponse.class, writer);
+        }
+        writer.endArray();
+        writer.flush();
+        return ""; // body is already written
+    }
+
+    // reads up to chunk size of items; false when end of array is reached
+    private static boolean readChunk(Gson gson, JsonReader reader, List<TransferDto> chunk, int chunkSize)
+            throws IOException {
+        while (chunk.size() < chunkSize) {
+            if (!reader.hasNext()) {
+                reader.endArray();
+                return false;
+            }
+            chunk.add(gson.fromJson(reader, TransferDto.class));
+        }
+        return true;
+    }
+
+    private static JsonToken peek(JsonReader reader) {
+        try {
+            return reader.peek();
+        } catch (IOException ex) {
+            return null; // empty or malformed body
+        }
+    }
+
+    private static void writeResults(Gson gson, JsonWriter writer, List<TransferResult> results,
+                                     String successMessage) throws IOException {
+        for (TransferResult result : results) {
+            ServiceResponse item = result.getTransfer() != null
+                    ? new ServiceResponse(result.getStatus(), successMessage, gson.toJsonTree(result.getTransfer()))
+                    : new ServiceResponse(result.getStatus(), result.getMessage(), null);
+            gson.toJson(item, ServiceResponse.class, writer);
+        }
+        writer.flush(); // results of the chunk go out to client
+    }
+
+    // Spark keeps whole body of request in memory on first access, so underlying request is read instead
+    private static InputStream bodyStream(Request request) throws IOException {
+        ServletRequest raw = request.raw();
+        while (raw instanceof ServletRequestWrapper) {
+            raw = ((ServletRequestWrapper) raw).getRequest();
+        }
+        return raw.getInputStream();
+    }
+
     public String resourceGetAll(Request request, Response response) {
         response.type(APPLICATION_TYPE_JSON);
         response.status(SC_OK);
@@ -81,7 +295,15 @@ public class RestOperationTemplate {
             filterParams.setDestination(request.queryParams("destination"));
             filterParams.setTitle(request.queryParams("title"));
             filterParams.setAmount(getMoney(request.queryParams("amount")));
-            return new Gson().toJson(transferService.getTransfers(filterParams));
+            filterParams.setCursor(getCursor(request.queryParams("cursor"), filterParams.getSort(),
+                    filterParams.getOrder()));
+            List<Transfer> page = transferService.getTransfers(filterParams);
+            if (!page.isEmpty() && page.size() == filterParams.getLimit()) {
+                // full page returned - there may be more records after the last one
+                response.header(NEXT_CURSOR_HEADER, CursorCodec.encode(page.get(page.size() - 1),
+                        filterParams.getSort(), filterParams.getOrder()));
+            }
+            return new Gson().toJson(page);
         } catch (IllegalArgumentException ex) {
             log.error("Invalid parameter. " + ex.getMessage(), ex);
             response.status(SC_BAD_REQUEST);
@@ -90,6 +312,13 @@ public class RestOperationTemplate {
         }
     }
 
+    public String resourceGetStatistics(Request request, Response response) {
+        response.type(APPLICATION_TYPE_JSON);
+        response.status(SC_OK);
+        return new Gson().toJson(transferService.getStatistics(request.queryParams("source"),
+                request.queryParams("destination")));
+    }
+
     public String resourceGet(Request request, Response response, String successMessage, String notFoundMessage) {
         response.type(APPLICATION_TYPE_JSON);
         response.status(SC_OK);
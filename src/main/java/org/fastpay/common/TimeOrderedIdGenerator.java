@@ -0,0 +1,67 @@
+package org.fastpay.common;
+
+import org.fastpay.app.Configuration;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Snowflake-like 64-bit id: 41 bits of milliseconds since custom epoch, 10 bits of node id, 12 bits of sequence.
+// Ids are monotonic per node, also when clock goes back; written as fixed-width Crockford base32,
+// so string order of ids is the order of their creation. Lock-free, no random source involved
+@Singleton
+public class TimeOrderedIdGenerator implements IdGenerator {
+
+    private static final long EPOCH = 1546300800000L; // 2019-01-01T00:00:00Z
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_NODE_ID = (1L << NODE_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final int ID_LENGTH = 13;
+    private static final char[] ALPHABET = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+
+    private final long nodeId;
+    // last issued (timestamp << SEQUENCE_BITS | sequence)
+    private final AtomicLong lastState = new AtomicLong();
+
+    @Inject
+    public TimeOrderedIdGenerator() {
+        this(Configuration.getLong(Configuration.NODE_ID, 0L));
+    }
+
+    public TimeOrderedIdGenerator(long nodeId) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("Node id must be in range 0.." + MAX_NODE_ID);
+        }
+        this.nodeId = nodeId;
+    }
+
+    @Override
+    public String nextId() {
+        return encode(nextValue());
+    }
+
+    private long nextValue() {
+        long candidate = (System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS;
+        long last;
+        long next;
+        do {
+            last = lastState.get();
+            // same millisecond or clock moved back: continue sequence after last issued value;
+            // sequence overflow borrows next millisecond, keeping ids monotonic
+            next = candidate > last ? candidate : last + 1;
+        } while (!lastState.compareAndSet(last, next));
+
+        long timestamp = next >>> SEQUENCE_BITS;
+        return (timestamp << (NODE_BITS + SEQUENCE_BITS)) | (nodeId << SEQUENCE_BITS) | (next & SEQUENCE_MASK);
+    }
+
+    static String encode(long value) {
+        char[] chars = new char[ID_LENGTH];
+        for (int i = ID_LENGTH - 1; i >= 0; i--) {
+            chars[i] = ALPHABET[(int) (value & 31)];
+            value >>>= 5;
+        }
+        return new String(chars);
+    }
+}
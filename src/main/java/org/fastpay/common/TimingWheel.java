@@ -0,0 +1,240 @@
+package org.fastpay.common;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+// Hierarchical timing wheel: timeouts are hashed into buckets by deadline tick, so schedule and cancel are O(1)
+// regardless of number of pending timeouts. Level 0 has one bucket per tick, bucket of every next level spans
+// whole revolution of the level below, and is cascaded down to lower levels when its time comes.
+// Request threads only enqueue new and cancelled timeouts; one daemon thread owns the buckets, advances the wheel
+// and runs expired tasks, so keep tasks short
+@Slf4j
+public class TimingWheel {
+
+    private final long tickNanos;
+    private final int wheelBits;
+    private final int mask;
+    private final Bucket[][] wheels;
+    private final long startNanos = System.nanoTime();
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final Thread ticker;
+    private volatile boolean running = true;
+    private long currentTick; // ticker thread only
+
+    // range of timeouts without re-hashing is tick * 2^(wheelBits * levels), longer ones are cascaded more times
+    public TimingWheel(long tick, TimeUnit unit, int wheelBits, int levels, String threadName) {
+        if (tick <= 0 || wheelBits < 1 || levels < 1 || wheelBits * levels > 62) {
+            throw new IllegalArgumentException("Invalid timing wheel dimensions");
+        }
+        this.tickNanos = unit.toNanos(tick);
+        this.wheelBits = wheelBits;
+        this.mask = (1 << wheelBits) - 1;
+        this.wheels = new Bucket[levels][1 << wheelBits];
+        for (Bucket[] wheel : wheels) {
+            for (int i = 0; i < wheel.length; i++) {
+                wheel[i] = new Bucket();
+            }
+        }
+        this.ticker = new Thread(this::run, threadName);
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    // task runs on wheel thread not earlier than after the delay, with precision of one tick
+    public Timeout schedule(long delay, TimeUnit unit, Runnable task) {
+        long deadlineNanos = System.nanoTime() - startNanos + Math.max(0L, unit.toNanos(delay));
+        Timeout timeout = new Timeout(this, task, (deadlineNanos + tickNanos - 1) / tickNanos);
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    public void close() {
+        running = false;
+        LockSupport.unpark(ticker);
+    }
+
+    private void run() {
+        while (running) {
+            long now = (System.nanoTime() - startNanos) / tickNanos;
+            removeCancelled();
+            insertScheduled();
+            while (currentTick < now) {
+                currentTick++;
+                cascade();
+                expire(wheels[0][(int) (currentTick & mask)]);
+            }
+            long sleep = startNanos + (currentTick + 1) * tickNanos - System.nanoTime();
+            if (sleep > 0) {
+                LockSupport.parkNanos(this, sleep);
+            }
+        }
+    }
+
+    private void insertScheduled() {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.state == Timeout.PENDING) {
+                insert(timeout);
+            }
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void insert(Timeout timeout) {
+        long remaining = timeout.deadline - currentTick;
+        if (remaining <= 0) {
+            timeout.expire();
+            return;
+        }
+
+        int level = 0;
+        long span = 1L << wheelBits;
+        while (remaining >= span && level < wheels.length - 1) {
+            level++;
+            span <<= wheelBits;
+        }
+        // beyond range of the top level - park in its farthest bucket, it's re-hashed when cascaded
+        long tick = remaining >= span ? currentTick + span - 1 : timeout.deadline;
+        wheels[level][(int) ((tick >>> (wheelBits * level)) & mask)].add(timeout);
+    }
+
+    // bucket of upper level, which starts at current tick, is re-hashed into lower levels
+    private void cascade() {
+        for (int level = wheels.length - 1; level > 0; level--) {
+            int shift = wheelBits * level;
+            if ((currentTick & ((1L << shift) - 1)) == 0) {
+                Timeout timeout = wheels[level][(int) ((currentTick >>> shift) & mask)].detach();
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    timeout.next = null;
+                    if (timeout.state == Timeout.PENDING) {
+                        insert(timeout);
+                    }
+                    timeout = next;
+                }
+            }
+        }
+    }
+
+    private void expire(Bucket bucket) {
+        Timeout timeout = bucket.detach();
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.next = null;
+            timeout.expire();
+            timeout = next;
+        }
+    }
+
+    public static final class Timeout {
+
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE_UPDATER =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final TimingWheel wheel;
+        private final Runnable task;
+        private final long deadline;
+        private volatile int state = PENDING;
+        // links of bucket list, used by wheel thread only
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(TimingWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // false if task already ran or was cancelled before
+        public boolean cancel() {
+            if (!STATE_UPDATER.compareAndSet(this, PENDING, CANCELLED)) {
+                return false;
+            }
+            wheel.cancelled.add(this); // unlinked from its bucket on next tick
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        private void expire() {
+            if (!STATE_UPDATER.compareAndSet(this, PENDING, EXPIRED)) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                log.error("Timeout task failed", ex);
+            }
+        }
+    }
+
+    // doubly-linked list, so cancelled timeout is unlinked in O(1)
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.prev = tail;
+            timeout.next = null;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.bucket = null;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+
+        // takes all timeouts out of bucket, returns the first one; list stays linked by next
+        private Timeout detach() {
+            Timeout first = head;
+            for (Timeout timeout = first; timeout != null; timeout = timeout.next) {
+                timeout.bucket = null;
+                timeout.prev = null;
+            }
+            head = null;
+            tail = null;
+            return first;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.fastpay.common;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.Collector;
+
+// Bounded top-K selection: keeps only first `limit` elements in comparator order while streaming,
+// O(n log k) time and O(k) memory, instead of sorting whole stream and discarding the tail
+public class TopKCollector {
+
+    private TopKCollector() {}
+
+    public static <T> Collector<T, ?, List<T>> of(Comparator<? super T> comparator, int limit) {
+        return Collector.<T, PriorityQueue<T>, List<T>>of(
+                // heap top is the worst element kept so far
+                () -> new PriorityQueue<>(Math.max(1, limit), comparator.reversed()),
+                (heap, item) -> offer(heap, item, comparator, limit),
+                (left, right) -> {
+                    right.forEach(item -> offer(left, item, comparator, limit));
+                    return left;
+                },
+                heap -> {
+                    List<T> result = new ArrayList<>(heap);
+                    result.sort(comparator);
+                    return result;
+                });
+    }
+
+    private static <T> void offer(PriorityQueue<T> heap, T item, Comparator<? super T> comparator, int limit) {
+        if (heap.size() < limit) {
+            heap.add(item);
+        } else if (limit > 0 && comparator.compare(item, heap.peek()) < 0) {
+            heap.poll();
+            heap.add(item);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.fastpay.common;
+
+import org.apache.commons.lang3.StringUtils;
+import org.fastpay.entity.Transfer;
+
+import java.lang.invoke.*;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+// Registry of sortable Transfer properties. Accessors are generated once, at class loading,
+// with LambdaMetafactory, so they run as fast as hand-written lambdas: no Method.invoke,
+// no wrapper objects and no string conversion during sorting.
+// Values are compared natively: numbers by value, dates by time, enums by declaration order
+public class TransferProperty {
+
+    private static final Map<String, TransferProperty> REGISTRY = discover();
+
+    private final String name;
+    private final Class<?> type;
+    private final Function<Transfer, Object> getter;
+    private final BiConsumer<Transfer, Object> setter;
+    private final Comparator<Transfer> comparator;
+
+    @SuppressWarnings("unchecked")
+    private TransferProperty(String name, Class<?> type, Function<Transfer, Object> getter,
+                             BiConsumer<Transfer, Object> setter) {
+        this.name = name;
+        this.type = type;
+        this.getter = getter;
+        this.setter = setter;
+        Comparator<Comparable> natural = Comparator.nullsFirst(Comparator.naturalOrder());
+        this.comparator = (x, y) -> natural.compare((Comparable) getter.apply(x), (Comparable) getter.apply(y));
+    }
+
+    public static TransferProperty of(String propertyName) {
+        TransferProperty property = propertyName != null ? REGISTRY.get(StringUtils.uncapitalize(propertyName)) : null;
+        if (property == null) {
+            throw new IllegalArgumentException("Invalid field name in query parameter 'sort'");
+        }
+        return property;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Class<?> getType() {
+        return type;
+    }
+
+    public Object get(Transfer transfer) {
+        return getter.apply(transfer);
+    }
+
+    public void set(Transfer transfer, Object value) {
+        setter.accept(transfer, value);
+    }
+
+    public Comparator<Transfer> getComparator() {
+        return comparator;
+    }
+
+    // every public getter with Comparable type, which has matching setter, is sortable property
+    private static Map<String, TransferProperty> discover() {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        Map<String, TransferProperty> registry = new HashMap<>();
+        for (Method getter : Transfer.class.getMethods()) {
+            if (!getter.getName().startsWith("get") || getter.getParameterCount() != 0
+                    || Modifier.isStatic(getter.getModifiers())
+                    || !Comparable.class.isAssignableFrom(getter.getReturnType())) {
+                continue;
+            }
+            String suffix = getter.getName().substring(3);
+            Class<?> type = getter.getReturnType();
+            try {
+                Method setter = Transfer.class.getMethod("set" + suffix, type);
+                registry.put(StringUtils.uncapitalize(suffix), new TransferProperty(StringUtils.uncapitalize(suffix),
+                        type, getterFunction(lookup, getter), setterFunction(lookup, setter)));
+            } catch (NoSuchMethodException ex) {
+                // read-only property, not sortable
+            }
+        }
+        return Collections.unmodifiableMap(registry);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Function<Transfer, Object> getterFunction(MethodHandles.Lookup lookup, Method getter) {
+        try {
+            MethodHandle handle = lookup.unreflect(getter);
+            CallSite site = LambdaMetafactory.metafactory(lookup, "apply", MethodType.methodType(Function.class),
+                    MethodType.methodType(Object.class, Object.class), handle,
+                    MethodType.methodType(getter.getReturnType(), Transfer.class));
+            return (Function<Transfer, Object>) site.getTarget().invokeExact();
+        } catch (Throwable ex) {
+            throw new IllegalStateException("Can't generate accessor for " + getter.getName(), ex);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static BiConsumer<Transfer, Object> setterFunction(MethodHandles.Lookup lookup, Method setter) {
+        try {
+            MethodHandle handle = lookup.unreflect(setter);
+            CallSite site = LambdaMetafactory.metafactory(lookup, "accept", MethodType.methodType(BiConsumer.class),
+                    MethodType.methodType(void.class, Object.class, Object.class), handle,
+                    MethodType.methodType(void.class, Transfer.class, setter.getParameterTypes()[0]));
+            return (BiConsumer<Transfer, Object>) site.getTarget().invokeExact();
+        } catch (Throwable ex) {
+            throw new IllegalStateException("Can't generate accessor for " + setter.getName(), ex);
+        }
+    }
+}
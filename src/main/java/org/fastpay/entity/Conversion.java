@@ -0,0 +1,17 @@
+package org.fastpay.entity;
+
+import lombok.Data;
+
+import java.math.BigDecimal;
+
+// Amount converted to currency of recipient, with the exchange rate applied
+@Data
+public class Conversion {
+    private final Money amount;
+    private final BigDecimal rate;
+
+    public Conversion(Money amount, BigDecimal rate) {
+        this.amount = amount;
+        this.rate = rate;
+    }
+}
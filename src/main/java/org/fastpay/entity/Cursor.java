@@ -0,0 +1,19 @@
+package org.fastpay.entity;
+
+import lombok.Data;
+
+// Position of the last returned record for keyset pagination: sort key of the record plus its id
+@Data
+public class Cursor {
+    private final String sort;
+    private final String order;
+    private final String key;
+    private final String id;
+
+    public Cursor(String sort, String order, String key, String id) {
+        this.sort = sort;
+        this.order = order;
+        this.key = key;
+        this.id = id;
+    }
+}
@@ -9,4 +9,5 @@ public class FilterParametersDto extends Transfer {
     private Long limit;
     private String sort;
     private String order;
+    private Cursor cursor;
 }
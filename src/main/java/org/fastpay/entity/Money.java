@@ -0,0 +1,175 @@
+package org.fastpay.entity;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Currency;
+
+// Fixed-point amount: long number of minor units plus count of fraction digits, ex. 340.23 PLN = 34023 with exponent 2.
+// Amounts of a transfer are kept in the exponent of its currency (ISO 4217), so arithmetic and comparison
+// on the ledger's hot path work on primitive longs. In JSON it is a plain decimal number, as BigDecimal was
+@JsonAdapter(Money.MoneyJsonAdapter.class)
+public final class Money implements Comparable<Money> {
+
+    public static final int MAX_EXPONENT = 18;
+    public static final int DEFAULT_EXPONENT = 2;
+    private static final long[] POWERS_OF_TEN = new long[MAX_EXPONENT + 1];
+
+    static {
+        POWERS_OF_TEN[0] = 1L;
+        for (int i = 1; i <= MAX_EXPONENT; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final long units;
+    private final int exponent;
+
+    private Money(long units, int exponent) {
+        if (exponent < 0 || exponent > MAX_EXPONENT) {
+            throw new IllegalArgumentException("Unsupported number of fraction digits: " + exponent);
+        }
+        this.units = units;
+        this.exponent = exponent;
+    }
+
+    public static Money ofMinor(long units, int exponent) {
+        return new Money(units, exponent);
+    }
+
+    public static Money of(BigDecimal amount) {
+        BigDecimal value = amount.scale() < 0 ? amount.setScale(0) : amount;
+        try {
+            return new Money(value.unscaledValue().longValueExact(), value.scale());
+        } catch (ArithmeticException ex) {
+            throw new IllegalArgumentException("Amount out of range: " + amount, ex);
+        }
+    }
+
+    public static Money parse(String amount) {
+        return of(new BigDecimal(amount));
+    }
+
+    // number of minor unit digits of currency, ex. 2 for PLN, 0 for JPY, 3 for KWD
+    public static int exponentOf(String currency) {
+        try {
+            int digits = Currency.getInstance(currency).getDefaultFractionDigits();
+            return digits >= 0 ? digits : DEFAULT_EXPONENT;
+        } catch (IllegalArgumentException | NullPointerException ex) {
+            return DEFAULT_EXPONENT; // unknown to JDK, ex. withdrawn currency
+        }
+    }
+
+    // same amount in minor units of currency; fails if amount has more fraction digits than currency allows
+    public Money inCurrency(String currency) {
+        int target = exponentOf(currency);
+        return target == exponent ? this : new Money(unitsAt(target), target);
+    }
+
+    // amount expressed in units with given number of fraction digits, without allocation
+    public long unitsAt(int targetExponent) {
+        if (targetExponent == exponent) {
+            return units;
+        }
+        if (targetExponent > exponent) {
+            try {
+                return Math.multiplyExact(units, POWERS_OF_TEN[targetExponent - exponent]);
+            } catch (ArithmeticException ex) {
+                throw new IllegalArgumentException("Amount out of range: " + this, ex);
+            }
+        }
+        long divisor = POWERS_OF_TEN[exponent - targetExponent];
+        if (units % divisor != 0) {
+            throw new IllegalArgumentException("Amount " + this + " has more than " + targetExponent + " fraction digits");
+        }
+        return units / divisor;
+    }
+
+    public long getUnits() {
+        return units;
+    }
+
+    public int getExponent() {
+        return exponent;
+    }
+
+    public int signum() {
+        return Long.signum(units);
+    }
+
+    public Money plus(Money other) {
+        int target = Math.max(exponent, other.exponent);
+        try {
+            return new Money(Math.addExact(unitsAt(target), other.unitsAt(target)), target);
+        } catch (ArithmeticException ex) {
+            throw new IllegalArgumentException("Amount out of range", ex);
+        }
+    }
+
+    public Money negate() {
+        return new Money(Math.negateExact(units), exponent);
+    }
+
+    public BigDecimal toBigDecimal() {
+        return BigDecimal.valueOf(units, exponent);
+    }
+
+    @Override
+    public int compareTo(Money other) {
+        if (exponent == other.exponent) {
+            return Long.compare(units, other.units);
+        }
+        return toBigDecimal().compareTo(other.toBigDecimal());
+    }
+
+    // numeric equality, 1.5 equals 1.50
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return compareTo((Money) o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        long normalized = units;
+        int digits = exponent;
+        while (digits > 0 && normalized % 10 == 0) {
+            normalized /= 10;
+            digits--;
+        }
+        return 31 * Long.hashCode(normalized) + digits;
+    }
+
+    @Override
+    public String toString() {
+        return toBigDecimal().toPlainString();
+    }
+
+    // JSON form is number, same as BigDecimal; strings with number are accepted on input too
+    public static class MoneyJsonAdapter extends TypeAdapter<Money> {
+
+        @Override
+        public void write(JsonWriter out, Money value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+            } else {
+                out.value(value.toBigDecimal());
+            }
+        }
+
+        @Override
+        public Money read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            return parse(in.nextString());
+        }
+    }
+}
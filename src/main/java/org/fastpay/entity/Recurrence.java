@@ -0,0 +1,54 @@
+package org.fastpay.entity;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Locale;
+
+// Repetition of scheduled transfer, counted in UTC from the first occurrence - n-th one is n periods after it,
+// never after the previous one; monthly one falls on the same day of month, or on the last day of shorter month,
+// and returns to its day in the next longer one
+public enum Recurrence {
+    DAILY, WEEKLY, MONTHLY;
+
+    // second occurrence
+    public Instant next(Instant first) {
+        return next(first, first);
+    }
+
+    // first occurrence after previous one
+    public Instant next(Instant first, Instant previous) {
+        ZonedDateTime start = first.atZone(ZoneOffset.UTC);
+        // whole periods between them, which may be one too few after shorter month
+        long n = Math.max(1L, unit().between(start, previous.atZone(ZoneOffset.UTC)));
+        Instant next = start.plus(n, unit()).toInstant();
+        while (!next.isAfter(previous)) {
+            next = start.plus(++n, unit()).toInstant();
+        }
+        return next;
+    }
+
+    private ChronoUnit unit() {
+        switch (this) {
+            case DAILY:
+                return ChronoUnit.DAYS;
+            case WEEKLY:
+                return ChronoUnit.WEEKS;
+            default:
+                return ChronoUnit.MONTHS;
+        }
+    }
+
+    // null if value is missing
+    public static Recurrence of(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Invalid value in field 'recurrence'. Accepted values are daily, weekly, monthly");
+        }
+    }
+}
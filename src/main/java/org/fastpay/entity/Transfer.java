@@ -3,16 +3,38 @@ package org.fastpay.entity;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 
+import java.math.BigDecimal;
 import java.util.Date;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 @Data
 @EqualsAndHashCode(callSuper = false)
 public class Transfer extends TransferDto {
 
+    private static final AtomicReferenceFieldUpdater<Transfer, TransferStatus> STATUS_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(Transfer.class, TransferStatus.class, "status");
+
     private String id;
     private Date timestamp;
-    private TransferStatus status;
+    private volatile TransferStatus status;
+    private Money targetAmount; // amount in target currency and rate used, when transfer is converted
+    private BigDecimal rate;
+    private Money commission; // charged to sender on top of amount, in currency of transfer
+
+    // amount credited to recipient: converted one, if currency of recipient is other than of transfer
+    public Money creditedAmount() {
+        return targetAmount != null ? targetAmount : amount;
+    }
+
+    public String creditedCurrency() {
+        return targetAmount != null ? targetCurrency : currency;
+    }
+
+    // atomic status transition; succeeds only if transfer is still in expected state
+    public boolean compareAndSetStatus(TransferStatus expected, TransferStatus newStatus) {
+        return STATUS_UPDATER.compareAndSet(this, expected, newStatus);
+    }
 
     @Override
     public boolean equals(Object o) {
@@ -2,14 +2,17 @@ package org.fastpay.entity;
 
 import lombok.Data;
 
-import java.math.BigDecimal;
-
 @Data
 public class TransferDto {
     protected String source;
     protected String destination;
-    protected BigDecimal amount;
+    protected Money amount;
     protected String currency;
+    protected String targetCurrency; // currency credited to recipient, if other than currency of amount
     protected String title;
+    protected String executeAt; // ISO-8601 time, ex. 2026-11-01T09:00:00Z - transfer is executed by scheduler then
+    protected String recurrence; // daily, weekly or monthly - scheduled transfer is repeated
+    // executeAt of the first occurrence, which next ones are counted from; set by service, transient - not in JSON
+    protected transient String firstExecuteAt;
 
 }
@@ -0,0 +1,11 @@
+package org.fastpay.entity;
+
+import lombok.Data;
+
+import java.util.List;
+
+// Body of batch execute and cancel: ids of transfers to change
+@Data
+public class TransferIdsDto {
+    private List<String> ids;
+}
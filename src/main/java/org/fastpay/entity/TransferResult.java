@@ -0,0 +1,17 @@
+package org.fastpay.entity;
+
+import lombok.Data;
+
+// Outcome of one item of batch operation: created or changed transfer, or status and reason of failure
+@Data
+public class TransferResult {
+    private final TransferStatus status;
+    private final String message;
+    private final Transfer transfer;
+
+    public TransferResult(TransferStatus status, String message, Transfer transfer) {
+        this.status = status;
+        this.message = message;
+        this.transfer = transfer;
+    }
+}
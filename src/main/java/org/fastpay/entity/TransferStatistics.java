@@ -0,0 +1,23 @@
+package org.fastpay.entity;
+
+import lombok.Data;
+
+import java.util.Map;
+
+// Aggregated view of all transfers, returned by GET /transfer/stats
+// account totals are present only for accounts requested in query parameters
+@Data
+public class TransferStatistics {
+    private final Map<TransferStatus, TransferTotals> byStatus;
+    private final Map<String, TransferTotals> byCurrency;
+    private final Map<String, TransferTotals> bySource;
+    private final Map<String, TransferTotals> byDestination;
+
+    public TransferStatistics(Map<TransferStatus, TransferTotals> byStatus, Map<String, TransferTotals> byCurrency,
+                              Map<String, TransferTotals> bySource, Map<String, TransferTotals> byDestination) {
+        this.byStatus = byStatus;
+        this.byCurrency = byCurrency;
+        this.bySource = bySource;
+        this.byDestination = byDestination;
+    }
+}
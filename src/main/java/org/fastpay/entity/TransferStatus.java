@@ -1,5 +1,6 @@
 package org.fastpay.entity;
 
 public enum TransferStatus {
-    PENDING, COMPLETED, CANCELLED, INVALID, ERROR
+    PENDING, COMPLETED, CANCELLED, INVALID, ERROR,
+    PROCESSING // execution accepted, money is being moved in background
 }
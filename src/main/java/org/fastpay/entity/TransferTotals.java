@@ -0,0 +1,20 @@
+package org.fastpay.entity;
+
+import lombok.Data;
+
+import java.util.Collections;
+import java.util.Map;
+
+// Number of transfers in a group and sum of their amounts per currency; immutable, replaced on every change
+@Data
+public class TransferTotals {
+    public static final TransferTotals EMPTY = new TransferTotals(0L, Collections.emptyMap());
+
+    private final long count;
+    private final Map<String, Money> amounts;
+
+    public TransferTotals(long count, Map<String, Money> amounts) {
+        this.count = count;
+        this.amounts = Collections.unmodifiableMap(amounts);
+    }
+}
@@ -0,0 +1,20 @@
+package org.fastpay.persistence;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+// Component, which state can be rebuilt from snapshot and transaction log records written after it
+public interface Journaled {
+
+    void replay(LogRecord record);
+
+    // called concurrently with changes; state captured is fuzzy, replay of later records makes it exact
+    void writeSnapshot(DataOutput out) throws IOException;
+
+    void readSnapshot(DataInput in) throws IOException;
+
+    // called once log is recovered and open for appends, to finish work interrupted by crash
+    default void recovered() {
+    }
+}
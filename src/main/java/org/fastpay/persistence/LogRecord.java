@@ -0,0 +1,19 @@
+package org.fastpay.persistence;
+
+import lombok.Data;
+
+// Single entry of transaction log: change of state in one of journaled components (stream)
+@Data
+public class LogRecord {
+    private final long lsn;
+    private final String stream;
+    private final byte type;
+    private final byte[] payload;
+
+    public LogRecord(long lsn, String stream, byte type, byte[] payload) {
+        this.lsn = lsn;
+        this.stream = stream;
+        this.type = type;
+        this.payload = payload;
+    }
+}
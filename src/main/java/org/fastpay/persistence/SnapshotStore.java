@@ -0,0 +1,120 @@
+package org.fastpay.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// Snapshot files of journaled components: snapshot-<lsn>.bin, where lsn is the first log record
+// which may be not reflected in snapshot; replay of log continues from it.
+// Layout: [long magic][long lsn][int components]{[UTF stream][component data]}[long crc32]
+// Written and read sequentially with large buffers
+@Slf4j
+public class SnapshotStore {
+
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long MAGIC = 0x4641535450415931L;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final Path directory;
+
+    public SnapshotStore(Path directory) {
+        this.directory = directory;
+    }
+
+    public void write(long lsn, Map<String, Journaled> components) throws IOException {
+        Path target = directory.resolve(snapshotName(lsn));
+        Path temp = directory.resolve(snapshotName(lsn) + TEMP_SUFFIX);
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeLong(MAGIC);
+            out.writeLong(lsn);
+            out.writeInt(components.size());
+            for (Map.Entry<String, Journaled> component : components.entrySet()) {
+                out.writeUTF(component.getKey());
+                component.getValue().writeSnapshot(out);
+            }
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            channel.force(true);
+        }
+        // snapshot becomes visible only when complete
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Snapshot {} written", target.getFileName());
+    }
+
+    // returns lsn of loaded snapshot, or 0 when there is no snapshot
+    public long loadLatest(Map<String, Journaled> components) throws IOException {
+        List<Path> snapshots = listSnapshots();
+        if (snapshots.isEmpty()) {
+            return 0L;
+        }
+
+        Path latest = snapshots.get(snapshots.size() - 1);
+        try (InputStream file = Files.newInputStream(latest)) {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(file, BUFFER_SIZE),
+                    new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readLong() != MAGIC) {
+                throw new IOException("Not a snapshot file: " + latest);
+            }
+            long lsn = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String stream = in.readUTF();
+                Journaled component = components.get(stream);
+                if (component == null) {
+                    throw new IOException("Snapshot contains unknown stream '" + stream + "'");
+                }
+                component.readSnapshot(in);
+            }
+            long expected = checked.getChecksum().getValue();
+            if (in.readLong() != expected) {
+                throw new IOException("Snapshot checksum mismatch: " + latest);
+            }
+            log.info("Snapshot {} loaded", latest.getFileName());
+            return lsn;
+        }
+    }
+
+    public void deleteOlderThan(long lsn) throws IOException {
+        for (Path snapshot : listSnapshots()) {
+            if (lsnOf(snapshot) < lsn) {
+                Files.delete(snapshot);
+            }
+        }
+    }
+
+    private List<Path> listSnapshots() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX);
+            }).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static String snapshotName(long lsn) {
+        return String.format("%s%020d%s", SNAPSHOT_PREFIX, lsn, SNAPSHOT_SUFFIX);
+    }
+
+    private static long lsnOf(Path snapshot) {
+        String name = snapshot.getFileName().toString();
+        return Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,23 @@
+package org.fastpay.persistence;
+
+import com.google.inject.ImplementedBy;
+
+// Journal of all state changes of in-memory storage. Each component writes own stream of records,
+// and registers itself to rebuild its state from snapshot and records on startup
+@ImplementedBy(NoTransactionLog.class)
+public interface TransactionLog {
+
+    // appends record, returns its log sequence number; record is not durable until await() returns
+    long append(String stream, byte type, byte[] payload);
+
+    // blocks until all records up to given sequence number are written to disk
+    void await(long lsn);
+
+    void register(String stream, Journaled component);
+
+    // loads latest snapshot and replays log written after it into registered components,
+    // then opens log for appends
+    void recover();
+
+    void close();
+}
@@ -0,0 +1,86 @@
+package org.fastpay.persistence;
+
+import org.fastpay.entity.Money;
+import org.fastpay.entity.Transfer;
+import org.fastpay.entity.TransferStatus;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Date;
+
+import static org.fastpay.persistence.BinaryCodec.readString;
+import static org.fastpay.persistence.BinaryCodec.writeString;
+
+// Binary form of Transfer, used in transaction log and snapshots. Every record starts with format version, so
+// log written by other build is either read in its own layout or rejected, never misread. Records written before
+// versioning start with 0 or 1 (presence flag of id) and are rejected as well
+public class TransferCodec {
+
+    // bump on every layout change, keeping reader of previous layouts where they can be upgraded
+    static final int FORMAT_VERSION = 3;
+    private static final int FORMAT_VERSION_WITHOUT_FIRST_EXECUTION = 2;
+
+    private TransferCodec() {}
+
+    public static void write(DataOutput out, Transfer transfer) throws IOException {
+        out.writeByte(FORMAT_VERSION);
+        writeString(out, transfer.getId());
+        out.writeLong(transfer.getTimestamp() != null ? transfer.getTimestamp().getTime() : Long.MIN_VALUE);
+        writeString(out, transfer.getStatus() != null ? transfer.getStatus().name() : null);
+        writeString(out, transfer.getSource());
+        writeString(out, transfer.getDestination());
+        writeMoney(out, transfer.getAmount());
+        writeString(out, transfer.getCurrency());
+        writeString(out, transfer.getTitle());
+        writeString(out, transfer.getTargetCurrency());
+        writeMoney(out, transfer.getTargetAmount());
+        writeString(out, transfer.getRate() != null ? transfer.getRate().toString() : null);
+        writeMoney(out, transfer.getCommission());
+        writeString(out, transfer.getExecuteAt());
+        writeString(out, transfer.getRecurrence());
+        writeString(out, transfer.getFirstExecuteAt());
+    }
+
+    public static Transfer read(DataInput in) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version != FORMAT_VERSION && version != FORMAT_VERSION_WITHOUT_FIRST_EXECUTION) {
+            throw new IOException("Unsupported transfer record format " + version + ", expected " + FORMAT_VERSION);
+        }
+
+        Transfer transfer = new Transfer();
+        transfer.setId(readString(in));
+        long timestamp = in.readLong();
+        transfer.setTimestamp(timestamp != Long.MIN_VALUE ? new Date(timestamp) : null);
+        String status = readString(in);
+        transfer.setStatus(status != null ? TransferStatus.valueOf(status) : null);
+        transfer.setSource(readString(in));
+        transfer.setDestination(readString(in));
+        transfer.setAmount(readMoney(in));
+        transfer.setCurrency(readString(in));
+        transfer.setTitle(readString(in));
+        transfer.setTargetCurrency(readString(in));
+        transfer.setTargetAmount(readMoney(in));
+        String rate = readString(in);
+        transfer.setRate(rate != null ? new BigDecimal(rate) : null);
+        transfer.setCommission(readMoney(in));
+        transfer.setExecuteAt(readString(in));
+        transfer.setRecurrence(readString(in));
+        // older recurring transfer goes on counting from its own execution time
+        transfer.setFirstExecuteAt(version == FORMAT_VERSION ? readString(in) : null);
+        return transfer;
+    }
+
+    private static void writeMoney(DataOutput out, Money amount) throws IOException {
+        out.writeBoolean(amount != null);
+        if (amount != null) {
+            out.writeLong(amount.getUnits());
+            out.writeByte(amount.getExponent());
+        }
+    }
+
+    private static Money readMoney(DataInput in) throws IOException {
+        return in.readBoolean() ? Money.ofMinor(in.readLong(), in.readByte()) : null;
+    }
+}
@@ -0,0 +1,421 @@
+package org.fastpay.persistence;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Append-only transaction log, split into segment files named by sequence number of their first record.
+// Record layout: [int body length][long lsn][int crc32 of body][body: byte type, short-prefixed UTF-8 stream name, payload]
+// Group commit: request threads only copy records into shared buffer; single flusher thread writes
+// everything accumulated since last flush with one write and one fsync, then wakes up all waiters
+// Periodic snapshot, taken in background without stopping writers, allows to delete older segments
+@Slf4j
+public class WriteAheadLog implements TransactionLog {
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int RECORD_HEADER_SIZE = 16;
+
+    private final Path directory;
+    private final boolean fsync;
+    private final long segmentSize;
+    private final long snapshotIntervalSeconds;
+    private final SnapshotStore snapshots;
+    private final Map<String, Journaled> components = new ConcurrentHashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pendingAvailable = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+
+    // guarded by lock
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(1 << 16);
+    private ByteArrayOutputStream spare = new ByteArrayOutputStream(1 << 16);
+    private long nextLsn = 1L;
+    private long pendingFirstLsn;
+    private long durableLsn;
+    private boolean rollRequested;
+    private long lastSnapshotLsn;
+    private boolean open;
+    private IOException failure;
+
+    // owned by flusher thread
+    private FileChannel segment;
+    private OutputStream segmentOutput;
+    private long segmentBytes;
+    private Thread flusher;
+    private ScheduledExecutorService snapshotScheduler;
+
+    public WriteAheadLog(Path directory, boolean fsync, long segmentSize) {
+        this(directory, fsync, segmentSize, 0L);
+    } // without periodic snapshots
+
+    public WriteAheadLog(Path directory, boolean fsync, long segmentSize, long snapshotIntervalSeconds) {
+        this.directory = directory;
+        this.fsync = fsync;
+        this.segmentSize = segmentSize;
+        this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+        this.snapshots = new SnapshotStore(directory);
+    }
+
+    @Override
+    public long append(String stream, byte type, byte[] payload) {
+        byte[] body = encodeBody(stream, type, payload);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        lock.lock();
+        try {
+            if (!open) {
+                throw new IllegalStateException("Transaction log is not open");
+            }
+            if (failure != null) {
+                throw new UncheckedIOException("Transaction log write failed", failure);
+            }
+            long lsn = nextLsn++;
+            if (pending.size() == 0) {
+                pendingFirstLsn = lsn;
+            }
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            header.putInt(body.length).putLong(lsn).putInt((int) crc.getValue());
+            pending.write(header.array(), 0, RECORD_HEADER_SIZE);
+            pending.write(body, 0, body.length);
+            pendingAvailable.signal();
+            return lsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void await(long lsn) {
+        lock.lock();
+        try {
+            while (durableLsn < lsn && failure == null) {
+                flushed.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw new UncheckedIOException("Transaction log write failed", failure);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void register(String stream, Journaled component) {
+        if (components.putIfAbsent(stream, component) != null) {
+            throw new IllegalStateException("Transaction log stream already registered: " + stream);
+        }
+    }
+
+    @Override
+    public void recover() {
+        try {
+            Files.createDirectories(directory);
+            long snapshotLsn = snapshots.loadLatest(components);
+            long lastLsn = Math.max(0L, snapshotLsn - 1);
+            List<Path> segmentFiles = listSegments();
+            for (int i = 0; i < segmentFiles.size(); i++) {
+                lastLsn = Math.max(lastLsn, replaySegment(segmentFiles.get(i), snapshotLsn,
+                        i == segmentFiles.size() - 1));
+            }
+            log.info("Transaction log recovered up to lsn {}", lastLsn);
+
+            lock.lock();
+            try {
+                nextLsn = lastLsn + 1;
+                durableLsn = lastLsn;
+                lastSnapshotLsn = snapshotLsn;
+                open = true;
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Transaction log recovery failed", ex);
+        }
+
+        flusher = new Thread(this::flushLoop, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        components.values().forEach(Journaled::recovered);
+
+        if (snapshotIntervalSeconds > 0) {
+            snapshotScheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "wal-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshotScheduler.scheduleWithFixedDelay(this::periodicSnapshot, snapshotIntervalSeconds,
+                    snapshotIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    // writes snapshot of all components, then deletes log segments and snapshots it makes obsolete;
+    // writers are not blocked, snapshot is fuzzy and records appended meanwhile are kept in the log
+    public void snapshot() throws IOException {
+        long snapshotLsn;
+        lock.lock();
+        try {
+            if (!open) {
+                throw new IllegalStateException("Transaction log is not open");
+            }
+            snapshotLsn = nextLsn;
+            rollRequested = true; // records from now on go to new segment
+        } finally {
+            lock.unlock();
+        }
+
+        snapshots.write(snapshotLsn, components);
+        deleteSegmentsBefore(snapshotLsn);
+        snapshots.deleteOlderThan(snapshotLsn);
+
+        lock.lock();
+        try {
+            lastSnapshotLsn = snapshotLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void periodicSnapshot() {
+        try {
+            boolean changed;
+            lock.lock();
+            try {
+                changed = nextLsn > lastSnapshotLsn;
+            } finally {
+                lock.unlock();
+            }
+            if (changed) {
+                snapshot();
+            }
+        } catch (IOException | RuntimeException ex) {
+            log.error("Snapshot failed, will retry on next schedule", ex);
+        }
+    }
+
+    // segment can go, when the next one starts at or before snapshot lsn - then all its records are older
+    private void deleteSegmentsBefore(long snapshotLsn) throws IOException {
+        List<Path> segments = listSegments();
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            if (firstLsnOf(segments.get(i + 1)) <= snapshotLsn) {
+                Files.delete(segments.get(i));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (snapshotScheduler != null) {
+            snapshotScheduler.shutdownNow();
+        }
+        lock.lock();
+        try {
+            if (!open) return;
+            open = false;
+            pendingAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            flusher.join();
+            if (segment != null) {
+                segment.close();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            log.error("Failed to close transaction log segment", ex);
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            long firstLsn;
+            long lastLsn;
+            boolean roll;
+            ByteArrayOutputStream batch;
+            lock.lock();
+            try {
+                while (pending.size() == 0 && open) {
+                    pendingAvailable.awaitUninterruptibly();
+                }
+                if (pending.size() == 0) {
+                    return; // closed and nothing left
+                }
+                batch = pending;
+                pending = spare;
+                spare = batch;
+                firstLsn = pendingFirstLsn;
+                lastLsn = nextLsn - 1;
+                roll = rollRequested;
+                rollRequested = false;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            try {
+                write(batch, firstLsn, roll);
+            } catch (IOException ex) {
+                log.error("Transaction log write failed", ex);
+                error = ex;
+            }
+            batch.reset();
+
+            lock.lock();
+            try {
+                if (error != null) {
+                    failure = error;
+                } else {
+                    durableLsn = lastLsn;
+                }
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (error != null) {
+                return;
+            }
+        }
+    }
+
+    private void write(ByteArrayOutputStream batch, long firstLsn, boolean roll) throws IOException {
+        if (segment == null || segmentBytes >= segmentSize || roll) {
+            openSegment(firstLsn);
+        }
+        batch.writeTo(segmentOutput);
+        segmentBytes += batch.size();
+        if (fsync) {
+            segment.force(false);
+        }
+    }
+
+    private void openSegment(long firstLsn) throws IOException {
+        if (segment != null) {
+            segment.close();
+        }
+        Path path = directory.resolve(segmentName(firstLsn));
+        segment = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        segmentOutput = Channels.newOutputStream(segment);
+        segmentBytes = 0L;
+    }
+
+    // returns lsn of the last valid record; torn or corrupted tail is cut off
+    // records older than snapshot are already reflected in it and skipped
+    // only the last segment may end with torn record of write interrupted by crash; corrupt record anywhere else
+    // would silently drop committed records after it, so recovery fails instead
+    private long replaySegment(Path segmentFile, long fromLsn, boolean lastSegment) throws IOException {
+        long lastLsn = 0L;
+        long validBytes = 0L;
+        long segmentSize = Files.size(segmentFile);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segmentFile),
+                1 << 20))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException ex) {
+                    break; // clean end of segment
+                }
+                try {
+                    long lsn = in.readLong();
+                    int checksum = in.readInt();
+                    if (length < 0 || length > segmentSize - validBytes - RECORD_HEADER_SIZE) {
+                        throw new IOException("Record length " + length + " out of segment bounds");
+                    }
+                    byte[] body = new byte[length];
+                    in.readFully(body);
+                    CRC32 crc = new CRC32();
+                    crc.update(body);
+                    if ((int) crc.getValue() != checksum) {
+                        throw new IOException("Checksum mismatch at lsn " + lsn);
+                    }
+                    if (lsn >= fromLsn) {
+                        dispatch(lsn, body);
+                    }
+                    lastLsn = lsn;
+                    validBytes += RECORD_HEADER_SIZE + length;
+                } catch (IOException ex) {
+                    if (!lastSegment) {
+                        throw new IOException("Corrupt record in transaction log segment " + segmentFile.getFileName()
+                                + " at byte " + validBytes + ", followed by other segments", ex);
+                    }
+                    log.warn("Torn record in transaction log segment {} at byte {}, truncating: {}",
+                            segmentFile.getFileName(), validBytes, ex.getMessage());
+                    break;
+                }
+            }
+        }
+
+        if (validBytes < segmentSize) {
+            try (FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.WRITE)) {
+                channel.truncate(validBytes);
+            }
+        }
+        if (validBytes == 0L) {
+            // nothing valid inside, name could clash with next segment
+            Files.delete(segmentFile);
+        }
+        return lastLsn;
+    }
+
+    private void dispatch(long lsn, byte[] body) {
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        byte type = buffer.get();
+        byte[] streamBytes = new byte[buffer.getShort()];
+        buffer.get(streamBytes);
+        String stream = new String(streamBytes, StandardCharsets.UTF_8);
+        byte[] payload = new byte[buffer.remaining()];
+        buffer.get(payload);
+
+        Journaled component = components.get(stream);
+        if (component != null) {
+            component.replay(new LogRecord(lsn, stream, type, payload));
+        } else {
+            log.warn("No handler for transaction log stream '{}', record {} skipped", stream, lsn);
+        }
+    }
+
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static byte[] encodeBody(String stream, byte type, byte[] payload) {
+        byte[] streamBytes = stream.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(1 + 2 + streamBytes.length + payload.length);
+        body.put(type).putShort((short) streamBytes.length).put(streamBytes).put(payload);
+        return body.array();
+    }
+
+    private static String segmentName(long firstLsn) {
+        return String.format("%s%020d%s", SEGMENT_PREFIX, firstLsn, SEGMENT_SUFFIX);
+    }
+
+    private static long firstLsnOf(Path segmentFile) {
+        String name = segmentFile.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,73 @@
+package org.fastpay.repository;
+
+import org.fastpay.entity.Money;
+import org.fastpay.entity.Transfer;
+import org.fastpay.entity.TransferTotals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+// Materialized totals on single Transfer property: property value -> count and sum of amounts per currency
+// maintained incrementally by repository together with secondary indexes, so statistics never scan the store
+public class AggregateView<K> {
+
+    private final Function<Transfer, K> keyExtractor;
+    private final Map<K, TransferTotals> totals = new ConcurrentHashMap<>();
+
+    public AggregateView(Function<Transfer, K> keyExtractor) {
+        this.keyExtractor = keyExtractor;
+    }
+
+    public void add(Transfer transfer) {
+        add(keyExtractor.apply(transfer), transfer);
+    }
+
+    public void remove(Transfer transfer) {
+        remove(keyExtractor.apply(transfer), transfer);
+    }
+
+    public void add(K key, Transfer transfer) {
+        update(key, transfer.getCurrency(), transfer.getAmount(), 1);
+    }
+
+    public void remove(K key, Transfer transfer) {
+        update(key, transfer.getCurrency(), transfer.getAmount(), -1);
+    }
+
+    public TransferTotals get(K key) {
+        return totals.getOrDefault(key, TransferTotals.EMPTY);
+    }
+
+    public Map<K, TransferTotals> snapshot() {
+        return new HashMap<>(totals);
+    }
+
+    public void clear() {
+        totals.clear();
+    }
+
+    // totals are replaced atomically per key, so readers always see count and sums of the same moment
+    private void update(K key, String currency, Money amount, int sign) {
+        if (key == null) return;
+        totals.compute(key, (k, current) -> {
+            TransferTotals previous = current != null ? current : TransferTotals.EMPTY;
+            long count = previous.getCount() + sign;
+            Map<String, Money> amounts = new HashMap<>(previous.getAmounts());
+            if (currency != null && amount != null) {
+                Money previousSum = amounts.get(currency);
+                Money delta = sign > 0 ? amount : amount.negate();
+                Money sum = previousSum != null ? previousSum.plus(delta) : delta;
+                if (sum.signum() == 0) {
+                    amounts.remove(currency);
+                } else {
+                    amounts.put(currency, sum);
+                }
+            }
+            // drop empty groups, like secondary index drops empty buckets; group which went below zero is kept
+            // until matching change balances it, otherwise its delta would be lost
+            return count == 0 && amounts.isEmpty() ? null : new TransferTotals(count, amounts);
+        });
+    }
+}
@@ -0,0 +1,59 @@
+package org.fastpay.repository;
+
+import org.fastpay.app.Configuration;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+// Decides whether listing pipeline runs sequentially on request thread, or in parallel on dedicated
+// fork-join pool. Parallel streams started inside a pool task are split on that pool, not on the common one,
+// so large scans are bounded by configured parallelism and never starve request threads.
+// Below the threshold splitting and merging costs more than it saves, see ListingBenchmark
+@Singleton
+public class ParallelScan {
+
+    public static final long DEFAULT_THRESHOLD = 50_000L;
+
+    private final long threshold;
+    private final int parallelism;
+    private volatile ForkJoinPool pool;
+
+    @Inject
+    public ParallelScan() {
+        this(Configuration.getLong(Configuration.PARALLEL_SCAN_THRESHOLD, DEFAULT_THRESHOLD),
+                (int) Configuration.getLong(Configuration.PARALLEL_SCAN_THREADS,
+                        Runtime.getRuntime().availableProcessors()));
+    }
+
+    public ParallelScan(long threshold, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism of listing scan must be positive");
+        }
+        this.threshold = threshold;
+        this.parallelism = parallelism;
+    }
+
+    // scan receives true when it should build parallel stream
+    public <T> T run(long cardinality, Function<Boolean, T> scan) {
+        if (parallelism == 1 || threshold <= 0 || cardinality < threshold) {
+            return scan.apply(false);
+        }
+        return pool().submit(() -> scan.apply(true)).join();
+    }
+
+    // pool is created on first large scan only; workers are daemon threads, so it doesn't block shutdown
+    private ForkJoinPool pool() {
+        ForkJoinPool result = pool;
+        if (result == null) {
+            synchronized (this) {
+                result = pool;
+                if (result == null) {
+                    pool = result = new ForkJoinPool(parallelism);
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,57 @@
+package org.fastpay.repository;
+
+import org.fastpay.entity.Transfer;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+// Inverted index on single Transfer property: property value -> ids of transfers with this value
+// maintained incrementally by repository on every add/update/delete
+public class SecondaryIndex<K> {
+
+    private final Function<Transfer, K> keyExtractor;
+    private final Map<K, Set<String>> index = new ConcurrentHashMap<>();
+
+    public SecondaryIndex(Function<Transfer, K> keyExtractor) {
+        this.keyExtractor = keyExtractor;
+    }
+
+    public void add(Transfer transfer) {
+        add(keyExtractor.apply(transfer), transfer.getId());
+    }
+
+    public void remove(Transfer transfer) {
+        remove(keyExtractor.apply(transfer), transfer.getId());
+    }
+
+    public void add(K key, String txId) {
+        if (key == null) return;
+        index.compute(key, (k, ids) -> {
+            Set<String> result = ids != null ? ids : ConcurrentHashMap.newKeySet();
+            result.add(txId);
+            return result;
+        });
+    }
+
+    public void remove(K key, String txId) {
+        if (key == null) return;
+        // drop empty buckets, so index doesn't grow with number of distinct values ever seen
+        index.computeIfPresent(key, (k, ids) -> {
+            ids.remove(txId);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+
+    // ids of transfers with given property value; live view, may change during iteration
+    public Set<String> get(K key) {
+        Set<String> ids = index.get(key);
+        return ids != null ? ids : Collections.emptySet();
+    }
+
+    public void clear() {
+        index.clear();
+    }
+}
@@ -1,18 +1,29 @@
 package org.fastpay.repository;
 
+import org.fastpay.entity.Conversion;
 import org.fastpay.entity.FilterParametersDto;
+import org.fastpay.entity.Money;
 import org.fastpay.entity.Transfer;
 import org.fastpay.entity.TransferDto;
+import org.fastpay.entity.TransferStatistics;
+import org.fastpay.entity.TransferStatus;
 
 import java.util.List;
 
 public interface TransferRepository {
     Transfer add(TransferDto transferData);
 
+    // transfer with commission, paid in other currency than credited to recipient if conversion is given
+    Transfer add(TransferDto transferData, Conversion conversion, Money commission);
+
     Transfer update(String txId, TransferDto transferData);
 
+    boolean updateStatus(String txId, TransferStatus expected, TransferStatus newStatus);
+
     List<Transfer> list(FilterParametersDto filterParams);
 
+    TransferStatistics getStatistics(String source, String destination);
+
     Transfer get(String txId);
 
     boolean delete(String txId);
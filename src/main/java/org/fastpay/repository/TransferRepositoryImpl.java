@@ -1,38 +1,123 @@
 package org.fastpay.repository;
 
+import org.fastpay.common.IdGenerator;
+import org.fastpay.common.TimeOrderedIdGenerator;
+import org.fastpay.common.TopKCollector;
+import org.fastpay.entity.Conversion;
 import org.fastpay.entity.FilterParametersDto;
+import org.fastpay.entity.Money;
 import org.fastpay.entity.Transfer;
 import org.fastpay.entity.TransferDto;
+import org.fastpay.entity.TransferStatistics;
 import org.fastpay.entity.TransferStatus;
 
+import org.fastpay.persistence.*;
+
+import javax.inject.Inject;
 import javax.inject.Singleton;
-import java.math.BigDecimal;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import static org.fastpay.common.CursorCodec.toProbe;
 import static org.fastpay.common.QueryParameterValidator.getCurrency;
 import static org.fastpay.common.QueryParameterValidator.getSortComparator;
 
-// Super-lightweight in-memory NoSQL database, backed by key-value map
+// Super-lightweight in-memory NoSQL database, backed by concurrent key-value map
+// reads never block writers; status transitions are lock-free compare-and-set
+// in durable mode every change is journaled in transaction log, and state is rebuilt from it on startup
 @Singleton
-public class TransferRepositoryImpl implements TransferRepository {
+public class TransferRepositoryImpl implements TransferRepository, Journaled {
+
+    public static final String LOG_STREAM = "transfers";
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_DELETE = 2;
+    private static final byte RECORD_CLEAR = 3;
+
+    // default listing order: ids are time-ordered and never change, so they are safe keys for ordered set
+    private static final Comparator<Transfer> TIMELINE_ORDER = Comparator.comparing(Transfer::getId);
+
+    private final Map<String, Transfer> transferStore = new ConcurrentHashMap<>();
+    private final NavigableSet<Transfer> timeline = new ConcurrentSkipListSet<>(TIMELINE_ORDER);
+
+    // secondary indexes for equality filters in list()
+    private final SecondaryIndex<TransferStatus> statusIndex = new SecondaryIndex<>(Transfer::getStatus);
+    private final SecondaryIndex<String> currencyIndex = new SecondaryIndex<>(Transfer::getCurrency);
+    private final SecondaryIndex<String> sourceIndex = new SecondaryIndex<>(Transfer::getSource);
+    private final SecondaryIndex<String> destinationIndex = new SecondaryIndex<>(Transfer::getDestination);
+    private final List<SecondaryIndex<?>> indexes = Arrays.asList(statusIndex, currencyIndex, sourceIndex,
+            destinationIndex);
+
+    // materialized totals for statistics, updated on every change, like indexes
+    private final AggregateView<TransferStatus> statusTotals = new AggregateView<>(Transfer::getStatus);
+    private final AggregateView<String> currencyTotals = new AggregateView<>(Transfer::getCurrency);
+    private final AggregateView<String> sourceTotals = new AggregateView<>(Transfer::getSource);
+    private final AggregateView<String> destinationTotals = new AggregateView<>(Transfer::getDestination);
+    private final List<AggregateView<?>> aggregates = Arrays.asList(statusTotals, currencyTotals, sourceTotals,
+            destinationTotals);
+
+    private final TransactionLog transactionLog;
+    private final IdGenerator idGenerator;
+    private final ParallelScan parallelScan;
+
+    public TransferRepositoryImpl() {
+        this(new NoTransactionLog());
+    } // default constructor - for unit tests
+
+    public TransferRepositoryImpl(TransactionLog transactionLog) {
+        this(transactionLog, new TimeOrderedIdGenerator(0L), new ParallelScan());
+    }
 
-    private Map<String, Transfer> transferStore = new HashMap<>();
+    @Inject
+    public TransferRepositoryImpl(TransactionLog transactionLog, IdGenerator idGenerator, ParallelScan parallelScan) {
+        this.transactionLog = transactionLog;
+        this.idGenerator = idGenerator;
+        this.parallelScan = parallelScan;
+        transactionLog.register(LOG_STREAM, this);
+    }
 
     @Override
     public Transfer add(TransferDto transferData) {
+        return add(transferData, null, null);
+    }
+
+    @Override
+    public Transfer add(TransferDto transferData, Conversion conversion, Money commission) {
         Transfer newTransfer = new Transfer();
-        UUID uuid = UUID.randomUUID();
-        newTransfer.setId(uuid.toString());
+        newTransfer.setId(idGenerator.nextId());
         newTransfer.setTimestamp(new Date());
         newTransfer.setStatus(TransferStatus.PENDING);
         newTransfer.setSource(transferData.getSource());
         newTransfer.setDestination(transferData.getDestination());
-        newTransfer.setAmount(transferData.getAmount());
         newTransfer.setCurrency(getCurrency(transferData.getCurrency()));
+        newTransfer.setAmount(toCurrencyUnits(transferData.getAmount(), newTransfer.getCurrency()));
         newTransfer.setTitle(transferData.getTitle());
-        transferStore.put(newTransfer.getId(), newTransfer);
+        newTransfer.setTargetCurrency(getCurrency(transferData.getTargetCurrency()));
+        newTransfer.setExecuteAt(transferData.getExecuteAt());
+        newTransfer.setRecurrence(transferData.getRecurrence());
+        newTransfer.setFirstExecuteAt(transferData.getFirstExecuteAt());
+        if (conversion != null) {
+            newTransfer.setTargetAmount(toCurrencyUnits(conversion.getAmount(), newTransfer.getTargetCurrency()));
+            newTransfer.setRate(conversion.getRate());
+        }
+        if (commission != null) {
+            newTransfer.setCommission(toCurrencyUnits(commission, newTransfer.getCurrency()));
+        }
+        long lsn;
+        // visible to status transitions only after it's indexed
+        synchronized (newTransfer) {
+            transferStore.put(newTransfer.getId(), newTransfer);
+            timeline.add(newTransfer);
+            indexes.forEach(index -> index.add(newTransfer));
+            aggregates.forEach(aggregate -> aggregate.add(newTransfer));
+            lsn = append(newTransfer);
+        }
+        transactionLog.await(lsn);
         return newTransfer;
     }
 
@@ -40,42 +125,153 @@ public class TransferRepositoryImpl implements TransferRepository {
     public Transfer update(String txId, TransferDto transferData) {
         Transfer updated = transferStore.get(txId);
         if (updated != null) {
-            updated.setSource(transferData.getSource());
-            updated.setDestination(transferData.getDestination());
-            updated.setAmount(transferData.getAmount());
-            updated.setCurrency(transferData.getCurrency());
-            updated.setTitle(transferData.getTitle());
+            Money amount = toCurrencyUnits(transferData.getAmount(), transferData.getCurrency());
+            long lsn;
+            // same monitor as status transitions, so indexes are moved with the values they were built from
+            synchronized (updated) {
+                indexes.forEach(index -> index.remove(updated));
+                aggregates.forEach(aggregate -> aggregate.remove(updated));
+                updated.setSource(transferData.getSource());
+                updated.setDestination(transferData.getDestination());
+                updated.setAmount(amount);
+                updated.setCurrency(transferData.getCurrency());
+                updated.setTitle(transferData.getTitle());
+                indexes.forEach(index -> index.add(updated));
+                aggregates.forEach(aggregate -> aggregate.add(updated));
+                lsn = append(updated);
+            }
+            transactionLog.await(lsn);
         }
         return updated;
     }
 
+    @Override
+    public boolean updateStatus(String txId, TransferStatus expected, TransferStatus newStatus) {
+        Transfer transfer = transferStore.get(txId);
+        if (transfer == null) {
+            return false;
+        }
+
+        long lsn;
+        // index moves of one transfer are applied in the order of its transitions; readers don't take the lock
+        synchronized (transfer) {
+            if (transferStore.get(txId) != transfer || !transfer.compareAndSetStatus(expected, newStatus)) {
+                return false; // deleted or changed meanwhile
+            }
+            // add to new bucket first, so concurrent list() never misses the transfer
+            statusIndex.add(newStatus, txId);
+            statusIndex.remove(expected, txId);
+            statusTotals.add(newStatus, transfer);
+            statusTotals.remove(expected, transfer);
+            lsn = append(transfer);
+        }
+        transactionLog.await(lsn);
+        return true;
+    }
+
 
     @Override
     public List<Transfer> list(FilterParametersDto filterParams) {
+        String sortPropertyName = filterParams.getSort();
+        Long limit = filterParams.getLimit();
+        boolean isReverseOrder = filterParams.getOrder() != null && filterParams.getOrder().equals("desc") ? true : false;
+        // id breaks ties, so every record has unique position for cursor pagination
+        Comparator<Transfer> comparator = sortPropertyName != null ?
+                getSortComparator(sortPropertyName).thenComparing(Transfer::getId) : TIMELINE_ORDER;
+        Comparator<Transfer> orderedComparator = isReverseOrder ? comparator.reversed() : comparator;
+        Transfer after = filterParams.getCursor() != null ? toProbe(filterParams.getCursor()) : null;
+        long maxResults = limit != null ? limit : transferStore.size();
+
+        Collection<Transfer> candidates = selectCandidates(filterParams);
+        if (candidates == null && sortPropertyName == null) {
+            // default order without indexed filter: seek in time-ordered set and read only one page
+            NavigableSet<Transfer> ordered = isReverseOrder ? timeline.descendingSet() : timeline;
+            if (after != null) {
+                ordered = ordered.tailSet(after, false);
+            }
+            return applyFilters(ordered.stream(), filterParams)
+                    .limit(maxResults)
+                    .collect(Collectors.toList());
+        }
+
+        // other sort orders and indexed filters have no ordered structure to seek in: every page scans all candidates,
+        // O(n) in their number, and cursor only skips the ones up to it; bounded heap keeps memory at one page.
+        // Walk through pages is still complete and without duplicates, as id breaks ties
+        // values() of concurrent map is weakly consistent and splits well, candidates are a snapshot list
+        Collection<Transfer> scanned = candidates != null ? candidates : transferStore.values();
+        return parallelScan.run(scanned.size(), parallel -> {
+            Stream<Transfer> stream = applyFilters(parallel ? scanned.parallelStream() : scanned.stream(), filterParams);
+            if (after != null) {
+                stream = stream.filter(item -> orderedComparator.compare(item, after) > 0);
+            }
+
+            if (maxResults >= 0 && maxResults < scanned.size()) {
+                // bounded heap keeps only requested page, instead of sorting all candidates
+                return stream.collect(TopKCollector.of(orderedComparator, (int) maxResults));
+            }
+
+            return stream.sorted(orderedComparator)
+                    .limit(maxResults)
+                    .collect(Collectors.toList());
+        });
+    }
+
+    private Stream<Transfer> applyFilters(Stream<Transfer> stream, FilterParametersDto filterParams) {
         TransferStatus status = filterParams.getStatus();
         String currency = filterParams.getCurrency();
         String sourceAccount = filterParams.getSource();
         String destinationAccount = filterParams.getDestination();
         String title = filterParams.getTitle();
-        String sortPropertyName = filterParams.getSort();
-        BigDecimal amount = filterParams.getAmount();
-        Long limit = filterParams.getLimit();
-        boolean isReverseOrder = filterParams.getOrder() != null && filterParams.getOrder().equals("desc") ? true : false;
-        Comparator<Transfer> comparator = getSortComparator(sortPropertyName);
-        Comparator<Transfer> orderedComparator = isReverseOrder ? comparator.reversed() : comparator;
+        Money amount = filterParams.getAmount();
 
-        Stream<Transfer> stream = transferStore.values().stream()
+        return stream
                 .filter(item -> status != null ? item.getStatus().equals(status) : true)
                 .filter(item -> currency != null ? item.getCurrency().equals(currency) : true)
                 .filter(item -> sourceAccount != null ? item.getSource().equals(sourceAccount) : true)
                 .filter(item -> destinationAccount != null ? item.getDestination().equals(destinationAccount) : true)
                 .filter(item -> title != null ? item.getTitle().equals(title) : true)
-                .filter(item -> amount != null ? item.getAmount().equals(amount) : true)
-                .sorted(sortPropertyName != null ? orderedComparator :
-                        Comparator.comparing(Transfer::getTimestamp))
-                .limit(limit != null ? limit : transferStore.values().size());
+                .filter(item -> amount != null ? item.getAmount().equals(amount) : true);
+    }
+
+    // amount is kept in minor units of transfer's currency, ex. 2 fraction digits for PLN
+    private static Money toCurrencyUnits(Money amount, String currency) {
+        return amount != null && currency != null ? amount.inCurrency(currency) : amount;
+    }
+
+    // pick the most selective index among requested filters, null if no indexed filter requested
+    // remaining filters are applied on the candidates, which gives intersection of all conditions
+    private Collection<Transfer> selectCandidates(FilterParametersDto filterParams) {
+        Set<String> candidateIds = null;
+        candidateIds = narrower(candidateIds, filterParams.getStatus(), statusIndex);
+        candidateIds = narrower(candidateIds, filterParams.getCurrency(), currencyIndex);
+        candidateIds = narrower(candidateIds, filterParams.getSource(), sourceIndex);
+        candidateIds = narrower(candidateIds, filterParams.getDestination(), destinationIndex);
+
+        if (candidateIds == null) {
+            return null;
+        }
+
+        List<Transfer> candidates = new ArrayList<>(candidateIds.size());
+        for (String txId : candidateIds) {
+            Transfer transfer = transferStore.get(txId);
+            if (transfer != null) {
+                candidates.add(transfer);
+            }
+        }
+        return candidates;
+    }
 
-        return stream.collect(Collectors.toList());
+    private static <K> Set<String> narrower(Set<String> current, K key, SecondaryIndex<K> index) {
+        if (key == null) return current;
+        Set<String> ids = index.get(key);
+        return current == null || ids.size() < current.size() ? ids : current;
+    }
+
+    @Override
+    public TransferStatistics getStatistics(String source, String destination) {
+        return new TransferStatistics(statusTotals.snapshot(), currencyTotals.snapshot(),
+                source != null ? Collections.singletonMap(source, sourceTotals.get(source)) : null,
+                destination != null ? Collections.singletonMap(destination, destinationTotals.get(destination)) : null);
     }
 
     @Override
@@ -85,11 +281,90 @@ public class TransferRepositoryImpl implements TransferRepository {
 
     @Override
     public boolean delete(String txId) {
-        return transferStore.remove(txId) != null;
+        Transfer removed = transferStore.remove(txId);
+        if (removed != null) {
+            synchronized (removed) {
+                unlink(removed);
+            }
+            transactionLog.await(transactionLog.append(LOG_STREAM, RECORD_DELETE,
+                    BinaryCodec.encode(out -> BinaryCodec.writeText(out, txId))));
+            return true;
+        }
+        return false;
     }
 
     @Override
     public void cleanup() {
+        clear();
+        transactionLog.await(transactionLog.append(LOG_STREAM, RECORD_CLEAR, new byte[0]));
+    }
+
+    // full state of transfer is logged, so replay of the latest record restores it regardless of history;
+    // caller holds monitor of the transfer, so records of one transfer reach the log in the order of changes
+    private long append(Transfer transfer) {
+        return transactionLog.append(LOG_STREAM, RECORD_PUT,
+                BinaryCodec.encode(out -> TransferCodec.write(out, transfer)));
+    }
+
+    @Override
+    public void replay(LogRecord record) {
+        switch (record.getType()) {
+            case RECORD_PUT:
+                restore(BinaryCodec.decode(record.getPayload(), TransferCodec::read));
+                break;
+            case RECORD_DELETE:
+                Transfer removed = transferStore.remove(BinaryCodec.decode(record.getPayload(), BinaryCodec::readText));
+                if (removed != null) {
+                    unlink(removed);
+                }
+                break;
+            case RECORD_CLEAR:
+                clear();
+                break;
+            default:
+                throw new IllegalStateException("Unknown transfer log record type " + record.getType());
+        }
+    }
+
+    @Override
+    public void writeSnapshot(DataOutput out) throws IOException {
+        for (Transfer transfer : transferStore.values()) {
+            out.writeBoolean(true);
+            synchronized (transfer) {
+                TransferCodec.write(out, transfer);
+            }
+        }
+        out.writeBoolean(false);
+    }
+
+    @Override
+    public void readSnapshot(DataInput in) throws IOException {
+        clear();
+        while (in.readBoolean()) {
+            restore(TransferCodec.read(in));
+        }
+    }
+
+    private void restore(Transfer transfer) {
+        Transfer previous = transferStore.put(transfer.getId(), transfer);
+        if (previous != null) {
+            unlink(previous);
+        }
+        timeline.add(transfer);
+        indexes.forEach(index -> index.add(transfer));
+        aggregates.forEach(aggregate -> aggregate.add(transfer));
+    }
+
+    private void unlink(Transfer transfer) {
+        timeline.remove(transfer);
+        indexes.forEach(index -> index.remove(transfer));
+        aggregates.forEach(aggregate -> aggregate.remove(transfer));
+    }
+
+    private void clear() {
         transferStore.clear();
+        timeline.clear();
+        indexes.forEach(SecondaryIndex::clear);
+        aggregates.forEach(AggregateView::clear);
     }
 }
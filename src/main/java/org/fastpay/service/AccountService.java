@@ -1,17 +1,84 @@
 package org.fastpay.service;
 
-import java.math.BigDecimal;
+import org.fastpay.entity.Money;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public interface AccountService {
-    PaymentStatus authorizePayment(String source, String destination, BigDecimal amount, String currency, String txID);
+
+    // account of the ledger, where fees of finalized payments in given currency are booked
+    static String feeAccount(String currency) {
+        return "FEES-" + currency;
+    }
+
+    default PaymentStatus authorizePayment(String source, String destination, Money amount, String currency,
+                                           String txID) {
+        return authorizePayment(source, destination, amount, null, currency, txID);
+    }
+
+    // blocks amount together with fee on source account; on finalization destination is credited with amount only,
+    // fee goes to fee account of the ledger
+    PaymentStatus authorizePayment(String source, String destination, Money amount, Money fee, String currency,
+                                   String txID);
+
+    // authorizes many payments at once, result per request in the same order;
+    // ledger may take every source account once and check the sum of its payments against the balance
+    default List<PaymentStatus> authorizePayments(List<AuthorizationRequest> requests) {
+        List<PaymentStatus> results = new ArrayList<>(requests.size());
+        for (AuthorizationRequest request : requests) {
+            results.add(authorizePayment(request.getSource(), request.getDestination(), request.getAmount(),
+                    request.getFee(), request.getCurrency(), request.getTxId()));
+        }
+        return results;
+    }
 
     PaymentStatus cancelPayment(String txId);
 
-    PaymentStatus deposit(String destination, BigDecimal amount, String currency, String txId);
+    // cancels many authorized payments at once, result per transaction;
+    // ledger may take every source account once and give back sum of its payments
+    default Map<String, PaymentStatus> cancelPayments(Collection<String> txIds) {
+        Map<String, PaymentStatus> results = new HashMap<>();
+        for (String txId : txIds) {
+            results.put(txId, cancelPayment(txId));
+        }
+        return results;
+    }
+
+    PaymentStatus deposit(String destination, Money amount, String currency, String txId);
+
+    // deposits many amounts to one account, each once per its reference, result per reference;
+    // ledger may change the balance once, by sum of the ones not made yet
+    default Map<String, PaymentStatus> depositAll(String accountNumber, Map<String, Money> amounts, String currency) {
+        Map<String, PaymentStatus> results = new HashMap<>();
+        for (Map.Entry<String, Money> amount : amounts.entrySet()) {
+            results.put(amount.getKey(), deposit(accountNumber, amount.getValue(), currency, amount.getKey()));
+        }
+        return results;
+    }
+
+    // compensating transaction to deposit: takes deposited amount back, if it's still on the account
+    PaymentStatus withdraw(String accountNumber, Money amount, String currency, String txId);
 
     PaymentStatus finalizePayment(String txId);
 
-    BigDecimal balance(String accountNumber, String currency);
+    // finalizes many authorized payments at once, result per transaction;
+    // ledger may credit every destination account once with sum of its payments
+    default Map<String, PaymentStatus> finalizePayments(Collection<String> txIds) {
+        Map<String, PaymentStatus> results = new HashMap<>();
+        for (String txId : txIds) {
+            results.put(txId, finalizePayment(txId));
+        }
+        return results;
+    }
+
+    // AUTHORIZED, COMPLETED or CANCELLED; null for unknown payment, or settled one forgotten beyond retention
+    PaymentStatus paymentStatus(String txId);
+
+    Money balance(String accountNumber, String currency);
 
     void createAccount(String origin_account, String currency);
 }
@@ -1,110 +1,731 @@
 package org.fastpay.service;
 
 import org.apache.commons.lang3.tuple.Pair;
+import org.fastpay.entity.Money;
+import org.fastpay.persistence.*;
 
-import java.math.BigDecimal;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Optional;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.stream.IntStream;
+
+import static org.fastpay.service.LedgerCodec.*;
 
 // Operations on banking account
 // in real life scenario, should be wrapper around bank API
-public class AccountServiceImpl implements AccountService {
+// in durable mode every balance and transaction change is journaled in transaction log
+// thread-safe: account balance is changed only under lock of its stripe, transaction state under lock of its
+// source account; operation on two accounts takes both stripes in index order, so it can't deadlock.
+// operations on accounts in different stripes don't contend.
+// Finalized and cancelled transactions are kept only to answer repeated calls; oldest are forgotten beyond retention.
+// Deposit is applied once per account and reference, repeated call only answers; same for withdrawal of it.
+// References of deposits are forgotten beyond retention as well
+public class AccountServiceImpl implements AccountService, Journaled {
+
+    public static final int DEFAULT_SETTLED_RETENTION = 100000;
+    private static final int LOCK_STRIPES = 256; // power of two
+
+    private final Map<String, Balance> accountStorage = new ConcurrentHashMap<>(); // current balance, per account nr
+    private final Map<String, Payment> bufferStorage = new ConcurrentHashMap<>(); // for not finalized transactions
+    private final Map<String, Pair<String, PaymentStatus>> transactions = new ConcurrentHashMap<>(); //
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final Queue<String> settled = new ConcurrentLinkedQueue<>(); // finalized or cancelled, oldest first
+    private final AtomicInteger settledCount = new AtomicInteger();
+    // COMPLETED, or CANCELLED when withdrawn, per account and reference of deposit
+    private final Map<Pair<String, String>, PaymentStatus> deposits = new ConcurrentHashMap<>();
+    private final Queue<Pair<String, String>> depositOrder = new ConcurrentLinkedQueue<>(); // oldest first
+    private final AtomicInteger depositCount = new AtomicInteger();
+    private final int settledRetention;
 
-    private final Map<String, BigDecimal> accountStorage = new HashMap<>(); // current balance, per account nr
-    private final Map<String, Pair<String, BigDecimal>> bufferStorage = new HashMap<>(); // for not finalized transactions
-    private final Map<String, Pair<String, PaymentStatus>> transactions = new HashMap<>(); //
+    private final String logStream;
+    private final TransactionLog transactionLog;
 
     public AccountServiceImpl() {
-        initializeAccounts();
+        this("default", new NoTransactionLog());
     } // default constructor - for unit tests
 
-    // set initial balance - for test only
-    private void initializeAccounts() {
-        accountStorage.put("PL61109010140000071219812874", new BigDecimal(1000L));
-        accountStorage.put("CZ6508000000192000145399", new BigDecimal(0L));
-        accountStorage.put("US122000103040445550000000", new BigDecimal(50000L));
-        accountStorage.put("DE0445999991232449999999", new BigDecimal(0L));
-        accountStorage.put("RU099912012000000031399999999", new BigDecimal(10000000000L));
-        accountStorage.put("BA0090909090339494494949", new BigDecimal(50000L));
+    public AccountServiceImpl(String ledgerName, TransactionLog transactionLog) {
+        this(ledgerName, transactionLog, DEFAULT_SETTLED_RETENTION);
     }
 
-    // Block requested amount on the account, by decreasing balance. This is reversible operation
-    @Override
-    public PaymentStatus authorizePayment(String source, String destination, BigDecimal amount, String currency, String txId) {
-        if (!accountStorage.containsKey(source)) {
-            return PaymentStatus.INVALID_ACCOUNT; // account locked or not exist
+    public AccountServiceImpl(String ledgerName, TransactionLog transactionLog, int settledRetention) {
+        if (settledRetention < 1) {
+            throw new IllegalArgumentException("Retention of settled transactions must be positive");
+        }
+        this.settledRetention = settledRetention;
+        this.logStream = LOG_STREAM_PREFIX + ledgerName;
+        this.transactionLog = transactionLog;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
         }
+        Balance.initializeAccounts(accountStorage);
+        transactionLog.register(logStream, this);
+    }
 
-        if (balance(source, currency).compareTo(amount) == -1) {
-            // insufficient funds
-            return PaymentStatus.DECLINED;
+    // Block requested amount and fee on the account, by decreasing balance. This is reversible operation
+    @Override
+    public PaymentStatus authorizePayment(String source, String destination, Money amount, Money fee, String currency,
+                                          String txId) {
+        if (source == null) {
+            return PaymentStatus.INVALID_ACCOUNT;
         }
-        BigDecimal originBalance = accountStorage.get(source);
-        originBalance = originBalance.subtract(amount);
-        accountStorage.put(source, originBalance);
 
-        transactions.put(txId, Pair.of(source, PaymentStatus.AUTHORIZED)); // store account nr used in transaction
-        bufferStorage.put(txId, Pair.of(destination, amount)); // store amount in temporary buffer
+        long lsn;
+        // check and subtract is one step, so concurrent payments can't overdraw the account
+        synchronized (lockFor(source)) {
+            Balance originBalance = accountStorage.get(source);
+            if (originBalance == null) {
+                return PaymentStatus.INVALID_ACCOUNT; // account locked or not exist
+            }
+
+            long units = originBalance.unitsOf(amount, fee);
+            if (units < 0 || originBalance.units < units) {
+                // insufficient funds, or amount not representable in account currency
+                return PaymentStatus.DECLINED;
+            }
+            originBalance.units -= units;
+            Changes changes = new Changes();
+            changedBalance(changes, source, originBalance);
+
+            transactions.put(txId, Pair.of(source, PaymentStatus.AUTHORIZED)); // store account nr used in transaction
+            // store amount and fee in temporary buffer
+            bufferStorage.put(txId, new Payment(txId, source, PaymentStatus.AUTHORIZED, destination, amount, fee,
+                    currency));
+            changedTransaction(changes, txId);
+            lsn = journal(changes);
+        }
+        // wait for disk outside of the lock, so flush is shared with other stripes
+        transactionLog.await(lsn);
 
         return PaymentStatus.AUTHORIZED;
     }
 
+    // requests are grouped by source account; every account is locked and looked up once, its payments are accepted
+    // in order while their sum fits the balance, which is decreased by the sum at once.
+    // Whole batch waits for disk once
+    @Override
+    public List<PaymentStatus> authorizePayments(List<AuthorizationRequest> requests) {
+        PaymentStatus[] results = new PaymentStatus[requests.size()];
+        Map<String, List<Integer>> bySource = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            String source = requests.get(i).getSource();
+            if (source == null) {
+                results[i] = PaymentStatus.INVALID_ACCOUNT;
+            } else {
+                bySource.computeIfAbsent(source, account -> new ArrayList<>()).add(i);
+            }
+        }
+
+        long lsn = 0L;
+        for (Map.Entry<String, List<Integer>> group : bySource.entrySet()) {
+            synchronized (lockFor(group.getKey())) {
+                lsn = Math.max(lsn, authorizeGroup(group.getKey(), group.getValue(), requests, results));
+            }
+        }
+        transactionLog.await(lsn);
+
+        return Arrays.asList(results);
+    }
+
+    // called under lock of source account
+    private long authorizeGroup(String source, List<Integer> indices, List<AuthorizationRequest> requests,
+                                PaymentStatus[] results) {
+        Balance originBalance = accountStorage.get(source);
+        if (originBalance == null) {
+            for (int index : indices) {
+                results[index] = PaymentStatus.INVALID_ACCOUNT; // account locked or not exist
+            }
+            return 0L;
+        }
+
+        List<AuthorizationRequest> accepted = new ArrayList<>(indices.size());
+        long total = 0L;
+        for (int index : indices) {
+            AuthorizationRequest request = requests.get(index);
+            long units = originBalance.unitsOf(request.getAmount(), request.getFee());
+            if (units < 0 || originBalance.units - total < units) {
+                // insufficient funds for this one on top of the ones before, or amount not representable
+                results[index] = PaymentStatus.DECLINED;
+                continue;
+            }
+            total += units;
+            accepted.add(request);
+            results[index] = PaymentStatus.AUTHORIZED;
+        }
+        if (accepted.isEmpty()) {
+            return 0L;
+        }
+
+        originBalance.units -= total;
+        Changes changes = new Changes();
+        changedBalance(changes, source, originBalance);
+        for (AuthorizationRequest request : accepted) {
+            transactions.put(request.getTxId(), Pair.of(source, PaymentStatus.AUTHORIZED));
+            bufferStorage.put(request.getTxId(), new Payment(request.getTxId(), source, PaymentStatus.AUTHORIZED,
+                    request.getDestination(), request.getAmount(), request.getFee(), request.getCurrency()));
+            changedTransaction(changes, request.getTxId());
+        }
+        return journal(changes);
+    }
+
     // Compensating transaction to authorizePayment
     @Override
     public PaymentStatus cancelPayment(String txId) {
         Pair<String, PaymentStatus> pair = transactions.get(txId);
-        PaymentStatus status = Optional.ofNullable(pair).map(Pair::getValue).orElse(PaymentStatus.ERROR);
-        if (!status.equals(PaymentStatus.AUTHORIZED)) {
-            return PaymentStatus.ERROR; // wrong state
+        if (pair == null) {
+            return PaymentStatus.ERROR; // unknown transaction
         }
 
         String accountNumber = pair.getKey();
-        BigDecimal compensatingAmount = bufferStorage.get(txId).getValue();
-        bufferStorage.remove(txId);
+        long lsn;
+        synchronized (lockFor(accountNumber)) {
+            // transaction may have been finalized or cancelled meanwhile
+            if (!isAuthorized(txId)) {
+                return PaymentStatus.ERROR; // wrong state
+            }
 
-        BigDecimal balance = accountStorage.get(accountNumber);
-        compensatingAmount = balance.add(compensatingAmount);
-        accountStorage.put(accountNumber, compensatingAmount);
+            Payment hold = bufferStorage.remove(txId);
+            transactions.put(txId, Pair.of(accountNumber, PaymentStatus.CANCELLED));
+            Changes changes = new Changes();
+            changedTransaction(changes, txId);
+            retire(txId);
+
+            // amount and fee were representable when authorized, so they are now
+            Balance balance = accountStorage.get(accountNumber);
+            balance.units += balance.unitsOf(hold.getAmount(), hold.getFee());
+            changedBalance(changes, accountNumber, balance);
+            lsn = journal(changes);
+        }
+        transactionLog.await(lsn);
+        pruneSettled();
 
         return PaymentStatus.CANCELLED;
     }
 
-    // Deposit money to the account
+    // payments are grouped by source account; every account is locked once and gets back sum of its payments
+    // with single change of balance. Whole batch waits for disk once
+    @Override
+    public Map<String, PaymentStatus> cancelPayments(Collection<String> txIds) {
+        Map<String, PaymentStatus> results = new HashMap<>();
+        Map<String, List<String>> bySource = new HashMap<>();
+        for (String txId : txIds) {
+            Pair<String, PaymentStatus> pair = transactions.get(txId);
+            if (pair == null) {
+                results.put(txId, PaymentStatus.ERROR); // unknown transaction
+            } else {
+                bySource.computeIfAbsent(pair.getKey(), source -> new ArrayList<>()).add(txId);
+            }
+        }
+
+        long lsn = 0L;
+        for (Map.Entry<String, List<String>> group : bySource.entrySet()) {
+            synchronized (lockFor(group.getKey())) {
+                lsn = Math.max(lsn, cancelGroup(group.getKey(), group.getValue(), results));
+            }
+        }
+        transactionLog.await(lsn);
+        pruneSettled();
+
+        return results;
+    }
+
+    // called under lock of source account
+    private long cancelGroup(String accountNumber, List<String> txIds, Map<String, PaymentStatus> results) {
+        Balance balance = accountStorage.get(accountNumber);
+        long total = 0L;
+        Changes changes = new Changes();
+        for (String txId : txIds) {
+            if (!isAuthorized(txId)) {
+                results.put(txId, PaymentStatus.ERROR); // finalized or cancelled meanwhile
+                continue;
+            }
+            // amounts were representable and subtracted from balance when authorized, so their sum fits
+            Payment hold = bufferStorage.remove(txId);
+            total += balance.unitsOf(hold.getAmount(), hold.getFee());
+            transactions.put(txId, Pair.of(accountNumber, PaymentStatus.CANCELLED));
+            changedTransaction(changes, txId);
+            retire(txId);
+            results.put(txId, PaymentStatus.CANCELLED);
+        }
+        if (changes.isEmpty()) {
+            return 0L;
+        }
+
+        balance.units += total;
+        changedBalance(changes, accountNumber, balance);
+        return journal(changes);
+    }
+
+    // Deposit money to the account, once per reference
+    @Override
+    public PaymentStatus deposit(String accountNumber, Money amount, String currency, String txId) {
+        if (accountNumber == null || txId == null) {
+            return PaymentStatus.DECLINED;
+        }
+
+        Pair<String, String> reference = Pair.of(accountNumber, txId);
+        long lsn;
+        synchronized (lockFor(accountNumber)) {
+            PaymentStatus deposited = deposits.get(reference);
+            if (deposited != null) {
+                // repeated call; deposit withdrawn already isn't made again
+                return deposited == PaymentStatus.COMPLETED ? PaymentStatus.COMPLETED : PaymentStatus.ERROR;
+            }
+
+            Balance balance = accountStorage.get(accountNumber);
+            long units = balance != null ? balance.unitsOf(amount) : -1;
+            if (units < 0 || balance.units > Long.MAX_VALUE - units) {
+                return PaymentStatus.DECLINED; // account locked?
+            }
+
+            balance.units += units;
+            deposits.put(reference, PaymentStatus.COMPLETED);
+            lsn = journal(changedDeposit(changedBalance(new Changes(), accountNumber, balance), reference));
+            depositOrder.add(reference);
+            depositCount.incrementAndGet();
+        }
+        transactionLog.await(lsn);
+        pruneDeposits();
+
+        return PaymentStatus.COMPLETED;
+    }
+
+    // deposits not made yet change the balance once, by their sum, journaled together with their references.
+    // They are accepted in order while the sum fits the balance
+    @Override
+    public Map<String, PaymentStatus> depositAll(String accountNumber, Map<String, Money> amounts, String currency) {
+        Map<String, PaymentStatus> results = new HashMap<>();
+        if (accountNumber == null) {
+            amounts.keySet().forEach(txId -> results.put(txId, PaymentStatus.DECLINED));
+            return results;
+        }
+
+        long lsn;
+        synchronized (lockFor(accountNumber)) {
+            Balance balance = accountStorage.get(accountNumber);
+            Changes changes = new Changes();
+            long total = 0L;
+            for (Map.Entry<String, Money> amount : amounts.entrySet()) {
+                Pair<String, String> reference = Pair.of(accountNumber, amount.getKey());
+                PaymentStatus deposited = deposits.get(reference);
+                if (deposited != null) {
+                    // repeated call; deposit withdrawn already isn't made again
+                    results.put(amount.getKey(), deposited == PaymentStatus.COMPLETED ? PaymentStatus.COMPLETED
+                            : PaymentStatus.ERROR);
+                    continue;
+                }
+                long units = balance != null ? balance.unitsOf(amount.getValue()) : -1;
+                if (units < 0 || total > Long.MAX_VALUE - units || balance.units > Long.MAX_VALUE - total - units) {
+                    results.put(amount.getKey(), PaymentStatus.DECLINED); // account locked?
+                    continue;
+                }
+                total += units;
+                deposits.put(reference, PaymentStatus.COMPLETED);
+                changedDeposit(changes, reference);
+                depositOrder.add(reference);
+                depositCount.incrementAndGet();
+                results.put(amount.getKey(), PaymentStatus.COMPLETED);
+            }
+            if (changes.isEmpty()) {
+                return results;
+            }
+
+            balance.units += total;
+            lsn = journal(changedBalance(changes, accountNumber, balance));
+        }
+        transactionLog.await(lsn);
+        pruneDeposits();
+
+        return results;
+    }
+
+    // Compensating transaction to deposit with the same reference, applied once
     @Override
-    public PaymentStatus deposit(String accountNumber, BigDecimal amount, String currency, String txId) {
-        if (!accountStorage.containsKey(accountNumber)) {
-            return PaymentStatus.DECLINED; // account locked?
+    public PaymentStatus withdraw(String accountNumber, Money amount, String currency, String txId) {
+        if (accountNumber == null || txId == null) {
+            return PaymentStatus.DECLINED;
         }
 
-        BigDecimal balance = accountStorage.get(accountNumber);
-        balance = balance.add(amount);
-        accountStorage.put(accountNumber, balance);
+        Pair<String, String> reference = Pair.of(accountNumber, txId);
+        long lsn;
+        synchronized (lockFor(accountNumber)) {
+            PaymentStatus deposited = deposits.get(reference);
+            if (deposited == null) {
+                return PaymentStatus.ERROR; // unknown deposit
+            }
+            if (deposited == PaymentStatus.CANCELLED) {
+                return PaymentStatus.COMPLETED; // repeated call
+            }
+
+            Balance balance = accountStorage.get(accountNumber);
+            long units = balance != null ? balance.unitsOf(amount) : -1;
+            if (units < 0 || balance.units < units) {
+                return PaymentStatus.DECLINED; // spent meanwhile, or account locked
+            }
+
+            balance.units -= units;
+            deposits.put(reference, PaymentStatus.CANCELLED);
+            lsn = journal(changedDeposit(changedBalance(new Changes(), accountNumber, balance), reference));
+        }
+        transactionLog.await(lsn);
 
         return PaymentStatus.COMPLETED;
     }
 
+    // moves authorized amount to destination account and fee to fee account
     @Override
     public PaymentStatus finalizePayment(String txId) {
-        Pair<String, PaymentStatus> pair = transactions.get(txId);
-        PaymentStatus status = Optional.ofNullable(pair).map(Pair::getValue).orElse(PaymentStatus.ERROR);
-        if (!status.equals(PaymentStatus.AUTHORIZED)) {
-            return PaymentStatus.ERROR; // must be authorized first
+        return finalizePayments(Collections.singletonList(txId)).get(txId);
+    }
+
+    // payments are grouped by destination account; every group is applied under locks of destination, its sources
+    // and fee accounts, with single change of destination balance, and waits for disk once for the whole batch
+    @Override
+    public Map<String, PaymentStatus> finalizePayments(Collection<String> txIds) {
+        Map<String, PaymentStatus> results = new HashMap<>();
+        Map<String, List<String>> byDestination = new HashMap<>();
+        Map<String, List<String>> lockedAccounts = new HashMap<>(); // sources and fee accounts, per destination
+        for (String txId : txIds) {
+            Pair<String, PaymentStatus> pair = transactions.get(txId);
+            Payment hold = bufferStorage.get(txId);
+            if (pair == null || hold == null) {
+                results.put(txId, PaymentStatus.ERROR); // must be authorized first
+                continue;
+            }
+            byDestination.computeIfAbsent(hold.getDestination(), destination -> new ArrayList<>()).add(txId);
+            List<String> accounts = lockedAccounts.computeIfAbsent(hold.getDestination(), d -> new ArrayList<>());
+            accounts.add(pair.getKey());
+            if (hold.hasFee()) {
+                accounts.add(AccountService.feeAccount(hold.getCurrency()));
+            }
+        }
+
+        long lsn = 0L;
+        for (Map.Entry<String, List<String>> group : byDestination.entrySet()) {
+            int[] stripes = IntStream.concat(IntStream.of(stripe(group.getKey())),
+                    lockedAccounts.get(group.getKey()).stream().mapToInt(AccountServiceImpl::stripe))
+                    .distinct().sorted().toArray();
+            lsn = Math.max(lsn, inStripes(stripes, 0, () -> finalizeGroup(group.getKey(), group.getValue(), results)));
+        }
+        transactionLog.await(lsn);
+        pruneSettled();
+
+        return results;
+    }
+
+    // called under locks of destination, sources and fee accounts
+    private long finalizeGroup(String destinationAccount, List<String> txIds, Map<String, PaymentStatus> results) {
+        Balance balance = accountStorage.get(destinationAccount);
+        List<Payment> settled = new ArrayList<>();
+        Map<String, Long> fees = new HashMap<>(); // units per currency
+        long total = 0L;
+        for (String txId : txIds) {
+            if (!isAuthorized(txId)) {
+                results.put(txId, PaymentStatus.ERROR); // finalized or cancelled meanwhile
+                continue;
+            }
+            Payment hold = bufferStorage.get(txId);
+            long units = balance != null ? balance.unitsOf(hold.getAmount()) : -1;
+            long feeUnits = hold.hasFee() ? Balance.unitsAt(hold.getFee(), Money.exponentOf(hold.getCurrency())) : 0L;
+            if (units < 0 || feeUnits < 0 || total > Long.MAX_VALUE - units
+                    || balance.units > Long.MAX_VALUE - total - units) {
+                results.put(txId, PaymentStatus.DECLINED); // account locked?
+                continue;
+            }
+            total += units;
+            if (hold.hasFee()) {
+                fees.merge(hold.getCurrency(), feeUnits, Long::sum);
+            }
+            settled.add(hold);
+        }
+        if (settled.isEmpty()) {
+            return 0L;
+        }
+
+        balance.units += total;
+        Changes changes = new Changes();
+        changedBalance(changes, destinationAccount, balance);
+        // fee account is opened with the first fee in its currency
+        for (Map.Entry<String, Long> fee : fees.entrySet()) {
+            String feeAccount = AccountService.feeAccount(fee.getKey());
+            Balance feeBalance = accountStorage.computeIfAbsent(feeAccount,
+                    account -> new Balance(0L, Money.exponentOf(fee.getKey())));
+            feeBalance.units += fee.getValue();
+            changedBalance(changes, feeAccount, feeBalance);
         }
+        for (Payment hold : settled) {
+            String txId = hold.getTxId();
+            String sourceAccount = transactions.get(txId).getKey();
+            bufferStorage.remove(txId);
+            transactions.put(txId, Pair.of(sourceAccount, PaymentStatus.COMPLETED));
+            changedTransaction(changes, txId);
+            retire(txId);
+            results.put(txId, PaymentStatus.COMPLETED);
+        }
+        return journal(changes);
+    }
+
+    // takes locks of given stripes, sorted ascending, and runs operation holding all of them
+    private long inStripes(int[] stripes, int from, LongSupplier operation) {
+        if (from == stripes.length) {
+            return operation.getAsLong();
+        }
+        synchronized (locks[stripes[from]]) {
+            return inStripes(stripes, from + 1, operation);
+        }
+    }
 
-        String destinationAccount = bufferStorage.get(txId).getKey();
-        BigDecimal depositAmount = bufferStorage.get(txId).getValue();
-        return deposit(destinationAccount, depositAmount, "same", txId);
+    @Override
+    public PaymentStatus paymentStatus(String txId) {
+        Pair<String, PaymentStatus> transaction = transactions.get(txId);
+        return transaction != null ? transaction.getValue() : null;
     }
 
     @Override
-    public BigDecimal balance(String accountNumber, String currency) {
-        return accountStorage.get(accountNumber);
+    public Money balance(String accountNumber, String currency) {
+        Balance balance = accountNumber != null ? accountStorage.get(accountNumber) : null;
+        return balance != null ? Money.ofMinor(balance.units, balance.exponent) : null;
+    }
+
+    // authorized ones and settled ones within retention
+    public int transactionCount() {
+        return transactions.size();
     }
 
     @Override
     public void createAccount(String originAccount, String currency) {
-        accountStorage.put(originAccount, new BigDecimal(0L));
+        long lsn;
+        synchronized (lockFor(originAccount)) {
+            Balance balance = new Balance(0L, Money.exponentOf(currency));
+            accountStorage.put(originAccount, balance);
+            lsn = journalBalance(originAccount, balance);
+        }
+        transactionLog.await(lsn);
+    }
+
+    // called under lock of source account
+    private boolean isAuthorized(String txId) {
+        Pair<String, PaymentStatus> transaction = transactions.get(txId);
+        return transaction != null && transaction.getValue() == PaymentStatus.AUTHORIZED;
+    }
+
+    // transaction finalized or cancelled - from now on it's kept only to answer repeated calls
+    private void retire(String txId) {
+        settled.add(txId);
+        settledCount.incrementAndGet();
+    }
+
+    // forgets oldest settled transactions beyond retention, called outside of locks. Removal is journaled,
+    // but not waited for: when it's lost in a crash, transaction is only kept longer
+    private void pruneSettled() {
+        while (settledCount.get() > settledRetention) {
+            String txId = settled.poll();
+            if (txId == null) {
+                return;
+            }
+            settledCount.decrementAndGet();
+            Pair<String, PaymentStatus> transaction = transactions.get(txId);
+            if (transaction == null) {
+                continue; // removal replayed from the log
+            }
+            synchronized (lockFor(transaction.getKey())) {
+                Pair<String, PaymentStatus> current = transactions.get(txId);
+                if (current != null && current.getValue() != PaymentStatus.AUTHORIZED) {
+                    transactions.remove(txId);
+                    journalTransaction(txId);
+                }
+            }
+        }
+    }
+
+    // forgets references of oldest deposits beyond retention, called outside of locks; as for transactions,
+    // removal is journaled, but not waited for
+    private void pruneDeposits() {
+        while (depositCount.get() > settledRetention) {
+            Pair<String, String> reference = depositOrder.poll();
+            if (reference == null) {
+                return;
+            }
+            depositCount.decrementAndGet();
+            synchronized (lockFor(reference.getKey())) {
+                if (deposits.remove(reference) != null) {
+                    journalDeposit(reference);
+                }
+            }
+        }
+    }
+
+    private Object lockFor(String accountNumber) {
+        return locks[stripe(accountNumber)];
+    }
+
+    private static int stripe(String accountNumber) {
+        int hash = accountNumber.hashCode();
+        return (hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1);
+    }
+
+    // called under the lock of the account, so records of one account reach the log in the order of changes
+    // records hold the resulting state, not the delta, so replaying them is idempotent.
+    // Operation changing more than one thing collects the changes and journals them as one record
+    private long journal(Changes changes) {
+        return transactionLog.append(logStream, RECORD_CHANGES, changes.toPayload());
+    }
+
+    private Changes changedBalance(Changes changes, String accountNumber, Balance balance) {
+        return changes.add(RECORD_BALANCE, out -> writeBalance(out, accountNumber, balance));
+    }
+
+    private Changes changedTransaction(Changes changes, String txId) {
+        return changes.add(RECORD_TRANSACTION, out -> writeTransaction(out, txId));
+    }
+
+    private Changes changedDeposit(Changes changes, Pair<String, String> reference) {
+        return changes.add(RECORD_DEPOSIT, out -> writeDeposit(out, reference));
+    }
+
+    private long journalBalance(String accountNumber, Balance balance) {
+        return transactionLog.append(logStream, RECORD_BALANCE,
+                BinaryCodec.encode(out -> writeBalance(out, accountNumber, balance)));
+    }
+
+    private static void writeBalance(DataOutput out, String accountNumber, Balance balance) throws IOException {
+        LedgerCodec.writeBalance(out, accountNumber, balance.units, balance.exponent);
+    }
+
+    private Void restoreBalance(DataInput in) throws IOException {
+        accountStorage.put(BinaryCodec.readText(in), new Balance(in.readLong(), in.readByte()));
+        return null;
     }
 
+    private long journalTransaction(String txId) {
+        return transactionLog.append(logStream, RECORD_TRANSACTION,
+                BinaryCodec.encode(out -> writeTransaction(out, txId)));
+    }
+
+    private void writeTransaction(DataOutput out, String txId) throws IOException {
+        Pair<String, PaymentStatus> transaction = transactions.get(txId);
+        Payment hold = bufferStorage.get(txId);
+        LedgerCodec.writeTransaction(out, txId, transaction != null ? transaction.getKey() : null,
+                transaction != null ? transaction.getValue() : null,
+                hold != null ? hold.getDestination() : null, hold != null ? hold.getAmount() : null,
+                hold != null ? hold.getFee() : null, hold != null ? hold.getCurrency() : null);
+    }
+
+    // called under the lock of the account
+    private long journalDeposit(Pair<String, String> reference) {
+        return transactionLog.append(logStream, RECORD_DEPOSIT,
+                BinaryCodec.encode(out -> writeDeposit(out, reference)));
+    }
+
+    private void writeDeposit(DataOutput out, Pair<String, String> reference) throws IOException {
+        LedgerCodec.writeDeposit(out, reference.getKey(), reference.getValue(), deposits.get(reference));
+    }
+
+    @Override
+    public void replay(LogRecord record) {
+        if (record.getType() == RECORD_CHANGES) {
+            BinaryCodec.decode(record.getPayload(), this::restoreChanges);
+        } else {
+            BinaryCodec.decode(record.getPayload(), in -> restore(record.getType(), in));
+        }
+    }
+
+    private Void restoreChanges(DataInput in) throws IOException {
+        for (byte type = in.readByte(); type != 0; type = in.readByte()) {
+            restore(type, in);
+        }
+        return null;
+    }
+
+    private Void restore(byte type, DataInput in) throws IOException {
+        switch (type) {
+            case RECORD_BALANCE:
+                return restoreBalance(in);
+            case RECORD_TRANSACTION:
+                return restoreTransaction(in);
+            case RECORD_DEPOSIT:
+                return restoreDeposit(in);
+            default:
+                throw new IllegalStateException("Unknown ledger log record type " + type);
+        }
+    }
+
+    @Override
+    public void writeSnapshot(DataOutput out) throws IOException {
+        for (Map.Entry<String, Balance> account : accountStorage.entrySet()) {
+            out.writeBoolean(true);
+            writeBalance(out, account.getKey(), account.getValue());
+        }
+        out.writeBoolean(false);
+
+        Set<String> txIds = new HashSet<>(transactions.keySet());
+        txIds.addAll(bufferStorage.keySet());
+        for (String txId : txIds) {
+            out.writeBoolean(true);
+            writeTransaction(out, txId);
+        }
+        out.writeBoolean(false);
+
+        for (Pair<String, String> reference : new ArrayList<>(deposits.keySet())) {
+            out.writeBoolean(true);
+            writeDeposit(out, reference);
+        }
+        out.writeBoolean(false);
+    }
+
+    @Override
+    public void readSnapshot(DataInput in) throws IOException {
+        accountStorage.clear();
+        transactions.clear();
+        bufferStorage.clear();
+        settled.clear();
+        settledCount.set(0);
+        deposits.clear();
+        depositOrder.clear();
+        depositCount.set(0);
+        while (in.readBoolean()) {
+            restoreBalance(in);
+        }
+        while (in.readBoolean()) {
+            restoreTransaction(in);
+        }
+        while (in.readBoolean()) {
+            restoreDeposit(in);
+        }
+    }
+
+    private Void restoreDeposit(DataInput in) throws IOException {
+        Payment deposit = LedgerCodec.readDeposit(in);
+        Pair<String, String> reference = Pair.of(deposit.getSource(), deposit.getTxId());
+        if (deposit.getStatus() == null) {
+            deposits.remove(reference);
+        } else if (deposits.put(reference, deposit.getStatus()) == null) {
+            depositOrder.add(reference);
+            depositCount.incrementAndGet();
+        }
+        return null;
+    }
+
+    private Void restoreTransaction(DataInput in) throws IOException {
+        Payment payment = LedgerCodec.readTransaction(in);
+        if (payment.getSource() != null) {
+            transactions.put(payment.getTxId(), Pair.of(payment.getSource(), payment.getStatus()));
+            if (payment.getStatus() != PaymentStatus.AUTHORIZED) {
+                retire(payment.getTxId());
+            }
+        } else {
+            transactions.remove(payment.getTxId());
+        }
+        if (payment.getDestination() != null) {
+            bufferStorage.put(payment.getTxId(), payment);
+        } else {
+            bufferStorage.remove(payment.getTxId());
+        }
+        return null;
+    }
 }
@@ -0,0 +1,29 @@
+package org.fastpay.service;
+
+import lombok.Data;
+import org.fastpay.entity.Money;
+
+// One payment of batch authorization, same arguments as AccountService.authorizePayment
+@Data
+public class AuthorizationRequest {
+    private final String txId;
+    private final String source;
+    private final String destination;
+    private final Money amount;
+    private final Money fee;
+    private final String currency;
+
+    public AuthorizationRequest(String txId, String source, String destination, Money amount, String currency) {
+        this(txId, source, destination, amount, null, currency);
+    }
+
+    public AuthorizationRequest(String txId, String source, String destination, Money amount, Money fee,
+                                String currency) {
+        this.txId = txId;
+        this.source = source;
+        this.destination = destination;
+        this.amount = amount;
+        this.fee = fee;
+        this.currency = currency;
+    }
+}
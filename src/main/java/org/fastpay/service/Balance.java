@@ -0,0 +1,47 @@
+package org.fastpay.service;
+
+import org.fastpay.entity.Money;
+
+import java.util.Map;
+
+// balance in minor units of account currency, shared by ledger implementations; allocated once per account
+// and changed only by its owner - under stripe lock or on writer thread of its partition
+final class Balance {
+    final int exponent;
+    volatile long units;
+
+    Balance(long units, int exponent) {
+        this.units = units;
+        this.exponent = exponent;
+    }
+
+    // set initial balance - for test only
+    static void initializeAccounts(Map<String, Balance> accountStorage) {
+        accountStorage.put("PL61109010140000071219812874", new Balance(100000L, 2));
+        accountStorage.put("CZ6508000000192000145399", new Balance(0L, 2));
+        accountStorage.put("GB82WEST12345698765432", new Balance(5000000L, 2));
+        accountStorage.put("DE89370400440532013000", new Balance(0L, 2));
+        accountStorage.put("RU0204452560040702810412345678901", new Balance(1000000000000L, 2));
+        accountStorage.put("BA391290079401028494", new Balance(5000000L, 2));
+    }
+
+    // amount in units of this account, -1 if it's negative or has more fraction digits than currency allows
+    long unitsOf(Money amount) {
+        return unitsAt(amount, exponent);
+    }
+
+    // amount together with fee, -1 if any of them isn't representable
+    long unitsOf(Money amount, Money fee) {
+        long units = unitsOf(amount);
+        long feeUnits = fee != null ? unitsOf(fee) : 0L;
+        return units < 0 || feeUnits < 0 || units > Long.MAX_VALUE - feeUnits ? -1 : units + feeUnits;
+    }
+
+    static long unitsAt(Money amount, int exponent) {
+        try {
+            return amount.signum() >= 0 ? amount.unitsAt(exponent) : -1;
+        } catch (IllegalArgumentException ex) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.fastpay.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.fastpay.app.Configuration;
+import org.fastpay.entity.Money;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Commission charged to sender, by location of sender's and recipient's bank
+// rules are immutable table replaced as a whole on reload, so fee calculation never locks
+@Slf4j
+@Singleton
+public class CommissionRules {
+
+    private static final long DEFAULT_REFRESH_INTERVAL = 60L;
+
+    private final Path rulesFile;
+    private final ScheduledExecutorService refresher;
+    private volatile CommissionTable table = CommissionTable.DEFAULT;
+
+    @Inject
+    public CommissionRules() {
+        this(rulesFile(), Configuration.getLong(Configuration.COMMISSION_REFRESH_INTERVAL, DEFAULT_REFRESH_INTERVAL));
+    }
+
+    // without rules file built-in rules apply; file is read again every refreshInterval seconds, 0 - only once
+    public CommissionRules(Path rulesFile, long refreshInterval) {
+        this.rulesFile = rulesFile;
+        refresh();
+        if (rulesFile != null && refreshInterval > 0) {
+            refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "commission-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            refresher.scheduleWithFixedDelay(this::refresh, refreshInterval, refreshInterval, TimeUnit.SECONDS);
+        } else {
+            refresher = null;
+        }
+    }
+
+    private static Path rulesFile() {
+        String file = Configuration.getString(Configuration.COMMISSION_RULES_FILE, null);
+        return file != null ? Paths.get(file) : null;
+    }
+
+    // on failure previous rules stay in use
+    public boolean refresh() {
+        if (rulesFile == null) {
+            return true;
+        }
+
+        try (Reader reader = Files.newBufferedReader(rulesFile, StandardCharsets.UTF_8)) {
+            Properties rules = new Properties();
+            rules.load(reader);
+            table = CommissionTable.of(rules);
+            return true;
+        } catch (IOException | RuntimeException ex) {
+            log.error("Commission rules not reloaded, using previous ones", ex);
+            return false;
+        }
+    }
+
+    // fee in currency of transfer, rounded half-even to its minor unit
+    public Money commission(String source, String destination, Money amount, String currency) {
+        BigDecimal rate = table.rate(source, destination);
+        BigDecimal fee = amount.toBigDecimal().multiply(rate)
+                .setScale(Money.exponentOf(currency), RoundingMode.HALF_EVEN);
+        return Money.of(fee);
+    }
+
+    public void close() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+}
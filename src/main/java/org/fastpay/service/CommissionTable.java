@@ -0,0 +1,152 @@
+package org.fastpay.service;
+
+import java.math.BigDecimal;
+import java.util.Properties;
+
+// Immutable commission rules, resolved to arrays indexed by IBAN country code when rules are loaded,
+// so fee of a transfer is found by comparing characters of both IBANs and a few array reads
+// rules file (properties), fees in percent:
+//   fee.sameBank=0
+//   fee.sameCountry=1
+//   fee.eea=2.5
+//   fee.other=4
+//   eea=AT,BE,BG,...
+//   bankCode.DE=4,8       - offset of bank identifier in IBAN and its length
+final class CommissionTable {
+
+    private static final int LETTERS = 26;
+    private static final int COUNTRIES = LETTERS * LETTERS;
+    private static final int BANK_CODE_OFFSET = 4; // after country code and check digits
+    private static final int DEFAULT_BANK_CODE_LENGTH = 4;
+
+    static final String FEE_SAME_BANK = "fee.sameBank";
+    static final String FEE_SAME_COUNTRY = "fee.sameCountry";
+    static final String FEE_EEA = "fee.eea";
+    static final String FEE_OTHER = "fee.other";
+    static final String EEA_COUNTRIES = "eea";
+    static final String BANK_CODE_PREFIX = "bankCode.";
+
+    // README model; EEA - European Union, Iceland, Liechtenstein, Norway
+    static final CommissionTable DEFAULT = of(defaultRules());
+
+    private final BigDecimal sameBank; // fractions of amount, ex. 0.025
+    private final BigDecimal sameCountry;
+    private final BigDecimal eea;
+    private final BigDecimal other;
+    private final boolean[] eeaMembers = new boolean[COUNTRIES];
+    private final byte[] bankCodeOffsets = new byte[COUNTRIES];
+    private final byte[] bankCodeLengths = new byte[COUNTRIES];
+
+    private CommissionTable(Properties rules) {
+        sameBank = fee(rules, FEE_SAME_BANK);
+        sameCountry = fee(rules, FEE_SAME_COUNTRY);
+        eea = fee(rules, FEE_EEA);
+        other = fee(rules, FEE_OTHER);
+
+        for (String country : rules.getProperty(EEA_COUNTRIES, "").split(",")) {
+            if (!country.trim().isEmpty()) {
+                eeaMembers[countryOf(country.trim(), EEA_COUNTRIES)] = true;
+            }
+        }
+
+        for (int i = 0; i < COUNTRIES; i++) {
+            bankCodeOffsets[i] = BANK_CODE_OFFSET;
+            bankCodeLengths[i] = DEFAULT_BANK_CODE_LENGTH;
+        }
+        for (String key : rules.stringPropertyNames()) {
+            if (key.startsWith(BANK_CODE_PREFIX)) {
+                int country = countryOf(key.substring(BANK_CODE_PREFIX.length()), key);
+                String[] position = rules.getProperty(key).split(",");
+                try {
+                    bankCodeOffsets[country] = Byte.parseByte(position[0].trim());
+                    bankCodeLengths[country] = Byte.parseByte(position[1].trim());
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+                    throw new IllegalArgumentException("Invalid bank code position in rule '" + key + "'", ex);
+                }
+            }
+        }
+    }
+
+    static CommissionTable of(Properties rules) {
+        return new CommissionTable(rules);
+    }
+
+    // fraction of amount charged for transfer between accounts; invalid account numbers pay the highest rate
+    BigDecimal rate(String source, String destination) {
+        int sourceCountry = countryIndex(source);
+        int destinationCountry = countryIndex(destination);
+        if (sourceCountry < 0 || destinationCountry < 0) {
+            return other;
+        }
+
+        if (sourceCountry == destinationCountry) {
+            int offset = bankCodeOffsets[sourceCountry];
+            int length = bankCodeLengths[sourceCountry];
+            boolean sameBankCode = source.length() >= offset + length && destination.length() >= offset + length
+                    && source.regionMatches(offset, destination, offset, length);
+            return sameBankCode ? sameBank : sameCountry;
+        }
+        return eeaMembers[sourceCountry] && eeaMembers[destinationCountry] ? eea : other;
+    }
+
+    private static BigDecimal fee(Properties rules, String key) {
+        String value = rules.getProperty(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing commission rule '" + key + "'");
+        }
+        try {
+            BigDecimal percent = new BigDecimal(value.trim());
+            if (percent.signum() < 0) {
+                throw new IllegalArgumentException("Negative commission in rule '" + key + "'");
+            }
+            return percent.movePointLeft(2);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid commission in rule '" + key + "'", ex);
+        }
+    }
+
+    private static int countryOf(String code, String key) {
+        int country = code.length() == 2 ? countryIndex(code) : -1;
+        if (country < 0) {
+            throw new IllegalArgumentException("Invalid country code in rule '" + key + "'");
+        }
+        return country;
+    }
+
+    // two leading letters of IBAN as number 0..675, -1 if it doesn't start with country code
+    private static int countryIndex(String iban) {
+        if (iban == null || iban.length() < 2) {
+            return -1;
+        }
+        int first = iban.charAt(0) - 'A';
+        int second = iban.charAt(1) - 'A';
+        if (first < 0 || first >= LETTERS || second < 0 || second >= LETTERS) {
+            return -1;
+        }
+        return first * LETTERS + second;
+    }
+
+    private static Properties defaultRules() {
+        Properties rules = new Properties();
+        rules.setProperty(FEE_SAME_BANK, "0");
+        rules.setProperty(FEE_SAME_COUNTRY, "1");
+        rules.setProperty(FEE_EEA, "2.5");
+        rules.setProperty(FEE_OTHER, "4");
+        rules.setProperty(EEA_COUNTRIES, "AT,BE,BG,CY,CZ,DE,DK,EE,ES,FI,FR,GR,HR,HU,IE,IT,LT,LU,LV,MT,NL,PL,PT,RO,"
+                + "SE,SI,SK,IS,LI,NO");
+        // bank identifier position by IBAN registry, where it's not the first 4 characters after check digits
+        rules.setProperty(BANK_CODE_PREFIX + "AT", "4,5");
+        rules.setProperty(BANK_CODE_PREFIX + "BE", "4,3");
+        rules.setProperty(BANK_CODE_PREFIX + "CH", "4,5");
+        rules.setProperty(BANK_CODE_PREFIX + "DE", "4,8");
+        rules.setProperty(BANK_CODE_PREFIX + "FI", "4,3");
+        rules.setProperty(BANK_CODE_PREFIX + "FR", "4,5");
+        rules.setProperty(BANK_CODE_PREFIX + "IT", "5,5");
+        rules.setProperty(BANK_CODE_PREFIX + "LU", "4,3");
+        rules.setProperty(BANK_CODE_PREFIX + "PL", "4,3");
+        rules.setProperty(BANK_CODE_PREFIX + "SE", "4,3");
+        rules.setProperty(BANK_CODE_PREFIX + "BA", "4,3");
+        rules.setProperty(BANK_CODE_PREFIX + "RU", "4,9");
+        return rules;
+    }
+}
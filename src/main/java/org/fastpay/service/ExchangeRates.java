@@ -0,0 +1,87 @@
+package org.fastpay.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.fastpay.app.Configuration;
+import org.fastpay.entity.Conversion;
+import org.fastpay.entity.Money;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Currency conversion with rates cached in memory
+// rate table is immutable and replaced as a whole on refresh, so conversions never lock
+// and one transfer never mixes rates of two refreshes
+@Slf4j
+@Singleton
+public class ExchangeRates {
+
+    private static final long DEFAULT_REFRESH_INTERVAL = 60L;
+
+    private final RateProvider provider;
+    private final ScheduledExecutorService refresher;
+    private volatile RateTable table = RateTable.EMPTY;
+
+    @Inject
+    public ExchangeRates() {
+        this(rateProvider(), Configuration.getLong(Configuration.FX_REFRESH_INTERVAL, DEFAULT_REFRESH_INTERVAL));
+    }
+
+    // rates are loaded right away, and then every refreshInterval seconds; 0 - loaded only once
+    public ExchangeRates(RateProvider provider, long refreshInterval) {
+        this.provider = provider;
+        refresh();
+        if (refreshInterval > 0) {
+            refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "fx-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            refresher.scheduleWithFixedDelay(this::refresh, refreshInterval, refreshInterval, TimeUnit.SECONDS);
+        } else {
+            refresher = null;
+        }
+    }
+
+    // without configured rates only transfers in single currency are possible
+    private static RateProvider rateProvider() {
+        String file = Configuration.getString(Configuration.FX_RATES_FILE, null);
+        return file != null ? new FileRateProvider(Paths.get(file)) : Collections::emptyMap;
+    }
+
+    // on failure previous rates stay in use
+    public boolean refresh() {
+        try {
+            table = RateTable.of(provider.fetchRates());
+            return true;
+        } catch (IOException | RuntimeException ex) {
+            log.error("Exchange rates not refreshed, using previous ones", ex);
+            return false;
+        }
+    }
+
+    // amount in target currency, rounded half-even to its minor unit
+    public Conversion convert(Money amount, String currency, String targetCurrency) {
+        BigDecimal rate = table.rate(currency, targetCurrency);
+        if (rate == null) {
+            throw new IllegalArgumentException("No exchange rate from " + currency + " to " + targetCurrency);
+        }
+
+        BigDecimal converted = amount.toBigDecimal().multiply(rate)
+                .setScale(Money.exponentOf(targetCurrency), RoundingMode.HALF_EVEN);
+        return new Conversion(Money.of(converted), rate);
+    }
+
+    public void close() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+}
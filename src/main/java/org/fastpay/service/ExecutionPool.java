@@ -0,0 +1,57 @@
+package org.fastpay.service;
+
+import org.fastpay.app.Configuration;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Threads settling transfers executed asynchronously, so request threads never wait for ledgers or banks.
+// Queue is bounded: when executions come faster than banks settle them, new ones are refused instead of
+// piling up in memory
+@Singleton
+public class ExecutionPool {
+
+    private static final int DEFAULT_QUEUE_SIZE = 10000;
+
+    private final ThreadPoolExecutor executor;
+
+    @Inject
+    public ExecutionPool() {
+        this((int) Configuration.getLong(Configuration.EXECUTION_THREADS, Runtime.getRuntime().availableProcessors()),
+                (int) Configuration.getLong(Configuration.EXECUTION_QUEUE_SIZE, DEFAULT_QUEUE_SIZE));
+    }
+
+    // threads are started on first executions
+    public ExecutionPool(int threads, int queueSize) {
+        if (threads < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("Execution threads and queue size must be positive");
+        }
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), task -> {
+                    Thread thread = new Thread(task, "transfer-execution-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    // false if queue is full or pool is closed
+    public boolean submit(Runnable execution) {
+        try {
+            executor.execute(execution);
+            return true;
+        } catch (RejectedExecutionException ex) {
+            return false;
+        }
+    }
+
+    // executions already queued are finished
+    public void close() {
+        executor.shutdown();
+    }
+}
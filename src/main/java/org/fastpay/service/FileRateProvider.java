@@ -0,0 +1,42 @@
+package org.fastpay.service;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+// Rates read from properties file, one line per currency, ex:
+//   EUR=1
+//   USD=1.0842
+// stand-in for real rate feed; file is read again on every refresh, so rates can be changed without restart
+public class FileRateProvider implements RateProvider {
+
+    private final Path file;
+
+    public FileRateProvider(Path file) {
+        this.file = file;
+    }
+
+    @Override
+    public Map<String, BigDecimal> fetchRates() throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+
+        Map<String, BigDecimal> rates = new HashMap<>();
+        for (String currency : properties.stringPropertyNames()) {
+            try {
+                rates.put(currency.trim().toUpperCase(), new BigDecimal(properties.getProperty(currency).trim()));
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid exchange rate of '" + currency + "' in " + file, ex);
+            }
+        }
+        return rates;
+    }
+}
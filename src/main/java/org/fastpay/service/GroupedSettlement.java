@@ -0,0 +1,81 @@
+package org.fastpay.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.tuple.Pair;
+import org.fastpay.entity.Money;
+import org.fastpay.entity.Transfer;
+import org.fastpay.entity.TransferStatus;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+// Settles many transfers together: net credit of every recipient account (per currency) is deposited at once,
+// and sender's bank finalizes all payments in one batch, crediting every destination once.
+// Every transfer's share of the deposit has transfer id as reference, as deposit of transfer settled on its own,
+// so settling it again - in other batch, or after restart - doesn't credit the recipient twice
+@Slf4j
+final class GroupedSettlement {
+
+    private GroupedSettlement() {}
+
+    // result per transfer id, same as of Settlement.settle
+    static Map<String, TransferStatus> settle(AccountService senderAccountService,
+                                              AccountService recipientAccountService,
+                                              List<Transfer> transfers) {
+        Map<String, TransferStatus> results = new HashMap<>();
+        // net position of every recipient account; debits were taken by authorization already,
+        // so it's sum of account's credits, per currency
+        Map<Pair<String, String>, List<Transfer>> positions = transfers.stream()
+                .collect(Collectors.groupingBy(
+                        transfer -> Pair.of(transfer.getDestination(), transfer.creditedCurrency()),
+                        LinkedHashMap::new, Collectors.toList()));
+
+        Map<String, Transfer> deposited = new LinkedHashMap<>();
+        for (Map.Entry<Pair<String, String>, List<Transfer>> position : positions.entrySet()) {
+            Map<String, Money> amounts = new LinkedHashMap<>();
+            position.getValue().forEach(transfer -> amounts.put(transfer.getId(), transfer.creditedAmount()));
+            Map<String, PaymentStatus> made = recipientAccountService.depositAll(position.getKey().getLeft(), amounts,
+                    position.getKey().getRight());
+            for (Transfer transfer : position.getValue()) {
+                if (made.get(transfer.getId()) == PaymentStatus.COMPLETED) {
+                    deposited.put(transfer.getId(), transfer);
+                } else {
+                    results.put(transfer.getId(), TransferStatus.ERROR);
+                }
+            }
+        }
+        if (deposited.isEmpty()) {
+            return results;
+        }
+
+        Map<String, PaymentStatus> finalized =
+                senderAccountService.finalizePayments(new ArrayList<>(deposited.keySet()));
+        for (Transfer transfer : deposited.values()) {
+            results.put(transfer.getId(), finalized.get(transfer.getId()) == PaymentStatus.COMPLETED
+                    ? TransferStatus.COMPLETED
+                    : revert(senderAccountService, recipientAccountService, transfer));
+        }
+        return results;
+    }
+
+    // Payment deposited to recipient, but not finalized by sender's bank: deposit is taken back and payment
+    // cancelled, as saga compensates failed finalization. Deposit spent meanwhile can't be taken back - transfer
+    // stays PROCESSING, and its settlement is tried again after restart
+    static TransferStatus revert(AccountService senderAccountService, AccountService recipientAccountService,
+                                 Transfer transfer) {
+        PaymentStatus withdrawn = recipientAccountService.withdraw(transfer.getDestination(),
+                transfer.creditedAmount(), transfer.creditedCurrency(), transfer.getId());
+        if (withdrawn != PaymentStatus.COMPLETED) {
+            log.error("Payment of transfer {} not finalized, and its deposit can't be taken back: {}",
+                    transfer.getId(), withdrawn);
+            return TransferStatus.PROCESSING;
+        }
+        // otherwise still authorized/pending
+        return senderAccountService.cancelPayment(transfer.getId()) == PaymentStatus.CANCELLED
+                ? TransferStatus.CANCELLED : TransferStatus.PENDING;
+    }
+}
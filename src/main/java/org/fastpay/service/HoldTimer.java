@@ -0,0 +1,162 @@
+package org.fastpay.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.fastpay.app.Configuration;
+import org.fastpay.common.TimingWheel;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+// Expiry of payment holds: amount authorized on sender's account is released, when transfer isn't executed
+// within hold TTL. All holds share one timing wheel, so pending holds cost one small object each and
+// scheduling/releasing doesn't depend on their number. Wheel thread only collects expired holds; they are handed
+// over in batches to a thread of their own, so cancelling them in the bank never delays the ticks
+@Slf4j
+@Singleton
+public class HoldTimer {
+
+    private static final long TICK_MILLIS = 100L;
+    private static final int WHEEL_BITS = 9; // 512 buckets per level, 4 levels cover ~218 years
+    private static final int WHEEL_LEVELS = 4;
+    private static final int EXPIRY_BATCH_SIZE = 1000;
+
+    private final long ttlMillis;
+    private final TimingWheel wheel;
+    private final Map<String, TimingWheel.Timeout> holds = new ConcurrentHashMap<>();
+    private final Queue<String> expired = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final ExecutorService expiryExecutor;
+    private volatile Consumer<List<String>> onExpiry;
+
+    @Inject
+    public HoldTimer() {
+        this(TimeUnit.SECONDS.toMillis(Configuration.getLong(Configuration.HOLD_TTL, 0L)));
+    }
+
+    // ttl 0 disables expiry
+    public HoldTimer(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.wheel = ttlMillis > 0
+                ? new TimingWheel(Math.min(TICK_MILLIS, ttlMillis), TimeUnit.MILLISECONDS, WHEEL_BITS, WHEEL_LEVELS,
+                        "hold-expiry")
+                : null;
+        this.expiryExecutor = ttlMillis > 0
+                ? new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), task -> {
+                    Thread thread = new Thread(task, "hold-expiry-handler");
+                    thread.setDaemon(true);
+                    return thread;
+                })
+                : null;
+    }
+
+    public boolean isEnabled() {
+        return wheel != null;
+    }
+
+    // expired holds are passed to handler in batches; started once, by transfer service.
+    // Holds which expired before are passed right away
+    public synchronized void start(Consumer<List<String>> onExpiry) {
+        if (this.onExpiry != null) {
+            throw new IllegalStateException("Hold expiry already started");
+        }
+        this.onExpiry = onExpiry;
+        drain();
+    }
+
+    // hold of transfer created at given time expires after TTL - immediately, if it's already over
+    public void schedule(String txId, long createdAtMillis) {
+        if (wheel == null) {
+            return;
+        }
+
+        long delay = createdAtMillis + ttlMillis - System.currentTimeMillis();
+        TimingWheel.Timeout timeout = wheel.schedule(delay, TimeUnit.MILLISECONDS, () -> {
+            holds.remove(txId);
+            expired.add(txId);
+            drain();
+        });
+        TimingWheel.Timeout previous = holds.put(txId, timeout);
+        if (previous != null) {
+            previous.cancel();
+        }
+        if (timeout.isExpired()) {
+            holds.remove(txId, timeout); // fired before it was registered
+        }
+    }
+
+    // transfer executed or cancelled - hold doesn't need to expire
+    public void release(String txId) {
+        if (wheel == null) {
+            return;
+        }
+
+        TimingWheel.Timeout timeout = holds.remove(txId);
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    public int pendingHolds() {
+        return holds.size();
+    }
+
+    public void close() {
+        if (wheel != null) {
+            wheel.close();
+            expiryExecutor.shutdownNow();
+        }
+    }
+
+    // at most one handler task is queued or running; it takes every hold expired until it's done
+    private void drain() {
+        if (onExpiry == null || expired.isEmpty() || !draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            expiryExecutor.execute(this::handleExpired);
+        } catch (RejectedExecutionException ex) {
+            draining.set(false); // closed
+        }
+    }
+
+    private void handleExpired() {
+        try {
+            List<String> batch = new ArrayList<>();
+            String txId;
+            while ((txId = expired.poll()) != null) {
+                batch.add(txId);
+                if (batch.size() == EXPIRY_BATCH_SIZE) {
+                    handle(batch);
+                    batch = new ArrayList<>();
+                }
+            }
+            if (!batch.isEmpty()) {
+                handle(batch);
+            }
+        } finally {
+            draining.set(false);
+        }
+        drain(); // expired after the queue was found empty
+    }
+
+    private void handle(List<String> batch) {
+        try {
+            onExpiry.accept(batch);
+        } catch (RuntimeException ex) {
+            log.error("Expiry of " + batch.size() + " holds failed", ex);
+        }
+    }
+}
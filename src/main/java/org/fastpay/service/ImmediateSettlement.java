@@ -0,0 +1,52 @@
+package org.fastpay.service;
+
+import org.fastpay.entity.Transfer;
+import org.fastpay.entity.TransferStatus;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.fastpay.service.TransferServiceImpl.RECIPIENT;
+import static org.fastpay.service.TransferServiceImpl.SENDER;
+
+// Every transfer settled on its own, in request thread
+@Singleton
+public class ImmediateSettlement implements Settlement {
+
+    private final AccountService senderAccountService;
+    private final AccountService recipientAccountService;
+
+    @Inject
+    public ImmediateSettlement(@Named(SENDER) AccountService senderAccountService,
+                               @Named(RECIPIENT) AccountService recipientAccountService) {
+        this.senderAccountService = senderAccountService;
+        this.recipientAccountService = recipientAccountService;
+    }
+
+    @Override
+    public TransferStatus settle(Transfer transfer) {
+        // deposit money to recipient account, converted amount if currencies differ
+        PaymentStatus status = recipientAccountService.deposit(transfer.getDestination(), transfer.creditedAmount(),
+                transfer.creditedCurrency(), transfer.getId());
+        if (!status.equals(PaymentStatus.COMPLETED)) {
+            return TransferStatus.ERROR;
+        }
+
+        PaymentStatus senderStatus = senderAccountService.finalizePayment(transfer.getId());
+        return senderStatus.equals(PaymentStatus.COMPLETED) ? TransferStatus.COMPLETED
+                : GroupedSettlement.revert(senderAccountService, recipientAccountService, transfer);
+    }
+
+    // transfers executed in one request are settled together, one balance change per recipient account and currency
+    @Override
+    public Map<String, TransferStatus> settleAll(List<Transfer> transfers) {
+        if (transfers.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        return GroupedSettlement.settle(senderAccountService, recipientAccountService, transfers);
+    }
+}
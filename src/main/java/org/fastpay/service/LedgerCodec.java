@@ -0,0 +1,107 @@
+package org.fastpay.service;
+
+import org.fastpay.entity.Money;
+import org.fastpay.persistence.BinaryCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import static org.fastpay.persistence.BinaryCodec.readString;
+import static org.fastpay.persistence.BinaryCodec.readText;
+import static org.fastpay.persistence.BinaryCodec.writeString;
+import static org.fastpay.persistence.BinaryCodec.writeText;
+
+// Binary form of ledger changes in transaction log, shared by all AccountService implementations,
+// so durable ledger can be switched between them without losing state
+public class LedgerCodec {
+
+    public static final String LOG_STREAM_PREFIX = "ledger.";
+    public static final byte RECORD_BALANCE = 1;
+    public static final byte RECORD_TRANSACTION = 2;
+    public static final byte RECORD_CHANGES = 3; // entries of the other types, ended with 0
+    public static final byte RECORD_CREDIT = 4; // credits owed for finalized payment, by SequencedAccountService only
+    public static final byte RECORD_DEPOSIT = 5;
+
+    private LedgerCodec() {}
+
+    public static void writeBalance(DataOutput out, String accountNumber, long units, int exponent) throws IOException {
+        writeText(out, accountNumber);
+        out.writeLong(units);
+        out.writeByte(exponent);
+    }
+
+    public static void writeTransaction(DataOutput out, String txId, String source, PaymentStatus status,
+                                        String destination, Money amount, Money fee, String currency)
+            throws IOException {
+        writeText(out, txId);
+        writeString(out, source);
+        writeString(out, status != null ? status.name() : null);
+        writeString(out, destination);
+        writeString(out, amount != null ? amount.toString() : null);
+        writeString(out, fee != null ? fee.toString() : null);
+        writeString(out, currency);
+    }
+
+    // deposit with given reference to the account: COMPLETED, CANCELLED when withdrawn, null when forgotten
+    public static void writeDeposit(DataOutput out, String accountNumber, String txId, PaymentStatus status)
+            throws IOException {
+        writeText(out, accountNumber);
+        writeText(out, txId);
+        writeString(out, status != null ? status.name() : null);
+    }
+
+    // account of the deposit in place of source
+    public static Payment readDeposit(DataInput in) throws IOException {
+        String accountNumber = readText(in);
+        String txId = readText(in);
+        String status = readString(in);
+        return new Payment(txId, accountNumber, status != null ? PaymentStatus.valueOf(status) : null, null, null);
+    }
+
+    // source is null when transaction was removed
+    public static Payment readTransaction(DataInput in) throws IOException {
+        String txId = readText(in);
+        String source = readString(in);
+        String status = readString(in);
+        String destination = readString(in);
+        String amount = readString(in);
+        String fee = readString(in);
+        String currency = readString(in);
+        return new Payment(txId, source, status != null ? PaymentStatus.valueOf(status) : null, destination,
+                amount != null ? Money.parse(amount) : null, fee != null ? Money.parse(fee) : null, currency);
+    }
+
+    // all changes of one ledger operation, journaled as single record, so recovery never replays only part of them
+    public static final class Changes {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private boolean empty = true;
+
+        // entry is encoded at once, so it holds state from the time it was added
+        public Changes add(byte type, BinaryCodec.Writer entry) {
+            try {
+                out.writeByte(type);
+                entry.write(out);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            empty = false;
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return empty;
+        }
+
+        public byte[] toPayload() {
+            byte[] entries = bytes.toByteArray();
+            byte[] payload = new byte[entries.length + 1];
+            System.arraycopy(entries, 0, payload, 0, entries.length);
+            return payload;
+        }
+    }
+}
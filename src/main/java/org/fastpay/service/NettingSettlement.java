@@ -0,0 +1,125 @@
+package org.fastpay.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.fastpay.app.Configuration;
+import org.fastpay.entity.Transfer;
+import org.fastpay.entity.TransferStatus;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+import static org.fastpay.service.TransferServiceImpl.RECIPIENT;
+import static org.fastpay.service.TransferServiceImpl.SENDER;
+
+// Transfers executed within a window are settled together (see GroupedSettlement).
+// With heavy traffic between the same accounts, ledgers see one balance change per account per window instead
+// of one per transfer. Execute request waits until its window is settled, so its result is the same as without
+// netting, only later by up to one window
+@Slf4j
+@Singleton
+public class NettingSettlement implements Settlement {
+
+    private static final long DEFAULT_WINDOW_MILLIS = 20L;
+
+    private final AccountService senderAccountService;
+    private final AccountService recipientAccountService;
+    private final long windowNanos;
+    private final Queue<Execution> executions = new ConcurrentLinkedQueue<>();
+    private final Thread settler;
+    private volatile boolean running = true;
+
+    @Inject
+    public NettingSettlement(@Named(SENDER) AccountService senderAccountService,
+                             @Named(RECIPIENT) AccountService recipientAccountService) {
+        this(senderAccountService, recipientAccountService,
+                Configuration.getLong(Configuration.SETTLEMENT_WINDOW, DEFAULT_WINDOW_MILLIS));
+    }
+
+    public NettingSettlement(AccountService senderAccountService, AccountService recipientAccountService,
+                             long windowMillis) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("Settlement window must be positive");
+        }
+        this.senderAccountService = senderAccountService;
+        this.recipientAccountService = recipientAccountService;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.settler = new Thread(this::run, "settlement-netting");
+        this.settler.setDaemon(true);
+        this.settler.start();
+    }
+
+    @Override
+    public TransferStatus settle(Transfer transfer) {
+        Execution execution = new Execution(transfer);
+        executions.add(execution);
+        if (!running) {
+            settleWindow(); // closed meanwhile - nobody else will pick it up
+        }
+        return execution.join();
+    }
+
+    public void close() {
+        running = false;
+        LockSupport.unpark(settler);
+    }
+
+    private void run() {
+        while (running) {
+            LockSupport.parkNanos(this, windowNanos);
+            settleWindow();
+        }
+        settleWindow(); // executions queued before close
+    }
+
+    private synchronized void settleWindow() {
+        List<Execution> window = new ArrayList<>();
+        Execution execution;
+        while ((execution = executions.poll()) != null) {
+            window.add(execution);
+        }
+        if (window.isEmpty()) {
+            return;
+        }
+
+        try {
+            settle(window);
+        } catch (RuntimeException ex) {
+            log.error("Settlement of window failed", ex);
+        } finally {
+            // no effect on executions completed already
+            window.forEach(unsettled -> unsettled.complete(TransferStatus.ERROR));
+        }
+    }
+
+    private void settle(List<Execution> window) {
+        Map<String, TransferStatus> results = GroupedSettlement.settle(senderAccountService, recipientAccountService,
+                window.stream().map(item -> item.transfer).collect(Collectors.toList()));
+        for (Execution item : window) {
+            item.complete(results.getOrDefault(item.transfer.getId(), TransferStatus.ERROR));
+        }
+    }
+
+    // many transfers executed at once are one window on their own, settled in calling thread
+    @Override
+    public Map<String, TransferStatus> settleAll(List<Transfer> transfers) {
+        return GroupedSettlement.settle(senderAccountService, recipientAccountService, transfers);
+    }
+
+    private static final class Execution extends CompletableFuture<TransferStatus> {
+        private final Transfer transfer;
+
+        private Execution(Transfer transfer) {
+            this.transfer = transfer;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.fastpay.service;
+
+import lombok.Data;
+import org.fastpay.entity.Money;
+
+// State of payment in the ledger; destination, amount, fee and currency are held only while payment is authorized
+@Data
+public class Payment {
+    private final String txId;
+    private final String source;
+    private final PaymentStatus status;
+    private final String destination;
+    private final Money amount;
+    private final Money fee;
+    private final String currency;
+
+    public Payment(String txId, String source, PaymentStatus status, String destination, Money amount) {
+        this(txId, source, status, destination, amount, null, null);
+    }
+
+    public Payment(String txId, String source, PaymentStatus status, String destination, Money amount, Money fee,
+                   String currency) {
+        this.txId = txId;
+        this.source = source;
+        this.status = status;
+        this.destination = destination;
+        this.amount = amount;
+        this.fee = fee;
+        this.currency = currency;
+    }
+
+    // fee is booked to fee account of the ledger on finalization, never to destination
+    public boolean hasFee() {
+        return fee != null && fee.signum() > 0;
+    }
+}
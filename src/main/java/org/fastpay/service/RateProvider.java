@@ -0,0 +1,12 @@
+package org.fastpay.service;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Map;
+
+// Source of exchange rates, ex. market data feed of the bank
+// returns price of one unit of common base currency in every supported currency, base itself included
+@FunctionalInterface
+public interface RateProvider {
+    Map<String, BigDecimal> fetchRates() throws IOException;
+}
@@ -0,0 +1,85 @@
+package org.fastpay.service;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Map;
+
+// Immutable snapshot of exchange rates between every pair of currencies, computed once when rates are loaded.
+// ISO code maps to dense currency index through an array indexed by its three letters, and rate of the pair
+// is at from * size + to, so lookup doesn't hash or allocate
+final class RateTable {
+
+    private static final int LETTERS = 26;
+    private static final int CODES = LETTERS * LETTERS * LETTERS;
+    private static final MathContext PRECISION = MathContext.DECIMAL64;
+
+    static final RateTable EMPTY = new RateTable(new short[CODES], new BigDecimal[0], 0);
+
+    private final short[] indexes; // currency index + 1, per code; 0 - no rate
+    private final BigDecimal[] rates;
+    private final int size;
+
+    private RateTable(short[] indexes, BigDecimal[] rates, int size) {
+        this.indexes = indexes;
+        this.rates = rates;
+        this.size = size;
+    }
+
+    // quotes - price of one unit of common base currency in every currency, ex. EUR=1, USD=1.0842, PLN=4.3017
+    static RateTable of(Map<String, BigDecimal> quotes) {
+        short[] indexes = new short[CODES];
+        String[] currencies = new String[quotes.size()];
+        BigDecimal[] prices = new BigDecimal[quotes.size()];
+        int size = 0;
+        for (Map.Entry<String, BigDecimal> quote : quotes.entrySet()) {
+            int code = code(quote.getKey());
+            if (code < 0 || quote.getValue() == null || quote.getValue().signum() <= 0) {
+                throw new IllegalArgumentException("Invalid exchange rate of '" + quote.getKey() + "'");
+            }
+            currencies[size] = quote.getKey();
+            prices[size] = quote.getValue();
+            indexes[code] = (short) ++size;
+        }
+
+        BigDecimal[] rates = new BigDecimal[size * size];
+        for (int from = 0; from < size; from++) {
+            for (int to = 0; to < size; to++) {
+                rates[from * size + to] = from == to ? BigDecimal.ONE
+                        : prices[to].divide(prices[from], PRECISION).stripTrailingZeros();
+            }
+        }
+        return new RateTable(indexes, rates, size);
+    }
+
+    // null if rate of any currency is not known
+    BigDecimal rate(String from, String to) {
+        int fromIndex = index(from);
+        int toIndex = index(to);
+        return fromIndex >= 0 && toIndex >= 0 ? rates[fromIndex * size + toIndex] : null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int index(String currency) {
+        int code = code(currency);
+        return code >= 0 ? indexes[code] - 1 : -1;
+    }
+
+    // position of three-letter upper case code in the alphabet space, -1 for anything else
+    private static int code(String currency) {
+        if (currency == null || currency.length() != 3) {
+            return -1;
+        }
+        int code = 0;
+        for (int i = 0; i < 3; i++) {
+            int letter = currency.charAt(i) - 'A';
+            if (letter < 0 || letter >= LETTERS) {
+                return -1;
+            }
+            code = code * LETTERS + letter;
+        }
+        return code;
+    }
+}
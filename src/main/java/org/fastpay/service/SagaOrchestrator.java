@@ -0,0 +1,319 @@
+package org.fastpay.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.fastpay.app.Configuration;
+import org.fastpay.entity.Transfer;
+import org.fastpay.entity.TransferStatus;
+import org.fastpay.persistence.BinaryCodec;
+import org.fastpay.persistence.Journaled;
+import org.fastpay.persistence.LogRecord;
+import org.fastpay.persistence.TransactionLog;
+import org.fastpay.repository.TransferRepository;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fastpay.service.TransferServiceImpl.RECIPIENT;
+import static org.fastpay.service.TransferServiceImpl.SENDER;
+
+// Settlement as a saga: deposit to recipient and finalization in sender's bank are separate steps, each one
+// journaled before it runs. Failed step is retried in background with exponential backoff; when it keeps failing,
+// steps already done are compensated - deposit taken back, payment cancelled - and transfer ends CANCELLED.
+// Failed deposit is taken back as well, when recipient's bank knows it: it may have been applied before the error.
+// Only unfinished sagas are kept and journaled, so after restart exactly these are resumed, without looking at
+// other transfers. Step interrupted by a crash runs again: deposit and its withdrawal have transfer id as reference,
+// which recipient's bank applies once, and finalization or cancellation repeated after it was done is told apart
+// from payment sender's bank doesn't know by asking for status of the payment
+@Slf4j
+@Singleton
+public class SagaOrchestrator implements Settlement, Journaled {
+
+    public static final String LOG_STREAM = "saga";
+    private static final byte RECORD_STEP = 1;
+    private static final byte RECORD_END = 2;
+
+    private static final long DEFAULT_RETRY_DELAY_MILLIS = 100L;
+    private static final long DEFAULT_MAX_RETRY_DELAY_MILLIS = 60000L;
+    private static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+    // forward steps, then compensations in reverse order; steps are journaled by ordinal, so new ones go at the end
+    enum Step { DEPOSIT, FINALIZE, REVERSE_DEPOSIT, CANCEL_PAYMENT, REVERSE_FAILED_DEPOSIT }
+
+    private final AccountService senderAccountService;
+    private final AccountService recipientAccountService;
+    private final TransferRepository repository;
+    private final HoldTimer holdTimer;
+    private final TransactionLog transactionLog;
+    private final ScheduledThreadPoolExecutor workers;
+    private final long retryDelayMillis;
+    private final long maxRetryDelayMillis;
+    private final int maxAttempts;
+
+    // unfinished sagas by transfer id; every saga is run by one thread at a time, so they need no locking
+    private final Map<String, Saga> sagas = new ConcurrentHashMap<>();
+
+    @Inject
+    public SagaOrchestrator(@Named(SENDER) AccountService senderAccountService,
+                            @Named(RECIPIENT) AccountService recipientAccountService,
+                            TransferRepository repository, HoldTimer holdTimer, TransactionLog transactionLog) {
+        this(senderAccountService, recipientAccountService, repository, holdTimer, transactionLog,
+                (int) Configuration.getLong(Configuration.SAGA_THREADS, Runtime.getRuntime().availableProcessors()),
+                Configuration.getLong(Configuration.SAGA_RETRY_DELAY, DEFAULT_RETRY_DELAY_MILLIS),
+                Configuration.getLong(Configuration.SAGA_MAX_RETRY_DELAY, DEFAULT_MAX_RETRY_DELAY_MILLIS),
+                (int) Configuration.getLong(Configuration.SAGA_MAX_ATTEMPTS, DEFAULT_MAX_ATTEMPTS));
+    }
+
+    public SagaOrchestrator(AccountService senderAccountService, AccountService recipientAccountService,
+                            TransferRepository repository, HoldTimer holdTimer, TransactionLog transactionLog,
+                            int threads, long retryDelayMillis, long maxRetryDelayMillis, int maxAttempts) {
+        if (threads < 1 || retryDelayMillis < 1 || maxRetryDelayMillis < retryDelayMillis || maxAttempts < 1) {
+            throw new IllegalArgumentException("Invalid saga retry settings");
+        }
+        this.senderAccountService = senderAccountService;
+        this.recipientAccountService = recipientAccountService;
+        this.repository = repository;
+        this.holdTimer = holdTimer;
+        this.transactionLog = transactionLog;
+        this.retryDelayMillis = retryDelayMillis;
+        this.maxRetryDelayMillis = maxRetryDelayMillis;
+        this.maxAttempts = maxAttempts;
+
+        AtomicInteger counter = new AtomicInteger();
+        this.workers = new ScheduledThreadPoolExecutor(threads, task -> {
+            Thread thread = new Thread(task, "saga-worker-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.workers.setRemoveOnCancelPolicy(true);
+
+        transactionLog.register(LOG_STREAM, this);
+    }
+
+    // First attempt of every step runs in calling thread, so without failures result is the same as immediate
+    // settlement: COMPLETED. Otherwise PROCESSING - saga goes on in background and sets final status of transfer
+    @Override
+    public TransferStatus settle(Transfer transfer) {
+        Saga saga = new Saga(transfer.getId(), Step.DEPOSIT);
+        sagas.put(saga.txId, saga);
+        journal(saga);
+        return run(saga, transfer);
+    }
+
+    // continues sagas interrupted by restart; called once, after transaction log is recovered
+    @Override
+    public void resume() {
+        for (Saga saga : sagas.values()) {
+            workers.execute(() -> runInBackground(saga));
+        }
+        if (!sagas.isEmpty()) {
+            log.info("Resumed {} unfinished settlements", sagas.size());
+        }
+    }
+
+    // unfinished saga is resumed, and sets final status of transfer itself
+    @Override
+    public boolean owns(String txId) {
+        return sagas.containsKey(txId);
+    }
+
+    public int activeSagas() {
+        return sagas.size();
+    }
+
+    public void close() {
+        workers.shutdownNow();
+    }
+
+    private void runInBackground(Saga saga) {
+        Transfer transfer = repository.get(saga.txId);
+        if (transfer == null) {
+            log.error("Settlement of transfer {} abandoned at step {}, transfer doesn't exist", saga.txId, saga.step);
+            end(saga);
+            return;
+        }
+
+        TransferStatus status = run(saga, transfer);
+        if (status != TransferStatus.PROCESSING) {
+            repository.updateStatus(saga.txId, TransferStatus.PROCESSING, status);
+            holdTimer.release(saga.txId);
+        }
+    }
+
+    // runs steps until saga ends - COMPLETED or CANCELLED - or a step fails and retry is scheduled - PROCESSING
+    private TransferStatus run(Saga saga, Transfer transfer) {
+        while (true) {
+            if (perform(saga.step, transfer)) {
+                Step next = next(saga.step);
+                if (next == null) {
+                    end(saga);
+                    return saga.step == Step.FINALIZE ? TransferStatus.COMPLETED : TransferStatus.CANCELLED;
+                }
+                advance(saga, next);
+                continue;
+            }
+
+            saga.attempts++;
+            Step compensation = compensation(saga.step);
+            if (compensation != null && saga.attempts >= maxAttempts) {
+                log.warn("Transfer {} failed at step {} after {} attempts, compensating", saga.txId, saga.step,
+                        saga.attempts);
+                advance(saga, compensation);
+                continue;
+            }
+            if (compensation == null && saga.attempts == maxAttempts) {
+                // compensations are retried until they succeed, but somebody should know about it
+                log.error("Compensation {} of transfer {} keeps failing", saga.step, saga.txId);
+            }
+
+            long delay = Math.min(maxRetryDelayMillis, retryDelayMillis << Math.min(saga.attempts - 1, 30));
+            workers.schedule(() -> runInBackground(saga), delay, TimeUnit.MILLISECONDS);
+            return TransferStatus.PROCESSING;
+        }
+    }
+
+    private boolean perform(Step step, Transfer transfer) {
+        try {
+            switch (step) {
+                case DEPOSIT:
+                    return recipientAccountService.deposit(transfer.getDestination(), transfer.creditedAmount(),
+                            transfer.creditedCurrency(), transfer.getId()) == PaymentStatus.COMPLETED;
+                case FINALIZE:
+                    return senderAccountService.finalizePayment(transfer.getId()) == PaymentStatus.COMPLETED
+                            || isPayment(transfer, PaymentStatus.COMPLETED);
+                case REVERSE_DEPOSIT:
+                    return recipientAccountService.withdraw(transfer.getDestination(), transfer.creditedAmount(),
+                            transfer.creditedCurrency(), transfer.getId()) == PaymentStatus.COMPLETED;
+                case REVERSE_FAILED_DEPOSIT:
+                    // deposit unknown to recipient's bank wasn't applied, there is nothing to take back
+                    PaymentStatus withdrawn = recipientAccountService.withdraw(transfer.getDestination(),
+                            transfer.creditedAmount(), transfer.creditedCurrency(), transfer.getId());
+                    return withdrawn == PaymentStatus.COMPLETED || withdrawn == PaymentStatus.ERROR;
+                case CANCEL_PAYMENT:
+                    return senderAccountService.cancelPayment(transfer.getId()) == PaymentStatus.CANCELLED
+                            || isPayment(transfer, PaymentStatus.CANCELLED);
+                default:
+                    throw new IllegalStateException("Unknown saga step " + step);
+            }
+        } catch (RuntimeException ex) {
+            // bank unavailable - same as declined, step is retried
+            log.warn("Step " + step + " of transfer " + transfer.getId() + " failed", ex);
+            return false;
+        }
+    }
+
+    // payment refused by finalization or cancellation may be in the state the step leads to already, done by attempt
+    // interrupted by restart. Payment in other state, or unknown one, is an error - step is retried
+    private boolean isPayment(Transfer transfer, PaymentStatus expected) {
+        PaymentStatus status = senderAccountService.paymentStatus(transfer.getId());
+        if (status == expected) {
+            return true;
+        }
+        log.warn("Payment of transfer {} is {}, expected {}", transfer.getId(), status != null ? status : "unknown",
+                expected);
+        return false;
+    }
+
+    // step after successful one; null when saga is over
+    private static Step next(Step step) {
+        switch (step) {
+            case DEPOSIT:
+                return Step.FINALIZE;
+            case REVERSE_DEPOSIT:
+            case REVERSE_FAILED_DEPOSIT:
+                return Step.CANCEL_PAYMENT;
+            default:
+                return null;
+        }
+    }
+
+    // step undoing what was done before failed one; null for compensations, which are only retried
+    private static Step compensation(Step step) {
+        switch (step) {
+            case DEPOSIT:
+                return Step.REVERSE_FAILED_DEPOSIT;
+            case FINALIZE:
+                return Step.REVERSE_DEPOSIT;
+            default:
+                return null;
+        }
+    }
+
+    private void advance(Saga saga, Step step) {
+        saga.step = step;
+        saga.attempts = 0;
+        journal(saga);
+    }
+
+    private void end(Saga saga) {
+        sagas.remove(saga.txId);
+        transactionLog.await(transactionLog.append(LOG_STREAM, RECORD_END,
+                BinaryCodec.encode(out -> BinaryCodec.writeText(out, saga.txId))));
+    }
+
+    // step is durable before it runs
+    private void journal(Saga saga) {
+        Step step = saga.step;
+        transactionLog.await(transactionLog.append(LOG_STREAM, RECORD_STEP, BinaryCodec.encode(out -> {
+            BinaryCodec.writeText(out, saga.txId);
+            out.writeByte(step.ordinal());
+        })));
+    }
+
+    @Override
+    public void replay(LogRecord record) {
+        switch (record.getType()) {
+            case RECORD_STEP:
+                Saga saga = BinaryCodec.decode(record.getPayload(), SagaOrchestrator::readSaga);
+                sagas.put(saga.txId, saga);
+                break;
+            case RECORD_END:
+                sagas.remove(BinaryCodec.decode(record.getPayload(), BinaryCodec::readText));
+                break;
+            default:
+                throw new IllegalStateException("Unknown saga log record type " + record.getType());
+        }
+    }
+
+    @Override
+    public void writeSnapshot(DataOutput out) throws IOException {
+        for (Saga saga : sagas.values()) {
+            out.writeBoolean(true);
+            BinaryCodec.writeText(out, saga.txId);
+            out.writeByte(saga.step.ordinal());
+        }
+        out.writeBoolean(false);
+    }
+
+    @Override
+    public void readSnapshot(DataInput in) throws IOException {
+        sagas.clear();
+        while (in.readBoolean()) {
+            Saga saga = readSaga(in);
+            sagas.put(saga.txId, saga);
+        }
+    }
+
+    private static Saga readSaga(DataInput in) throws IOException {
+        return new Saga(BinaryCodec.readText(in), Step.values()[in.readByte()]);
+    }
+
+    private static class Saga {
+        final String txId;
+        volatile Step step;
+        int attempts; // of current step, since start or restart
+
+        Saga(String txId, Step step) {
+            this.txId = txId;
+            this.step = step;
+        }
+    }
+}
@@ -0,0 +1,925 @@
+package org.fastpay.service;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.fastpay.entity.Money;
+import org.fastpay.persistence.*;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.fastpay.service.LedgerCodec.*;
+
+// Operations on banking account, applied by single writer thread instead of request threads under locks.
+// Accounts are split into partitions by account number; each partition has pre-allocated ring buffer of command
+// slots and one writer thread, which alone changes balances and payments of its accounts, one command at a time,
+// so there are no locks and no contention on hot account. Request thread publishes command and waits for result.
+// Payment lives in partition of its source account; finalize marks it completed there and hands credit over
+// to partition of destination account, which hands the fee over to partition of fee account. Credits still owed
+// are journaled with every step, and the ones interrupted by crash are applied after recovery.
+// Journal records use the same format as AccountServiceImpl, plus owed credits.
+// Finalized and cancelled payments are kept only to answer repeated calls; every partition forgets its oldest
+// beyond retention. Deposit is applied once per account and reference, and so is its withdrawal; partition of the
+// account keeps references of its deposits within the same retention
+public class SequencedAccountService implements AccountService, Journaled {
+
+    public static final int DEFAULT_RING_SIZE = 1024;
+    private static final int SPINS_BEFORE_PARK = 100;
+    private static final long PARK_NANOS = 100_000L;
+
+    private static final byte AUTHORIZE = 1;
+    private static final byte CANCEL = 2;
+    private static final byte DEPOSIT = 3;
+    private static final byte FINALIZE = 4;
+    private static final byte CREATE = 5;
+    private static final byte AUTHORIZE_BATCH = 6;
+    private static final byte DEPOSIT_BATCH = 7;
+    private static final byte WITHDRAW = 8;
+
+    private final Map<String, Balance> accountStorage = new ConcurrentHashMap<>(); // current balance, per account nr
+    private final Map<String, Payment> payments = new ConcurrentHashMap<>(); // per txId, replaced on every change
+    // COMPLETED, or CANCELLED when withdrawn, per account and reference of deposit
+    private final Map<Pair<String, String>, PaymentStatus> deposits = new ConcurrentHashMap<>();
+    private final Map<String, Credit> owed = new ConcurrentHashMap<>(); // credits not applied yet, per txId
+    private final Partition[] partitions;
+    private final int settledRetention;
+
+    private final String logStream;
+    private final TransactionLog transactionLog;
+    private volatile boolean running = true;
+
+    public SequencedAccountService() {
+        this("default", new NoTransactionLog(), 1, DEFAULT_RING_SIZE);
+    } // default constructor - for unit tests
+
+    public SequencedAccountService(String ledgerName, TransactionLog transactionLog, int partitionCount, int ringSize) {
+        this(ledgerName, transactionLog, partitionCount, ringSize, AccountServiceImpl.DEFAULT_SETTLED_RETENTION);
+    }
+
+    public SequencedAccountService(String ledgerName, TransactionLog transactionLog, int partitionCount, int ringSize,
+                                   int settledRetention) {
+        if (partitionCount < 1) {
+            throw new IllegalArgumentException("Number of ledger partitions must be positive");
+        }
+        if (ringSize < 2 || Integer.bitCount(ringSize) != 1) {
+            throw new IllegalArgumentException("Size of ledger ring buffer must be power of two");
+        }
+        if (settledRetention < 1) {
+            throw new IllegalArgumentException("Retention of settled transactions must be positive");
+        }
+        this.settledRetention = settledRetention;
+        this.logStream = LOG_STREAM_PREFIX + ledgerName;
+        this.transactionLog = transactionLog;
+        Balance.initializeAccounts(accountStorage);
+        transactionLog.register(logStream, this);
+
+        partitions = new Partition[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new Partition(ringSize, "ledger-writer-" + ledgerName + "-" + i);
+        }
+        for (Partition partition : partitions) {
+            partition.writer.start();
+        }
+    }
+
+    @Override
+    public PaymentStatus authorizePayment(String source, String destination, Money amount, Money fee, String currency,
+                                          String txId) {
+        if (source == null) {
+            return PaymentStatus.INVALID_ACCOUNT;
+        }
+        return execute(partitionOf(source), AUTHORIZE, source, destination, amount, fee, currency, txId);
+    }
+
+    // one command per source account carries all its requests; commands of all accounts are published before
+    // waiting for any, so partitions work on them in parallel, and the batch waits for disk once
+    @Override
+    public List<PaymentStatus> authorizePayments(List<AuthorizationRequest> requests) {
+        PaymentStatus[] results = new PaymentStatus[requests.size()];
+        Map<String, List<Integer>> bySource = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            String source = requests.get(i).getSource();
+            if (source == null) {
+                results[i] = PaymentStatus.INVALID_ACCOUNT;
+            } else {
+                bySource.computeIfAbsent(source, account -> new ArrayList<>()).add(i);
+            }
+        }
+
+        List<Completion> completions = new ArrayList<>(bySource.size());
+        for (Map.Entry<String, List<Integer>> group : bySource.entrySet()) {
+            Completion result = new Completion();
+            partitionOf(group.getKey()).publish(AUTHORIZE_BATCH, group.getKey(), null, null, null, null, null,
+                    new AuthorizationBatch(requests, group.getValue(), results), result);
+            completions.add(result);
+        }
+        long lsn = -1L;
+        for (Completion result : completions) {
+            result.join(); // also makes results written by writer thread visible
+            lsn = Math.max(lsn, result.lsn);
+        }
+        if (lsn >= 0) {
+            transactionLog.await(lsn);
+        }
+
+        return Arrays.asList(results);
+    }
+
+    @Override
+    public PaymentStatus cancelPayment(String txId) {
+        Payment payment = payments.get(txId);
+        if (payment == null) {
+            return PaymentStatus.ERROR; // unknown transaction
+        }
+        return execute(partitionOf(payment.getSource()), CANCEL, null, null, null, null, null, txId);
+    }
+
+    @Override
+    public PaymentStatus deposit(String accountNumber, Money amount, String currency, String txId) {
+        if (accountNumber == null || txId == null) {
+            return PaymentStatus.DECLINED;
+        }
+        return execute(partitionOf(accountNumber), DEPOSIT, accountNumber, null, amount, null, currency, txId);
+    }
+
+    // one command carries all deposits to the account, which changes its balance once
+    @Override
+    public Map<String, PaymentStatus> depositAll(String accountNumber, Map<String, Money> amounts, String currency) {
+        DepositBatch batch = new DepositBatch(amounts);
+        if (accountNumber == null) {
+            amounts.keySet().forEach(txId -> batch.results.put(txId, PaymentStatus.DECLINED));
+            return batch.results;
+        }
+        Completion result = new Completion();
+        partitionOf(accountNumber).publish(DEPOSIT_BATCH, accountNumber, null, null, null, currency, null, batch,
+                result);
+        result.join(); // also makes results written by writer thread visible
+        if (result.lsn >= 0) {
+            transactionLog.await(result.lsn);
+        }
+        return batch.results;
+    }
+
+    @Override
+    public PaymentStatus withdraw(String accountNumber, Money amount, String currency, String txId) {
+        if (accountNumber == null || txId == null) {
+            return PaymentStatus.DECLINED;
+        }
+        return execute(partitionOf(accountNumber), WITHDRAW, accountNumber, null, amount, null, currency, txId);
+    }
+
+    @Override
+    public PaymentStatus finalizePayment(String txId) {
+        Payment payment = payments.get(txId);
+        if (payment == null) {
+            return PaymentStatus.ERROR; // must be authorized first
+        }
+        return execute(partitionOf(payment.getSource()), FINALIZE, null, null, null, null, null, txId);
+    }
+
+    // payment is replaced as a whole on every change, so no command is needed to read it
+    @Override
+    public PaymentStatus paymentStatus(String txId) {
+        Payment payment = payments.get(txId);
+        return payment != null ? payment.getStatus() : null;
+    }
+
+    @Override
+    public Money balance(String accountNumber, String currency) {
+        Balance balance = accountNumber != null ? accountStorage.get(accountNumber) : null;
+        return balance != null ? Money.ofMinor(balance.units, balance.exponent) : null;
+    }
+
+    @Override
+    public void createAccount(String originAccount, String currency) {
+        execute(partitionOf(originAccount), CREATE, originAccount, null, null, null, currency, null);
+    }
+
+    // authorized ones and settled ones within retention
+    public int transactionCount() {
+        return payments.size();
+    }
+
+    // stops writer threads; commands published afterwards are never completed
+    public void close() {
+        running = false;
+        for (Partition partition : partitions) {
+            LockSupport.unpark(partition.writer);
+        }
+    }
+
+    private PaymentStatus execute(Partition partition, byte type, String account, String destination, Money amount,
+                                  Money fee, String currency, String txId) {
+        Completion result = new Completion();
+        partition.publish(type, account, destination, amount, fee, currency, txId, null, result);
+        PaymentStatus status = result.join();
+        // wait for disk in request thread, writer thread goes on with next command
+        if (result.lsn >= 0) {
+            transactionLog.await(result.lsn);
+        }
+        return status;
+    }
+
+    private Partition partitionOf(String accountNumber) {
+        int hash = accountNumber.hashCode();
+        return partitions[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % partitions.length];
+    }
+
+    // commands below run on writer thread of partition, which owns the account (source account for payments)
+
+    private void authorize(Slot command) {
+        Balance originBalance = accountStorage.get(command.account);
+        if (originBalance == null) {
+            command.result.complete(PaymentStatus.INVALID_ACCOUNT); // account locked or not exist
+            return;
+        }
+
+        long units = originBalance.unitsOf(command.amount, command.fee);
+        if (units < 0 || originBalance.units < units) {
+            // insufficient funds, or amount not representable in account currency
+            command.result.complete(PaymentStatus.DECLINED);
+            return;
+        }
+        originBalance.units -= units;
+        Payment payment = new Payment(command.txId, command.account, PaymentStatus.AUTHORIZED, command.destination,
+                command.amount, command.fee, command.currency);
+        payments.put(command.txId, payment);
+        command.result.complete(PaymentStatus.AUTHORIZED,
+                journal(changedPayment(changedBalance(new Changes(), command.account, originBalance), payment)));
+    }
+
+    // payments of one source account accepted in order while their sum fits the balance, which changes once
+    private void authorizeBatch(Slot command) {
+        AuthorizationBatch batch = (AuthorizationBatch) command.batch;
+        Balance originBalance = accountStorage.get(command.account);
+        if (originBalance == null) {
+            for (int index : batch.indices) {
+                batch.results[index] = PaymentStatus.INVALID_ACCOUNT; // account locked or not exist
+            }
+            command.result.complete(PaymentStatus.INVALID_ACCOUNT);
+            return;
+        }
+
+        List<Payment> accepted = new ArrayList<>(batch.indices.size());
+        long total = 0L;
+        for (int index : batch.indices) {
+            AuthorizationRequest request = batch.requests.get(index);
+            long units = originBalance.unitsOf(request.getAmount(), request.getFee());
+            if (units < 0 || originBalance.units - total < units) {
+                // insufficient funds for this one on top of the ones before, or amount not representable
+                batch.results[index] = PaymentStatus.DECLINED;
+                continue;
+            }
+            total += units;
+            accepted.add(new Payment(request.getTxId(), command.account, PaymentStatus.AUTHORIZED,
+                    request.getDestination(), request.getAmount(), request.getFee(), request.getCurrency()));
+            batch.results[index] = PaymentStatus.AUTHORIZED;
+        }
+        if (accepted.isEmpty()) {
+            command.result.complete(PaymentStatus.DECLINED);
+            return;
+        }
+
+        originBalance.units -= total;
+        Changes changes = changedBalance(new Changes(), command.account, originBalance);
+        for (Payment payment : accepted) {
+            payments.put(payment.getTxId(), payment);
+            changedPayment(changes, payment);
+        }
+        command.result.complete(PaymentStatus.AUTHORIZED, journal(changes));
+    }
+
+    // Compensating transaction to authorize
+    private void cancel(Slot command, Partition current) {
+        Payment payment = payments.get(command.txId);
+        if (payment == null || payment.getStatus() != PaymentStatus.AUTHORIZED) {
+            command.result.complete(PaymentStatus.ERROR); // wrong state
+            return;
+        }
+
+        Payment cancelled = new Payment(payment.getTxId(), payment.getSource(), PaymentStatus.CANCELLED, null, null);
+        payments.put(command.txId, cancelled);
+        retire(current, command.txId);
+
+        // amount and fee were representable when authorized, so they are now
+        Balance balance = accountStorage.get(payment.getSource());
+        balance.units += balance.unitsOf(payment.getAmount(), payment.getFee());
+        command.result.complete(PaymentStatus.CANCELLED,
+                journal(changedBalance(changedPayment(new Changes(), cancelled), payment.getSource(), balance)));
+    }
+
+    private void deposit(Slot command, Partition current) {
+        Pair<String, String> reference = Pair.of(command.account, command.txId);
+        PaymentStatus deposited = deposits.get(reference);
+        if (deposited != null) {
+            // repeated call; deposit withdrawn already isn't made again
+            command.result.complete(deposited == PaymentStatus.COMPLETED ? PaymentStatus.COMPLETED
+                    : PaymentStatus.ERROR);
+            return;
+        }
+
+        Balance balance = accountStorage.get(command.account);
+        long units = balance != null ? balance.unitsOf(command.amount) : -1;
+        if (units < 0 || balance.units > Long.MAX_VALUE - units) {
+            command.result.complete(PaymentStatus.DECLINED); // account locked?
+            return;
+        }
+
+        balance.units += units;
+        deposits.put(reference, PaymentStatus.COMPLETED);
+        command.result.complete(PaymentStatus.COMPLETED,
+                journal(changedDeposit(changedBalance(new Changes(), command.account, balance), reference)));
+        remember(current, reference);
+    }
+
+    // deposits not made yet accepted in order while their sum fits the balance, which changes once
+    private void depositBatch(Slot command, Partition current) {
+        DepositBatch batch = (DepositBatch) command.batch;
+        Balance balance = accountStorage.get(command.account);
+        Changes changes = new Changes();
+        List<Pair<String, String>> made = new ArrayList<>();
+        long total = 0L;
+        for (Map.Entry<String, Money> amount : batch.amounts.entrySet()) {
+            Pair<String, String> reference = Pair.of(command.account, amount.getKey());
+            PaymentStatus deposited = deposits.get(reference);
+            if (deposited != null) {
+                // repeated call; deposit withdrawn already isn't made again
+                batch.results.put(amount.getKey(), deposited == PaymentStatus.COMPLETED ? PaymentStatus.COMPLETED
+                        : PaymentStatus.ERROR);
+                continue;
+            }
+            long units = balance != null ? balance.unitsOf(amount.getValue()) : -1;
+            if (units < 0 || total > Long.MAX_VALUE - units || balance.units > Long.MAX_VALUE - total - units) {
+                batch.results.put(amount.getKey(), PaymentStatus.DECLINED); // account locked?
+                continue;
+            }
+            total += units;
+            deposits.put(reference, PaymentStatus.COMPLETED);
+            changedDeposit(changes, reference);
+            made.add(reference);
+            batch.results.put(amount.getKey(), PaymentStatus.COMPLETED);
+        }
+        if (made.isEmpty()) {
+            command.result.complete(PaymentStatus.DECLINED);
+            return;
+        }
+
+        balance.units += total;
+        command.result.complete(PaymentStatus.COMPLETED, journal(changedBalance(changes, command.account, balance)));
+        made.forEach(reference -> remember(current, reference));
+    }
+
+    // Compensating transaction to deposit with the same reference, applied once
+    private void withdraw(Slot command) {
+        Pair<String, String> reference = Pair.of(command.account, command.txId);
+        PaymentStatus deposited = deposits.get(reference);
+        if (deposited == null) {
+            command.result.complete(PaymentStatus.ERROR); // unknown deposit
+            return;
+        }
+        if (deposited == PaymentStatus.CANCELLED) {
+            command.result.complete(PaymentStatus.COMPLETED); // repeated call
+            return;
+        }
+
+        Balance balance = accountStorage.get(command.account);
+        long units = balance != null ? balance.unitsOf(command.amount) : -1;
+        if (units < 0 || balance.units < units) {
+            command.result.complete(PaymentStatus.DECLINED); // spent meanwhile, or account locked
+            return;
+        }
+
+        balance.units -= units;
+        deposits.put(reference, PaymentStatus.CANCELLED);
+        command.result.complete(PaymentStatus.COMPLETED,
+                journal(changedDeposit(changedBalance(new Changes(), command.account, balance), reference)));
+    }
+
+    private void settle(Slot command, Partition current) {
+        Payment payment = payments.get(command.txId);
+        if (payment == null || payment.getStatus() != PaymentStatus.AUTHORIZED) {
+            command.result.complete(PaymentStatus.ERROR); // finalized or cancelled meanwhile
+            return;
+        }
+
+        // destination and fee account belong to other partitions; accounts are never removed, so reading them
+        // here is safe
+        String destinationAccount = payment.getDestination();
+        Balance balance = accountStorage.get(destinationAccount);
+        long units = balance != null ? balance.unitsOf(payment.getAmount()) : -1;
+        String feeAccount = AccountService.feeAccount(payment.getCurrency());
+        Balance feeBalance = accountStorage.get(feeAccount);
+        int feeExponent = Money.exponentOf(payment.getCurrency());
+        long feeUnits = payment.hasFee() ? Balance.unitsAt(payment.getFee(), feeExponent) : 0L;
+        if (units < 0 || feeUnits < 0 || balance.units > Long.MAX_VALUE - units
+                || feeBalance != null && feeBalance.units > Long.MAX_VALUE - feeUnits) {
+            command.result.complete(PaymentStatus.DECLINED); // account locked?
+            return;
+        }
+
+        Payment completed = new Payment(payment.getTxId(), payment.getSource(), PaymentStatus.COMPLETED, null, null);
+        payments.put(command.txId, completed);
+        retire(current, command.txId);
+
+        // fee goes to fee account of the ledger, after destination is credited; both are owed until applied,
+        // journaled together with completion of the payment
+        Credit fee = payment.hasFee()
+                ? new Credit(command.txId, feeAccount, feeUnits, feeExponent, null, command.result)
+                : null;
+        Credit credit = new Credit(command.txId, destinationAccount, units, balance.exponent, fee, command.result);
+        owed.put(command.txId, credit);
+        route(credit, current, changedCredits(changedPayment(new Changes(), completed), command.txId, credit));
+    }
+
+    // credit of this partition is applied at once and journaled together with changes before it; credit
+    // of other partition is handed over once the changes are journaled
+    private void route(Credit credit, Partition current, Changes changes) {
+        Partition target = partitionOf(credit.account);
+        if (target == current) {
+            credit(credit, current, changes);
+        } else {
+            journal(changes);
+            target.handOver(credit);
+        }
+    }
+
+    // second half of settle, on writer thread of credited account; money is already held, can't be declined.
+    // Fee account is opened with the first fee in its currency. Command completes with the last credit, whose
+    // journal record comes after the others
+    private void credit(Credit credit, Partition current, Changes changes) {
+        Balance balance = accountStorage.computeIfAbsent(credit.account, account -> new Balance(0L, credit.exponent));
+        if (balance.units > Long.MAX_VALUE - credit.units) {
+            // checked before settle, but other credits came meanwhile; this one stays owed
+            credit.result.complete(PaymentStatus.ERROR, changes.isEmpty() ? -1L : journal(changes));
+            return;
+        }
+        balance.units += credit.units;
+        changedBalance(changes, credit.account, balance);
+        if (credit.next != null) {
+            owed.put(credit.txId, credit.next);
+        } else {
+            owed.remove(credit.txId);
+        }
+        changedCredits(changes, credit.txId, credit.next);
+        if (credit.next != null) {
+            route(credit.next, current, changes);
+        } else {
+            credit.result.complete(PaymentStatus.COMPLETED, journal(changes));
+        }
+    }
+
+    // credits interrupted by crash are applied again, by their partitions; nobody waits for them
+    @Override
+    public void recovered() {
+        for (Credit credit : owed.values()) {
+            partitionOf(credit.account).handOver(credit);
+        }
+    }
+
+    // payment finalized or cancelled - kept only to answer repeated calls, until partition settles enough newer ones
+    private void retire(Partition partition, String txId) {
+        partition.settled.add(txId);
+        while (partition.settled.size() > settledRetention) {
+            String oldest = partition.settled.poll();
+            Payment payment = payments.get(oldest);
+            if (payment != null && payment.getStatus() != PaymentStatus.AUTHORIZED) {
+                payments.remove(oldest);
+                // not waited for: when it's lost in a crash, payment is only kept longer
+                journalTransaction(new Payment(oldest, null, null, null, null));
+            }
+        }
+    }
+
+    // reference of deposit is kept until partition makes enough newer ones
+    private void remember(Partition partition, Pair<String, String> reference) {
+        partition.deposited.add(reference);
+        while (partition.deposited.size() > settledRetention) {
+            Pair<String, String> oldest = partition.deposited.poll();
+            if (deposits.remove(oldest) != null) {
+                // not waited for, as removal of payment
+                journalDeposit(oldest);
+            }
+        }
+    }
+
+    private void create(Slot command) {
+        Balance balance = new Balance(0L, Money.exponentOf(command.currency));
+        accountStorage.put(command.account, balance);
+        command.result.complete(PaymentStatus.COMPLETED, journalBalance(command.account, balance));
+    }
+
+    // only owner's writer thread journals an account or payment, so its records reach the log in order of changes.
+    // Command changing more than one thing collects the changes and journals them as one record
+    private long journal(Changes changes) {
+        return transactionLog.append(logStream, RECORD_CHANGES, changes.toPayload());
+    }
+
+    private static Changes changedBalance(Changes changes, String accountNumber, Balance balance) {
+        long units = balance.units;
+        return changes.add(RECORD_BALANCE, out -> writeBalance(out, accountNumber, units, balance.exponent));
+    }
+
+    private static Changes changedPayment(Changes changes, Payment payment) {
+        return changes.add(RECORD_TRANSACTION, out -> writePayment(out, payment));
+    }
+
+    private Changes changedDeposit(Changes changes, Pair<String, String> reference) {
+        PaymentStatus status = deposits.get(reference);
+        return changes.add(RECORD_DEPOSIT,
+                out -> writeDeposit(out, reference.getKey(), reference.getValue(), status));
+    }
+
+    private static Changes changedCredits(Changes changes, String txId, Credit credit) {
+        return changes.add(RECORD_CREDIT, out -> writeCredits(out, txId, credit));
+    }
+
+    private long journalBalance(String accountNumber, Balance balance) {
+        long units = balance.units;
+        return transactionLog.append(logStream, RECORD_BALANCE,
+                BinaryCodec.encode(out -> writeBalance(out, accountNumber, units, balance.exponent)));
+    }
+
+    private long journalTransaction(Payment payment) {
+        return transactionLog.append(logStream, RECORD_TRANSACTION,
+                BinaryCodec.encode(out -> writePayment(out, payment)));
+    }
+
+    private long journalDeposit(Pair<String, String> reference) {
+        PaymentStatus status = deposits.get(reference);
+        return transactionLog.append(logStream, RECORD_DEPOSIT,
+                BinaryCodec.encode(out -> writeDeposit(out, reference.getKey(), reference.getValue(), status)));
+    }
+
+    private static void writePayment(DataOutput out, Payment payment) throws IOException {
+        writeTransaction(out, payment.getTxId(), payment.getSource(), payment.getStatus(), payment.getDestination(),
+                payment.getAmount(), payment.getFee(), payment.getCurrency());
+    }
+
+    // credits still owed for the payment, in order; none when the last one was applied
+    private static void writeCredits(DataOutput out, String txId, Credit credit) throws IOException {
+        BinaryCodec.writeText(out, txId);
+        for (Credit next = credit; next != null; next = next.next) {
+            out.writeBoolean(true);
+            BinaryCodec.writeText(out, next.account);
+            out.writeLong(next.units);
+            out.writeByte(next.exponent);
+        }
+        out.writeBoolean(false);
+    }
+
+    @Override
+    public void replay(LogRecord record) {
+        if (record.getType() == RECORD_CHANGES) {
+            BinaryCodec.decode(record.getPayload(), this::restoreChanges);
+        } else {
+            BinaryCodec.decode(record.getPayload(), in -> restore(record.getType(), in));
+        }
+    }
+
+    private Void restoreChanges(DataInput in) throws IOException {
+        for (byte type = in.readByte(); type != 0; type = in.readByte()) {
+            restore(type, in);
+        }
+        return null;
+    }
+
+    private Void restore(byte type, DataInput in) throws IOException {
+        switch (type) {
+            case RECORD_BALANCE:
+                return restoreBalance(in);
+            case RECORD_TRANSACTION:
+                return restoreTransaction(in);
+            case RECORD_DEPOSIT:
+                return restoreDeposit(in);
+            case RECORD_CREDIT:
+                return restoreCredits(in);
+            default:
+                throw new IllegalStateException("Unknown ledger log record type " + type);
+        }
+    }
+
+    @Override
+    public void writeSnapshot(DataOutput out) throws IOException {
+        for (Map.Entry<String, Balance> account : accountStorage.entrySet()) {
+            out.writeBoolean(true);
+            writeBalance(out, account.getKey(), account.getValue().units, account.getValue().exponent);
+        }
+        out.writeBoolean(false);
+
+        for (Payment payment : payments.values()) {
+            out.writeBoolean(true);
+            writePayment(out, payment);
+        }
+        out.writeBoolean(false);
+
+        for (Map.Entry<Pair<String, String>, PaymentStatus> deposit : deposits.entrySet()) {
+            out.writeBoolean(true);
+            writeDeposit(out, deposit.getKey().getKey(), deposit.getKey().getValue(), deposit.getValue());
+        }
+        out.writeBoolean(false);
+
+        for (Map.Entry<String, Credit> credit : owed.entrySet()) {
+            out.writeBoolean(true);
+            writeCredits(out, credit.getKey(), credit.getValue());
+        }
+        out.writeBoolean(false);
+    }
+
+    @Override
+    public void readSnapshot(DataInput in) throws IOException {
+        accountStorage.clear();
+        payments.clear();
+        deposits.clear();
+        owed.clear();
+        for (Partition partition : partitions) {
+            partition.settled.clear();
+            partition.deposited.clear();
+        }
+        while (in.readBoolean()) {
+            restoreBalance(in);
+        }
+        while (in.readBoolean()) {
+            restoreTransaction(in);
+        }
+        while (in.readBoolean()) {
+            restoreDeposit(in);
+        }
+        while (in.readBoolean()) {
+            restoreCredits(in);
+        }
+    }
+
+    private Void restoreBalance(DataInput in) throws IOException {
+        accountStorage.put(BinaryCodec.readText(in), new Balance(in.readLong(), in.readByte()));
+        return null;
+    }
+
+    private Void restoreTransaction(DataInput in) throws IOException {
+        Payment payment = LedgerCodec.readTransaction(in);
+        if (payment.getSource() != null) {
+            payments.put(payment.getTxId(), payment);
+            if (payment.getStatus() != PaymentStatus.AUTHORIZED) {
+                partitionOf(payment.getSource()).settled.add(payment.getTxId());
+            }
+        } else {
+            payments.remove(payment.getTxId());
+        }
+        return null;
+    }
+
+    private Void restoreDeposit(DataInput in) throws IOException {
+        Payment deposit = LedgerCodec.readDeposit(in);
+        Pair<String, String> reference = Pair.of(deposit.getSource(), deposit.getTxId());
+        if (deposit.getStatus() == null) {
+            deposits.remove(reference);
+        } else if (deposits.put(reference, deposit.getStatus()) == null) {
+            partitionOf(deposit.getSource()).deposited.add(reference);
+        }
+        return null;
+    }
+
+    private Void restoreCredits(DataInput in) throws IOException {
+        String txId = BinaryCodec.readText(in);
+        List<Credit> credits = new ArrayList<>();
+        while (in.readBoolean()) {
+            credits.add(new Credit(txId, BinaryCodec.readText(in), in.readLong(), in.readByte(), null, null));
+        }
+        // rebuilt from the last one, which has no next; completion of redone credits isn't waited for
+        Credit credit = null;
+        for (int i = credits.size() - 1; i >= 0; i--) {
+            Credit read = credits.get(i);
+            credit = new Credit(txId, read.account, read.units, read.exponent, credit, new Completion());
+        }
+        if (credit != null) {
+            owed.put(txId, credit);
+        } else {
+            owed.remove(txId);
+        }
+        return null;
+    }
+
+    // Multi-producer, single-consumer ring of command slots, allocated once. Producer claims sequence number,
+    // fills the slot and publishes it by writing its sequence; writer thread takes slots strictly in sequence order
+    private final class Partition implements Runnable {
+
+        private final Slot[] ring;
+        private final int mask;
+        private final AtomicLong claimed = new AtomicLong(-1L);
+        private final Queue<Credit> handoff = new ConcurrentLinkedQueue<>(); // credits from other partitions
+        // finalized or cancelled payments of partition, oldest first; filled by recovery before any command is
+        // published, then only by writer thread
+        private final Queue<String> settled = new ArrayDeque<>();
+        // references of deposits to accounts of partition, oldest first; filled the same way
+        private final Queue<Pair<String, String>> deposited = new ArrayDeque<>();
+        private final Thread writer;
+        private volatile long consumed = -1L;
+        private volatile boolean sleeping;
+
+        private Partition(int ringSize, String name) {
+            ring = new Slot[ringSize];
+            for (int i = 0; i < ringSize; i++) {
+                ring[i] = new Slot();
+            }
+            mask = ringSize - 1;
+            writer = new Thread(this, name);
+            writer.setDaemon(true);
+        }
+
+        private void publish(byte type, String account, String destination, Money amount, Money fee,
+                             String currency, String txId, Object batch, Completion result) {
+            long sequence = claimed.incrementAndGet();
+            // ring is full - wait until writer takes the command, which used this slot one lap before
+            while (consumed < sequence - ring.length) {
+                LockSupport.parkNanos(1_000L);
+            }
+            Slot slot = ring[(int) (sequence & mask)];
+            slot.type = type;
+            slot.account = account;
+            slot.destination = destination;
+            slot.amount = amount;
+            slot.fee = fee;
+            slot.currency = currency;
+            slot.txId = txId;
+            slot.batch = batch;
+            slot.result = result;
+            slot.sequence = sequence; // volatile write makes fields above visible to writer
+            wakeUp();
+        }
+
+        // unbounded, so writers never block on each other
+        private void handOver(Credit credit) {
+            handoff.add(credit);
+            wakeUp();
+        }
+
+        private void wakeUp() {
+            if (sleeping) {
+                LockSupport.unpark(writer);
+            }
+        }
+
+        @Override
+        public void run() {
+            long next = 0L;
+            int idle = 0;
+            while (running) {
+                Credit credit;
+                while ((credit = handoff.poll()) != null) {
+                    apply(credit);
+                }
+
+                Slot slot = ring[(int) (next & mask)];
+                if (slot.sequence == next) {
+                    apply(slot);
+                    slot.clear();
+                    consumed = next; // releases the slot to producers
+                    next++;
+                    idle = 0;
+                } else if (++idle < SPINS_BEFORE_PARK) {
+                    Thread.yield();
+                } else {
+                    // producer checks the flag after publishing, so either it sees it or we see its command
+                    sleeping = true;
+                    if (slot.sequence != next && handoff.isEmpty() && running) {
+                        LockSupport.parkNanos(this, PARK_NANOS);
+                    }
+                    sleeping = false;
+                }
+            }
+        }
+
+        private void apply(Slot command) {
+            try {
+                switch (command.type) {
+                    case AUTHORIZE:
+                        authorize(command);
+                        break;
+                    case CANCEL:
+                        cancel(command, this);
+                        break;
+                    case DEPOSIT:
+                        deposit(command, this);
+                        break;
+                    case FINALIZE:
+                        settle(command, this);
+                        break;
+                    case CREATE:
+                        create(command);
+                        break;
+                    case AUTHORIZE_BATCH:
+                        authorizeBatch(command);
+                        break;
+                    case DEPOSIT_BATCH:
+                        depositBatch(command, this);
+                        break;
+                    case WITHDRAW:
+                        withdraw(command);
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown ledger command " + command.type);
+                }
+            } catch (RuntimeException ex) {
+                command.result.completeExceptionally(ex);
+            }
+        }
+
+        private void apply(Credit credit) {
+            try {
+                credit(credit, this, new Changes());
+            } catch (RuntimeException ex) {
+                credit.result.completeExceptionally(ex);
+            }
+        }
+    }
+
+    // pre-allocated command; fields are written by producer before publishing sequence, read by writer after it
+    private static final class Slot {
+        private volatile long sequence = -1L;
+        private byte type;
+        private String account;
+        private String destination;
+        private Money amount;
+        private Money fee;
+        private String currency;
+        private String txId;
+        private Object batch; // AuthorizationBatch or DepositBatch, by type of command
+        private Completion result;
+
+        private void clear() {
+            account = null;
+            destination = null;
+            amount = null;
+            fee = null;
+            currency = null;
+            txId = null;
+            batch = null;
+            result = null;
+        }
+    }
+
+    // requests of one source account, out of whole batch; writer thread fills their results
+    private static final class AuthorizationBatch {
+        private final List<AuthorizationRequest> requests;
+        private final List<Integer> indices;
+        private final PaymentStatus[] results;
+
+        private AuthorizationBatch(List<AuthorizationRequest> requests, List<Integer> indices,
+                                   PaymentStatus[] results) {
+            this.requests = requests;
+            this.indices = indices;
+            this.results = results;
+        }
+    }
+
+    // deposits to one account; writer thread fills their results
+    private static final class DepositBatch {
+        private final Map<String, Money> amounts;
+        private final Map<String, PaymentStatus> results = new HashMap<>();
+
+        private DepositBatch(Map<String, Money> amounts) {
+            this.amounts = amounts;
+        }
+    }
+
+    // credit of one account, followed by the next one on the way; the last one completes the command
+    private static final class Credit {
+        private final String txId;
+        private final String account;
+        private final long units;
+        private final int exponent; // of account opened by the credit
+        private final Credit next;
+        private final Completion result;
+
+        private Credit(String txId, String account, long units, int exponent, Credit next, Completion result) {
+            this.txId = txId;
+            this.account = account;
+            this.units = units;
+            this.exponent = exponent;
+            this.next = next;
+            this.result = result;
+        }
+    }
+
+    // result of command with position of its last journal record, to wait for
+    private static final class Completion extends CompletableFuture<PaymentStatus> {
+        private volatile long lsn = -1L;
+
+        private void complete(PaymentStatus status, long lsn) {
+            this.lsn = lsn;
+            complete(status);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.fastpay.service;
+
+import com.google.inject.ImplementedBy;
+import org.fastpay.entity.Transfer;
+import org.fastpay.entity.TransferStatus;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Moves money of executed transfer: credits recipient's account and finalizes payment authorized by sender's bank
+// returns COMPLETED, ERROR if deposit was declined, CANCELLED if sender's bank didn't finalize the payment - deposit
+// is then taken back and payment cancelled, or PROCESSING if settlement goes on in background - then it moves
+// transfer to COMPLETED or CANCELLED itself, or it's finished after restart
+@ImplementedBy(ImmediateSettlement.class)
+public interface Settlement {
+    TransferStatus settle(Transfer transfer);
+
+    // settles many transfers at once, result per transfer id
+    default Map<String, TransferStatus> settleAll(List<Transfer> transfers) {
+        Map<String, TransferStatus> results = new HashMap<>();
+        for (Transfer transfer : transfers) {
+            results.put(transfer.getId(), settle(transfer));
+        }
+        return results;
+    }
+
+    // continues settlements interrupted by restart; called once, after transaction log is recovered
+    default void resume() {
+    }
+
+    // whether settlement of PROCESSING transfer goes on after restart without help - see resume
+    default boolean owns(String txId) {
+        return false;
+    }
+}
@@ -0,0 +1,168 @@
+package org.fastpay.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.fastpay.app.Configuration;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+// Execution of future-dated transfers. Schedules are grouped in buckets of one resolution step, kept in order of
+// time in a skip list: adding a schedule costs O(log b) for b distinct buckets, and all transfers due in a bucket
+// are taken at once and executed in batches. One thread watches the first bucket, there are no timers per transfer.
+// Transfer is executed not before it's due, and later by at most one resolution step.
+// Cancelled transfers are not removed - their execution simply fails when they are due
+@Slf4j
+@Singleton
+public class TransferScheduler {
+
+    private static final long DEFAULT_RESOLUTION_MILLIS = 1000L;
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final long resolutionMillis;
+    private final int batchSize;
+    private final ConcurrentSkipListMap<Long, Bucket> buckets = new ConcurrentSkipListMap<>();
+    private final AtomicLong pending = new AtomicLong();
+    private volatile Consumer<List<String>> executor;
+    private volatile Thread ticker;
+    private volatile boolean running = true;
+
+    @Inject
+    public TransferScheduler() {
+        this(Configuration.getLong(Configuration.SCHEDULE_RESOLUTION, DEFAULT_RESOLUTION_MILLIS),
+                (int) Configuration.getLong(Configuration.SCHEDULE_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+    }
+
+    public TransferScheduler(long resolutionMillis, int batchSize) {
+        if (resolutionMillis < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("Schedule resolution and batch size must be positive");
+        }
+        this.resolutionMillis = resolutionMillis;
+        this.batchSize = batchSize;
+    }
+
+    // time of execution in epoch millis
+    public static long dueTime(String executeAt) {
+        try {
+            return OffsetDateTime.parse(executeAt.trim()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException ex) {
+            throw new IllegalArgumentException(
+                    "Invalid value in field 'executeAt', expected ISO-8601 time, ex. 2026-11-01T09:00:00Z", ex);
+        }
+    }
+
+    // due transfers are passed to executor in batches, on scheduler thread; started once, by transfer service.
+    // thread is started with the first schedule
+    public synchronized void start(Consumer<List<String>> executor) {
+        if (this.executor != null) {
+            throw new IllegalStateException("Scheduler already started");
+        }
+        this.executor = executor;
+        if (!buckets.isEmpty()) {
+            startTicker();
+        }
+    }
+
+    // transfer due in the past is executed with the next batch
+    public void schedule(String txId, long dueTimeMillis) {
+        // bucket ends at or after due time
+        Long key = -Math.floorDiv(-dueTimeMillis, resolutionMillis);
+        pending.incrementAndGet();
+        while (true) {
+            Bucket bucket = buckets.computeIfAbsent(key, k -> new Bucket());
+            if (bucket.add(txId)) {
+                if (ticker == null) {
+                    startTicker();
+                }
+                return;
+            }
+            // taken by scheduler thread meanwhile - next one for the same time is new
+            buckets.remove(key, bucket);
+        }
+    }
+
+    public long pendingSchedules() {
+        return pending.get();
+    }
+
+    public void close() {
+        running = false;
+        Thread thread = ticker;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private synchronized void startTicker() {
+        if (ticker == null && executor != null && running) {
+            ticker = new Thread(() -> run(executor), "transfer-scheduler");
+            ticker.setDaemon(true);
+            ticker.start();
+        }
+    }
+
+    private void run(Consumer<List<String>> executor) {
+        while (running) {
+            long now = System.currentTimeMillis();
+            // every bucket, which ended before now, is due
+            ConcurrentNavigableMap<Long, Bucket> due = buckets.headMap(Math.floorDiv(now, resolutionMillis), true);
+            List<String> batch = new ArrayList<>(batchSize);
+            for (Map.Entry<Long, Bucket> entry : due.entrySet()) {
+                for (String txId : entry.getValue().close()) {
+                    batch.add(txId);
+                    if (batch.size() == batchSize) {
+                        execute(executor, batch);
+                        batch = new ArrayList<>(batchSize);
+                    }
+                }
+                buckets.remove(entry.getKey(), entry.getValue());
+            }
+            if (!batch.isEmpty()) {
+                execute(executor, batch);
+            }
+
+            long sleep = (Math.floorDiv(now, resolutionMillis) + 1) * resolutionMillis - System.currentTimeMillis();
+            if (sleep > 0) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(sleep));
+            }
+        }
+    }
+
+    private void execute(Consumer<List<String>> executor, List<String> batch) {
+        pending.addAndGet(-batch.size());
+        try {
+            executor.accept(batch);
+        } catch (RuntimeException ex) {
+            log.error("Execution of " + batch.size() + " scheduled transfers failed", ex);
+        }
+    }
+
+    // transfers due in one resolution step
+    private static class Bucket {
+        private List<String> txIds = new ArrayList<>();
+
+        synchronized boolean add(String txId) {
+            if (txIds == null) {
+                return false; // taken by scheduler thread
+            }
+            txIds.add(txId);
+            return true;
+        }
+
+        synchronized List<String> close() {
+            List<String> closed = txIds;
+            txIds = null;
+            return closed != null ? closed : new ArrayList<>();
+        }
+    }
+}
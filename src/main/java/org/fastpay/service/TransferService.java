@@ -3,21 +3,37 @@ package org.fastpay.service;
 import org.fastpay.entity.FilterParametersDto;
 import org.fastpay.entity.Transfer;
 import org.fastpay.entity.TransferDto;
+import org.fastpay.entity.TransferResult;
+import org.fastpay.entity.TransferStatistics;
 import org.fastpay.entity.TransferStatus;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 public interface TransferService {
     Transfer createTransfer(TransferDto transferData);
 
+    List<TransferResult> createTransfers(List<TransferDto> transfersData);
+
     List<Transfer> getTransfers(FilterParametersDto filterParams);
 
     Transfer getTransferDetails(String txId);
 
+    TransferStatistics getStatistics(String source, String destination);
+
     TransferStatus cancelTransfer(String txId);
 
     TransferStatus executeTransfer(String txId);
 
+    TransferStatus submitExecution(String txId);
+
+    Map<String, TransferStatus> cancelTransfers(Collection<String> txIds);
+
+    Map<String, TransferStatus> executeTransfers(Collection<String> txIds);
+
     void cleanup();
 
+    void start();
+
 }
@@ -1,41 +1,87 @@
 package org.fastpay.service;
 
+import lombok.extern.slf4j.Slf4j;
 import org.fastpay.common.PaymentAuthorizationException;
+import org.fastpay.entity.Conversion;
 import org.fastpay.entity.FilterParametersDto;
+import org.fastpay.entity.Money;
+import org.fastpay.entity.Recurrence;
 import org.fastpay.entity.Transfer;
 import org.fastpay.entity.TransferDto;
+import org.fastpay.entity.TransferResult;
+import org.fastpay.entity.TransferStatistics;
 import org.fastpay.entity.TransferStatus;
 import org.fastpay.repository.TransferRepository;
 
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.inject.Singleton;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+
+import static org.fastpay.common.IbanValidator.requireValid;
+import static org.fastpay.common.QueryParameterValidator.getCurrency;
 
 // Business logic implementation class
+@Slf4j
 @Singleton
 public class TransferServiceImpl implements TransferService {
 
+    // names of account service bindings: sender's and recipient's bank
+    public static final String SENDER = "sender";
+    public static final String RECIPIENT = "recipient";
+
     private final TransferRepository repository;
     private final AccountService senderAccountService;
-    private final AccountService recipientAccountService;
+    private final Settlement settlement;
+    private final HoldTimer holdTimer;
+    private final ExchangeRates exchangeRates;
+    private final CommissionRules commissionRules;
+    private final ExecutionPool executionPool;
+    private final TransferScheduler scheduler;
 
-    @Inject
     public TransferServiceImpl(TransferRepository repository, AccountService senderAccountService,
                                AccountService recipientAccountService) {
+        this(repository, senderAccountService, new ImmediateSettlement(senderAccountService, recipientAccountService),
+                new HoldTimer(0L), new ExchangeRates(Collections::emptyMap, 0L), new CommissionRules(null, 0L),
+                new ExecutionPool(1, 1024), new TransferScheduler(1000L, 1000));
+    }
+
+    @Inject
+    public TransferServiceImpl(TransferRepository repository,
+                               @Named(SENDER) AccountService senderAccountService,
+                               Settlement settlement,
+                               HoldTimer holdTimer, ExchangeRates exchangeRates,
+                               CommissionRules commissionRules, ExecutionPool executionPool,
+                               TransferScheduler scheduler) {
         this.repository = repository;
         this.senderAccountService = senderAccountService;
-        this.recipientAccountService = recipientAccountService;
+        this.settlement = settlement;
+        this.holdTimer = holdTimer;
+        this.exchangeRates = exchangeRates;
+        this.commissionRules = commissionRules;
+        this.executionPool = executionPool;
+        this.scheduler = scheduler;
     }
 
     @Override
     public Transfer createTransfer(TransferDto transferData) {
+        // reject malformed account numbers before anything is stored or sent to banks
+        requireValid(transferData.getSource(), "source");
+        requireValid(transferData.getDestination(), "destination");
+        requireValidSchedule(transferData);
 
-        Transfer newTransfer = repository.add(transferData);
-        // authorize payment from source bank, which locks amount on the account
+        Transfer newTransfer = repository.add(transferData, conversion(transferData), commission(transferData));
+        // authorize payment from source bank, which locks amount and commission on the account
         // operation may fail for different reasons: insufficient funds, account blocked
-
-        PaymentStatus status = senderAccountService.authorizePayment(newTransfer.getSource(), newTransfer.getDestination(), newTransfer.getAmount(),
-                newTransfer.getCurrency(), newTransfer.getId());
+        PaymentStatus status = senderAccountService.authorizePayment(newTransfer.getSource(), newTransfer.getDestination(),
+                newTransfer.getAmount(), newTransfer.getCommission(), newTransfer.getCurrency(), newTransfer.getId());
 
         if (!status.equals(PaymentStatus.AUTHORIZED)) {
             // if operation declined - delete transfer (compensation transaction)
@@ -43,9 +89,207 @@ public class TransferServiceImpl implements TransferService {
             throw new PaymentAuthorizationException("Payment declined by sender's bank");
         }
 
+        schedule(newTransfer);
         return newTransfer;
     }
 
+    // Many transfers at once, e.g. payroll: invalid items are rejected one by one, valid ones are authorized with
+    // single batch call to sender's bank, which takes every source account once. Result per item, in the same order
+    @Override
+    public List<TransferResult> createTransfers(List<TransferDto> transfersData) {
+        TransferResult[] results = new TransferResult[transfersData.size()];
+        List<Transfer> created = new ArrayList<>(transfersData.size());
+        List<Integer> indices = new ArrayList<>(transfersData.size());
+        List<AuthorizationRequest> requests = new ArrayList<>(transfersData.size());
+        for (int i = 0; i < transfersData.size(); i++) {
+            TransferDto transferData = transfersData.get(i);
+            try {
+                if (transferData == null) {
+                    throw new IllegalArgumentException("Missing transfer");
+                }
+                requireValid(transferData.getSource(), "source");
+                requireValid(transferData.getDestination(), "destination");
+                if (transferData.getAmount() == null) {
+                    // would fail whole batch in the ledger
+                    throw new IllegalArgumentException("Missing amount");
+                }
+                requireValidSchedule(transferData);
+                Transfer newTransfer = repository.add(transferData, conversion(transferData), commission(transferData));
+                created.add(newTransfer);
+                indices.add(i);
+                requests.add(new AuthorizationRequest(newTransfer.getId(), newTransfer.getSource(),
+                        newTransfer.getDestination(), newTransfer.getAmount(), newTransfer.getCommission(),
+                        newTransfer.getCurrency()));
+            } catch (IllegalArgumentException ex) {
+                results[i] = new TransferResult(TransferStatus.INVALID, ex.getMessage(), null);
+            }
+        }
+
+        List<PaymentStatus> statuses = requests.isEmpty() ? Collections.emptyList()
+                : senderAccountService.authorizePayments(requests);
+        for (int i = 0; i < created.size(); i++) {
+            Transfer newTransfer = created.get(i);
+            if (statuses.get(i).equals(PaymentStatus.AUTHORIZED)) {
+                schedule(newTransfer);
+                results[indices.get(i)] = new TransferResult(TransferStatus.PENDING, null, newTransfer);
+            } else {
+                repository.delete(newTransfer.getId()); // compensation, as for single transfer
+                results[indices.get(i)] = new TransferResult(TransferStatus.ERROR,
+                        "Payment declined by sender's bank", null);
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    // amount stays blocked only until hold expires, unless transfer is executed or cancelled before;
+    // future-dated transfer is executed by scheduler and its hold expires TTL after it's due
+    private void schedule(Transfer transfer) {
+        long createdAt = transfer.getTimestamp().getTime();
+        if (transfer.getExecuteAt() == null) {
+            holdTimer.schedule(transfer.getId(), createdAt);
+            return;
+        }
+
+        long dueTime = TransferScheduler.dueTime(transfer.getExecuteAt());
+        holdTimer.schedule(transfer.getId(), Math.max(createdAt, dueTime));
+        scheduler.schedule(transfer.getId(), dueTime);
+    }
+
+    private static void requireValidSchedule(TransferDto transferData) {
+        Recurrence recurrence = Recurrence.of(transferData.getRecurrence());
+        if (transferData.getExecuteAt() != null) {
+            TransferScheduler.dueTime(transferData.getExecuteAt());
+        } else if (recurrence != null) {
+            throw new IllegalArgumentException("Recurring transfer needs time of first execution in field 'executeAt'");
+        }
+    }
+
+    // runs on scheduler thread: due transfers are executed together, and recurring ones, once executed,
+    // are followed by next occurrence - created and authorized together as well. Occurrence which failed is
+    // cancelled, so its amount isn't held any more, and its series ends
+    private void executeDue(List<String> txIds) {
+        Map<String, TransferStatus> results = executeTransfers(txIds);
+        List<TransferDto> occurrences = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        for (String txId : txIds) {
+            Transfer transfer = repository.get(txId);
+            if (transfer == null || transfer.getRecurrence() == null) {
+                continue;
+            }
+            if (transfer.getStatus() == TransferStatus.COMPLETED || transfer.getStatus() == TransferStatus.PROCESSING) {
+                occurrences.add(nextOccurrence(transfer));
+            } else if (transfer.getStatus() == TransferStatus.PENDING) {
+                failed.add(txId);
+            }
+        }
+        log.info("Executed {} scheduled transfers, {} completed", txIds.size(),
+                results.values().stream().filter(TransferStatus.COMPLETED::equals).count());
+
+        if (!failed.isEmpty()) {
+            cancelTransfers(failed).forEach((txId, status) ->
+                    log.warn("Recurring transfer {} not executed, series ended; cancellation: {}", txId, status));
+        }
+
+        if (!occurrences.isEmpty()) {
+            for (TransferResult result : createTransfers(occurrences)) {
+                if (result.getStatus() != TransferStatus.PENDING) {
+                    log.warn("Next occurrence of recurring transfer not created: {}", result.getMessage());
+                }
+            }
+        }
+    }
+
+    private static TransferDto nextOccurrence(Transfer transfer) {
+        TransferDto next = new TransferDto();
+        next.setSource(transfer.getSource());
+        next.setDestination(transfer.getDestination());
+        next.setAmount(transfer.getAmount());
+        next.setCurrency(transfer.getCurrency());
+        next.setTargetCurrency(transfer.getTargetCurrency());
+        next.setTitle(transfer.getTitle());
+        next.setRecurrence(transfer.getRecurrence());
+        // counted from the first occurrence, so monthly one doesn't stay on a day it was moved to by short month
+        String firstExecuteAt = transfer.getFirstExecuteAt() != null ? transfer.getFirstExecuteAt()
+                : transfer.getExecuteAt();
+        Instant first = Instant.ofEpochMilli(TransferScheduler.dueTime(firstExecuteAt));
+        Instant previous = Instant.ofEpochMilli(TransferScheduler.dueTime(transfer.getExecuteAt()));
+        next.setExecuteAt(Recurrence.of(transfer.getRecurrence()).next(first, previous).toString());
+        next.setFirstExecuteAt(firstExecuteAt);
+        return next;
+    }
+
+    // sender pays in currency of transfer, recipient is credited in target currency at rate of the moment
+    private Conversion conversion(TransferDto transferData) {
+        String currency = getCurrency(transferData.getCurrency());
+        String targetCurrency = getCurrency(transferData.getTargetCurrency());
+        if (targetCurrency == null || targetCurrency.equals(currency) || transferData.getAmount() == null) {
+            return null;
+        }
+        return exchangeRates.convert(transferData.getAmount(), currency, targetCurrency);
+    }
+
+    private Money commission(TransferDto transferData) {
+        if (transferData.getAmount() == null) {
+            return null;
+        }
+        return commissionRules.commission(transferData.getSource(), transferData.getDestination(),
+                transferData.getAmount(), getCurrency(transferData.getCurrency()));
+    }
+
+    // starts execution of due transfers and expiry of holds - called once, after recovery from transaction log.
+    // Executions interrupted by restart are finished first. Holds and executions of recovered pending transfers
+    // are scheduled again; ones which expired or became due while instance was down are cancelled or executed
+    // right away
+    @Override
+    public void start() {
+        scheduler.start(this::executeDue);
+        holdTimer.start(this::expireHolds);
+
+        FilterParametersDto processing = new FilterParametersDto();
+        processing.setStatus(TransferStatus.PROCESSING);
+        for (Transfer transfer : repository.list(processing)) {
+            if (!settlement.owns(transfer.getId())) {
+                recoverExecution(transfer);
+            }
+        }
+
+        FilterParametersDto pending = new FilterParametersDto();
+        pending.setStatus(TransferStatus.PENDING);
+        for (Transfer transfer : repository.list(pending)) {
+            schedule(transfer);
+        }
+    }
+
+    // Transfer claimed for execution, which nobody settles after restart - its request or pool task is gone.
+    // Sender's bank tells how far it got: payment is finalized only after deposit, so finalized one is COMPLETED,
+    // cancelled one CANCELLED, and still authorized one is settled again - deposit made before restart has transfer
+    // id as reference, so recipient's bank doesn't repeat it
+    private void recoverExecution(Transfer transfer) {
+        String txId = transfer.getId();
+        PaymentStatus payment = senderAccountService.paymentStatus(txId);
+        TransferStatus status;
+        if (payment == PaymentStatus.COMPLETED) {
+            status = finishExecution(txId, TransferStatus.COMPLETED);
+        } else if (payment == PaymentStatus.CANCELLED) {
+            status = finishExecution(txId, TransferStatus.CANCELLED);
+        } else if (payment == PaymentStatus.AUTHORIZED) {
+            status = finishExecution(txId, settle(transfer));
+        } else {
+            // forgotten by sender's bank long ago - nothing to tell what happened
+            log.error("Execution of transfer {} interrupted by restart can't be recovered, payment unknown", txId);
+            return;
+        }
+        log.info("Execution of transfer {} interrupted by restart recovered, status {}", txId, status);
+    }
+
+    // runs on expiry thread of hold timer; transfers claimed by execution meanwhile are left alone by cancelTransfers
+    private void expireHolds(List<String> txIds) {
+        long cancelled = cancelTransfers(txIds).values().stream().filter(TransferStatus.CANCELLED::equals).count();
+        if (cancelled > 0) {
+            log.info("Holds of {} transfers expired, transfers cancelled", cancelled);
+        }
+    }
+
     @Override
     public List<Transfer> getTransfers(FilterParametersDto filterParams) {
         return repository.list(filterParams);
@@ -56,47 +300,158 @@ public class TransferServiceImpl implements TransferService {
         return repository.get(txId);
     }
 
+    // counters are maintained by repository on every change, so this doesn't scan transfers
+    @Override
+    public TransferStatistics getStatistics(String source, String destination) {
+        return repository.getStatistics(source, destination);
+    }
+
     @Override
     public TransferStatus cancelTransfer(String txId) {
-        Transfer transfer = getTransferDetails(txId);
-        if (transfer != null && transfer.getStatus().equals(TransferStatus.PENDING)) {
-
-            // if payment authorized, but not sent to the recipient,
-            // its possible to cancel payment and revert transaction
-            // account balance will be restored to previous state
-            PaymentStatus status = senderAccountService.cancelPayment(txId);
-            if (status.equals(PaymentStatus.CANCELLED)) {
-                transfer.setStatus(TransferStatus.CANCELLED);
-                repository.update(txId, transfer);
-                return TransferStatus.CANCELLED;
-            }
+        // claim transfer with atomic PENDING -> CANCELLED transition,
+        // concurrent requests on the same transfer can't both pass this point
+        if (!repository.updateStatus(txId, TransferStatus.PENDING, TransferStatus.CANCELLED)) {
+            return TransferStatus.ERROR;
         }
-        return TransferStatus.ERROR;
 
+        // if payment authorized, but not sent to the recipient,
+        // its possible to cancel payment and revert transaction
+        // account balance will be restored to previous state
+        PaymentStatus status = senderAccountService.cancelPayment(txId);
+        if (status.equals(PaymentStatus.CANCELLED)) {
+            holdTimer.release(txId);
+            return TransferStatus.CANCELLED;
+        }
+
+        // bank refused cancellation - release the claim
+        repository.updateStatus(txId, TransferStatus.CANCELLED, TransferStatus.PENDING);
+        return TransferStatus.ERROR;
     }
 
     @Override
     public TransferStatus executeTransfer(String txId) {
-        Transfer transfer = getTransferDetails(txId);
-        if (transfer != null && transfer.getStatus().equals(TransferStatus.PENDING)) {
-            // deposit money to recipient account
-            PaymentStatus status = recipientAccountService.deposit(transfer.getDestination(), transfer.getAmount(),
-                    transfer.getCurrency(), transfer.getId());
-
-            if (status.equals(PaymentStatus.COMPLETED)) {
-                PaymentStatus senderStatus = senderAccountService.finalizePayment(transfer.getId());
-                if (senderStatus.equals(PaymentStatus.COMPLETED)) {
-                    transfer.setStatus(TransferStatus.COMPLETED);
-                    repository.update(txId, transfer);
-                    return TransferStatus.COMPLETED;
-                } else {
-                    // still authorized/pending
-                    return TransferStatus.PENDING;
-                }
+        // claim transfer with atomic PENDING -> PROCESSING transition,
+        // so money can be deposited only once
+        if (!repository.updateStatus(txId, TransferStatus.PENDING, TransferStatus.PROCESSING)) {
+            return TransferStatus.ERROR;
+        }
+
+        // deposit money to recipient account and finalize payment in sender's bank
+        return finishExecution(txId, settle(getTransferDetails(txId)));
+    }
+
+    // failure of settlement is its ERROR result, so transfer claimed for execution is always finished
+    private TransferStatus settle(Transfer transfer) {
+        try {
+            return settlement.settle(transfer);
+        } catch (RuntimeException ex) {
+            log.error("Execution of transfer " + transfer.getId() + " failed", ex);
+            return TransferStatus.ERROR;
+        }
+    }
+
+    // applies settlement result to transfer claimed for execution
+    private TransferStatus finishExecution(String txId, TransferStatus status) {
+        switch (status) {
+            case COMPLETED:
+            case CANCELLED:
+                repository.updateStatus(txId, TransferStatus.PROCESSING, status);
+                holdTimer.release(txId);
+                break;
+            case PROCESSING:
+                // settlement goes on in background and sets final status itself
+                break;
+            default:
+                // deposit declined or payment not finalized - transfer can be executed or cancelled again
+                repository.updateStatus(txId, TransferStatus.PROCESSING, TransferStatus.PENDING);
+        }
+        return status;
+    }
 
+    // Execution in background: transfer is claimed with PENDING -> PROCESSING transition and settled by execution
+    // pool, request doesn't wait for it. Returns PROCESSING if accepted, ERROR if transfer isn't pending,
+    // PENDING if pool is overloaded and transfer was left as it was
+    @Override
+    public TransferStatus submitExecution(String txId) {
+        if (!repository.updateStatus(txId, TransferStatus.PENDING, TransferStatus.PROCESSING)) {
+            return TransferStatus.ERROR;
+        }
+
+        if (!executionPool.submit(() -> completeExecution(txId))) {
+            repository.updateStatus(txId, TransferStatus.PROCESSING, TransferStatus.PENDING);
+            return TransferStatus.PENDING;
+        }
+        return TransferStatus.PROCESSING;
+    }
+
+    // runs on execution pool; same as executeTransfer after the claim
+    private void completeExecution(String txId) {
+        TransferStatus status = settle(getTransferDetails(txId));
+        finishExecution(txId, status);
+        if (status == TransferStatus.ERROR || status == TransferStatus.PENDING) {
+            log.warn("Transfer {} not executed, settlement status {}", txId, status);
+        }
+    }
+
+    // Many transfers at once, e.g. all pending of an account: every transfer is claimed as by cancelTransfer,
+    // claimed ones are cancelled with one call to sender's bank, which gives money back to every account once.
+    // Result per id, in order of ids; unknown or not pending ones get ERROR
+    @Override
+    public Map<String, TransferStatus> cancelTransfers(Collection<String> txIds) {
+        Map<String, TransferStatus> results = new LinkedHashMap<>();
+        List<String> claimed = new ArrayList<>();
+        for (String txId : txIds) {
+            results.put(txId, TransferStatus.ERROR);
+            if (repository.updateStatus(txId, TransferStatus.PENDING, TransferStatus.CANCELLED)) {
+                claimed.add(txId);
             }
         }
-        return TransferStatus.ERROR;
+        if (claimed.isEmpty()) {
+            return results;
+        }
+
+        Map<String, PaymentStatus> statuses = senderAccountService.cancelPayments(claimed);
+        for (String txId : claimed) {
+            if (statuses.get(txId) == PaymentStatus.CANCELLED) {
+                holdTimer.release(txId);
+                results.put(txId, TransferStatus.CANCELLED);
+            } else {
+                // bank refused cancellation - release the claim
+                repository.updateStatus(txId, TransferStatus.CANCELLED, TransferStatus.PENDING);
+            }
+        }
+        return results;
+    }
+
+    // Many transfers at once, e.g. end of day: every transfer is claimed as by executeTransfer, claimed ones are
+    // settled together - one deposit per recipient account and one batch finalization in sender's bank.
+    // Result per id, in order of ids; unknown or not pending ones get ERROR
+    @Override
+    public Map<String, TransferStatus> executeTransfers(Collection<String> txIds) {
+        Map<String, TransferStatus> results = new LinkedHashMap<>();
+        List<Transfer> claimed = new ArrayList<>();
+        for (String txId : txIds) {
+            results.put(txId, TransferStatus.ERROR);
+            if (repository.updateStatus(txId, TransferStatus.PENDING, TransferStatus.PROCESSING)) {
+                claimed.add(getTransferDetails(txId));
+            }
+        }
+        if (claimed.isEmpty()) {
+            return results;
+        }
+
+        Map<String, TransferStatus> statuses;
+        try {
+            statuses = settlement.settleAll(claimed);
+        } catch (RuntimeException ex) {
+            log.error("Execution of " + claimed.size() + " transfers failed", ex);
+            statuses = Collections.emptyMap(); // all of them ERROR
+        }
+        for (Transfer transfer : claimed) {
+            TransferStatus status = statuses.getOrDefault(transfer.getId(), TransferStatus.ERROR);
+            results.put(transfer.getId(), finishExecution(transfer.getId(), status));
+        }
+        return results;
     }
 
     @Override
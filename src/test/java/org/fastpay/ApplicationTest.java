@@ -5,8 +5,10 @@ import com.google.gson.reflect.TypeToken;
 import com.google.inject.Guice;
 import org.fastpay.app.TestModule;
 import org.fastpay.common.TestBase;
+import org.fastpay.entity.Money;
 import org.fastpay.entity.ServiceResponse;
 import org.fastpay.entity.Transfer;
+import org.fastpay.entity.TransferStatistics;
 import org.fastpay.entity.TransferStatus;
 import org.fastpay.service.AccountService;
 import org.fastpay.service.PaymentStatus;
@@ -15,12 +17,12 @@ import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import java.lang.reflect.Type;
-import java.math.BigDecimal;
 import java.util.*;
 import java.util.stream.Collectors;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.anyObject;
 import static org.mockito.Matchers.anyString;
@@ -41,10 +43,19 @@ public class ApplicationTest extends TestBase {
     public static void startSpark() {
 
         AccountService account = mock(AccountService.class);
-        when(account.authorizePayment(anyString(), anyString(), anyObject(), anyString(), anyString())).thenReturn(PaymentStatus.AUTHORIZED);
+        when(account.authorizePayment(anyString(), anyString(), anyObject(), anyObject(), anyString(), anyString()))
+                .thenReturn(PaymentStatus.AUTHORIZED);
+        when(account.authorizePayments(anyObject())).thenAnswer(invocation ->
+                Collections.nCopies(((List<?>) invocation.getArguments()[0]).size(), PaymentStatus.AUTHORIZED));
         when(account.cancelPayment(anyString())).thenReturn(PaymentStatus.CANCELLED);
+        when(account.cancelPayments(anyObject())).thenAnswer(invocation -> statusPerId(invocation.getArguments()[0],
+                PaymentStatus.CANCELLED));
+        when(account.finalizePayments(anyObject())).thenAnswer(invocation -> statusPerId(invocation.getArguments()[0],
+                PaymentStatus.COMPLETED));
         when(account.finalizePayment(anyString())).thenReturn(PaymentStatus.COMPLETED);
         when(account.deposit(anyString(), anyObject(), anyString(), anyString())).thenReturn(PaymentStatus.COMPLETED);
+        when(account.depositAll(anyString(), anyObject(), anyString())).thenAnswer(invocation ->
+                statusPerId(((Map<?, ?>) invocation.getArguments()[1]).keySet(), PaymentStatus.COMPLETED));
 
         Application instance = Guice.createInjector(new TestModule(account))
                 .getInstance(Application.class);
@@ -54,6 +65,10 @@ public class ApplicationTest extends TestBase {
         awaitInitialization();
     }
 
+    private static Map<String, PaymentStatus> statusPerId(Object txIds, PaymentStatus status) {
+        return ((Collection<?>) txIds).stream().collect(Collectors.toMap(String.class::cast, txId -> status));
+    }
+
     @AfterClass
     public static void stopSpark() {
         stop();
@@ -86,7 +101,7 @@ public class ApplicationTest extends TestBase {
         assertEquals(TransferStatus.PENDING, newTransfer.getStatus());
         assertEquals("PL61109010140000071219812874", newTransfer.getSource());
         assertEquals("CZ6508000000192000145399", newTransfer.getDestination());
-        assertEquals(new BigDecimal("340.23"), newTransfer.getAmount());
+        assertEquals(Money.parse("340.23"), newTransfer.getAmount());
         assertEquals("PLN", newTransfer.getCurrency());
         assertEquals("przełew własny", newTransfer.getTitle());
     }
@@ -119,6 +134,163 @@ public class ApplicationTest extends TestBase {
         assertEquals("Error occured. Transfer not created.", response.getMessage());
     }
 
+    @Test
+    public void shouldRejectInvalidIbanWithBadRequest() {
+        // given
+        // check digits of source account don't match
+        String createJson = loadFileFromResource("bad_iban.json");
+
+        // when
+        int status = submitRequestForStatus("POST", "/transfer", createJson);
+
+        // then
+        assertEquals(400, status);
+        assertEquals("[]", submitRequest("GET", "/transfer")); // nothing stored
+    }
+
+    @Test
+    public void shouldCreateBatchWithResultPerTransfer() {
+        // given
+        // second transfer has invalid IBAN, fourth can't be parsed, so the fifth one is never read
+        String batchJson = loadFileFromResource("create_batch.json");
+
+        // when
+        String jsonResult = submitRequest("POST", "/transfer/batch", batchJson);
+        List<ServiceResponse> results = new Gson().fromJson(jsonResult,
+                new TypeToken<List<ServiceResponse>>() {}.getType());
+
+        // then
+        assertEquals(4, results.size());
+        assertEquals(TransferStatus.PENDING, results.get(0).getStatus());
+        assertEquals("wynagrodzenie 1", new Gson().fromJson(results.get(0).getData(), Transfer.class).getTitle());
+        assertEquals(TransferStatus.INVALID, results.get(1).getStatus());
+        assertEquals("Invalid IBAN in field 'source'", results.get(1).getMessage());
+        assertEquals(TransferStatus.PENDING, results.get(2).getStatus());
+        assertEquals(TransferStatus.ERROR, results.get(3).getStatus());
+        assertEquals("Malformed transfer, rest of batch not processed", results.get(3).getMessage());
+        assertEquals(2, new Gson().fromJson(submitRequest("GET", "/transfer"), Transfer[].class).length);
+    }
+
+    @Test
+    public void shouldRejectBatchWhichIsNotArray() {
+        // given
+        String createJson = loadFileFromResource("create.json");
+
+        // when
+        int status = submitRequestForStatus("POST", "/transfer/batch", createJson);
+
+        // then
+        assertEquals(400, status);
+    }
+
+    @Test
+    public void shouldExecutePendingTransfersOfSourceInBatch() {
+        // given
+        String first = createTransfer("create.json").getId();
+        String second = createTransfer("create.json").getId();
+        String other = createTransfer("create2.json").getId();
+        Map<String, String> filter = new HashMap<>();
+        filter.put("source", "PL61109010140000071219812874");
+
+        // when
+        String jsonResult = submitRequest("POST", "/transfer/batch/execute", filter);
+        Map<String, TransferStatus> results = new Gson().fromJson(jsonResult,
+                new TypeToken<Map<String, TransferStatus>>() {}.getType());
+
+        // then
+        assertEquals(2, results.size());
+        assertEquals(TransferStatus.COMPLETED, results.get(first));
+        assertEquals(TransferStatus.COMPLETED, results.get(second));
+        assertEquals(TransferStatus.COMPLETED, getTransferStatus(first));
+        assertEquals(TransferStatus.COMPLETED, getTransferStatus(second));
+        assertEquals(TransferStatus.PENDING, getTransferStatus(other));
+    }
+
+    @Test
+    public void shouldRejectBatchExecutionWithoutIdsAndFilter() {
+        // given
+        String id = createTransfer("create.json").getId();
+
+        // when
+        int status = submitRequestForStatus("POST", "/transfer/batch/execute", null);
+
+        // then
+        assertEquals(400, status);
+        assertEquals(TransferStatus.PENDING, getTransferStatus(id));
+    }
+
+    @Test
+    public void shouldAcceptAsyncExecutionAndCompleteInBackground() throws InterruptedException {
+        // given
+        String id = createTransfer("create.json").getId();
+
+        // when
+        String[] result = submitRequestWithHeaders("PUT", "/transfer/" + id,
+                Collections.singletonMap("Prefer", "respond-async"), null, "Location");
+        ServiceResponse response = new Gson().fromJson(result[0], ServiceResponse.class);
+
+        // then
+        assertEquals(TransferStatus.PROCESSING, response.getStatus());
+        assertEquals("/transfer/" + id, result[1]);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (getTransferStatus(id) == TransferStatus.PROCESSING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(TransferStatus.COMPLETED, getTransferStatus(id));
+    }
+
+    @Test
+    public void shouldCancelTransfersByIdsInBatch() {
+        // given
+        String first = createTransfer("create.json").getId();
+        String second = createTransfer("create2.json").getId();
+
+        // when
+        String jsonResult = submitRequest("POST", "/transfer/batch/cancel",
+                "{\"ids\": [\"" + first + "\", \"" + second + "\", \"unknown\"]}");
+        Map<String, TransferStatus> results = new Gson().fromJson(jsonResult,
+                new TypeToken<Map<String, TransferStatus>>() {}.getType());
+
+        // then
+        assertEquals(TransferStatus.CANCELLED, results.get(first));
+        assertEquals(TransferStatus.CANCELLED, results.get(second));
+        assertEquals(TransferStatus.ERROR, results.get("unknown"));
+        assertEquals(TransferStatus.CANCELLED, getTransferStatus(first));
+    }
+
+    @Test
+    public void shouldReplayResponseForRetryWithSameIdempotencyKey() {
+        // given
+        String createJson = loadFileFromResource("create.json");
+        Map<String, String> headers = Collections.singletonMap("Idempotency-Key", UUID.randomUUID().toString());
+
+        // when
+        String[] first = submitRequestWithHeaders("POST", "/transfer", headers, createJson, "Idempotent-Replayed");
+        String[] retry = submitRequestWithHeaders("POST", "/transfer", headers, createJson, "Idempotent-Replayed");
+
+        // then
+        assertEquals(first[0], retry[0]); // same transfer
+        assertNull(first[1]);
+        assertEquals("true", retry[1]);
+        List<Transfer> transfers = Arrays.asList(new Gson().fromJson(submitRequest("GET", "/transfer"), Transfer[].class));
+        assertEquals(1, transfers.size());
+    }
+
+    @Test
+    public void shouldRejectIdempotencyKeyReusedForOtherRequest() {
+        // given
+        Map<String, String> headers = Collections.singletonMap("Idempotency-Key", UUID.randomUUID().toString());
+        submitRequestWithHeaders("POST", "/transfer", headers, loadFileFromResource("create.json"), "");
+
+        // when
+        String[] other = submitRequestWithHeaders("POST", "/transfer", headers, loadFileFromResource("create2.json"), "");
+        ServiceResponse response = new Gson().fromJson(other[0], ServiceResponse.class);
+
+        // then
+        assertEquals(TransferStatus.ERROR, response.getStatus());
+        assertEquals("Idempotency key already used for other request", response.getMessage());
+    }
+
     @Test
     public void shouldGetTransferById() {
         // given
@@ -137,7 +309,7 @@ public class ApplicationTest extends TestBase {
         assertEquals(TransferStatus.PENDING, newTransfer.getStatus());
         assertEquals("PL61109010140000071219812874", newTransfer.getSource());
         assertEquals("CZ6508000000192000145399", newTransfer.getDestination());
-        assertEquals(new BigDecimal("340.23"), newTransfer.getAmount());
+        assertEquals(Money.parse("340.23"), newTransfer.getAmount());
         assertEquals("PLN", newTransfer.getCurrency());
         assertEquals("przełew własny", newTransfer.getTitle());
 
@@ -223,11 +395,11 @@ public class ApplicationTest extends TestBase {
         Type listType = new TypeToken<ArrayList<Transfer>>() {
         }.getType();
         List<Transfer> allTransfers = new Gson().fromJson(jsonResult, listType);
-        List<BigDecimal> retrievedAmounts = allTransfers.stream().map(Transfer::getAmount).collect(Collectors.toList());
+        List<Money> retrievedAmounts = allTransfers.stream().map(Transfer::getAmount).collect(Collectors.toList());
 
         // then
         assertEquals(1, retrievedAmounts.size());
-        assertEquals(new BigDecimal("340.23"), retrievedAmounts.get(0));
+        assertEquals(Money.parse("340.23"), retrievedAmounts.get(0));
     }
 
     @Test
@@ -304,11 +476,11 @@ public class ApplicationTest extends TestBase {
         Type listType = new TypeToken<ArrayList<Transfer>>() {
         }.getType();
         List<Transfer> allTransfers = new Gson().fromJson(jsonResult, listType);
-        List<BigDecimal> retrievedAmounts = allTransfers.stream().map(Transfer::getAmount).collect(Collectors.toList());
+        List<Money> retrievedAmounts = allTransfers.stream().map(Transfer::getAmount).collect(Collectors.toList());
 
         // then
         assertEquals(1, retrievedAmounts.size());
-        assertEquals(new BigDecimal("340.23"), retrievedAmounts.get(0));
+        assertEquals(Money.parse("340.23"), retrievedAmounts.get(0));
     }
 
     @Test
@@ -318,7 +490,7 @@ public class ApplicationTest extends TestBase {
 
         // when
         Map<String, String> parameters = new HashMap<>();
-        parameters.put("source", "US122000103040445550000000");
+        parameters.put("source", "GB82WEST12345698765432");
         String jsonResult = submitRequest("GET", "/transfer", parameters);
 
         // then
@@ -329,7 +501,7 @@ public class ApplicationTest extends TestBase {
 
         // then
         assertEquals(1, retrievedAccountNrs.size());
-        assertEquals("US122000103040445550000000", retrievedAccountNrs.get(0));
+        assertEquals("GB82WEST12345698765432", retrievedAccountNrs.get(0));
     }
 
     @Test
@@ -353,6 +525,70 @@ public class ApplicationTest extends TestBase {
         assertEquals(TransferStatus.PENDING, retrievedStatuses.get(0));
     }
 
+    @Test
+    public void shouldPageThroughTransfersWithCursor() {
+        // given
+        createAllTransfers();
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("sort", "amount");
+        parameters.put("limit", "2");
+
+        // when
+        List<Transfer> firstPage = getTransferList(parameters);
+        String cursor = submitRequestForHeader("GET", "/transfer", parameters, "X-Next-Cursor");
+        parameters.put("cursor", cursor);
+        List<Transfer> secondPage = getTransferList(parameters);
+        String lastCursor = submitRequestForHeader("GET", "/transfer", parameters, "X-Next-Cursor");
+
+        // then
+        assertEquals(2, firstPage.size());
+        assertEquals(1, secondPage.size());
+        assertEquals(Money.parse("99912999.12"), secondPage.get(0).getAmount());
+        assertEquals(null, lastCursor);
+    }
+
+    @Test
+    public void shouldFailOnCursorForDifferentSort() {
+        // given
+        createAllTransfers();
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("limit", "1");
+        String cursor = submitRequestForHeader("GET", "/transfer", parameters, "X-Next-Cursor");
+
+        // when
+        parameters.put("sort", "currency");
+        parameters.put("cursor", cursor);
+        String jsonResult = submitRequest("GET", "/transfer", parameters);
+
+        // then
+        ServiceResponse response = new Gson().fromJson(jsonResult, ServiceResponse.class);
+        assertEquals(TransferStatus.ERROR, response.getStatus());
+    }
+
+    @Test
+    public void shouldGetTransferStatistics() {
+        // given
+        createAllTransfers();
+        Transfer executed = createTransfer("create.json");
+        submitRequest("PUT", "/transfer/" + executed.getId());
+
+        // when
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("source", "PL61109010140000071219812874");
+        String jsonResult = submitRequest("GET", "/transfer/stats", parameters);
+        TransferStatistics statistics = new Gson().fromJson(jsonResult, TransferStatistics.class);
+
+        // then
+        assertEquals(3, statistics.getByStatus().get(TransferStatus.PENDING).getCount());
+        assertEquals(1, statistics.getByStatus().get(TransferStatus.COMPLETED).getCount());
+        assertEquals(Money.parse("340.23"),
+                statistics.getByStatus().get(TransferStatus.COMPLETED).getAmounts().get("PLN"));
+        assertEquals(2, statistics.getByCurrency().get("PLN").getCount());
+        assertEquals(Money.parse("680.46"), statistics.getByCurrency().get("PLN").getAmounts().get("PLN"));
+        assertEquals(2, statistics.getBySource().get("PL61109010140000071219812874").getCount());
+        assertEquals(null, statistics.getByDestination());
+    }
+
     @Test
     public void shouldCancelCreatedTransfer() {
         // given
@@ -444,6 +680,19 @@ public class ApplicationTest extends TestBase {
         return newTransfer;
     }
 
+    private TransferStatus getTransferStatus(String id) {
+        ServiceResponse response = new Gson().fromJson(submitRequest("GET", "/transfer/" + id),
+                ServiceResponse.class);
+        return new Gson().fromJson(response.getData(), Transfer.class).getStatus();
+    }
+
+    private List<Transfer> getTransferList(Map<String, String> parameters) {
+        String jsonResult = submitRequest("GET", "/transfer", parameters);
+        Type listType = new TypeToken<ArrayList<Transfer>>() {
+        }.getType();
+        return new Gson().fromJson(jsonResult, listType);
+    }
+
     private void createAllTransfers() {
         createTransfer("create.json");
         createTransfer("create2.json");
@@ -1,6 +1,7 @@
 package org.fastpay.app;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.name.Names;
 import org.fastpay.Application;
 import org.fastpay.repository.TransferRepository;
 import org.fastpay.repository.TransferRepositoryImpl;
@@ -22,7 +23,8 @@ public class TestModule extends AbstractModule {
     protected void configure() {
         bind(TransferService.class).to(TransferServiceImpl.class);
         bind(TransferRepository.class).to(TransferRepositoryImpl.class);
-        bind(AccountService.class).toInstance(originAccount);
+        bind(AccountService.class).annotatedWith(Names.named(TransferServiceImpl.SENDER)).toInstance(originAccount);
+        bind(AccountService.class).annotatedWith(Names.named(TransferServiceImpl.RECIPIENT)).toInstance(originAccount);
         bind(Application.class).in(Singleton.class);
     }
 
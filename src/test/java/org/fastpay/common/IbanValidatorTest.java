@@ -0,0 +1,38 @@
+package org.fastpay.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IbanValidatorTest {
+
+    @Test
+    public void shouldAcceptValidIbans() {
+        assertTrue(IbanValidator.isValid("PL61109010140000071219812874"));
+        assertTrue(IbanValidator.isValid("GB82WEST12345698765432")); // letters in BBAN
+        assertTrue(IbanValidator.isValid("NO9386011117947")); // shortest
+        assertTrue(IbanValidator.isValid("RU0204452560040702810412345678901"));
+    }
+
+    @Test
+    public void shouldRejectWrongCheckDigits() {
+        assertFalse(IbanValidator.isValid("PL61109010140000071219812875"));
+        assertFalse(IbanValidator.isValid("PL16109010140000071219812874")); // swapped digits
+    }
+
+    @Test
+    public void shouldRejectWrongStructure() {
+        assertFalse(IbanValidator.isValid(null));
+        assertFalse(IbanValidator.isValid("0000000000000000000"));
+        assertFalse(IbanValidator.isValid("US122000103040445550000000")); // country without IBAN
+        assertFalse(IbanValidator.isValid("PL6110901014000007121981287")); // too short for country
+        assertFalse(IbanValidator.isValid("gb82west12345698765432")); // not electronic format
+        assertFalse(IbanValidator.isValid("GB82WEST1234569876543-"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldFailOnInvalidIban() {
+        IbanValidator.requireValid("PL61109010140000071219812875", "source");
+    }
+}
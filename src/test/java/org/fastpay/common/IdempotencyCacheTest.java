@@ -0,0 +1,201 @@
+package org.fastpay.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class IdempotencyCacheTest {
+
+    private static final int THREADS = 8;
+
+    @Test
+    public void shouldReplayFirstResponse() {
+        // given
+        IdempotencyCache cache = new IdempotencyCache(1, TimeUnit.HOURS, 100);
+        AtomicInteger calls = new AtomicInteger();
+
+        // when
+        IdempotencyCache.Result first = cache.execute("key", "a", () -> response(calls.incrementAndGet()));
+        IdempotencyCache.Result retry = cache.execute("key", "a", () -> response(calls.incrementAndGet()));
+
+        // then
+        assertFalse(first.isReplayed());
+        assertTrue(retry.isReplayed());
+        assertEquals("1", retry.getResponse().getBody());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void shouldProcessConcurrentRetriesOnce() throws Exception {
+        // given
+        IdempotencyCache cache = new IdempotencyCache(1, TimeUnit.HOURS, 100);
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+        // when
+        List<Future<IdempotencyCache.Result>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(() -> {
+                start.await();
+                return cache.execute("key", "a", () -> {
+                    sleep(50); // others arrive while it's in flight
+                    return response(calls.incrementAndGet());
+                });
+            }));
+        }
+        start.countDown();
+
+        // then
+        for (Future<IdempotencyCache.Result> result : results) {
+            assertEquals("1", result.get().getResponse().getBody());
+        }
+        assertEquals(1, calls.get());
+        executor.shutdown();
+    }
+
+    @Test
+    public void shouldEvictOldestKeysAboveLimit() {
+        // given
+        IdempotencyCache cache = new IdempotencyCache(1, TimeUnit.HOURS, 3);
+        AtomicInteger calls = new AtomicInteger();
+
+        // when
+        for (int i = 0; i < 10; i++) {
+            cache.execute("key-" + i, "a", () -> response(calls.incrementAndGet()));
+        }
+        IdempotencyCache.Result oldest = cache.execute("key-0", "a", () -> response(calls.incrementAndGet()));
+        IdempotencyCache.Result newest = cache.execute("key-9", "a", () -> response(calls.incrementAndGet()));
+
+        // then
+        assertTrue(cache.size() <= 4);
+        assertFalse(oldest.isReplayed()); // evicted, processed again
+        assertTrue(newest.isReplayed());
+    }
+
+    @Test
+    public void shouldExpireKeysAfterTtl() {
+        // given
+        IdempotencyCache cache = new IdempotencyCache(20, TimeUnit.MILLISECONDS, 100);
+        cache.execute("key", "a", () -> response(1));
+
+        // when
+        sleep(40);
+        IdempotencyCache.Result retry = cache.execute("key", "a", () -> response(2));
+
+        // then
+        assertFalse(retry.isReplayed());
+        assertEquals("2", retry.getResponse().getBody());
+    }
+
+    @Test
+    public void shouldReleaseKeyWhenRequestFails() {
+        // given
+        IdempotencyCache cache = new IdempotencyCache(1, TimeUnit.HOURS, 100);
+        try {
+            cache.execute("key", "a", () -> {
+                throw new RuntimeException("failed");
+            });
+            fail();
+        } catch (RuntimeException expected) {
+        }
+
+        // when
+        IdempotencyCache.Result retry = cache.execute("key", "a", () -> response(2));
+
+        // then
+        assertFalse(retry.isReplayed());
+        assertEquals("2", retry.getResponse().getBody());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectKeyReusedForOtherRequest() {
+        IdempotencyCache cache = new IdempotencyCache(1, TimeUnit.HOURS, 100);
+        cache.execute("key", "a", () -> response(1));
+        cache.execute("key", "b", () -> response(2));
+    }
+
+    @Test
+    public void shouldReleaseKeyOnServerError() {
+        // given
+        IdempotencyCache cache = new IdempotencyCache(1, TimeUnit.HOURS, 100);
+        IdempotencyCache.Result failed = cache.execute("key", "a",
+                () -> new IdempotencyCache.StoredResponse(503, "unavailable"));
+
+        // when
+        IdempotencyCache.Result retry = cache.execute("key", "a", () -> response(2));
+
+        // then
+        assertEquals(503, failed.getResponse().getStatus());
+        assertFalse(retry.isReplayed());
+        assertEquals("2", retry.getResponse().getBody());
+    }
+
+    @Test
+    public void shouldNotEvictRequestInFlight() throws Exception {
+        // given
+        IdempotencyCache cache = new IdempotencyCache(1, TimeUnit.HOURS, 1);
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch inFlight = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Future<IdempotencyCache.Result> first = executor.submit(() -> cache.execute("key", "a", () -> {
+            inFlight.countDown();
+            await(finish);
+            return response(calls.incrementAndGet());
+        }));
+        inFlight.await();
+
+        // when
+        // limit exceeded while the first one is processed
+        cache.execute("other-1", "a", () -> response(100));
+        cache.execute("other-2", "a", () -> response(101));
+        Future<IdempotencyCache.Result> retry = executor.submit(
+                () -> cache.execute("key", "a", () -> response(calls.incrementAndGet())));
+        sleep(50); // retry arrives while the first one is in flight
+        finish.countDown();
+
+        // then
+        assertEquals("1", first.get().getResponse().getBody());
+        assertTrue(retry.get().isReplayed());
+        assertEquals(1, calls.get());
+        executor.shutdown();
+    }
+
+    @Test
+    public void shouldTellApartBodiesWithSameHashCode() {
+        // "Aa" and "BB" have equal String.hashCode
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        assertNotEquals(IdempotencyCache.fingerprint("Aa"), IdempotencyCache.fingerprint("BB"));
+        assertEquals(IdempotencyCache.fingerprint("Aa"), IdempotencyCache.fingerprint("Aa"));
+    }
+
+    private static IdempotencyCache.StoredResponse response(int number) {
+        return new IdempotencyCache.StoredResponse(201, Integer.toString(number));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,10 +1,9 @@
 package org.fastpay.common;
 
+import org.fastpay.entity.Money;
 import org.fastpay.entity.TransferStatus;
 import org.junit.Test;
 
-import java.math.BigDecimal;
-
 import static org.junit.Assert.assertEquals;
 
 public class QueryParameterValidatorTest {
@@ -58,7 +57,7 @@ public class QueryParameterValidatorTest {
 
     @Test
     public void shouldGetMoney() {
-        assertEquals(new BigDecimal("1.84"), validator.getMoney("1.84"));
+        assertEquals(Money.parse("1.84"), validator.getMoney("1.84"));
     }
 
     @Test(expected = IllegalArgumentException.class)
@@ -38,44 +38,91 @@ public abstract class TestBase {
 
     protected String submitRequest(String method, String path, Map<String, String> queryParameters, String jsonBody) {
         try {
-            StringBuilder sb = new StringBuilder();
-            sb.append("http://localhost:4567");
-            sb.append(path);
-            if (queryParameters != null) {
-                String params = ParameterStringBuilder.getParamsString(queryParameters);
-                sb.append("?");
-                sb.append(params);
-            }
-
-            URL url = new URL(sb.toString());
-
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod(method);
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("Accept", "application/json");
-
-            if (jsonBody != null) {
-                connection.setRequestProperty("Content-length", jsonBody.getBytes().length + "");
-                connection.setDoInput(true);
-                connection.setDoOutput(true);
-                connection.setUseCaches(false);
-
-                //send the json as body of the request
-                OutputStream outputStream = connection.getOutputStream();
-                outputStream.write(jsonBody.getBytes("UTF-8"));
-                outputStream.close();
-            }
-
-            connection.connect();
-            if (connection.getResponseCode() < 400) {
-                return IOUtils.toString(connection.getInputStream());
-            } else {
-                return IOUtils.toString(connection.getErrorStream());
-            }
+            HttpURLConnection connection = openConnection(method, path, queryParameters, null, jsonBody);
+            return readResponse(connection);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    // returns response header value; response body is read and discarded
+    protected String submitRequestForHeader(String method, String path, Map<String, String> queryParameters,
+                                            String headerName) {
+        try {
+            HttpURLConnection connection = openConnection(method, path, queryParameters, null, null);
+            readResponse(connection);
+            return connection.getHeaderField(headerName);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // returns HTTP status code; response body is read and discarded
+    protected int submitRequestForStatus(String method, String path, String jsonBody) {
+        try {
+            HttpURLConnection connection = openConnection(method, path, null, null, jsonBody);
+            readResponse(connection);
+            return connection.getResponseCode();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // returns response body and given response header, as two elements
+    protected String[] submitRequestWithHeaders(String method, String path, Map<String, String> headers,
+                                                String jsonBody, String responseHeader) {
+        try {
+            HttpURLConnection connection = openConnection(method, path, null, headers, jsonBody);
+            return new String[]{readResponse(connection), connection.getHeaderField(responseHeader)};
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private HttpURLConnection openConnection(String method, String path, Map<String, String> queryParameters,
+                                             Map<String, String> headers, String jsonBody) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("http://localhost:4567");
+        sb.append(path);
+        if (queryParameters != null) {
+            String params = ParameterStringBuilder.getParamsString(queryParameters);
+            sb.append("?");
+            sb.append(params);
+        }
+
+        URL url = new URL(sb.toString());
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setRequestProperty("Accept", "application/json");
+        if (headers != null) {
+            headers.forEach(connection::setRequestProperty);
+        }
+
+        if (jsonBody != null) {
+            connection.setRequestProperty("Content-length", jsonBody.getBytes().length + "");
+            connection.setDoInput(true);
+            connection.setDoOutput(true);
+            connection.setUseCaches(false);
+
+            //send the json as body of the request
+            OutputStream outputStream = connection.getOutputStream();
+            outputStream.write(jsonBody.getBytes("UTF-8"));
+            outputStream.close();
+        }
+
+        connection.connect();
+        return connection;
+    }
+
+    private String readResponse(HttpURLConnection connection) throws IOException {
+        if (connection.getResponseCode() < 400) {
+            return IOUtils.toString(connection.getInputStream());
+        } else {
+            return IOUtils.toString(connection.getErrorStream());
+        }
+    }
+
 
 }
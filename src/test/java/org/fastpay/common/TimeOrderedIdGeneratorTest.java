@@ -0,0 +1,58 @@
+package org.fastpay.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimeOrderedIdGeneratorTest {
+
+    @Test
+    public void shouldGenerateIncreasingIds() {
+        IdGenerator generator = new TimeOrderedIdGenerator(1L);
+        String previous = generator.nextId();
+        for (int i = 0; i < 100000; i++) {
+            String next = generator.nextId();
+            assertTrue(next.compareTo(previous) > 0);
+            assertEquals(13, next.length());
+            previous = next;
+        }
+    }
+
+    @Test
+    public void shouldGenerateUniqueIdsConcurrently() throws InterruptedException {
+        IdGenerator generator = new TimeOrderedIdGenerator(1L);
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < 10000; j++) {
+                    ids.add(generator.nextId());
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(80000, ids.size());
+    }
+
+    @Test
+    public void shouldDifferBetweenNodes() {
+        String first = new TimeOrderedIdGenerator(1L).nextId();
+        String second = new TimeOrderedIdGenerator(2L).nextId();
+        assertTrue(!first.equals(second));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectInvalidNodeId() {
+        new TimeOrderedIdGenerator(1024L);
+    }
+}
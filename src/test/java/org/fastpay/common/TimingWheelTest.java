@@ -0,0 +1,91 @@
+package org.fastpay.common;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+
+    // 1 ms tick, 4 buckets per level, 3 levels: timeouts over 16 ms are cascaded, over 64 ms parked in top level
+    private final TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 2, 3, "test-wheel");
+
+    @After
+    public void cleanup() {
+        wheel.close();
+    }
+
+    @Test
+    public void shouldRunTimeoutsInDeadlineOrder() throws InterruptedException {
+        // given
+        List<Integer> fired = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(4);
+
+        // when
+        // delays cover every level and beyond range of the wheel
+        for (int delay : new int[]{150, 3, 40, 10}) {
+            wheel.schedule(delay, TimeUnit.MILLISECONDS, () -> {
+                fired.add(delay);
+                done.countDown();
+            });
+        }
+
+        // then
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(3, 10, 40, 150), fired);
+    }
+
+    @Test
+    public void shouldNotRunTimeoutBeforeDelay() throws InterruptedException {
+        // given
+        CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+
+        // when
+        wheel.schedule(50, TimeUnit.MILLISECONDS, done::countDown);
+
+        // then
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void shouldNotRunCancelledTimeout() throws InterruptedException {
+        // given
+        CountDownLatch cancelled = new CountDownLatch(1);
+        CountDownLatch other = new CountDownLatch(1);
+        TimingWheel.Timeout timeout = wheel.schedule(20, TimeUnit.MILLISECONDS, cancelled::countDown);
+        wheel.schedule(40, TimeUnit.MILLISECONDS, other::countDown);
+
+        // when
+        boolean result = timeout.cancel();
+
+        // then
+        assertTrue(result);
+        assertTrue(other.await(5, TimeUnit.SECONDS));
+        assertEquals(1, cancelled.getCount());
+        assertTrue(timeout.isCancelled());
+        assertFalse(timeout.cancel()); // only once
+    }
+
+    @Test
+    public void shouldNotCancelExpiredTimeout() throws InterruptedException {
+        // given
+        CountDownLatch done = new CountDownLatch(1);
+        TimingWheel.Timeout timeout = wheel.schedule(0, TimeUnit.MILLISECONDS, done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        // when
+        boolean result = timeout.cancel();
+
+        // then
+        assertFalse(result);
+        assertTrue(timeout.isExpired());
+    }
+}
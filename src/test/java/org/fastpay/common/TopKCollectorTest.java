@@ -0,0 +1,52 @@
+package org.fastpay.common;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class TopKCollectorTest {
+
+    @Test
+    public void shouldSelectSmallestElementsInOrder() {
+        List<Integer> result = Arrays.asList(5, 3, 9, 1, 7, 2, 8).stream()
+                .collect(TopKCollector.of(Comparator.naturalOrder(), 3));
+        assertEquals(Arrays.asList(1, 2, 3), result);
+    }
+
+    @Test
+    public void shouldSelectLargestElementsWithReversedComparator() {
+        List<Integer> result = Arrays.asList(5, 3, 9, 1, 7, 2, 8).stream()
+                .collect(TopKCollector.of(Comparator.<Integer>naturalOrder().reversed(), 2));
+        assertEquals(Arrays.asList(9, 8), result);
+    }
+
+    @Test
+    public void shouldReturnAllElementsWhenLimitExceedsSize() {
+        List<Integer> result = Arrays.asList(2, 1).stream()
+                .collect(TopKCollector.of(Comparator.naturalOrder(), 10));
+        assertEquals(Arrays.asList(1, 2), result);
+    }
+
+    @Test
+    public void shouldReturnEmptyListOnZeroLimit() {
+        List<Integer> result = Arrays.asList(2, 1).stream()
+                .collect(TopKCollector.of(Comparator.naturalOrder(), 0));
+        assertEquals(Collections.emptyList(), result);
+    }
+
+    @Test
+    public void shouldMatchFullSortOnParallelStream() {
+        List<Integer> source = IntStream.range(0, 10000).map(i -> (i * 7919) % 10007).boxed()
+                .collect(Collectors.toList());
+        List<Integer> expected = source.stream().sorted().limit(100).collect(Collectors.toList());
+        List<Integer> result = source.parallelStream().collect(TopKCollector.of(Comparator.naturalOrder(), 100));
+        assertEquals(expected, result);
+    }
+}
@@ -0,0 +1,78 @@
+package org.fastpay.common;
+
+import org.fastpay.entity.Money;
+import org.fastpay.entity.Transfer;
+import org.fastpay.entity.TransferStatus;
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TransferPropertyTest {
+
+    @Test
+    public void shouldCompareAmountsNumerically() {
+        // given
+        Transfer small = transfer("9.99", TransferStatus.PENDING, new Date(2000L));
+        Transfer large = transfer("10.00", TransferStatus.PENDING, new Date(1000L));
+
+        // when
+        int result = TransferProperty.of("amount").getComparator().compare(small, large);
+
+        // then
+        assertTrue(result < 0);
+    }
+
+    @Test
+    public void shouldCompareDatesAndEnumsNatively() {
+        // given
+        Transfer older = transfer("1.00", TransferStatus.CANCELLED, new Date(1000L));
+        Transfer newer = transfer("1.00", TransferStatus.PENDING, new Date(2000L));
+
+        // then
+        assertTrue(TransferProperty.of("timestamp").getComparator().compare(older, newer) < 0);
+        assertTrue(TransferProperty.of("status").getComparator().compare(newer, older) < 0);
+    }
+
+    @Test
+    public void shouldPutMissingValuesFirst() {
+        // given
+        Transfer withTitle = transfer("1.00", TransferStatus.PENDING, new Date());
+        Transfer withoutTitle = transfer("1.00", TransferStatus.PENDING, new Date());
+        withoutTitle.setTitle(null);
+
+        // then
+        assertTrue(TransferProperty.of("title").getComparator().compare(withoutTitle, withTitle) < 0);
+    }
+
+    @Test
+    public void shouldReadAndWriteProperty() {
+        // given
+        Transfer transfer = new Transfer();
+        TransferProperty property = TransferProperty.of("Currency");
+
+        // when
+        property.set(transfer, "PLN");
+
+        // then
+        assertEquals(String.class, property.getType());
+        assertEquals("PLN", property.get(transfer));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUnknownProperty() {
+        TransferProperty.of("age");
+    }
+
+    private Transfer transfer(String amount, TransferStatus status, Date timestamp) {
+        Transfer transfer = new Transfer();
+        transfer.setId(Long.toString(timestamp.getTime()));
+        transfer.setAmount(Money.parse(amount));
+        transfer.setStatus(status);
+        transfer.setTimestamp(timestamp);
+        transfer.setTitle("title");
+        return transfer;
+    }
+}
@@ -0,0 +1,46 @@
+package org.fastpay.entity;
+
+import com.google.gson.Gson;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MoneyTest {
+
+    @Test
+    public void shouldKeepAmountInMinorUnitsOfCurrency() {
+        assertEquals(34023L, Money.parse("340.23").inCurrency("PLN").getUnits());
+        assertEquals(34000L, Money.parse("340").inCurrency("PLN").getUnits());
+        assertEquals(340L, Money.parse("340").inCurrency("JPY").getUnits());
+        assertEquals(340230L, Money.parse("340.23").inCurrency("KWD").getUnits());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectFractionNotSupportedByCurrency() {
+        Money.parse("340.23").inCurrency("JPY");
+    }
+
+    @Test
+    public void shouldCompareNumerically() {
+        assertEquals(Money.parse("1.5"), Money.parse("1.50"));
+        assertEquals(Money.parse("1.5").hashCode(), Money.parse("1.50").hashCode());
+        assertTrue(Money.parse("9").compareTo(Money.parse("100")) < 0);
+        assertTrue(Money.parse("9.99").compareTo(Money.parse("10.000")) < 0);
+    }
+
+    @Test
+    public void shouldWriteSameJsonAsBigDecimal() {
+        // given
+        TransferDto transferData = new TransferDto();
+        transferData.setAmount(Money.parse("340.23").inCurrency("PLN"));
+
+        // when
+        String json = new Gson().toJson(transferData);
+        TransferDto parsed = new Gson().fromJson("{\"amount\": \"340.23\"}", TransferDto.class);
+
+        // then
+        assertEquals("{\"amount\":340.23}", json);
+        assertEquals(Money.parse("340.23"), parsed.getAmount());
+    }
+}
@@ -0,0 +1,48 @@
+package org.fastpay.entity;
+
+import org.junit.Test;
+
+import java.time.Instant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RecurrenceTest {
+
+    @Test
+    public void shouldRepeatInUtc() {
+        Instant first = Instant.parse("2026-11-01T09:00:00Z");
+        assertEquals(Instant.parse("2026-11-02T09:00:00Z"), Recurrence.DAILY.next(first));
+        assertEquals(Instant.parse("2026-11-08T09:00:00Z"), Recurrence.WEEKLY.next(first));
+        assertEquals(Instant.parse("2026-12-01T09:00:00Z"), Recurrence.MONTHLY.next(first));
+    }
+
+    @Test
+    public void shouldRepeatMonthlyOnLastDayOfShorterMonth() {
+        assertEquals(Instant.parse("2027-02-28T09:00:00Z"), Recurrence.MONTHLY.next(Instant.parse("2027-01-31T09:00:00Z")));
+    }
+
+    @Test
+    public void shouldCountMonthlyOccurrencesFromFirstOne() {
+        Instant first = Instant.parse("2027-01-31T09:00:00Z");
+        Instant second = Recurrence.MONTHLY.next(first, first);
+        Instant third = Recurrence.MONTHLY.next(first, second);
+        Instant fourth = Recurrence.MONTHLY.next(first, third);
+
+        assertEquals(Instant.parse("2027-02-28T09:00:00Z"), second);
+        assertEquals(Instant.parse("2027-03-31T09:00:00Z"), third); // back on its day after short month
+        assertEquals(Instant.parse("2027-04-30T09:00:00Z"), fourth);
+        assertEquals(Instant.parse("2027-05-31T09:00:00Z"), Recurrence.MONTHLY.next(first, fourth));
+    }
+
+    @Test
+    public void shouldParseIgnoringCase() {
+        assertEquals(Recurrence.MONTHLY, Recurrence.of(" Monthly"));
+        assertNull(Recurrence.of(null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUnknownRecurrence() {
+        Recurrence.of("yearly");
+    }
+}
@@ -0,0 +1,74 @@
+package org.fastpay.persistence;
+
+import org.fastpay.entity.Money;
+import org.fastpay.entity.Transfer;
+import org.fastpay.entity.TransferStatus;
+import org.junit.Test;
+
+import java.io.UncheckedIOException;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TransferCodecTest {
+
+    @Test
+    public void shouldReadWhatWasWritten() {
+        // given
+        Transfer transfer = new Transfer();
+        transfer.setId("tx-1");
+        transfer.setTimestamp(new Date());
+        transfer.setStatus(TransferStatus.PENDING);
+        transfer.setAmount(Money.parse("340.23"));
+        transfer.setCurrency("PLN");
+        transfer.setCommission(Money.parse("8.51"));
+        transfer.setExecuteAt("2026-11-01T09:00:00Z");
+        transfer.setRecurrence("monthly");
+        transfer.setFirstExecuteAt("2026-10-01T09:00:00Z");
+
+        // when
+        Transfer read = BinaryCodec.decode(BinaryCodec.encode(out -> TransferCodec.write(out, transfer)),
+                TransferCodec::read);
+
+        // then
+        assertEquals(transfer.getId(), read.getId());
+        assertEquals(transfer.getTimestamp(), read.getTimestamp());
+        assertEquals(Money.parse("8.51"), read.getCommission());
+        assertEquals("monthly", read.getRecurrence());
+        assertEquals("2026-10-01T09:00:00Z", read.getFirstExecuteAt());
+    }
+
+    @Test
+    public void shouldReadRecordWithoutFirstExecutionTime() {
+        // given
+        Transfer transfer = new Transfer();
+        transfer.setId("tx-1");
+        transfer.setRecurrence("monthly");
+        byte[] payload = BinaryCodec.encode(out -> TransferCodec.write(out, transfer));
+        // previous layout: version 2, without the last field - here its absence flag
+        byte[] previous = new byte[payload.length - 1];
+        System.arraycopy(payload, 0, previous, 0, previous.length);
+        previous[0] = 2;
+
+        // when
+        Transfer read = BinaryCodec.decode(previous, TransferCodec::read);
+
+        // then
+        assertEquals("tx-1", read.getId());
+        assertEquals("monthly", read.getRecurrence());
+        assertNull(read.getFirstExecuteAt());
+    }
+
+    @Test(expected = UncheckedIOException.class)
+    public void shouldRejectRecordWrittenBeforeVersioning() {
+        Transfer transfer = new Transfer();
+        transfer.setId("tx-1");
+        byte[] payload = BinaryCodec.encode(out -> TransferCodec.write(out, transfer));
+        // old layout began right with presence flag of id
+        byte[] unversioned = new byte[payload.length - 1];
+        System.arraycopy(payload, 1, unversioned, 0, unversioned.length);
+
+        BinaryCodec.decode(unversioned, TransferCodec::read);
+    }
+}
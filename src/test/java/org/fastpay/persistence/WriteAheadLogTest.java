@@ -0,0 +1,278 @@
+package org.fastpay.persistence;
+
+import org.fastpay.entity.FilterParametersDto;
+import org.fastpay.entity.Money;
+import org.fastpay.entity.Transfer;
+import org.fastpay.entity.TransferDto;
+import org.fastpay.entity.TransferStatus;
+import org.fastpay.repository.TransferRepository;
+import org.fastpay.repository.TransferRepositoryImpl;
+import org.fastpay.service.AccountService;
+import org.fastpay.service.AccountServiceImpl;
+import org.fastpay.service.PaymentStatus;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WriteAheadLogTest {
+
+    private static final String SOURCE = "PL61109010140000071219812874";
+    private static final String DESTINATION = "CZ6508000000192000145399";
+    private static final String CURRENCY = "PLN";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldRebuildTransfersAndBalancesAfterRestart() throws IOException {
+        // given
+        Path directory = folder.getRoot().toPath();
+        WriteAheadLog log = new WriteAheadLog(directory, true, 1024);
+        TransferRepository repository = new TransferRepositoryImpl(log);
+        AccountService ledger = new AccountServiceImpl("sender", log);
+        log.recover();
+
+        Transfer completed = repository.add(transferData("100.00"));
+        ledger.authorizePayment(SOURCE, DESTINATION, completed.getAmount(), CURRENCY, completed.getId());
+        repository.updateStatus(completed.getId(), TransferStatus.PENDING, TransferStatus.COMPLETED);
+        Transfer deleted = repository.add(transferData("5.00"));
+        repository.delete(deleted.getId());
+        Transfer pending = repository.add(transferData("1.00"));
+        log.close();
+
+        // when
+        WriteAheadLog reopened = new WriteAheadLog(directory, true, 1024);
+        TransferRepository recoveredRepository = new TransferRepositoryImpl(reopened);
+        AccountService recoveredLedger = new AccountServiceImpl("sender", reopened);
+        reopened.recover();
+
+        // then
+        assertEquals(TransferStatus.COMPLETED, recoveredRepository.get(completed.getId()).getStatus());
+        assertEquals(completed.getTimestamp(), recoveredRepository.get(completed.getId()).getTimestamp());
+        assertEquals(TransferStatus.PENDING, recoveredRepository.get(pending.getId()).getStatus());
+        assertNull(recoveredRepository.get(deleted.getId()));
+        assertEquals(Money.parse("900.00"), recoveredLedger.balance(SOURCE, CURRENCY));
+        reopened.close();
+    }
+
+    @Test
+    public void shouldKeepStringsLongerThan64KilobytesAfterRestart() throws IOException {
+        // given
+        Path directory = folder.getRoot().toPath();
+        WriteAheadLog log = new WriteAheadLog(directory, true, 1024);
+        TransferRepository repository = new TransferRepositoryImpl(log);
+        log.recover();
+        TransferDto transferData = transferData("10.00");
+        StringBuilder title = new StringBuilder();
+        while (title.length() < 70000) {
+            title.append("tytuł ");
+        }
+        transferData.setTitle(title.toString());
+        Transfer transfer = repository.add(transferData);
+        log.close();
+
+        // when
+        WriteAheadLog reopened = new WriteAheadLog(directory, true, 1024);
+        TransferRepository recoveredRepository = new TransferRepositoryImpl(reopened);
+        reopened.recover();
+
+        // then
+        assertEquals(title.toString(), recoveredRepository.get(transfer.getId()).getTitle());
+        reopened.close();
+    }
+
+    @Test
+    public void shouldShareFlushBetweenConcurrentWriters() throws Exception {
+        // given
+        WriteAheadLog log = new WriteAheadLog(folder.getRoot().toPath(), true, 1 << 20);
+        TransferRepository repository = new TransferRepositoryImpl(log);
+        log.recover();
+
+        // when
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread writer = new Thread(() -> {
+                for (int j = 0; j < 50; j++) {
+                    repository.add(transferData("1.00"));
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        log.close();
+
+        // then
+        WriteAheadLog reopened = new WriteAheadLog(folder.getRoot().toPath(), true, 1 << 20);
+        TransferRepository recovered = new TransferRepositoryImpl(reopened);
+        reopened.recover();
+        assertEquals(400, recovered.list(new FilterParametersDto()).size());
+        reopened.close();
+    }
+
+    @Test
+    public void shouldCutOffTornRecordAtTheEnd() throws IOException {
+        // given
+        Path directory = folder.getRoot().toPath();
+        WriteAheadLog log = new WriteAheadLog(directory, false, 1 << 20);
+        TransferRepository repository = new TransferRepositoryImpl(log);
+        log.recover();
+        Transfer first = repository.add(transferData("1.00"));
+        Transfer second = repository.add(transferData("2.00"));
+        log.close();
+
+        Path segment = segments(directory).get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3); // simulate crash in the middle of the last write
+        }
+
+        // when
+        WriteAheadLog reopened = new WriteAheadLog(directory, false, 1 << 20);
+        TransferRepository recovered = new TransferRepositoryImpl(reopened);
+        reopened.recover();
+        Transfer third = recovered.add(transferData("3.00"));
+        reopened.close();
+
+        // then
+        WriteAheadLog again = new WriteAheadLog(directory, false, 1 << 20);
+        TransferRepository recoveredAgain = new TransferRepositoryImpl(again);
+        again.recover();
+        assertEquals(first.getId(), recoveredAgain.get(first.getId()).getId());
+        assertNull(recoveredAgain.get(second.getId()));
+        assertEquals(third.getId(), recoveredAgain.get(third.getId()).getId());
+        again.close();
+    }
+
+    @Test
+    public void shouldRecoverLedgerOperationWholeOrNotAtAll() throws IOException {
+        // given
+        Path directory = folder.getRoot().toPath();
+        WriteAheadLog log = new WriteAheadLog(directory, false, 1 << 20);
+        AccountService ledger = new AccountServiceImpl("sender", log);
+        log.recover();
+        ledger.authorizePayment(SOURCE, DESTINATION, Money.parse("100.00"), CURRENCY, "tx-1");
+        ledger.authorizePayment(SOURCE, DESTINATION, Money.parse("50.00"), CURRENCY, "tx-2");
+        log.close();
+
+        Path segment = segments(directory).get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3); // crash while the second payment was written
+        }
+
+        // when
+        WriteAheadLog reopened = new WriteAheadLog(directory, false, 1 << 20);
+        AccountService recovered = new AccountServiceImpl("sender", reopened);
+        reopened.recover();
+
+        // then
+        assertEquals(PaymentStatus.AUTHORIZED, recovered.paymentStatus("tx-1"));
+        assertNull(recovered.paymentStatus("tx-2"));
+        assertEquals(Money.parse("900.00"), recovered.balance(SOURCE, CURRENCY)); // no hold without its payment
+        reopened.close();
+    }
+
+    @Test
+    public void shouldFailRecoveryOnCorruptRecordBeforeLastSegment() throws IOException {
+        // given
+        Path directory = folder.getRoot().toPath();
+        WriteAheadLog log = new WriteAheadLog(directory, false, 256);
+        TransferRepository repository = new TransferRepositoryImpl(log);
+        log.recover();
+        for (int i = 0; i < 10; i++) {
+            repository.add(transferData("1.00"));
+        }
+        log.close();
+
+        List<Path> segments = segments(directory);
+        assertTrue(segments.size() > 1);
+        try (FileChannel channel = FileChannel.open(segments.get(0), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0x7f, 0x7f}), 30); // damage body of the first record
+        }
+
+        // when
+        WriteAheadLog reopened = new WriteAheadLog(directory, false, 256);
+        new TransferRepositoryImpl(reopened);
+        try {
+            reopened.recover();
+            fail("Recovery should fail");
+        } catch (UncheckedIOException ex) {
+            // then
+            assertTrue(ex.getCause().getMessage().contains("followed by other segments"));
+        }
+        assertEquals(segments, segments(directory)); // no segment dropped
+    }
+
+    @Test
+    public void shouldRecoverFromSnapshotAndTruncateOlderSegments() throws IOException {
+        // given
+        Path directory = folder.getRoot().toPath();
+        WriteAheadLog log = new WriteAheadLog(directory, false, 256);
+        TransferRepository repository = new TransferRepositoryImpl(log);
+        AccountService ledger = new AccountServiceImpl("sender", log);
+        log.recover();
+
+        List<Transfer> beforeSnapshot = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Transfer transfer = repository.add(transferData("10.00"));
+            ledger.authorizePayment(SOURCE, DESTINATION, transfer.getAmount(), CURRENCY, transfer.getId());
+            beforeSnapshot.add(transfer);
+        }
+        int segmentsBefore = segments(directory).size();
+        log.snapshot();
+        Transfer afterSnapshot = repository.add(transferData("1.00"));
+        repository.updateStatus(beforeSnapshot.get(0).getId(), TransferStatus.PENDING, TransferStatus.CANCELLED);
+        ledger.cancelPayment(beforeSnapshot.get(0).getId());
+        log.close();
+
+        // when
+        WriteAheadLog reopened = new WriteAheadLog(directory, false, 256);
+        TransferRepository recoveredRepository = new TransferRepositoryImpl(reopened);
+        AccountService recoveredLedger = new AccountServiceImpl("sender", reopened);
+        reopened.recover();
+
+        // then
+        long segmentsAfter = segments(directory).stream()
+                .filter(path -> path.getFileName().toString().startsWith("wal-")).count();
+        assertTrue(segmentsAfter < segmentsBefore);
+        assertEquals(21, recoveredRepository.list(new FilterParametersDto()).size());
+        assertEquals(TransferStatus.CANCELLED, recoveredRepository.get(beforeSnapshot.get(0).getId()).getStatus());
+        assertEquals(afterSnapshot.getId(), recoveredRepository.get(afterSnapshot.getId()).getId());
+        assertEquals(Money.parse("810.00"), recoveredLedger.balance(SOURCE, CURRENCY));
+        reopened.close();
+    }
+
+    private List<Path> segments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private TransferDto transferData(String amount) {
+        TransferDto transferData = new TransferDto();
+        transferData.setSource(SOURCE);
+        transferData.setDestination(DESTINATION);
+        transferData.setAmount(Money.parse(amount));
+        transferData.setCurrency(CURRENCY);
+        transferData.setTitle("title");
+        return transferData;
+    }
+}
@@ -0,0 +1,77 @@
+package org.fastpay.repository;
+
+import org.fastpay.common.TimeOrderedIdGenerator;
+import org.fastpay.entity.FilterParametersDto;
+import org.fastpay.entity.Money;
+import org.fastpay.entity.TransferDto;
+import org.fastpay.entity.TransferStatus;
+import org.fastpay.persistence.NoTransactionLog;
+
+import java.util.Random;
+
+// Finds crossover point between sequential and parallel listing, to choose fastpay.scan.parallelThreshold
+// for given hardware. Not a unit test, run manually:
+//   mvn test-compile exec:java -Dexec.mainClass=org.fastpay.repository.ListingBenchmark -Dexec.classpathScope=test
+// query is ?status=pending&sort=amount&limit=100, so every record in store is a candidate
+public class ListingBenchmark {
+
+    private static final int[] SIZES = {1_000, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000, 1_000_000};
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int MEASURED_ROUNDS = 30;
+
+    public static void main(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        System.out.printf("threads: %d%n%10s %16s %16s %8s%n", threads, "records", "sequential, us", "parallel, us", "speedup");
+
+        for (int size : SIZES) {
+            TransferRepository sequential = repository(Long.MAX_VALUE, threads);
+            TransferRepository parallel = repository(1L, threads);
+            fill(size, sequential, parallel);
+
+            FilterParametersDto filter = new FilterParametersDto();
+            filter.setStatus(TransferStatus.PENDING);
+            filter.setSort("amount");
+            filter.setLimit(100L);
+
+            double sequentialTime = measure(sequential, filter);
+            double parallelTime = measure(parallel, filter);
+            System.out.printf("%10d %16.1f %16.1f %8.2f%n", size, sequentialTime, parallelTime,
+                    sequentialTime / parallelTime);
+        }
+    }
+
+    private static TransferRepository repository(long threshold, int threads) {
+        return new TransferRepositoryImpl(new NoTransactionLog(), new TimeOrderedIdGenerator(0L),
+                new ParallelScan(threshold, threads));
+    }
+
+    private static void fill(int size, TransferRepository... repositories) {
+        Random random = new Random(size);
+        for (int i = 0; i < size; i++) {
+            TransferDto transferData = new TransferDto();
+            transferData.setSource("PL61109010140000071219812874");
+            transferData.setDestination("CZ6508000000192000145399");
+            transferData.setAmount(Money.ofMinor(random.nextInt(10_000_000), 2));
+            transferData.setCurrency("PLN");
+            transferData.setTitle("title");
+            for (TransferRepository repository : repositories) {
+                repository.add(transferData);
+            }
+        }
+    }
+
+    // average time of one listing, in microseconds
+    private static double measure(TransferRepository repository, FilterParametersDto filter) {
+        long blackhole = 0;
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            blackhole += repository.list(filter).size();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            blackhole += repository.list(filter).size();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (blackhole == 42) System.out.print("");
+        return elapsed / 1000.0 / MEASURED_ROUNDS;
+    }
+}
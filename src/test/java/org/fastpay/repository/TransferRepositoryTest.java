@@ -0,0 +1,293 @@
+package org.fastpay.repository;
+
+import org.fastpay.common.CursorCodec;
+import org.fastpay.common.TimeOrderedIdGenerator;
+import org.fastpay.entity.Conversion;
+import org.fastpay.entity.FilterParametersDto;
+import org.fastpay.entity.Money;
+import org.fastpay.entity.Transfer;
+import org.fastpay.entity.TransferDto;
+import org.fastpay.entity.TransferStatistics;
+import org.fastpay.entity.TransferStatus;
+import org.fastpay.persistence.NoTransactionLog;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TransferRepositoryTest {
+
+    private static final String SOURCE = "PL61109010140000071219812874";
+    private static final String OTHER_SOURCE = "GB82WEST12345698765432";
+    private static final String DESTINATION = "CZ6508000000192000145399";
+
+    private TransferRepository repository;
+
+    @Before
+    public void setup() {
+        repository = new TransferRepositoryImpl();
+    }
+
+    @Test
+    public void shouldFilterByIndexedProperties() {
+        // given
+        repository.add(transferData(SOURCE, "PLN", "10.00"));
+        repository.add(transferData(SOURCE, "EUR", "20.00"));
+        repository.add(transferData(OTHER_SOURCE, "PLN", "30.00"));
+
+        // when
+        FilterParametersDto filter = new FilterParametersDto();
+        filter.setSource(SOURCE);
+        filter.setCurrency("PLN");
+        List<Transfer> result = repository.list(filter);
+
+        // then
+        assertEquals(1, result.size());
+        assertEquals(Money.parse("10.00"), result.get(0).getAmount());
+    }
+
+    @Test
+    public void shouldReindexStatusTransition() {
+        // given
+        Transfer transfer = repository.add(transferData(SOURCE, "PLN", "10.00"));
+        repository.add(transferData(SOURCE, "PLN", "20.00"));
+
+        // when
+        assertTrue(repository.updateStatus(transfer.getId(), TransferStatus.PENDING, TransferStatus.COMPLETED));
+
+        // then
+        assertEquals(1, repository.list(statusFilter(TransferStatus.COMPLETED)).size());
+        assertEquals(1, repository.list(statusFilter(TransferStatus.PENDING)).size());
+        assertEquals(transfer.getId(), repository.list(statusFilter(TransferStatus.COMPLETED)).get(0).getId());
+    }
+
+    @Test
+    public void shouldReindexUpdatedAndDeletedTransfer() {
+        // given
+        Transfer transfer = repository.add(transferData(SOURCE, "PLN", "10.00"));
+
+        // when
+        repository.update(transfer.getId(), transferData(OTHER_SOURCE, "PLN", "10.00"));
+
+        // then
+        FilterParametersDto filter = new FilterParametersDto();
+        filter.setSource(SOURCE);
+        assertEquals(0, repository.list(filter).size());
+        filter.setSource(OTHER_SOURCE);
+        assertEquals(1, repository.list(filter).size());
+
+        repository.delete(transfer.getId());
+        assertEquals(0, repository.list(filter).size());
+    }
+
+    @Test
+    public void shouldPageInDefaultOrderWithCursor() {
+        // given
+        List<String> created = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            created.add(repository.add(transferData(SOURCE, "PLN", i + ".00")).getId());
+        }
+        List<String> expected = created.stream().map(repository::get)
+                .sorted(Comparator.comparing(Transfer::getId))
+                .map(Transfer::getId).collect(Collectors.toList());
+
+        // when
+        List<String> paged = new ArrayList<>();
+        FilterParametersDto filter = new FilterParametersDto();
+        filter.setLimit(2L);
+        List<Transfer> page = repository.list(filter);
+        while (!page.isEmpty()) {
+            page.forEach(item -> paged.add(item.getId()));
+            Transfer last = page.get(page.size() - 1);
+            filter.setCursor(CursorCodec.decode(CursorCodec.encode(last, null, null)));
+            page = repository.list(filter);
+        }
+
+        // then
+        assertEquals(expected, paged);
+    }
+
+    @Test
+    public void shouldPageByRateWithCursor() {
+        // given
+        List<String> created = new ArrayList<>();
+        for (String rate : new String[]{"1.5", "0.25", "1.5", "4.30", "0.25"}) {
+            Conversion conversion = new Conversion(Money.parse("1.00"), new BigDecimal(rate));
+            created.add(repository.add(transferData(SOURCE, "PLN", "1.00"), conversion, null).getId());
+        }
+        List<String> expected = created.stream().map(repository::get)
+                .sorted(Comparator.comparing(Transfer::getRate, Comparator.reverseOrder())
+                        .thenComparing(Transfer::getId, Comparator.reverseOrder()))
+                .map(Transfer::getId).collect(Collectors.toList());
+
+        // when
+        List<String> paged = new ArrayList<>();
+        FilterParametersDto filter = new FilterParametersDto();
+        filter.setSort("rate");
+        filter.setOrder("desc");
+        filter.setLimit(2L);
+        List<Transfer> page = repository.list(filter);
+        while (!page.isEmpty()) {
+            page.forEach(item -> paged.add(item.getId()));
+            Transfer last = page.get(page.size() - 1);
+            filter.setCursor(CursorCodec.decode(CursorCodec.encode(last, "rate", "desc")));
+            page = repository.list(filter);
+        }
+
+        // then
+        assertEquals(expected, paged);
+    }
+
+    @Test
+    public void shouldPageFilteredAndSortedTransfersWithCursor() {
+        // given
+        List<String> created = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            created.add(repository.add(transferData(i % 2 == 0 ? SOURCE : OTHER_SOURCE, "PLN", (i % 3) + ".00"))
+                    .getId());
+        }
+        List<String> expected = created.stream().map(repository::get)
+                .filter(transfer -> transfer.getSource().equals(SOURCE))
+                .sorted(Comparator.comparing(Transfer::getAmount).thenComparing(Transfer::getId))
+                .map(Transfer::getId).collect(Collectors.toList());
+
+        // when
+        List<String> paged = new ArrayList<>();
+        FilterParametersDto filter = new FilterParametersDto();
+        filter.setSource(SOURCE);
+        filter.setSort("amount");
+        filter.setLimit(2L);
+        List<Transfer> page = repository.list(filter);
+        while (!page.isEmpty()) {
+            page.forEach(item -> paged.add(item.getId()));
+            Transfer last = page.get(page.size() - 1);
+            filter.setCursor(CursorCodec.decode(CursorCodec.encode(last, "amount", null)));
+            page = repository.list(filter);
+        }
+
+        // then - every one once, same amounts in order of ids
+        assertEquals(6, expected.size());
+        assertEquals(expected, paged);
+    }
+
+    @Test
+    public void shouldReturnSameResultInParallelScan() {
+        // given
+        TransferRepository parallel = new TransferRepositoryImpl(new NoTransactionLog(),
+                new TimeOrderedIdGenerator(0L), new ParallelScan(1L, 4));
+        for (int i = 0; i < 500; i++) {
+            TransferDto transferData = transferData(i % 2 == 0 ? SOURCE : OTHER_SOURCE, "PLN", (i * 7919 % 1000) + ".00");
+            repository.add(transferData);
+            parallel.add(transferData);
+        }
+        FilterParametersDto filter = new FilterParametersDto();
+        filter.setSource(SOURCE);
+        filter.setSort("amount");
+        filter.setOrder("desc");
+        filter.setLimit(20L);
+
+        // when
+        List<Money> sequentialResult = repository.list(filter).stream().map(Transfer::getAmount)
+                .collect(Collectors.toList());
+        List<Money> parallelResult = parallel.list(filter).stream().map(Transfer::getAmount)
+                .collect(Collectors.toList());
+
+        // then
+        assertEquals(20, parallelResult.size());
+        assertEquals(sequentialResult, parallelResult);
+    }
+
+    @Test
+    public void shouldMaintainTotalsOnEveryChange() {
+        // given
+        Transfer first = repository.add(transferData(SOURCE, "PLN", "10.00"));
+        Transfer second = repository.add(transferData(SOURCE, "PLN", "20.50"));
+        repository.add(transferData(OTHER_SOURCE, "EUR", "5.00"));
+
+        // when
+        repository.updateStatus(first.getId(), TransferStatus.PENDING, TransferStatus.COMPLETED);
+        repository.delete(second.getId());
+        TransferStatistics statistics = repository.getStatistics(SOURCE, null);
+
+        // then
+        assertEquals(1, statistics.getByStatus().get(TransferStatus.PENDING).getCount());
+        assertEquals(Money.parse("5.00"), statistics.getByStatus().get(TransferStatus.PENDING).getAmounts().get("EUR"));
+        assertEquals(Money.parse("10.00"), statistics.getByStatus().get(TransferStatus.COMPLETED).getAmounts().get("PLN"));
+        assertEquals(1, statistics.getByCurrency().get("PLN").getCount());
+        assertEquals(1, statistics.getBySource().get(SOURCE).getCount());
+
+        repository.cleanup();
+        assertTrue(repository.getStatistics(null, null).getByStatus().isEmpty());
+    }
+
+    @Test
+    public void shouldKeepStatusIndexConsistentUnderQuickTransitions() throws InterruptedException {
+        // given
+        int transfers = 2000;
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < transfers; i++) {
+            ids.add(repository.add(transferData(SOURCE, "PLN", "1.00")).getId());
+        }
+
+        // when
+        // second transition follows the first one at once, from other thread
+        Thread claimer = new Thread(() -> ids.forEach(id ->
+                repository.updateStatus(id, TransferStatus.PENDING, TransferStatus.PROCESSING)));
+        Thread completer = new Thread(() -> ids.forEach(id -> {
+            while (!repository.updateStatus(id, TransferStatus.PROCESSING, TransferStatus.COMPLETED)) {
+                Thread.yield();
+            }
+        }));
+        claimer.start();
+        completer.start();
+        claimer.join();
+        completer.join();
+
+        // then
+        assertEquals(transfers, repository.list(statusFilter(TransferStatus.COMPLETED)).size());
+        assertTrue(repository.list(statusFilter(TransferStatus.PENDING)).isEmpty());
+        assertTrue(repository.list(statusFilter(TransferStatus.PROCESSING)).isEmpty());
+        TransferStatistics statistics = repository.getStatistics(null, null);
+        assertEquals(transfers, statistics.getByStatus().get(TransferStatus.COMPLETED).getCount());
+        assertEquals(1, statistics.getByStatus().size());
+    }
+
+    @Test
+    public void shouldBalanceTotalsWhenRemoveComesBeforeAdd() {
+        // given
+        AggregateView<TransferStatus> view = new AggregateView<>(Transfer::getStatus);
+        Transfer transfer = repository.add(transferData(SOURCE, "PLN", "10.00"));
+
+        // when
+        view.remove(TransferStatus.COMPLETED, transfer);
+        int groupsInBetween = view.snapshot().size();
+        view.add(TransferStatus.COMPLETED, transfer);
+
+        // then
+        assertEquals(1, groupsInBetween); // negative delta kept
+        assertTrue(view.snapshot().isEmpty());
+    }
+
+    private FilterParametersDto statusFilter(TransferStatus status) {
+        FilterParametersDto filter = new FilterParametersDto();
+        filter.setStatus(status);
+        return filter;
+    }
+
+    private TransferDto transferData(String source, String currency, String amount) {
+        TransferDto transferData = new TransferDto();
+        transferData.setSource(source);
+        transferData.setDestination(DESTINATION);
+        transferData.setAmount(Money.parse(amount));
+        transferData.setCurrency(currency);
+        transferData.setTitle("title");
+        return transferData;
+    }
+}
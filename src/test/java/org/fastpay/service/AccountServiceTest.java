@@ -1,25 +1,34 @@
 package org.fastpay.service;
 
+import org.fastpay.entity.Money;
+import org.fastpay.persistence.NoTransactionLog;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
-import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.fastpay.service.PaymentStatus.CANCELLED;
 import static org.fastpay.service.PaymentStatus.COMPLETED;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class AccountServiceTest {
 
     private final String ORIGIN_ACCOUNT = "PL10000000000000000000";
     private final String DEST_ACCOUNT = "GB99999919000000999999";
     private final String CURRENCY = "GBP";
-    private final BigDecimal BIG_BALANCE = new BigDecimal("10000");
-    private final BigDecimal SMALL_BALANCE = new BigDecimal("30");
+    private final Money BIG_BALANCE = Money.parse("10000");
+    private final Money SMALL_BALANCE = Money.parse("30");
     private final String TXID = "00097fb3-3ddf-4f25-bdb4-4302ec24c2a4";
 
-    private final BigDecimal TRANSFER_AMOUNT = new BigDecimal("99.99");
+    private final Money TRANSFER_AMOUNT = Money.parse("99.99");
 
     private AccountService service;
 
@@ -61,9 +70,9 @@ public class AccountServiceTest {
         PaymentStatus result = service.authorizePayment(ORIGIN_ACCOUNT, DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, TXID);
 
         // then
-        BigDecimal balance = service.balance(ORIGIN_ACCOUNT, CURRENCY);
+        Money balance = service.balance(ORIGIN_ACCOUNT, CURRENCY);
         assertEquals(PaymentStatus.AUTHORIZED, result);
-        assertEquals(new BigDecimal("9900.01"), balance); // balance decreased
+        assertEquals(Money.parse("9900.01"), balance); // balance decreased
     }
 
 
@@ -78,9 +87,9 @@ public class AccountServiceTest {
         assertEquals(CANCELLED, cancelled);
 
         // then
-        BigDecimal balance = service.balance(ORIGIN_ACCOUNT, CURRENCY);
+        Money balance = service.balance(ORIGIN_ACCOUNT, CURRENCY);
         assertEquals(PaymentStatus.CANCELLED, cancelled);
-        assertEquals(new BigDecimal("10000.00"), balance); // balance restored
+        assertEquals(Money.parse("10000.00"), balance); // balance restored
     }
 
     @Test
@@ -99,8 +108,46 @@ public class AccountServiceTest {
 
         // then
         assertEquals(PaymentStatus.COMPLETED, result);
-        BigDecimal balance = service.balance(DEST_ACCOUNT, CURRENCY);
-        assertEquals(new BigDecimal("99.99"), balance); // balance increased
+        Money balance = service.balance(DEST_ACCOUNT, CURRENCY);
+        assertEquals(Money.parse("99.99"), balance); // balance increased
+    }
+
+    @Test
+    public void shouldWithdrawDepositedAmountOnlyIfStillOnAccount() {
+        // given
+        service.createAccount(DEST_ACCOUNT, CURRENCY);
+        service.deposit(DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, TXID);
+        service.authorizePayment(DEST_ACCOUNT, ORIGIN_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, "spending");
+
+        // when
+        PaymentStatus withdrawn = service.withdraw(DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, TXID);
+
+        // then
+        assertEquals(PaymentStatus.DECLINED, withdrawn); // balance would go below zero
+        assertEquals(Money.parse("0.00"), service.balance(DEST_ACCOUNT, CURRENCY));
+    }
+
+    @Test
+    public void shouldApplyDepositAndItsWithdrawalOncePerReference() {
+        // given
+        service.createAccount(DEST_ACCOUNT, CURRENCY);
+
+        // when
+        PaymentStatus deposited = service.deposit(DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, TXID);
+        PaymentStatus depositedAgain = service.deposit(DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, TXID);
+        Money afterDeposits = service.balance(DEST_ACCOUNT, CURRENCY);
+        PaymentStatus withdrawn = service.withdraw(DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, TXID);
+        PaymentStatus withdrawnAgain = service.withdraw(DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, TXID);
+
+        // then
+        assertEquals(COMPLETED, deposited);
+        assertEquals(COMPLETED, depositedAgain);
+        assertEquals(Money.parse("99.99"), afterDeposits);
+        assertEquals(COMPLETED, withdrawn);
+        assertEquals(COMPLETED, withdrawnAgain);
+        assertEquals(Money.parse("0.00"), service.balance(DEST_ACCOUNT, CURRENCY));
+        assertEquals(PaymentStatus.ERROR, service.deposit(DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, TXID));
+        assertEquals(PaymentStatus.ERROR, service.withdraw(DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, "unknown"));
     }
 
 
@@ -116,11 +163,209 @@ public class AccountServiceTest {
         assertEquals(COMPLETED, result);
 
         // then
-        BigDecimal balance = service.balance(DEST_ACCOUNT, CURRENCY);
-        assertEquals(new BigDecimal("99.99"), balance); // increased
+        Money balance = service.balance(DEST_ACCOUNT, CURRENCY);
+        assertEquals(Money.parse("99.99"), balance); // increased
+
+        Money sourceBalance = service.balance(ORIGIN_ACCOUNT, CURRENCY);
+        assertEquals(Money.parse("9900.01"), sourceBalance); // decreased
+    }
+
+    @Test
+    public void shouldNotOverdrawAccountOnConcurrentAuthorizations() throws InterruptedException {
+        // given
+        prepareAccountWithBigBalance();
+        AtomicInteger authorized = new AtomicInteger();
+        AtomicInteger txCounter = new AtomicInteger();
+
+        // when
+        // 200 payments of 99.99 requested, balance covers only 100 of them
+        runConcurrently(8, 25, () -> {
+            if (service.authorizePayment(ORIGIN_ACCOUNT, DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY,
+                    "tx-" + txCounter.incrementAndGet()) == PaymentStatus.AUTHORIZED) {
+                authorized.incrementAndGet();
+            }
+        });
+
+        // then
+        assertEquals(100, authorized.get());
+        assertEquals(Money.parse("1.00"), service.balance(ORIGIN_ACCOUNT, CURRENCY));
+    }
+
+    @Test
+    public void shouldCancelOrFinalizeTransactionOnlyOnce() throws InterruptedException {
+        // given
+        prepareAccountWithBigBalance();
+        service.createAccount(DEST_ACCOUNT, CURRENCY);
+        service.authorizePayment(ORIGIN_ACCOUNT, DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, TXID);
+        AtomicInteger succeeded = new AtomicInteger();
+        AtomicInteger counter = new AtomicInteger();
+
+        // when
+        runConcurrently(8, 10, () -> {
+            PaymentStatus status = counter.incrementAndGet() % 2 == 0 ? service.cancelPayment(TXID)
+                    : service.finalizePayment(TXID);
+            if (status != PaymentStatus.ERROR) {
+                succeeded.incrementAndGet();
+            }
+        });
+
+        // then
+        assertEquals(1, succeeded.get());
+        Money total = service.balance(ORIGIN_ACCOUNT, CURRENCY).plus(service.balance(DEST_ACCOUNT, CURRENCY));
+        assertEquals(Money.parse("10000.00"), total); // money neither lost nor duplicated
+    }
+
+    @Test
+    public void shouldFinalizeOpposingPaymentsWithoutDeadlock() throws InterruptedException {
+        // given
+        prepareAccountWithBigBalance();
+        service.createAccount(DEST_ACCOUNT, CURRENCY);
+        service.deposit(DEST_ACCOUNT, BIG_BALANCE, CURRENCY, TXID);
+        AtomicInteger counter = new AtomicInteger();
+
+        // when
+        // payments in both directions between the same accounts, finalized concurrently
+        runConcurrently(8, 100, () -> {
+            int n = counter.incrementAndGet();
+            String txId = "tx-" + n;
+            if (n % 2 == 0) {
+                service.authorizePayment(ORIGIN_ACCOUNT, DEST_ACCOUNT, Money.parse("1"), CURRENCY, txId);
+            } else {
+                service.authorizePayment(DEST_ACCOUNT, ORIGIN_ACCOUNT, Money.parse("1"), CURRENCY, txId);
+            }
+            service.finalizePayment(txId);
+        });
+
+        // then
+        assertEquals(Money.parse("10000"), service.balance(ORIGIN_ACCOUNT, CURRENCY));
+        assertEquals(Money.parse("10000"), service.balance(DEST_ACCOUNT, CURRENCY));
+    }
+
+    @Test
+    public void shouldFinalizePaymentsInBatchWithOneCreditPerDestination() {
+        // given
+        prepareAccountWithBigBalance();
+        service.createAccount(DEST_ACCOUNT, CURRENCY);
+        service.authorizePayment(ORIGIN_ACCOUNT, DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, "tx-1");
+        service.authorizePayment(ORIGIN_ACCOUNT, DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, "tx-2");
+        service.authorizePayment(ORIGIN_ACCOUNT, DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, "tx-3");
+        service.cancelPayment("tx-3");
+
+        // when
+        Map<String, PaymentStatus> results = service.finalizePayments(Arrays.asList("tx-1", "tx-2", "tx-3", "tx-4"));
+
+        // then
+        assertEquals(COMPLETED, results.get("tx-1"));
+        assertEquals(COMPLETED, results.get("tx-2"));
+        assertEquals(PaymentStatus.ERROR, results.get("tx-3")); // cancelled
+        assertEquals(PaymentStatus.ERROR, results.get("tx-4")); // unknown
+        assertEquals(Money.parse("199.98"), service.balance(DEST_ACCOUNT, CURRENCY));
+        assertEquals(PaymentStatus.ERROR, service.finalizePayment("tx-1")); // only once
+    }
+
+    @Test
+    public void shouldAuthorizePaymentsInBatchAgainstCumulativeBalance() {
+        // given
+        service.createAccount(ORIGIN_ACCOUNT, CURRENCY);
+        service.deposit(ORIGIN_ACCOUNT, Money.parse("250"), CURRENCY, TXID);
+        List<AuthorizationRequest> requests = Arrays.asList(
+                new AuthorizationRequest("tx-1", ORIGIN_ACCOUNT, DEST_ACCOUNT, Money.parse("100"), CURRENCY),
+                new AuthorizationRequest("tx-2", DEST_ACCOUNT, ORIGIN_ACCOUNT, Money.parse("1"), CURRENCY),
+                new AuthorizationRequest("tx-3", ORIGIN_ACCOUNT, DEST_ACCOUNT, Money.parse("100"), CURRENCY),
+                new AuthorizationRequest("tx-4", ORIGIN_ACCOUNT, DEST_ACCOUNT, Money.parse("100"), CURRENCY),
+                new AuthorizationRequest("tx-5", ORIGIN_ACCOUNT, DEST_ACCOUNT, Money.parse("50"), CURRENCY));
+
+        // when
+        List<PaymentStatus> results = service.authorizePayments(requests);
+
+        // then
+        // third payment of 100 doesn't fit on top of the first two, smaller one after it still does
+        assertEquals(Arrays.asList(PaymentStatus.AUTHORIZED, PaymentStatus.INVALID_ACCOUNT, PaymentStatus.AUTHORIZED,
+                PaymentStatus.DECLINED, PaymentStatus.AUTHORIZED), results);
+        assertEquals(Money.parse("0.00"), service.balance(ORIGIN_ACCOUNT, CURRENCY));
+        assertEquals(CANCELLED, service.cancelPayment("tx-5"));
+        assertEquals(PaymentStatus.ERROR, service.cancelPayment("tx-4")); // never authorized
+        assertEquals(Money.parse("50.00"), service.balance(ORIGIN_ACCOUNT, CURRENCY));
+    }
+
+    @Test
+    public void shouldCancelPaymentsInBatch() {
+        // given
+        prepareAccountWithBigBalance();
+        service.createAccount(DEST_ACCOUNT, CURRENCY);
+        service.deposit(DEST_ACCOUNT, BIG_BALANCE, CURRENCY, TXID);
+        service.authorizePayment(ORIGIN_ACCOUNT, DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, "tx-1");
+        service.authorizePayment(ORIGIN_ACCOUNT, DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, "tx-2");
+        service.authorizePayment(DEST_ACCOUNT, ORIGIN_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, "tx-3");
+        service.authorizePayment(ORIGIN_ACCOUNT, DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, "tx-4");
+        service.finalizePayment("tx-4");
+
+        // when
+        Map<String, PaymentStatus> results = service.cancelPayments(Arrays.asList("tx-1", "tx-2", "tx-3", "tx-4",
+                "tx-5"));
+
+        // then
+        assertEquals(CANCELLED, results.get("tx-1"));
+        assertEquals(CANCELLED, results.get("tx-2"));
+        assertEquals(CANCELLED, results.get("tx-3"));
+        assertEquals(PaymentStatus.ERROR, results.get("tx-4")); // finalized
+        assertEquals(PaymentStatus.ERROR, results.get("tx-5")); // unknown
+        assertEquals(Money.parse("9900.01"), service.balance(ORIGIN_ACCOUNT, CURRENCY));
+        assertEquals(Money.parse("10099.99"), service.balance(DEST_ACCOUNT, CURRENCY));
+        assertEquals(PaymentStatus.ERROR, service.cancelPayment("tx-1")); // only once
+    }
+
+    @Test
+    public void shouldBookFeeToFeeAccountOnFinalization() {
+        // given
+        prepareAccountWithBigBalance();
+        service.createAccount(DEST_ACCOUNT, CURRENCY);
+        service.authorizePayment(ORIGIN_ACCOUNT, DEST_ACCOUNT, TRANSFER_AMOUNT, Money.parse("2.50"), CURRENCY, "tx-1");
+        service.authorizePayment(ORIGIN_ACCOUNT, DEST_ACCOUNT, TRANSFER_AMOUNT, Money.parse("2.50"), CURRENCY, "tx-2");
+        service.authorizePayment(ORIGIN_ACCOUNT, DEST_ACCOUNT, TRANSFER_AMOUNT, Money.parse("2.50"), CURRENCY, "tx-3");
+
+        // when
+        service.finalizePayment("tx-1");
+        service.finalizePayments(Arrays.asList("tx-2", "tx-3"));
+
+        // then
+        // payee gets amounts only
+        assertEquals(Money.parse("9692.53"), service.balance(ORIGIN_ACCOUNT, CURRENCY));
+        assertEquals(Money.parse("299.97"), service.balance(DEST_ACCOUNT, CURRENCY));
+        assertEquals(Money.parse("7.50"), service.balance(AccountService.feeAccount(CURRENCY), CURRENCY));
+    }
+
+    @Test
+    public void shouldForgetOldestSettledTransactionsBeyondRetention() {
+        // given
+        AccountServiceImpl ledger = new AccountServiceImpl("test", new NoTransactionLog(), 2);
+        ledger.createAccount(ORIGIN_ACCOUNT, CURRENCY);
+        ledger.deposit(ORIGIN_ACCOUNT, BIG_BALANCE, CURRENCY, TXID);
+        ledger.createAccount(DEST_ACCOUNT, CURRENCY);
+        for (int i = 1; i <= 4; i++) {
+            ledger.authorizePayment(ORIGIN_ACCOUNT, DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, "tx-" + i);
+        }
+
+        // when
+        ledger.finalizePayment("tx-1");
+        ledger.cancelPayment("tx-2");
+        ledger.finalizePayments(Arrays.asList("tx-3", "tx-4"));
+
+        // then
+        // tx-1 and tx-2 forgotten, money isn't touched
+        assertEquals(2, ledger.transactionCount());
+        assertEquals(PaymentStatus.ERROR, ledger.cancelPayment("tx-4"));
+        assertEquals(Money.parse("9700.03"), ledger.balance(ORIGIN_ACCOUNT, CURRENCY));
+        assertEquals(Money.parse("299.97"), ledger.balance(DEST_ACCOUNT, CURRENCY));
+    }
 
-        BigDecimal sourceBalance = service.balance(ORIGIN_ACCOUNT, CURRENCY);
-        assertEquals(new BigDecimal("9900.01"), sourceBalance); // decreased
+    private void runConcurrently(int threads, int iterations, Runnable operation) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads * iterations; i++) {
+            executor.submit(operation);
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
     }
 
     private void prepareAccountWithBigBalance() {
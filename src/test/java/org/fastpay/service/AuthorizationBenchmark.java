@@ -0,0 +1,99 @@
+package org.fastpay.service;
+
+import org.fastpay.entity.Money;
+import org.fastpay.persistence.NoTransactionLog;
+import org.fastpay.persistence.TransactionLog;
+import org.fastpay.persistence.WriteAheadLog;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Throughput of batch authorization against authorizePayment called in a loop, for payroll-like uploads:
+// thousands of payments from few source accounts. Not a unit test, run manually:
+//   mvn test-compile exec:java -Dexec.mainClass=org.fastpay.service.AuthorizationBenchmark -Dexec.classpathScope=test
+public class AuthorizationBenchmark {
+
+    private static final int BATCH_SIZE = 10_000;
+    private static final int SOURCE_ACCOUNTS = 4;
+    private static final int BATCHES = 5;
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws IOException {
+        System.out.printf("batch size: %d, source accounts: %d%n%-28s %14s %14s%n", BATCH_SIZE, SOURCE_ACCOUNTS,
+                "ledger", "loop, pay/s", "batch, pay/s");
+        for (boolean durable : new boolean[]{false, true}) {
+            String mode = durable ? ", fsync log" : ", no log";
+            compare("striped" + mode, durable, log -> new AccountServiceImpl("benchmark", log));
+            compare("sequenced" + mode, durable, log -> new SequencedAccountService("benchmark", log,
+                    Runtime.getRuntime().availableProcessors(), SequencedAccountService.DEFAULT_RING_SIZE));
+        }
+    }
+
+    private interface LedgerFactory {
+        AccountService create(TransactionLog log);
+    }
+
+    private static void compare(String name, boolean durable, LedgerFactory factory) throws IOException {
+        double loop = 0;
+        double batch = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            loop = Math.max(loop, run(durable, factory, false));
+            batch = Math.max(batch, run(durable, factory, true));
+        }
+        System.out.printf("%-28s %14.0f %14.0f%n", name, loop, batch);
+    }
+
+    // authorized payments per second
+    private static double run(boolean durable, LedgerFactory factory, boolean batched) throws IOException {
+        Path directory = durable ? Files.createTempDirectory("fastpay-benchmark") : null;
+        WriteAheadLog wal = durable ? new WriteAheadLog(directory, true, 64L << 20) : null;
+        AccountService service = factory.create(durable ? wal : new NoTransactionLog());
+        if (wal != null) {
+            wal.recover();
+        }
+        for (int i = 0; i < SOURCE_ACCOUNTS; i++) {
+            service.createAccount(account(i), "PLN");
+            service.deposit(account(i), Money.parse("1000000000"), "PLN", "init");
+        }
+
+        long txCounter = 0;
+        long elapsed = 0;
+        for (int b = 0; b < BATCHES; b++) {
+            List<AuthorizationRequest> requests = new ArrayList<>(BATCH_SIZE);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                requests.add(new AuthorizationRequest(Long.toString(++txCounter), account(i % SOURCE_ACCOUNTS),
+                        String.format("CZ%022d", i), Money.ofMinor(100L + i, 2), "PLN"));
+            }
+            long begin = System.nanoTime();
+            if (batched) {
+                service.authorizePayments(requests);
+            } else {
+                for (AuthorizationRequest request : requests) {
+                    service.authorizePayment(request.getSource(), request.getDestination(), request.getAmount(),
+                            request.getCurrency(), request.getTxId());
+                }
+            }
+            elapsed += System.nanoTime() - begin;
+        }
+
+        if (service instanceof SequencedAccountService) {
+            ((SequencedAccountService) service).close();
+        }
+        if (wal != null) {
+            wal.close();
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+        return BATCHES * (double) BATCH_SIZE * 1e9 / elapsed;
+    }
+
+    private static String account(int index) {
+        return String.format("PL%026d", index);
+    }
+}
@@ -0,0 +1,96 @@
+package org.fastpay.service;
+
+import org.fastpay.entity.Money;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CommissionRulesTest {
+
+    private static final Money AMOUNT = Money.parse("1000.00");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final CommissionRules rules = new CommissionRules(null, 0L);
+
+    @Test
+    public void shouldChargeNothingWithinSameBank() {
+        // same 8-digit German bank code
+        assertEquals(Money.parse("0"), fee("DE89370400440532013000", "DE44370400440532013001"));
+    }
+
+    @Test
+    public void shouldChargeByLocationOfBanks() {
+        assertEquals(Money.parse("10.00"), fee("DE89370400440532013000", "DE02120300000000202051")); // same country
+        assertEquals(Money.parse("25.00"), fee("PL61109010140000071219812874", "CZ6508000000192000145399")); // EEA
+        assertEquals(Money.parse("40.00"), fee("PL61109010140000071219812874", "GB29NWBK60161331926819")); // other
+    }
+
+    @Test
+    public void shouldFindBankCodeAfterCheckCharacter() {
+        // Italian bank code follows national check character: same bank, different check character
+        assertEquals(Money.parse("0"), fee("IT60X0542811101000000123456", "IT40S0542811101000000654321"));
+        assertEquals(Money.parse("10.00"), fee("IT60X0542811101000000123456", "IT60X0306909606100000063271"));
+    }
+
+    @Test
+    public void shouldRoundToMinorUnitOfCurrency() {
+        Money fee = rules.commission("PL61109010140000071219812874", "CZ6508000000192000145399",
+                Money.parse("340.23"), "PLN");
+        assertEquals(Money.parse("8.51"), fee); // 8.50575
+    }
+
+    @Test
+    public void shouldKeepPreviousRulesWhenReloadFails() throws IOException {
+        // given
+        Path file = folder.newFile().toPath();
+        write(file, "fee.sameBank=0\nfee.sameCountry=0.5\nfee.eea=1\nfee.other=3\neea=PL,CZ\n");
+        CommissionRules reloadable = new CommissionRules(file, 0L);
+        Money before = reloadable.commission("PL61109010140000071219812874", "CZ6508000000192000145399", AMOUNT, "PLN");
+
+        // when
+        write(file, "fee.sameBank=0\nfee.sameCountry=abc\n");
+        boolean reloaded = reloadable.refresh();
+
+        // then
+        assertEquals(Money.parse("10.00"), before);
+        assertFalse(reloaded);
+        assertEquals(Money.parse("10.00"),
+                reloadable.commission("PL61109010140000071219812874", "CZ6508000000192000145399", AMOUNT, "PLN"));
+    }
+
+    @Test
+    public void shouldApplyReloadedRules() throws IOException {
+        // given
+        Path file = folder.newFile().toPath();
+        write(file, "fee.sameBank=0\nfee.sameCountry=0.5\nfee.eea=1\nfee.other=3\neea=PL,CZ\n");
+        CommissionRules reloadable = new CommissionRules(file, 0L);
+
+        // when
+        write(file, "fee.sameBank=0\nfee.sameCountry=0.5\nfee.eea=1\nfee.other=3\neea=PL\n");
+        assertTrue(reloadable.refresh());
+
+        // then
+        // CZ no longer in the zone
+        assertEquals(Money.parse("30.00"),
+                reloadable.commission("PL61109010140000071219812874", "CZ6508000000192000145399", AMOUNT, "PLN"));
+    }
+
+    private Money fee(String source, String destination) {
+        return rules.commission(source, destination, AMOUNT, "EUR");
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,76 @@
+package org.fastpay.service;
+
+import org.fastpay.entity.Money;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class ExchangeRatesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldConvertThroughBaseCurrency() throws IOException {
+        // given
+        ExchangeRates rates = new ExchangeRates(new FileRateProvider(ratesFile("EUR=1\nUSD=1.25\nJPY=160\n")), 0L);
+
+        // when
+        Money yen = rates.convert(Money.parse("10.00"), "USD", "JPY").getAmount();
+        Money dollars = rates.convert(Money.parse("1001"), "JPY", "USD").getAmount();
+
+        // then
+        assertEquals(Money.parse("1280"), yen);
+        assertEquals(0, yen.getExponent()); // minor unit of yen
+        assertEquals(Money.parse("7.82"), dollars); // 7.8203125 rounded to cents
+    }
+
+    @Test
+    public void shouldKeepPreviousRatesWhenRefreshFails() throws IOException {
+        // given
+        Path file = ratesFile("EUR=1\nPLN=4.00\n");
+        ExchangeRates rates = new ExchangeRates(new FileRateProvider(file), 0L);
+
+        // when
+        Files.write(file, "EUR=1\nPLN=four\n".getBytes(StandardCharsets.UTF_8));
+        boolean refreshed = rates.refresh();
+
+        // then
+        assertFalse(refreshed);
+        assertEquals(new BigDecimal("4"), rates.convert(Money.parse("1"), "EUR", "PLN").getRate());
+    }
+
+    @Test
+    public void shouldUseNewRatesAfterRefresh() throws IOException {
+        // given
+        Path file = ratesFile("EUR=1\nPLN=4.00\n");
+        ExchangeRates rates = new ExchangeRates(new FileRateProvider(file), 0L);
+
+        // when
+        Files.write(file, "EUR=1\nPLN=4.50\n".getBytes(StandardCharsets.UTF_8));
+        assertTrue(rates.refresh());
+
+        // then
+        assertEquals(Money.parse("45.00"), rates.convert(Money.parse("10"), "EUR", "PLN").getAmount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUnknownCurrency() throws IOException {
+        ExchangeRates rates = new ExchangeRates(new FileRateProvider(ratesFile("EUR=1\n")), 0L);
+        rates.convert(Money.parse("1"), "EUR", "GBP");
+    }
+
+    private Path ratesFile(String content) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
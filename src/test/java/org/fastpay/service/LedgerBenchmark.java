@@ -0,0 +1,81 @@
+package org.fastpay.service;
+
+import org.fastpay.entity.Money;
+import org.fastpay.persistence.NoTransactionLog;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Throughput of lock-based and sequenced ledger under contention, to choose fastpay.ledger for given workload.
+// Not a unit test, run manually:
+//   mvn test-compile exec:java -Dexec.mainClass=org.fastpay.service.LedgerBenchmark -Dexec.classpathScope=test
+// every client thread authorizes and finalizes payments between accounts picked from small set of hot accounts
+public class LedgerBenchmark {
+
+    private static final int[] HOT_ACCOUNTS = {1, 4, 64};
+    private static final int OPERATIONS_PER_THREAD = 100_000;
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+        int partitions = Runtime.getRuntime().availableProcessors();
+        System.out.printf("client threads: %d, partitions: %d%n%12s %16s %16s%n", threads, partitions,
+                "hot accounts", "striped, ops/s", "sequenced, ops/s");
+
+        for (int accounts : HOT_ACCOUNTS) {
+            double striped = 0;
+            double sequenced = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                striped = Math.max(striped, run(new AccountServiceImpl(), accounts, threads));
+                SequencedAccountService service = new SequencedAccountService("benchmark", new NoTransactionLog(),
+                        partitions, SequencedAccountService.DEFAULT_RING_SIZE);
+                sequenced = Math.max(sequenced, run(service, accounts, threads));
+                service.close();
+            }
+            System.out.printf("%12d %16.0f %16.0f%n", accounts, striped, sequenced);
+        }
+    }
+
+    // best of rounds, operations (authorize + finalize) per second
+    private static double run(AccountService service, int accounts, int threads) throws InterruptedException {
+        for (int i = 0; i < accounts; i++) {
+            service.createAccount(account(i), "PLN");
+            service.deposit(account(i), Money.parse("1000000000"), "PLN", "init");
+        }
+
+        AtomicLong txCounter = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            Thread client = new Thread(() -> {
+                try {
+                    start.await();
+                    Money amount = Money.ofMinor(1L, 2);
+                    for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                        String txId = Long.toString(txCounter.incrementAndGet());
+                        String source = account((seed + i) % accounts);
+                        String destination = account((seed + i + 1) % accounts);
+                        service.authorizePayment(source, destination, amount, "PLN", txId);
+                        service.finalizePayment(txId);
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+            client.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        return threads * (double) OPERATIONS_PER_THREAD * 1e9 / elapsed;
+    }
+
+    private static String account(int index) {
+        return String.format("PL%026d", index);
+    }
+}
@@ -0,0 +1,320 @@
+package org.fastpay.service;
+
+import org.fastpay.entity.Money;
+import org.fastpay.entity.Transfer;
+import org.fastpay.entity.TransferDto;
+import org.fastpay.entity.TransferStatus;
+import org.fastpay.persistence.NoTransactionLog;
+import org.fastpay.persistence.TransactionLog;
+import org.fastpay.persistence.WriteAheadLog;
+import org.fastpay.repository.TransferRepository;
+import org.fastpay.repository.TransferRepositoryImpl;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class SagaOrchestratorTest {
+
+    private static final String SOURCE = "PL61109010140000071219812874";
+    // not among accounts ledgers start with
+    private static final String DESTINATION = "CZ3808000000192000145400";
+    private static final String CURRENCY = "PLN";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SagaOrchestrator saga;
+
+    @After
+    public void cleanup() {
+        if (saga != null) {
+            saga.close();
+        }
+    }
+
+    @Test
+    public void shouldCompleteTransferWhenEveryStepSucceeds() {
+        // given
+        AccountService sender = new AccountServiceImpl();
+        AccountService recipient = new AccountServiceImpl();
+        prepareAccounts(sender, recipient, true);
+        TransferService service = transferService(sender, recipient, new TransferRepositoryImpl(), 5);
+        Transfer transfer = service.createTransfer(transferData());
+
+        // when
+        TransferStatus result = service.executeTransfer(transfer.getId());
+
+        // then
+        assertEquals(TransferStatus.COMPLETED, result);
+        assertEquals(TransferStatus.COMPLETED, service.getTransferDetails(transfer.getId()).getStatus());
+        assertEquals(Money.parse("340.23"), recipient.balance(DESTINATION, CURRENCY));
+        assertEquals(Money.parse("651.26"), sender.balance(SOURCE, CURRENCY));
+        assertEquals(0, saga.activeSagas());
+    }
+
+    @Test
+    public void shouldRetryFailedFinalizationInBackground() throws InterruptedException {
+        // given
+        AccountService sender = spy(new AccountServiceImpl());
+        AccountService recipient = new AccountServiceImpl();
+        prepareAccounts(sender, recipient, true);
+        doThrow(new IllegalStateException("Bank unavailable")).doThrow(new IllegalStateException("Bank unavailable"))
+                .doCallRealMethod().when(sender).finalizePayment(anyString());
+        TransferService service = transferService(sender, recipient, new TransferRepositoryImpl(), 5);
+        Transfer transfer = service.createTransfer(transferData());
+
+        // when
+        TransferStatus result = service.executeTransfer(transfer.getId());
+        TransferStatus finalStatus = awaitFinalStatus(service, transfer.getId());
+
+        // then
+        assertEquals(TransferStatus.PROCESSING, result);
+        assertEquals(TransferStatus.COMPLETED, finalStatus);
+        verify(sender, times(3)).finalizePayment(transfer.getId());
+        assertEquals(Money.parse("340.23"), recipient.balance(DESTINATION, CURRENCY)); // deposited once
+        assertEquals(0, saga.activeSagas());
+    }
+
+    @Test
+    public void shouldCancelPaymentWhenDepositKeepsFailing() throws InterruptedException {
+        // given
+        AccountService sender = new AccountServiceImpl();
+        AccountService recipient = new AccountServiceImpl();
+        sender.createAccount(SOURCE, CURRENCY);
+        sender.deposit(SOURCE, Money.parse("1000"), CURRENCY, "initial");
+        // no destination account in recipient's bank - every deposit is declined
+        TransferService service = transferService(sender, recipient, new TransferRepositoryImpl(), 3);
+        Transfer transfer = service.createTransfer(transferData());
+
+        // when
+        TransferStatus result = service.executeTransfer(transfer.getId());
+        TransferStatus finalStatus = awaitFinalStatus(service, transfer.getId());
+
+        // then
+        assertEquals(TransferStatus.PROCESSING, result);
+        assertEquals(TransferStatus.CANCELLED, finalStatus);
+        assertEquals(Money.parse("1000"), sender.balance(SOURCE, CURRENCY)); // hold released
+    }
+
+    @Test
+    public void shouldTakeBackDepositAppliedDespiteErrorWhenDepositKeepsFailing() throws InterruptedException {
+        // given
+        AccountService sender = new AccountServiceImpl();
+        AccountService recipient = spy(new AccountServiceImpl());
+        prepareAccounts(sender, recipient, true);
+        // recipient's bank makes the deposit, but every response is lost
+        doAnswer(invocation -> {
+            invocation.callRealMethod();
+            throw new IllegalStateException("Connection reset");
+        }).when(recipient).deposit(anyString(), anyObject(), anyString(), anyString());
+        TransferService service = transferService(sender, recipient, new TransferRepositoryImpl(), 3);
+        Transfer transfer = service.createTransfer(transferData());
+
+        // when
+        TransferStatus result = service.executeTransfer(transfer.getId());
+        TransferStatus finalStatus = awaitFinalStatus(service, transfer.getId());
+
+        // then
+        assertEquals(TransferStatus.PROCESSING, result);
+        assertEquals(TransferStatus.CANCELLED, finalStatus);
+        assertEquals(Money.parse("0"), recipient.balance(DESTINATION, CURRENCY)); // deposit taken back
+        assertEquals(Money.parse("1000"), sender.balance(SOURCE, CURRENCY)); // hold released
+        assertEquals(0, saga.activeSagas());
+    }
+
+    @Test
+    public void shouldReverseDepositWhenFinalizationKeepsFailing() throws InterruptedException {
+        // given
+        AccountService sender = new AccountServiceImpl();
+        AccountService recipient = new AccountServiceImpl();
+        // no destination account in sender's bank - every finalization is declined
+        prepareAccounts(sender, recipient, false);
+        TransferService service = transferService(sender, recipient, new TransferRepositoryImpl(), 3);
+        Transfer transfer = service.createTransfer(transferData());
+
+        // when
+        service.executeTransfer(transfer.getId());
+        TransferStatus finalStatus = awaitFinalStatus(service, transfer.getId());
+
+        // then
+        assertEquals(TransferStatus.CANCELLED, finalStatus);
+        assertEquals(Money.parse("0"), recipient.balance(DESTINATION, CURRENCY)); // deposit taken back
+        assertEquals(Money.parse("1000"), sender.balance(SOURCE, CURRENCY));
+    }
+
+    @Test
+    public void shouldResumeUnfinishedSagaAfterRestart() throws InterruptedException {
+        // given
+        Path directory = folder.getRoot().toPath();
+        WriteAheadLog log = new WriteAheadLog(directory, false, 1 << 20);
+        AccountService sender = new AccountServiceImpl(TransferServiceImpl.SENDER, log);
+        AccountService recipient = new AccountServiceImpl(TransferServiceImpl.RECIPIENT, log);
+        TransferRepository repository = new TransferRepositoryImpl(log);
+        // finalization fails and isn't retried before restart
+        saga = new SagaOrchestrator(sender, recipient, repository, new HoldTimer(0L), log, 1, 60000L, 60000L, 5);
+        TransferService service = transferService(sender, repository);
+        log.recover();
+        prepareAccounts(sender, recipient, false);
+        Transfer transfer = service.createTransfer(transferData());
+        assertEquals(TransferStatus.PROCESSING, service.executeTransfer(transfer.getId()));
+        saga.close();
+        log.close();
+
+        // when
+        WriteAheadLog reopened = new WriteAheadLog(directory, false, 1 << 20);
+        AccountService recoveredSender = new AccountServiceImpl(TransferServiceImpl.SENDER, reopened);
+        AccountService recoveredRecipient = new AccountServiceImpl(TransferServiceImpl.RECIPIENT, reopened);
+        TransferRepository recoveredRepository = new TransferRepositoryImpl(reopened);
+        saga = new SagaOrchestrator(recoveredSender, recoveredRecipient, recoveredRepository, new HoldTimer(0L),
+                reopened, 1, 1L, 10L, 5);
+        reopened.recover();
+        recoveredSender.createAccount(DESTINATION, CURRENCY);
+        saga.resume();
+        TransferStatus finalStatus = awaitFinalStatus(transferService(recoveredSender, recoveredRepository),
+                transfer.getId());
+
+        // then
+        assertEquals(TransferStatus.COMPLETED, finalStatus);
+        // deposit was done before restart and isn't repeated
+        assertEquals(Money.parse("340.23"), recoveredRecipient.balance(DESTINATION, CURRENCY));
+        assertEquals(Money.parse("651.26"), recoveredSender.balance(SOURCE, CURRENCY));
+        assertEquals(0, saga.activeSagas());
+        reopened.close();
+    }
+
+    @Test
+    public void shouldNotRepeatDepositMadeBeforeCrash() throws InterruptedException {
+        // given
+        Path directory = folder.getRoot().toPath();
+        WriteAheadLog log = new WriteAheadLog(directory, false, 1 << 20);
+        AccountService sender = new AccountServiceImpl(TransferServiceImpl.SENDER, log);
+        AccountService recipient = spy(new AccountServiceImpl(TransferServiceImpl.RECIPIENT, log));
+        // recipient's bank makes the deposit, but its response is lost; saga doesn't retry before restart
+        doAnswer(invocation -> {
+            invocation.callRealMethod();
+            throw new IllegalStateException("Connection reset");
+        }).when(recipient).deposit(anyString(), anyObject(), anyString(), anyString());
+        TransferRepository repository = new TransferRepositoryImpl(log);
+        saga = new SagaOrchestrator(sender, recipient, repository, new HoldTimer(0L), log, 1, 60000L, 60000L, 5);
+        TransferService service = transferService(sender, repository);
+        log.recover();
+        prepareAccounts(sender, recipient, true);
+        Transfer transfer = service.createTransfer(transferData());
+        assertEquals(TransferStatus.PROCESSING, service.executeTransfer(transfer.getId()));
+        saga.close();
+        log.close();
+
+        // when
+        WriteAheadLog reopened = new WriteAheadLog(directory, false, 1 << 20);
+        AccountService recoveredSender = new AccountServiceImpl(TransferServiceImpl.SENDER, reopened);
+        AccountService recoveredRecipient = new AccountServiceImpl(TransferServiceImpl.RECIPIENT, reopened);
+        TransferRepository recoveredRepository = new TransferRepositoryImpl(reopened);
+        saga = new SagaOrchestrator(recoveredSender, recoveredRecipient, recoveredRepository, new HoldTimer(0L),
+                reopened, 1, 1L, 10L, 5);
+        reopened.recover();
+        saga.resume();
+        TransferStatus finalStatus = awaitFinalStatus(transferService(recoveredSender, recoveredRepository),
+                transfer.getId());
+
+        // then
+        assertEquals(TransferStatus.COMPLETED, finalStatus);
+        // deposit step ran again after restart, recipient's bank applied it once
+        assertEquals(Money.parse("340.23"), recoveredRecipient.balance(DESTINATION, CURRENCY));
+        assertEquals(Money.parse("651.26"), recoveredSender.balance(SOURCE, CURRENCY));
+        assertEquals(0, saga.activeSagas());
+        reopened.close();
+    }
+
+    @Test
+    public void shouldTakeFinalizationMadeBeforeCrashAsDone() throws InterruptedException {
+        // given
+        Path directory = folder.getRoot().toPath();
+        WriteAheadLog log = new WriteAheadLog(directory, false, 1 << 20);
+        AccountService sender = spy(new AccountServiceImpl(TransferServiceImpl.SENDER, log));
+        AccountService recipient = new AccountServiceImpl(TransferServiceImpl.RECIPIENT, log);
+        // sender's bank finalizes the payment, but its response is lost; saga doesn't retry before restart
+        doAnswer(invocation -> {
+            invocation.callRealMethod();
+            throw new IllegalStateException("Connection reset");
+        }).when(sender).finalizePayment(anyString());
+        TransferRepository repository = new TransferRepositoryImpl(log);
+        saga = new SagaOrchestrator(sender, recipient, repository, new HoldTimer(0L), log, 1, 60000L, 60000L, 5);
+        TransferService service = transferService(sender, repository);
+        log.recover();
+        prepareAccounts(sender, recipient, true);
+        Transfer transfer = service.createTransfer(transferData());
+        assertEquals(TransferStatus.PROCESSING, service.executeTransfer(transfer.getId()));
+        saga.close();
+        log.close();
+
+        // when
+        WriteAheadLog reopened = new WriteAheadLog(directory, false, 1 << 20);
+        AccountService recoveredSender = new AccountServiceImpl(TransferServiceImpl.SENDER, reopened);
+        AccountService recoveredRecipient = new AccountServiceImpl(TransferServiceImpl.RECIPIENT, reopened);
+        TransferRepository recoveredRepository = new TransferRepositoryImpl(reopened);
+        saga = new SagaOrchestrator(recoveredSender, recoveredRecipient, recoveredRepository, new HoldTimer(0L),
+                reopened, 1, 1L, 10L, 5);
+        reopened.recover();
+        saga.resume();
+        TransferStatus finalStatus = awaitFinalStatus(transferService(recoveredSender, recoveredRepository),
+                transfer.getId());
+
+        // then
+        // repeated finalization is refused, payment is finalized already - no compensation
+        assertEquals(TransferStatus.COMPLETED, finalStatus);
+        assertEquals(Money.parse("340.23"), recoveredRecipient.balance(DESTINATION, CURRENCY));
+        assertEquals(Money.parse("340.23"), recoveredSender.balance(DESTINATION, CURRENCY));
+        assertEquals(Money.parse("651.26"), recoveredSender.balance(SOURCE, CURRENCY));
+        assertEquals(0, saga.activeSagas());
+        reopened.close();
+    }
+
+    private TransferService transferService(AccountService sender, AccountService recipient,
+                                            TransferRepository repository, int maxAttempts) {
+        TransactionLog log = new NoTransactionLog();
+        saga = new SagaOrchestrator(sender, recipient, repository, new HoldTimer(0L), log, 1, 1L, 10L, maxAttempts);
+        return transferService(sender, repository);
+    }
+
+    private TransferService transferService(AccountService sender, TransferRepository repository) {
+        return new TransferServiceBuilder(sender).repository(repository).settlement(saga).build();
+    }
+
+    // finalization in sender's bank needs destination account there as well
+    private static void prepareAccounts(AccountService sender, AccountService recipient, boolean senderDestination) {
+        sender.createAccount(SOURCE, CURRENCY);
+        sender.deposit(SOURCE, Money.parse("1000"), CURRENCY, "initial");
+        if (senderDestination) {
+            sender.createAccount(DESTINATION, CURRENCY);
+        }
+        recipient.createAccount(DESTINATION, CURRENCY);
+    }
+
+    private static TransferStatus awaitFinalStatus(TransferService service, String txId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.getTransferDetails(txId).getStatus() == TransferStatus.PROCESSING
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return service.getTransferDetails(txId).getStatus();
+    }
+
+    // PL -> CZ within EEA: 340.23 with 8.51 commission
+    private static TransferDto transferData() {
+        TransferDto transferData = new TransferDto();
+        transferData.setSource(SOURCE);
+        transferData.setDestination(DESTINATION);
+        transferData.setAmount(Money.parse("340.23"));
+        transferData.setCurrency(CURRENCY);
+        transferData.setTitle("przelew");
+        return transferData;
+    }
+}
@@ -0,0 +1,303 @@
+package org.fastpay.service;
+
+import org.fastpay.entity.Money;
+import org.fastpay.persistence.NoTransactionLog;
+import org.fastpay.persistence.WriteAheadLog;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SequencedAccountServiceTest {
+
+    private static final String ORIGIN_ACCOUNT = "PL10000000000000000000";
+    private static final String DEST_ACCOUNT = "GB99999919000000999999";
+    private static final String CURRENCY = "GBP";
+    private static final Money BIG_BALANCE = Money.parse("10000");
+    private static final Money TRANSFER_AMOUNT = Money.parse("99.99");
+    private static final String TXID = "00097fb3-3ddf-4f25-bdb4-4302ec24c2a4";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SequencedAccountService service = new SequencedAccountService("test", new NoTransactionLog(), 4, 64);
+
+    @After
+    public void cleanup() {
+        service.close();
+    }
+
+    @Test
+    public void shouldAuthorizeCancelAndFinalize() {
+        // given
+        prepareAccounts();
+
+        // when
+        PaymentStatus authorized = service.authorizePayment(ORIGIN_ACCOUNT, DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, TXID);
+        PaymentStatus cancelled = service.cancelPayment(TXID);
+        PaymentStatus cancelledAgain = service.cancelPayment(TXID);
+        service.authorizePayment(ORIGIN_ACCOUNT, DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, "second");
+        PaymentStatus finalized = service.finalizePayment("second");
+
+        // then
+        assertEquals(PaymentStatus.AUTHORIZED, authorized);
+        assertEquals(PaymentStatus.CANCELLED, cancelled);
+        assertEquals(PaymentStatus.ERROR, cancelledAgain);
+        assertEquals(PaymentStatus.COMPLETED, finalized);
+        assertEquals(Money.parse("9900.01"), service.balance(ORIGIN_ACCOUNT, CURRENCY));
+        assertEquals(Money.parse("99.99"), service.balance(DEST_ACCOUNT, CURRENCY));
+    }
+
+    @Test
+    public void shouldBookFeeToFeeAccountOnFinalization() {
+        // given
+        prepareAccounts();
+        service.authorizePayment(ORIGIN_ACCOUNT, DEST_ACCOUNT, TRANSFER_AMOUNT, Money.parse("2.50"), CURRENCY, "tx-1");
+        service.authorizePayment(ORIGIN_ACCOUNT, DEST_ACCOUNT, TRANSFER_AMOUNT, Money.parse("2.50"), CURRENCY, "tx-2");
+
+        // when
+        PaymentStatus finalized = service.finalizePayment("tx-1");
+        PaymentStatus cancelled = service.cancelPayment("tx-2");
+
+        // then
+        assertEquals(PaymentStatus.COMPLETED, finalized);
+        assertEquals(PaymentStatus.CANCELLED, cancelled);
+        assertEquals(Money.parse("9897.51"), service.balance(ORIGIN_ACCOUNT, CURRENCY));
+        assertEquals(Money.parse("99.99"), service.balance(DEST_ACCOUNT, CURRENCY));
+        assertEquals(Money.parse("2.50"), service.balance(AccountService.feeAccount(CURRENCY), CURRENCY));
+    }
+
+    @Test
+    public void shouldForgetOldestSettledPaymentsBeyondRetention() {
+        // given
+        service.close();
+        service = new SequencedAccountService("test", new NoTransactionLog(), 1, 64, 2);
+        prepareAccounts();
+        for (int i = 1; i <= 4; i++) {
+            service.authorizePayment(ORIGIN_ACCOUNT, DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, "tx-" + i);
+        }
+
+        // when
+        service.finalizePayment("tx-1");
+        service.cancelPayment("tx-2");
+        service.finalizePayment("tx-3");
+        service.cancelPayment("tx-4");
+
+        // then
+        assertEquals(2, service.transactionCount());
+        assertEquals(PaymentStatus.ERROR, service.finalizePayment("tx-4"));
+        assertEquals(Money.parse("9800.02"), service.balance(ORIGIN_ACCOUNT, CURRENCY));
+        assertEquals(Money.parse("199.98"), service.balance(DEST_ACCOUNT, CURRENCY));
+    }
+
+    @Test
+    public void shouldWithdrawDepositedAmountOnlyIfStillOnAccount() {
+        // given
+        prepareAccounts();
+        service.deposit(DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, TXID);
+        service.authorizePayment(DEST_ACCOUNT, ORIGIN_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, "spending");
+
+        // when
+        PaymentStatus withdrawn = service.withdraw(DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, TXID);
+
+        // then
+        assertEquals(PaymentStatus.DECLINED, withdrawn);
+        assertEquals(Money.parse("0"), service.balance(DEST_ACCOUNT, CURRENCY));
+    }
+
+    @Test
+    public void shouldApplyDepositAndItsWithdrawalOncePerReference() {
+        // given
+        prepareAccounts();
+
+        // when
+        PaymentStatus deposited = service.deposit(DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, "credit");
+        PaymentStatus depositedAgain = service.deposit(DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, "credit");
+        PaymentStatus withdrawn = service.withdraw(DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, "credit");
+        PaymentStatus withdrawnAgain = service.withdraw(DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, "credit");
+
+        // then
+        assertEquals(PaymentStatus.COMPLETED, deposited);
+        assertEquals(PaymentStatus.COMPLETED, depositedAgain);
+        assertEquals(PaymentStatus.COMPLETED, withdrawn);
+        assertEquals(PaymentStatus.COMPLETED, withdrawnAgain);
+        assertEquals(Money.parse("0"), service.balance(DEST_ACCOUNT, CURRENCY));
+        assertEquals(PaymentStatus.ERROR, service.deposit(DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, "credit"));
+        assertEquals(PaymentStatus.ERROR, service.withdraw(DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, "unknown"));
+    }
+
+    @Test
+    public void shouldDeclineUnknownAccountAndInsufficientFunds() {
+        service.createAccount(ORIGIN_ACCOUNT, CURRENCY);
+
+        assertEquals(PaymentStatus.INVALID_ACCOUNT,
+                service.authorizePayment(DEST_ACCOUNT, ORIGIN_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, TXID));
+        assertEquals(PaymentStatus.DECLINED,
+                service.authorizePayment(ORIGIN_ACCOUNT, DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, TXID));
+        assertEquals(PaymentStatus.DECLINED, service.deposit(DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, TXID));
+    }
+
+    @Test
+    public void shouldKeepMoneyOnConcurrentPaymentsBetweenPartitions() throws InterruptedException {
+        // given
+        prepareAccounts();
+        service.deposit(DEST_ACCOUNT, BIG_BALANCE, CURRENCY, TXID);
+        AtomicInteger counter = new AtomicInteger();
+
+        // when
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 800; i++) {
+            executor.submit(() -> {
+                int n = counter.incrementAndGet();
+                String txId = "tx-" + n;
+                if (n % 2 == 0) {
+                    service.authorizePayment(ORIGIN_ACCOUNT, DEST_ACCOUNT, Money.parse("1"), CURRENCY, txId);
+                } else {
+                    service.authorizePayment(DEST_ACCOUNT, ORIGIN_ACCOUNT, Money.parse("1"), CURRENCY, txId);
+                }
+                if (n % 3 == 0) {
+                    service.cancelPayment(txId);
+                } else {
+                    service.finalizePayment(txId);
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        // then
+        assertEquals(Money.parse("10000"), service.balance(ORIGIN_ACCOUNT, CURRENCY));
+        assertEquals(Money.parse("10000"), service.balance(DEST_ACCOUNT, CURRENCY));
+    }
+
+    @Test
+    public void shouldAuthorizePaymentsOfManyAccountsInBatch() {
+        // given
+        prepareAccounts();
+        service.deposit(DEST_ACCOUNT, Money.parse("150"), CURRENCY, TXID);
+        List<AuthorizationRequest> requests = Arrays.asList(
+                new AuthorizationRequest("tx-1", DEST_ACCOUNT, ORIGIN_ACCOUNT, Money.parse("100"), CURRENCY),
+                new AuthorizationRequest("tx-2", ORIGIN_ACCOUNT, DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY),
+                new AuthorizationRequest("tx-3", DEST_ACCOUNT, ORIGIN_ACCOUNT, Money.parse("100"), CURRENCY),
+                new AuthorizationRequest("tx-4", "unknown", ORIGIN_ACCOUNT, TRANSFER_AMOUNT, CURRENCY));
+
+        // when
+        List<PaymentStatus> results = service.authorizePayments(requests);
+
+        // then
+        assertEquals(Arrays.asList(PaymentStatus.AUTHORIZED, PaymentStatus.AUTHORIZED, PaymentStatus.DECLINED,
+                PaymentStatus.INVALID_ACCOUNT), results);
+        assertEquals(Money.parse("9900.01"), service.balance(ORIGIN_ACCOUNT, CURRENCY));
+        assertEquals(Money.parse("50.00"), service.balance(DEST_ACCOUNT, CURRENCY));
+        assertEquals(PaymentStatus.COMPLETED, service.finalizePayment("tx-1"));
+        assertEquals(Money.parse("10000.01"), service.balance(ORIGIN_ACCOUNT, CURRENCY));
+    }
+
+    @Test
+    public void shouldRecoverFromLogWrittenByOtherLedger() {
+        // given
+        Path directory = folder.getRoot().toPath();
+        WriteAheadLog log = new WriteAheadLog(directory, false, 1 << 20);
+        SequencedAccountService ledger = new SequencedAccountService("sender", log, 2, 16);
+        log.recover();
+        ledger.createAccount(ORIGIN_ACCOUNT, CURRENCY);
+        ledger.deposit(ORIGIN_ACCOUNT, BIG_BALANCE, CURRENCY, TXID);
+        ledger.authorizePayment(ORIGIN_ACCOUNT, DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, TXID);
+        ledger.close();
+        log.close();
+
+        // when
+        WriteAheadLog reopened = new WriteAheadLog(directory, false, 1 << 20);
+        AccountService recovered = new AccountServiceImpl("sender", reopened);
+        reopened.recover();
+
+        // then
+        assertEquals(Money.parse("9900.01"), recovered.balance(ORIGIN_ACCOUNT, CURRENCY));
+        assertEquals(PaymentStatus.CANCELLED, recovered.cancelPayment(TXID));
+        assertEquals(Money.parse("10000"), recovered.balance(ORIGIN_ACCOUNT, CURRENCY));
+        // deposit made before restart isn't repeated
+        assertEquals(PaymentStatus.COMPLETED, recovered.deposit(ORIGIN_ACCOUNT, BIG_BALANCE, CURRENCY, TXID));
+        assertEquals(Money.parse("10000"), recovered.balance(ORIGIN_ACCOUNT, CURRENCY));
+        reopened.close();
+    }
+
+    @Test
+    public void shouldDeclineFinalizationOverflowingDestinationBalance() {
+        // given
+        prepareAccounts();
+        service.deposit(DEST_ACCOUNT, Money.ofMinor(Long.MAX_VALUE - 100, 2), CURRENCY, "big");
+        service.authorizePayment(ORIGIN_ACCOUNT, DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, "tx-1");
+
+        // when
+        PaymentStatus finalized = service.finalizePayment("tx-1");
+
+        // then
+        assertEquals(PaymentStatus.DECLINED, finalized);
+        assertEquals(PaymentStatus.AUTHORIZED, service.paymentStatus("tx-1"));
+        assertEquals(Money.ofMinor(Long.MAX_VALUE - 100, 2), service.balance(DEST_ACCOUNT, CURRENCY));
+    }
+
+    @Test
+    public void shouldApplyCreditInterruptedByCrashAfterRecovery() throws Exception {
+        // given - source and destination account in different partitions
+        Path directory = folder.getRoot().toPath();
+        WriteAheadLog log = new WriteAheadLog(directory, false, 1 << 20);
+        SequencedAccountService ledger = new SequencedAccountService("sender", log, 3, 16);
+        log.recover();
+        ledger.createAccount(ORIGIN_ACCOUNT, CURRENCY);
+        ledger.createAccount(DEST_ACCOUNT, CURRENCY);
+        ledger.deposit(ORIGIN_ACCOUNT, BIG_BALANCE, CURRENCY, TXID);
+        ledger.authorizePayment(ORIGIN_ACCOUNT, DEST_ACCOUNT, TRANSFER_AMOUNT, CURRENCY, "tx-1");
+        ledger.finalizePayment("tx-1");
+        ledger.close();
+        log.close();
+        try (Stream<Path> files = Files.list(directory);
+             FileChannel channel = FileChannel.open(files.findFirst().get(), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3); // crash while destination was credited
+        }
+
+        // when
+        WriteAheadLog reopened = new WriteAheadLog(directory, false, 1 << 20);
+        SequencedAccountService recovered = new SequencedAccountService("sender", reopened, 3, 16);
+        reopened.recover();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!TRANSFER_AMOUNT.equals(recovered.balance(DEST_ACCOUNT, CURRENCY))
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        recovered.close();
+        reopened.close();
+
+        // then - credited once, and not again after next restart
+        WriteAheadLog again = new WriteAheadLog(directory, false, 1 << 20);
+        SequencedAccountService recoveredAgain = new SequencedAccountService("sender", again, 3, 16);
+        again.recover();
+        Thread.sleep(50);
+        assertEquals(PaymentStatus.COMPLETED, recoveredAgain.paymentStatus("tx-1"));
+        assertEquals(Money.parse("9900.01"), recoveredAgain.balance(ORIGIN_ACCOUNT, CURRENCY));
+        assertEquals(TRANSFER_AMOUNT, recoveredAgain.balance(DEST_ACCOUNT, CURRENCY));
+        recoveredAgain.close();
+        again.close();
+    }
+
+    private void prepareAccounts() {
+        service.createAccount(ORIGIN_ACCOUNT, CURRENCY);
+        service.createAccount(DEST_ACCOUNT, CURRENCY);
+        service.deposit(ORIGIN_ACCOUNT, BIG_BALANCE, CURRENCY, TXID);
+    }
+}
@@ -0,0 +1,135 @@
+package org.fastpay.service;
+
+import org.fastpay.entity.Money;
+import org.fastpay.entity.TransferDto;
+import org.fastpay.entity.TransferStatus;
+import org.fastpay.persistence.Journaled;
+import org.fastpay.persistence.NoTransactionLog;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.fastpay.service.LedgerCodec.RECORD_BALANCE;
+
+// Ledger writes and throughput of immediate and netting settlement, for two-way traffic between few accounts.
+// Not a unit test, run manually:
+//   mvn test-compile exec:java -Dexec.mainClass=org.fastpay.service.SettlementBenchmark -Dexec.classpathScope=test
+// every client thread creates and executes transfers between accounts picked from small set of corporate accounts;
+// ledger writes are balance records appended to transaction log. Execute waits for its window, so netting needs
+// many concurrent clients to pay off - each of them completes at most one transfer per window
+public class SettlementBenchmark {
+
+    private static final int ACCOUNTS = 8;
+    private static final int THREADS = 64;
+    private static final int TRANSFERS_PER_THREAD = 500;
+    private static final long[] WINDOWS_MILLIS = {0L, 5L, 20L}; // 0 - immediate settlement
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = THREADS;
+        System.out.printf("client threads: %d, accounts: %d, transfers: %d%n%10s %14s %18s %18s%n", threads,
+                ACCOUNTS, threads * TRANSFERS_PER_THREAD, "window ms", "transfers/s", "balance writes",
+                "writes/transfer");
+
+        for (long window : WINDOWS_MILLIS) {
+            run(threads, window); // warm-up
+            Result result = run(threads, window);
+            // authorization writes one balance record per transfer in both modes, the rest is settlement
+            System.out.printf("%10s %14.0f %18d %26.3f%n", window == 0 ? "immediate" : Long.toString(window),
+                    result.throughput, result.balanceWrites,
+                    (double) (result.balanceWrites - result.transfers) / result.transfers);
+        }
+    }
+
+    private static Result run(int threads, long windowMillis) throws InterruptedException {
+        CountingLog log = new CountingLog();
+        AccountServiceImpl sender = new AccountServiceImpl("sender", log);
+        AccountServiceImpl recipient = new AccountServiceImpl("recipient", log);
+        for (int i = 0; i < ACCOUNTS; i++) {
+            for (AccountService ledger : new AccountService[]{sender, recipient}) {
+                ledger.createAccount(account(i), "PLN");
+                ledger.deposit(account(i), Money.parse("1000000000"), "PLN", "init");
+            }
+        }
+        NettingSettlement netting = windowMillis > 0 ? new NettingSettlement(sender, recipient, windowMillis) : null;
+        Settlement settlement = netting != null ? netting : new ImmediateSettlement(sender, recipient);
+        TransferService service = new TransferServiceBuilder(sender).settlement(settlement).build();
+
+        AtomicLong completed = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            Thread client = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < TRANSFERS_PER_THREAD; i++) {
+                        TransferDto transferData = new TransferDto();
+                        // two-way traffic: pairs of accounts in both directions
+                        transferData.setSource(account((seed + i) % ACCOUNTS));
+                        transferData.setDestination(account((seed + i + 1 + (i & 1) * (ACCOUNTS - 2)) % ACCOUNTS));
+                        transferData.setAmount(Money.parse("1.00"));
+                        transferData.setCurrency("PLN");
+                        String id = service.createTransfer(transferData).getId();
+                        if (service.executeTransfer(id) == TransferStatus.COMPLETED) {
+                            completed.incrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+            client.start();
+        }
+
+        long writesBefore = log.balanceWrites.sum();
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        if (netting != null) {
+            netting.close();
+        }
+
+        Result result = new Result();
+        result.transfers = completed.get();
+        result.throughput = completed.get() * 1e9 / elapsed;
+        result.balanceWrites = log.balanceWrites.sum() - writesBefore;
+        return result;
+    }
+
+    // valid IBANs of one Polish bank, different account numbers
+    private static String account(int index) {
+        String bban = String.format("10901014%016d", index);
+        int remainder = 0;
+        for (char c : (bban + "252100").toCharArray()) { // "PL00" rearranged, P=25, L=21
+            remainder = (remainder * 10 + c - '0') % 97;
+        }
+        return String.format("PL%02d%s", 98 - remainder, bban);
+    }
+
+    private static final class Result {
+        private long transfers;
+        private double throughput;
+        private long balanceWrites;
+    }
+
+    // counts balance records of ledgers, nothing is written
+    private static final class CountingLog extends NoTransactionLog {
+        private final LongAdder balanceWrites = new LongAdder();
+
+        @Override
+        public long append(String stream, byte type, byte[] payload) {
+            if (type == RECORD_BALANCE) {
+                balanceWrites.increment();
+            }
+            return 0L;
+        }
+
+        @Override
+        public void register(String stream, Journaled component) {
+        }
+    }
+}
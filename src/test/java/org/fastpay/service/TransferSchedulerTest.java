@@ -0,0 +1,78 @@
+package org.fastpay.service;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TransferSchedulerTest {
+
+    // 10 ms buckets, at most 2 transfers per batch
+    private final TransferScheduler scheduler = new TransferScheduler(10L, 2);
+
+    @After
+    public void cleanup() {
+        scheduler.close();
+    }
+
+    @Test
+    public void shouldExecuteDueTransfersInBatchesNotBeforeDueTime() throws InterruptedException {
+        // given
+        List<List<String>> batches = new CopyOnWriteArrayList<>();
+        List<Long> executedAt = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        scheduler.start(batch -> {
+            batches.add(batch);
+            executedAt.add(System.currentTimeMillis());
+            done.countDown();
+        });
+        long dueTime = System.currentTimeMillis() + 50;
+
+        // when
+        for (String txId : Arrays.asList("tx-1", "tx-2", "tx-3", "tx-4", "tx-5")) {
+            scheduler.schedule(txId, dueTime);
+        }
+
+        // then
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(Arrays.asList("tx-1", "tx-2"), Arrays.asList("tx-3", "tx-4"),
+                Collections.singletonList("tx-5")), batches);
+        assertTrue(executedAt.stream().allMatch(time -> time >= dueTime));
+        assertEquals(0, scheduler.pendingSchedules());
+    }
+
+    @Test
+    public void shouldExecuteInOrderOfDueTime() throws InterruptedException {
+        // given
+        List<String> executed = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        scheduler.start(batch -> {
+            executed.addAll(batch);
+            batch.forEach(txId -> done.countDown());
+        });
+        long now = System.currentTimeMillis();
+
+        // when
+        scheduler.schedule("later", now + 80);
+        scheduler.schedule("overdue", now - 60000); // e.g. due while instance was down
+        scheduler.schedule("soon", now + 20);
+
+        // then
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("overdue", "soon", "later"), new ArrayList<>(executed));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectExecutionTimeWhichIsNotIso8601() {
+        TransferScheduler.dueTime("1st of November");
+    }
+}
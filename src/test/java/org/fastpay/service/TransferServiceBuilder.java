@@ -0,0 +1,55 @@
+package org.fastpay.service;
+
+import org.fastpay.repository.TransferRepository;
+import org.fastpay.repository.TransferRepositoryImpl;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.Map;
+
+// Transfer service for tests: given ledger on both sides, immediate settlement, in-memory repository, holds which
+// never expire, no exchange rates and built-in commission rules. Any of them can be replaced
+class TransferServiceBuilder {
+
+    private final AccountService ledger;
+    private TransferRepository repository = new TransferRepositoryImpl();
+    private Settlement settlement;
+    private HoldTimer holdTimer = new HoldTimer(0L);
+    private ExchangeRates exchangeRates = new ExchangeRates(Collections::emptyMap, 0L);
+    private TransferScheduler scheduler = new TransferScheduler(1000L, 1000);
+
+    TransferServiceBuilder(AccountService ledger) {
+        this.ledger = ledger;
+    }
+
+    TransferServiceBuilder repository(TransferRepository repository) {
+        this.repository = repository;
+        return this;
+    }
+
+    TransferServiceBuilder settlement(Settlement settlement) {
+        this.settlement = settlement;
+        return this;
+    }
+
+    TransferServiceBuilder holdTimer(HoldTimer holdTimer) {
+        this.holdTimer = holdTimer;
+        return this;
+    }
+
+    TransferServiceBuilder rates(Map<String, BigDecimal> rates) {
+        this.exchangeRates = new ExchangeRates(() -> rates, 0L);
+        return this;
+    }
+
+    TransferServiceBuilder scheduler(TransferScheduler scheduler) {
+        this.scheduler = scheduler;
+        return this;
+    }
+
+    TransferServiceImpl build() {
+        return new TransferServiceImpl(repository, ledger,
+                settlement != null ? settlement : new ImmediateSettlement(ledger, ledger), holdTimer, exchangeRates,
+                new CommissionRules(null, 0L), new ExecutionPool(1, 16), scheduler);
+    }
+}
@@ -0,0 +1,588 @@
+package org.fastpay.service;
+
+import org.fastpay.entity.FilterParametersDto;
+import org.fastpay.entity.Money;
+import org.fastpay.entity.Recurrence;
+import org.fastpay.entity.Transfer;
+import org.fastpay.entity.TransferDto;
+import org.fastpay.entity.TransferResult;
+import org.fastpay.entity.TransferStatus;
+import org.fastpay.repository.TransferRepository;
+import org.fastpay.repository.TransferRepositoryImpl;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class TransferServiceTest {
+
+    private static final int THREADS = 8;
+
+    private AccountService account;
+    private TransferService service;
+
+    @Before
+    public void setup() {
+        account = mock(AccountService.class);
+        when(account.authorizePayment(anyString(), anyString(), anyObject(), anyObject(), anyString(), anyString()))
+                .thenReturn(PaymentStatus.AUTHORIZED);
+        when(account.cancelPayment(anyString())).thenReturn(PaymentStatus.CANCELLED);
+        when(account.finalizePayment(anyString())).thenReturn(PaymentStatus.COMPLETED);
+        when(account.deposit(anyString(), anyObject(), anyString(), anyString())).thenReturn(PaymentStatus.COMPLETED);
+        service = new TransferServiceBuilder(account).build();
+    }
+
+    @Test
+    public void shouldExecuteTransferOnlyOnceUnderConcurrentRequests() throws Exception {
+        // given
+        Transfer transfer = service.createTransfer(transferData());
+
+        // when
+        List<TransferStatus> results = runConcurrently(() -> service.executeTransfer(transfer.getId()));
+
+        // then
+        assertEquals(1, results.stream().filter(TransferStatus.COMPLETED::equals).count());
+        assertEquals(THREADS - 1, results.stream().filter(TransferStatus.ERROR::equals).count());
+        verify(account, times(1)).deposit(anyString(), anyObject(), anyString(), anyString());
+        assertEquals(TransferStatus.COMPLETED, service.getTransferDetails(transfer.getId()).getStatus());
+    }
+
+    @Test
+    public void shouldNotExecuteAndCancelSameTransfer() throws Exception {
+        // given
+        Transfer transfer = service.createTransfer(transferData());
+
+        AtomicInteger counter = new AtomicInteger();
+
+        // when
+        List<TransferStatus> results = runConcurrently(() -> counter.incrementAndGet() % 2 == 0
+                ? service.executeTransfer(transfer.getId()) : service.cancelTransfer(transfer.getId()));
+
+        // then
+        assertEquals(THREADS - 1, results.stream().filter(TransferStatus.ERROR::equals).count());
+    }
+
+    @Test
+    public void shouldRestorePendingStateWhenDepositDeclined() {
+        // given
+        when(account.deposit(anyString(), anyObject(), anyString(), anyString())).thenReturn(PaymentStatus.DECLINED);
+        Transfer transfer = service.createTransfer(transferData());
+
+        // when
+        TransferStatus result = service.executeTransfer(transfer.getId());
+
+        // then
+        assertEquals(TransferStatus.ERROR, result);
+        assertEquals(TransferStatus.PENDING, service.getTransferDetails(transfer.getId()).getStatus());
+    }
+
+    @Test
+    public void shouldCancelTransferWhenHoldExpires() throws InterruptedException {
+        // given
+        HoldTimer holdTimer = new HoldTimer(50L);
+        when(account.cancelPayments(anyObject())).thenAnswer(invocation -> {
+            Map<String, PaymentStatus> results = new HashMap<>();
+            for (Object txId : (Collection<?>) invocation.getArguments()[0]) {
+                results.put((String) txId, PaymentStatus.CANCELLED);
+            }
+            return results;
+        });
+        service = new TransferServiceBuilder(account).holdTimer(holdTimer).build();
+        service.start();
+        Transfer expiring = service.createTransfer(transferData());
+        Transfer executed = service.createTransfer(transferData());
+        service.executeTransfer(executed.getId());
+
+        // when
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.getTransferDetails(expiring.getId()).getStatus() == TransferStatus.PENDING
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // then
+        assertEquals(TransferStatus.CANCELLED, service.getTransferDetails(expiring.getId()).getStatus());
+        assertEquals(TransferStatus.COMPLETED, service.getTransferDetails(executed.getId()).getStatus());
+        // cancelled by hold timer in a batch; transfer is claimed before its payment is cancelled
+        verify(account, timeout(1000).times(1)).cancelPayments(Collections.singletonList(expiring.getId()));
+        verify(account, never()).cancelPayment(anyString());
+        assertEquals(0, holdTimer.pendingHolds());
+        holdTimer.close();
+    }
+
+    @Test
+    public void shouldExecuteScheduledTransferAndCreateNextOccurrence() throws InterruptedException {
+        // given
+        AccountService ledger = new AccountServiceImpl();
+        TransferScheduler scheduler = new TransferScheduler(10L, 100);
+        service = new TransferServiceBuilder(ledger).scheduler(scheduler).build();
+        service.start();
+        TransferDto transferData = transferData();
+        Instant executeAt = Instant.now().plusMillis(50);
+        transferData.setExecuteAt(executeAt.toString());
+        transferData.setRecurrence("monthly");
+
+        // when
+        Transfer transfer = service.createTransfer(transferData);
+        FilterParametersDto pending = new FilterParametersDto();
+        pending.setStatus(TransferStatus.PENDING);
+        long deadline = System.currentTimeMillis() + 5000;
+        List<Transfer> next = service.getTransfers(pending);
+        // until executed transfer is followed by next occurrence, which is scheduled after it's stored
+        while ((next.isEmpty() || next.get(0).getId().equals(transfer.getId()) || scheduler.pendingSchedules() == 0)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            next = service.getTransfers(pending);
+        }
+
+        // then
+        assertEquals(TransferStatus.COMPLETED, service.getTransferDetails(transfer.getId()).getStatus());
+        assertEquals(1, next.size());
+        assertEquals(Recurrence.MONTHLY.next(executeAt).toString(), next.get(0).getExecuteAt());
+        assertEquals(Money.parse("340.23"), next.get(0).getAmount());
+        assertEquals(1, scheduler.pendingSchedules());
+        scheduler.close();
+    }
+
+    @Test
+    public void shouldCancelRecurringTransferWhichFailedInsteadOfCreatingNextOccurrence() throws InterruptedException {
+        // given
+        AccountService ledger = new AccountServiceImpl();
+        AccountService recipient = spy(new AccountServiceImpl());
+        doAnswer(invocation -> statusPerId(((Map<?, ?>) invocation.getArguments()[1]).keySet(),
+                PaymentStatus.DECLINED)).when(recipient).depositAll(anyString(), anyObject(), anyString());
+        TransferScheduler scheduler = new TransferScheduler(10L, 100);
+        service = new TransferServiceBuilder(ledger).scheduler(scheduler)
+                .settlement(new ImmediateSettlement(ledger, recipient)).build();
+        service.start();
+        TransferDto transferData = transferData();
+        transferData.setExecuteAt(Instant.now().toString());
+        transferData.setRecurrence("monthly");
+
+        // when
+        Transfer transfer = service.createTransfer(transferData);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.getTransferDetails(transfer.getId()).getStatus() != TransferStatus.CANCELLED
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        scheduler.close();
+
+        // then - hold released, series ended
+        assertEquals(TransferStatus.CANCELLED, service.getTransferDetails(transfer.getId()).getStatus());
+        assertEquals(1, service.getTransfers(new FilterParametersDto()).size());
+        assertEquals(Money.parse("1000.00"), ledger.balance("PL61109010140000071219812874", "PLN"));
+        assertEquals(0, scheduler.pendingSchedules());
+    }
+
+    @Test
+    public void shouldKeepDayOfMonthlyTransferAfterShortMonth() throws InterruptedException {
+        // given
+        AccountService ledger = new AccountServiceImpl();
+        TransferScheduler scheduler = new TransferScheduler(10L, 100);
+        service = new TransferServiceBuilder(ledger).scheduler(scheduler).build();
+        service.start();
+        TransferDto transferData = transferData();
+        transferData.setAmount(Money.parse("1.00"));
+        // long past - every occurrence is due right after the one before
+        transferData.setExecuteAt("2021-01-31T09:00:00Z");
+        transferData.setRecurrence("monthly");
+
+        // when
+        service.createTransfer(transferData);
+        FilterParametersDto completed = new FilterParametersDto();
+        completed.setStatus(TransferStatus.COMPLETED);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.getTransfers(completed).size() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        scheduler.close();
+
+        // then
+        List<String> executed = new ArrayList<>();
+        service.getTransfers(completed).forEach(transfer -> executed.add(transfer.getExecuteAt()));
+        Collections.sort(executed);
+        assertEquals(Arrays.asList("2021-01-31T09:00:00Z", "2021-02-28T09:00:00Z", "2021-03-31T09:00:00Z",
+                "2021-04-30T09:00:00Z"), executed.subList(0, 4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectRecurringTransferWithoutExecutionTime() {
+        TransferDto transferData = transferData();
+        transferData.setRecurrence("weekly");
+        service.createTransfer(transferData);
+    }
+
+    @Test
+    public void shouldDepositConvertedAmountToRecipient() {
+        // given
+        Map<String, BigDecimal> rates = new HashMap<>();
+        rates.put("EUR", BigDecimal.ONE);
+        rates.put("PLN", new BigDecimal("4.30"));
+        rates.put("CZK", new BigDecimal("25.20"));
+        service = new TransferServiceBuilder(account).rates(rates).build();
+        TransferDto transferData = transferData();
+        transferData.setTargetCurrency("czk");
+
+        // when
+        Transfer transfer = service.createTransfer(transferData);
+        service.executeTransfer(transfer.getId());
+
+        // then
+        // 340.23 PLN * (25.20 / 4.30) = 1993.91 CZK
+        assertEquals(Money.parse("1993.91"), transfer.getTargetAmount());
+        assertEquals("CZK", transfer.getTargetCurrency());
+        assertEquals(0, new BigDecimal("5.860465116279070").compareTo(transfer.getRate()));
+        // with 2.5% commission within EEA, charged in currency of sender
+        verify(account).authorizePayment(anyString(), anyString(), eq(Money.parse("340.23")), eq(Money.parse("8.51")),
+                eq("PLN"), anyString());
+        verify(account).deposit(anyString(), eq(Money.parse("1993.91")), eq("CZK"), anyString());
+    }
+
+    @Test
+    public void shouldHoldCommissionTogetherWithAmount() {
+        // given
+        AccountService ledger = new AccountServiceImpl();
+        service = new TransferServiceBuilder(ledger).build();
+
+        // when
+        Transfer transfer = service.createTransfer(transferData());
+
+        // then
+        // PL -> CZ, both in EEA: 2.5% of 340.23
+        assertEquals(Money.parse("8.51"), transfer.getCommission());
+        assertEquals(Money.parse("651.26"), ledger.balance(transfer.getSource(), "PLN"));
+
+        // cancellation releases both
+        service.cancelTransfer(transfer.getId());
+        assertEquals(Money.parse("1000.00"), ledger.balance(transfer.getSource(), "PLN"));
+    }
+
+    @Test
+    public void shouldCreditPayeeWithAmountAndFeeAccountWithCommission() {
+        // given
+        AccountService sender = new AccountServiceImpl();
+        AccountService recipient = new AccountServiceImpl();
+        service = new TransferServiceBuilder(sender).settlement(new ImmediateSettlement(sender, recipient)).build();
+        Transfer transfer = service.createTransfer(transferData());
+
+        // when
+        TransferStatus result = service.executeTransfer(transfer.getId());
+
+        // then
+        assertEquals(TransferStatus.COMPLETED, result);
+        assertEquals(Money.parse("651.26"), sender.balance(transfer.getSource(), "PLN"));
+        assertEquals(Money.parse("340.23"), sender.balance(transfer.getDestination(), "PLN"));
+        assertEquals(Money.parse("8.51"), sender.balance(AccountService.feeAccount("PLN"), "PLN"));
+        assertEquals(Money.parse("340.23"), recipient.balance(transfer.getDestination(), "PLN"));
+    }
+
+    @Test
+    public void shouldCreateTransfersInBatchWithResultPerItem() {
+        // given
+        AccountService ledger = new AccountServiceImpl();
+        service = new TransferServiceBuilder(ledger).build();
+        TransferDto invalid = transferData();
+        invalid.setDestination("CZ0000000000000000000000");
+
+        // when
+        // 348.74 with commission each, only two fit into balance of 1000.00
+        List<TransferResult> results = service.createTransfers(
+                Arrays.asList(transferData(), transferData(), invalid, transferData()));
+
+        // then
+        assertEquals(TransferStatus.PENDING, results.get(0).getStatus());
+        assertEquals(TransferStatus.PENDING, results.get(1).getStatus());
+        assertEquals(TransferStatus.INVALID, results.get(2).getStatus());
+        assertEquals("Invalid IBAN in field 'destination'", results.get(2).getMessage());
+        assertEquals(TransferStatus.ERROR, results.get(3).getStatus());
+        assertEquals(Money.parse("302.52"), ledger.balance("PL61109010140000071219812874", "PLN"));
+        assertEquals(2, service.getTransfers(new FilterParametersDto()).size()); // declined one deleted
+        assertEquals(TransferStatus.COMPLETED, service.executeTransfer(results.get(0).getTransfer().getId()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectTransferWithoutExchangeRate() {
+        // given
+        TransferDto transferData = transferData();
+        transferData.setTargetCurrency("USD");
+
+        // when
+        service.createTransfer(transferData);
+    }
+
+    @Test
+    public void shouldSettleTransfersOfWindowWithOneDepositPerAccount() throws Exception {
+        // given
+        AccountService ledger = spy(new AccountServiceImpl());
+        NettingSettlement netting = new NettingSettlement(ledger, ledger, 200L);
+        service = new TransferServiceBuilder(ledger).settlement(netting).build();
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            TransferDto transferData = transferData();
+            transferData.setAmount(Money.parse("10.00"));
+            ids.add(service.createTransfer(transferData).getId());
+        }
+        AtomicInteger counter = new AtomicInteger();
+
+        // when
+        List<TransferStatus> results = runConcurrently(() -> service.executeTransfer(ids.get(counter.getAndIncrement())));
+        netting.close();
+
+        // then
+        assertEquals(THREADS, results.stream().filter(TransferStatus.COMPLETED::equals).count());
+        ids.forEach(id -> assertEquals(TransferStatus.COMPLETED, service.getTransferDetails(id).getStatus()));
+        // recipient credited with all transfers, in fewer deposits than transfers
+        ArgumentCaptor<Map> deposits = ArgumentCaptor.forClass(Map.class);
+        verify(ledger, atMost(THREADS - 1)).depositAll(anyString(), deposits.capture(), anyString());
+        assertEquals(Money.parse("80.00"), deposits.getAllValues().stream()
+                .flatMap(amounts -> ((Map<?, ?>) amounts).values().stream()).map(Money.class::cast)
+                .reduce(Money::plus).get());
+        verify(ledger, never()).finalizePayment(anyString());
+    }
+
+    @Test
+    public void shouldExecuteTransferInBackground() throws InterruptedException {
+        // given
+        CountDownLatch bankResponds = new CountDownLatch(1);
+        Settlement slowBank = transfer -> {
+            try {
+                bankResponds.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return TransferStatus.COMPLETED;
+        };
+        service = new TransferServiceBuilder(account).settlement(slowBank).build();
+        String id = service.createTransfer(transferData()).getId();
+
+        // when
+        TransferStatus accepted = service.submitExecution(id);
+        TransferStatus again = service.submitExecution(id);
+
+        // then
+        // request doesn't wait for the bank, transfer can't be executed or cancelled meanwhile
+        assertEquals(TransferStatus.PROCESSING, accepted);
+        assertEquals(TransferStatus.ERROR, again);
+        assertEquals(TransferStatus.PROCESSING, service.getTransferDetails(id).getStatus());
+        assertEquals(TransferStatus.ERROR, service.cancelTransfer(id));
+
+        bankResponds.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.getTransferDetails(id).getStatus() == TransferStatus.PROCESSING
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(TransferStatus.COMPLETED, service.getTransferDetails(id).getStatus());
+    }
+
+    @Test
+    public void shouldExecuteTransfersInBatchWithOneDepositPerAccount() {
+        // given
+        AccountService ledger = spy(new AccountServiceImpl());
+        service = new TransferServiceBuilder(ledger).build();
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            TransferDto transferData = transferData();
+            transferData.setAmount(Money.parse("10.00"));
+            ids.add(service.createTransfer(transferData).getId());
+        }
+        service.cancelTransfer(ids.get(1));
+        ids.add("unknown");
+
+        // when
+        Map<String, TransferStatus> results = service.executeTransfers(ids);
+
+        // then
+        assertEquals(Arrays.asList(TransferStatus.COMPLETED, TransferStatus.ERROR, TransferStatus.COMPLETED,
+                TransferStatus.ERROR), new ArrayList<>(results.values()));
+        assertEquals(TransferStatus.COMPLETED, service.getTransferDetails(ids.get(2)).getStatus());
+        verify(ledger, times(1)).depositAll(eq("CZ6508000000192000145399"), anyObject(), eq("PLN"));
+        verify(ledger, never()).deposit(anyString(), anyObject(), anyString(), anyString());
+        verify(ledger, never()).finalizePayment(anyString());
+    }
+
+    @Test
+    public void shouldTakeBackDepositOfTransferNotFinalizedInBatch() {
+        // given
+        AccountService ledger = spy(new AccountServiceImpl());
+        AccountService recipient = new AccountServiceImpl();
+        service = new TransferServiceBuilder(ledger).settlement(new ImmediateSettlement(ledger, recipient)).build();
+        String finalized = service.createTransfer(transferData()).getId();
+        String rejected = service.createTransfer(transferData()).getId();
+        doAnswer(invocation -> {
+            Map<String, PaymentStatus> results = ledger.finalizePayments(Collections.singletonList(finalized));
+            results.put(rejected, PaymentStatus.DECLINED);
+            return results;
+        }).when(ledger).finalizePayments(Arrays.asList(finalized, rejected));
+
+        // when
+        Map<String, TransferStatus> results = service.executeTransfers(Arrays.asList(finalized, rejected));
+
+        // then
+        assertEquals(TransferStatus.COMPLETED, results.get(finalized));
+        assertEquals(TransferStatus.CANCELLED, results.get(rejected));
+        assertEquals(TransferStatus.CANCELLED, service.getTransferDetails(rejected).getStatus());
+        assertEquals(PaymentStatus.CANCELLED, ledger.paymentStatus(rejected));
+        // recipient keeps only the finalized one, sender gets the other one back
+        assertEquals(Money.parse("340.23"), recipient.balance("CZ6508000000192000145399", "PLN"));
+        assertEquals(Money.parse("651.26"), ledger.balance("PL61109010140000071219812874", "PLN"));
+    }
+
+    @Test
+    public void shouldCancelTransfersInBatch() {
+        // given
+        AccountService ledger = new AccountServiceImpl();
+        service = new TransferServiceBuilder(ledger).build();
+        String first = service.createTransfer(transferData()).getId();
+        String second = service.createTransfer(transferData()).getId();
+        service.executeTransfer(second);
+
+        // when
+        Map<String, TransferStatus> results = service.cancelTransfers(Arrays.asList(first, second));
+
+        // then
+        assertEquals(TransferStatus.CANCELLED, results.get(first));
+        assertEquals(TransferStatus.ERROR, results.get(second)); // executed already
+        assertEquals(TransferStatus.CANCELLED, service.getTransferDetails(first).getStatus());
+        assertEquals(TransferStatus.COMPLETED, service.getTransferDetails(second).getStatus());
+        assertEquals(Money.parse("651.26"), ledger.balance("PL61109010140000071219812874", "PLN"));
+    }
+
+    @Test
+    public void shouldFinishExecutionsInterruptedByRestart() {
+        // given
+        AccountService ledger = spy(new AccountServiceImpl());
+        TransferRepository repository = new TransferRepositoryImpl();
+        service = new TransferServiceBuilder(ledger).repository(repository).build();
+        String claimed = service.createTransfer(transferData()).getId();
+        String finalized = service.createTransfer(transferData()).getId();
+        // both claimed for execution before restart, second one got as far as finalization
+        repository.updateStatus(claimed, TransferStatus.PENDING, TransferStatus.PROCESSING);
+        repository.updateStatus(finalized, TransferStatus.PENDING, TransferStatus.PROCESSING);
+        ledger.finalizePayment(finalized);
+        service = new TransferServiceBuilder(ledger).repository(repository).build();
+
+        // when
+        service.start();
+
+        // then
+        assertEquals(TransferStatus.COMPLETED, service.getTransferDetails(claimed).getStatus());
+        assertEquals(TransferStatus.COMPLETED, service.getTransferDetails(finalized).getStatus());
+        assertEquals(PaymentStatus.COMPLETED, ledger.paymentStatus(claimed));
+        verify(ledger, times(1)).deposit(anyString(), anyObject(), anyString(), eq(claimed));
+        verify(ledger, never()).deposit(anyString(), anyObject(), anyString(), eq(finalized));
+    }
+
+    @Test
+    public void shouldReleaseClaimWhenSettlementFails() {
+        // given
+        Settlement failing = new Settlement() {
+            @Override
+            public TransferStatus settle(Transfer transfer) {
+                throw new IllegalStateException("bank unavailable");
+            }
+
+            @Override
+            public Map<String, TransferStatus> settleAll(List<Transfer> transfers) {
+                throw new IllegalStateException("bank unavailable");
+            }
+        };
+        service = new TransferServiceBuilder(account).settlement(failing).build();
+        String single = service.createTransfer(transferData()).getId();
+        String batched = service.createTransfer(transferData()).getId();
+
+        // when
+        TransferStatus result = service.executeTransfer(single);
+        Map<String, TransferStatus> results = service.executeTransfers(Collections.singletonList(batched));
+
+        // then
+        assertEquals(TransferStatus.ERROR, result);
+        assertEquals(TransferStatus.ERROR, results.get(batched));
+        // can be executed or cancelled again
+        assertEquals(TransferStatus.PENDING, service.getTransferDetails(single).getStatus());
+        assertEquals(TransferStatus.PENDING, service.getTransferDetails(batched).getStatus());
+    }
+
+    @Test
+    public void shouldNotCreditAgainBatchDepositInterruptedByRestart() {
+        // given
+        AccountService ledger = new AccountServiceImpl();
+        AccountService recipient = new AccountServiceImpl();
+        TransferRepository repository = new TransferRepositoryImpl();
+        service = new TransferServiceBuilder(ledger).repository(repository)
+                .settlement(new ImmediateSettlement(ledger, recipient)).build();
+        List<String> ids = new ArrayList<>();
+        Map<String, Money> amounts = new HashMap<>();
+        for (int i = 0; i < 2; i++) {
+            String id = service.createTransfer(transferData()).getId();
+            ids.add(id);
+            amounts.put(id, Money.parse("340.23"));
+            repository.updateStatus(id, TransferStatus.PENDING, TransferStatus.PROCESSING);
+        }
+        // batch got as far as its grouped deposit before restart
+        recipient.depositAll("CZ6508000000192000145399", amounts, "PLN");
+        service = new TransferServiceBuilder(ledger).repository(repository)
+                .settlement(new ImmediateSettlement(ledger, recipient)).build();
+
+        // when
+        service.start();
+
+        // then
+        ids.forEach(id -> assertEquals(TransferStatus.COMPLETED, service.getTransferDetails(id).getStatus()));
+        assertEquals(Money.parse("680.46"), recipient.balance("CZ6508000000192000145399", "PLN"));
+    }
+
+    private List<TransferStatus> runConcurrently(Callable<TransferStatus> operation) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<TransferStatus>> futures = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                return operation.call();
+            }));
+        }
+        start.countDown();
+
+        List<TransferStatus> results = new ArrayList<>();
+        for (Future<TransferStatus> future : futures) {
+            results.add(future.get());
+        }
+        executor.shutdown();
+        return results;
+    }
+
+    private static Map<String, PaymentStatus> statusPerId(Collection<?> txIds, PaymentStatus status) {
+        Map<String, PaymentStatus> results = new HashMap<>();
+        txIds.forEach(txId -> results.put((String) txId, status));
+        return results;
+    }
+
+    private TransferDto transferData() {
+        TransferDto transferData = new TransferDto();
+        transferData.setSource("PL61109010140000071219812874");
+        transferData.setDestination("CZ6508000000192000145399");
+        transferData.setAmount(Money.parse("340.23"));
+        transferData.setCurrency("PLN");
+        transferData.setTitle("przelew");
+        return transferData;
+    }
+}